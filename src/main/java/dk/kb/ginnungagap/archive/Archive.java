@@ -27,6 +27,14 @@ public interface Archive extends Closeable {
      */
     File getFile(String warcId, String collectionId);
     
+    /**
+     * Releases a file retrieved from the archive, when it is no longer being used.
+     * Must be called once after each successful call to getFile.
+     * @param warcId The id of the retrieved WARC file.
+     * @param collectionId The collection, where the file was retrieved from.
+     */
+    void releaseFile(String warcId, String collectionId);
+    
     /**
      * Retrieve the checksum of a file in the archive.
      * @param warcId The id of a WARC file in the archive.
@@ -11,6 +11,7 @@ import dk.kb.ginnungagap.config.Configuration;
 
 /**
  * Wrapped archive.
+ * The files retrieved from the Bitrepository are kept in a local cache, when a size for the cache is configured.
  */
 @Component
 public class ArchiveWrapper implements Archive {
@@ -29,6 +30,10 @@ public class ArchiveWrapper implements Archive {
             this.archive = new LocalArchive(conf.getLocalConfiguration().getLocalArchiveDir());
         } else {
             this.archive = new BitmagArchive(conf.getBitmagConf());
+            if(conf.getBitmagConf().getWarcCacheSize() > 0) {
+                this.archive = new CachingArchive(archive, conf.getBitmagConf().getWarcCacheDir(), 
+                        conf.getBitmagConf().getWarcCacheSize());
+            }
         }
     }
     
@@ -42,6 +47,11 @@ public class ArchiveWrapper implements Archive {
         return archive.getFile(warcId, collectionId);
     }
 
+    @Override
+    public void releaseFile(String warcId, String collectionId) {
+        archive.releaseFile(warcId, collectionId);
+    }
+
     @Override
     public String getChecksum(String warcId, String collectionId) {
         return archive.getChecksum(warcId, collectionId);
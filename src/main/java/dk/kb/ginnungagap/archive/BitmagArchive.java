@@ -68,6 +68,11 @@ public class BitmagArchive implements Archive {
         }
     }
 
+    @Override
+    public void releaseFile(String warcId, String collectionId) {
+        // Do nothing, since the retrieved files are not cached.
+    }
+
     @Override
     public String getChecksum(String warcId, String collectionId) {
         Map<String, ChecksumsCompletePillarEvent> completeEvents = bitrepository.getChecksums(warcId, collectionId);
@@ -2,9 +2,14 @@ package dk.kb.ginnungagap.archive;
 
 import dk.kb.cumulus.Constants;
 import dk.kb.cumulus.CumulusRecord;
+import dk.kb.cumulus.CumulusServer;
 import dk.kb.ginnungagap.config.Configuration;
+import dk.kb.ginnungagap.cumulus.CumulusPreservationUtils;
+import dk.kb.ginnungagap.cumulus.CumulusWrapper;
+import dk.kb.ginnungagap.transformation.MetadataBuffer;
 import dk.kb.ginnungagap.utils.ChecksumUtils;
 import dk.kb.ginnungagap.utils.FileUtils;
+import dk.kb.ginnungagap.utils.WarcRecordIndex;
 import dk.kb.metadata.utils.GuidExtractionUtils;
 import org.jwat.common.Uri;
 import org.jwat.warc.WarcDigest;
@@ -13,21 +18,68 @@ import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
 import java.io.File;
 import java.net.URISyntaxException;
 //import java.util.Collections;
-//import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * API for packaging data from Cumulus in Warc files and sending it to the Bitrepository.
  * 
+ * Each collection can have several WARC files (shards) packaged concurrently, so concurrently packaged records do 
+ * not all contend for the same WARC file. All the parts of a record are packaged in the same shard, since the 
+ * shard is bound to the packaging thread between startRecordPackaging and finishRecordPackaging.
+ * 
+ * The finished WARC files are uploaded asynchronously by an upload executor, so the packaging continues in new WARC 
+ * files while the finished ones are being uploaded. The records are reported to Cumulus, when their upload completes.
+ * The number of WARC files being uploaded is bounded, and the packaging waits when the bound is reached.
+ * 
+ * Each finished WARC file is recorded in the upload journal until its upload has succeeded. At startup the uploads
+ * in the journal are resumed, and the Cumulus records in the WARC files are reported, when the upload succeeds.
+ * The resumed uploads are queued without waiting for the bound, so the startup is not blocked by them.
+ * When an upload fails, the records are reported as failed, and the WARC file is removed from the journal and 
+ * deleted, so the records are preserved again instead of being reported by a resumed upload.
+ * 
+ * The records packaged in the open WARC files are checkpointed, when all their parts have been packaged and no 
+ * other record is being packaged in the same WARC file, so the checkpointed size never includes the partial parts 
+ * of another record. Otherwise the checkpoint is postponed until the WARC file has no other active record. 
+ * At startup the WARC files left open by a crash are truncated to their last checkpointed record and added to the 
+ * upload journal, so the checkpointed records are not transformed and packaged again.
+ * 
+ * When the WARC files are finished is decided by the rollover policy, which by default combines the limits for 
+ * the size, the number of records and the age of the WARC files, and the number of open WARC files for each 
+ * collection. When the policy requires it, the WARC files are also checked by a timer, so an idle WARC file is 
+ * finished, when it gets too old.
  */
 @Component
 public class BitmagPreserver {
     /** The logger.*/
     private static final Logger log = LoggerFactory.getLogger(BitmagPreserver.class);
+    /** The separator between the collection id and the shard number in the key for the shards.*/
+    protected static final String SHARD_SEPARATOR = "#";
+    /** The name of the directory for the upload journal within the temporary directory.*/
+    protected static final String UPLOAD_JOURNAL_DIR_NAME = "upload-journal";
+    /** The name of the directory for the packaging checkpoints within the temporary directory.*/
+    protected static final String PACKAGING_CHECKPOINT_DIR_NAME = "packaging-checkpoint";
     
     /** The archive, interface for the Bitrepository.
      * No other archive should be implemented.*/
@@ -36,12 +88,165 @@ public class BitmagPreserver {
     /** The configuration.*/
     @Autowired
     protected Configuration conf;
+    /** The Cumulus wrapper, for reporting the records of the resumed uploads.*/
+    @Autowired
+    protected CumulusWrapper cumulusWrapper;
 
-    /** Mapping between active warc packers and their collection.*/
+    /** Mapping between active warc packers and their shard. The first shard of a collection has the collection id.*/
 //    protected final Map<String, WarcPacker> warcPackerForCollection = new HashMap<String, WarcPacker>(); // original
     protected final Map<String, WarcPacker> warcPackerForCollection =  new ConcurrentHashMap<String, WarcPacker>();
 //    protected final Map<String, WarcPacker> warcPackerForCollection = Collections.synchronizedMap(new HashMap<String, WarcPacker>();
+    /** 
+     * Lock for the packaging of records. 
+     * Records are packaged under the shared read-lock, whereas the WARC files are only finished and uploaded under 
+     * the exclusive write-lock, so all the parts of a record end up in the same WARC file.
+     * It is fair, so the upload is not postponed by a constant flow of new records.
+     */
+    protected final ReadWriteLock packagingLock = new ReentrantReadWriteLock(true);
+    /** Mapping between the shards and their collection. Guarded by the warcPackerForCollection lock.*/
+    protected final Map<String, String> collectionForShard = new HashMap<String, String>();
+    /** The number of records currently being packaged in each shard. Guarded by the warcPackerForCollection lock.*/
+    protected final Map<String, Integer> activeRecordsForShard = new HashMap<String, Integer>();
+    /** The shards of the record being packaged by the current thread, mapped by their collection.*/
+    protected final ThreadLocal<Map<String, String>> shardsForRecord = new ThreadLocal<Map<String, String>>();
+    /** 
+     * The packaged records waiting for a checkpoint, until no other record is being packaged in their shard.
+     * Guarded by the warcPackerForCollection lock.
+     */
+    protected final Map<String, List<CumulusRecord>> pendingCheckpoints = new HashMap<String, List<CumulusRecord>>();
+    
+    /** The executor for uploading the finished WARC files. Created at the first upload.*/
+    protected ExecutorService uploadExecutor;
+    /** The permits for the WARC files being uploaded, or waiting to be uploaded. Created at the first upload.*/
+    protected Semaphore uploadPermits;
+    /** The uploads, which have not yet completed.*/
+    protected final Set<Future<?>> pendingUploads = ConcurrentHashMap.newKeySet();
+    /** The journal of the finished WARC files, which have not yet been uploaded. Created at the first use.*/
+    protected UploadJournal uploadJournal;
+    /** The checkpoints of the open WARC files. Created at the first use.*/
+    protected PackagingCheckpoint packagingCheckpoint;
+    /** The policy for when the WARC files are finished. Created from the configuration at the first use.*/
+    protected volatile RolloverPolicy rolloverPolicy;
+    /** The timer for checking the WARC files by the rollover policy. Only created, when the policy requires it.*/
+    protected ScheduledExecutorService rolloverTimer;
+    
+    /**
+     * Initializes this component by recovering the WARC files, which were open at the last shutdown, resuming 
+     * the uploads, which were not completed before the last shutdown, and starting the rollover timer.
+     */
+    @PostConstruct
+    protected void initialize() {
+        recoverCheckpoints();
+        resumeUploads();
+        startRolloverTimer();
+    }
+    
+    /**
+     * Starts the timer, which checks the conditions of the WARC files at the interval of the rollover policy.
+     * Nothing is started, if the rollover policy does not need to check the WARC files by time.
+     */
+    protected synchronized void startRolloverTimer() {
+        long interval = getRolloverPolicy().getCheckInterval();
+        if(interval <= 0 || rolloverTimer != null) {
+            return;
+        }
+        rolloverTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "WARC rollover timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        rolloverTimer.scheduleWithFixedDelay(() -> {
+            try {
+                checkConditions();
+            } catch (RuntimeException e) {
+                log.warn("Failed to check the conditions of the WARC files.", e);
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Must be called before the packaging of the parts of a record (content file, metadata, etc.).
+     * It ensures, that no WARC file is finished while the record is being packaged.
+     * Must be followed by a call to finishRecordPackaging, also in case of failure.
+     */
+    public void startRecordPackaging() {
+        packagingLock.readLock().lock();
+        shardsForRecord.set(new HashMap<String, String>());
+    }
+    
+    /**
+     * Must be called after all the parts of a record has been packaged, or the packaging has failed.
+     * Releases the lock taken by startRecordPackaging.
+     */
+    public void finishRecordPackaging() {
+        try {
+            Map<String, String> shards = shardsForRecord.get();
+            if(shards != null) {
+                synchronized(warcPackerForCollection) {
+                    for(String shardKey : shards.values()) {
+                        Integer active = activeRecordsForShard.get(shardKey);
+                        if(active != null && active > 1) {
+                            activeRecordsForShard.put(shardKey, active - 1);
+                        } else {
+                            activeRecordsForShard.remove(shardKey);
+                            checkpointPendingRecords(shardKey);
+                        }
+                    }
+                }
+            }
+        } finally {
+            shardsForRecord.remove();
+            packagingLock.readLock().unlock();
+        }
+    }
 
+    /**
+     * Checkpoints a record, when all its parts have been packaged.
+     * If other records are being packaged in the same shard, then the checkpoint is postponed until the last of 
+     * them has finished, since the WARC file may contain some of their parts.
+     * Must be called between startRecordPackaging and finishRecordPackaging, after the last part of the record has 
+     * been packaged successfully.
+     * @param record The record.
+     */
+    public void checkpointRecordPackaging(CumulusRecord record) {
+        Map<String, String> shards = shardsForRecord.get();
+        if(shards == null) {
+            log.warn("Cannot checkpoint the record '" + CumulusPreservationUtils.getRecordName(record) 
+                    + "' outside its packaging.");
+            return;
+        }
+        synchronized(warcPackerForCollection) {
+            for(String shardKey : shards.values()) {
+                pendingCheckpoints.computeIfAbsent(shardKey, k -> new ArrayList<CumulusRecord>()).add(record);
+                Integer active = activeRecordsForShard.get(shardKey);
+                if(active == null || active <= 1) {
+                    checkpointPendingRecords(shardKey);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Checkpoints the records waiting for a checkpoint in a shard. 
+     * Must be called while holding the warcPackerForCollection lock, and while no other record is being packaged 
+     * in the shard. A failure is only logged, since the records are then just preserved again after a crash.
+     * @param shardKey The key for the shard.
+     */
+    protected void checkpointPendingRecords(String shardKey) {
+        List<CumulusRecord> records = pendingCheckpoints.remove(shardKey);
+        WarcPacker wp = warcPackerForCollection.get(shardKey);
+        if(records == null || wp == null) {
+            return;
+        }
+        try {
+            getPackagingCheckpoint().addRecords(wp, collectionForShard.containsKey(shardKey) 
+                    ? collectionForShard.get(shardKey) : shardKey, records);
+        } catch (RuntimeException e) {
+            log.warn("Could not checkpoint " + records.size() + " records in the WARC file '" 
+                    + wp.getWarcFile().getName() + "'.", e);
+        }
+    }
+    
     /**
      * Retrieves the Warc packer for a given Bitrepository collection.
      * If no Warc packer exists for the given Bitrepository collection, then a new one is created.
@@ -50,24 +255,85 @@ public class BitmagPreserver {
      */
     protected WarcPacker getWarcPacker(String collectionId) {
         synchronized(warcPackerForCollection) {
-            if(!warcPackerForCollection.containsKey(collectionId)) {
-                log.debug("Create new WarPacker, collection: {}", collectionId);
-                warcPackerForCollection.put(collectionId, new WarcPacker(conf.getBitmagConf()));
+            String shardKey = getShardKey(collectionId);
+            if(!warcPackerForCollection.containsKey(shardKey)) {
+                log.debug("Create new WarPacker, collection: {}, shard: {}", collectionId, shardKey);
+                warcPackerForCollection.put(shardKey, new WarcPacker(conf.getBitmagConf()));
+            }
+            log.debug("Return WarcPacker for collection: {}, shard: {}", collectionId, shardKey);
+            return warcPackerForCollection.get(shardKey);
+        }
+    }
+    
+    /**
+     * Retrieves the shard of the collection for the record being packaged by the current thread.
+     * The shard is selected at the first part of the record, and used for all the following parts of the record.
+     * Outside the packaging of a record, the first shard of the collection is used.
+     * Must be called while holding the warcPackerForCollection lock.
+     * @param collectionId The id of the collection.
+     * @return The key for the shard.
+     */
+    protected String getShardKey(String collectionId) {
+        Map<String, String> shards = shardsForRecord.get();
+        if(shards == null) {
+            return collectionId;
+        }
+        String shardKey = shards.get(collectionId);
+        if(shardKey == null) {
+            shardKey = selectShard(collectionId);
+            shards.put(collectionId, shardKey);
+            Integer active = activeRecordsForShard.get(shardKey);
+            activeRecordsForShard.put(shardKey, active == null ? 1 : active + 1);
+        }
+        return shardKey;
+    }
+    
+    /**
+     * Selects the shard of the collection with the fewest records currently being packaged.
+     * The number of shards is the maximum number of open WARC files for the collection, when it is configured, 
+     * and otherwise the number of WARC shards per collection.
+     * Must be called while holding the warcPackerForCollection lock.
+     * @param collectionId The id of the collection.
+     * @return The key for the selected shard.
+     */
+    protected String selectShard(String collectionId) {
+        String selected = null;
+        int selectedActive = Integer.MAX_VALUE;
+        int numberOfShards = conf.getBitmagConf().getWarcShardsPerCollection();
+        int maxOpenFiles = getRolloverPolicy().getMaxOpenFiles(collectionId);
+        if(maxOpenFiles > 0) {
+            numberOfShards = maxOpenFiles;
+        }
+        for(int i = 0; i < numberOfShards; i++) {
+            String shardKey = i == 0 ? collectionId : collectionId + SHARD_SEPARATOR + i;
+            Integer active = activeRecordsForShard.get(shardKey);
+            int count = active == null ? 0 : active;
+            if(count < selectedActive) {
+                selected = shardKey;
+                selectedActive = count;
             }
-            log.debug("Return WarcPacker for collection: {}", collectionId);
-            return warcPackerForCollection.get(collectionId);
         }
+        collectionForShard.put(selected, collectionId);
+        return selected;
+    }
+    
+    /**
+     * @return The algorithm for the block digests of the WARC records.
+     */
+    public String getBlockDigestAlgorithm() {
+        return conf.getBitmagConf().getAlgorithm();
     }
     
     /**
      * Packages the Asset File of a Cumulus record.
      * @param record The record to package.
+     * @param blockDigest The already calculated digest of the Asset File, with the algorithm for the WARC records.
      */
-    public void packRecordResource(CumulusRecord record) {
+    public void packRecordResource(CumulusRecord record, WarcDigest blockDigest) {
         WarcPacker wp = getWarcPacker(record.getFieldValue(Constants.FieldNames.COLLECTION_ID));
         log.debug("In packRecordResource");
         File resourceFile = record.getFile();
-        wp.packRecordAssetFile(record, resourceFile);
+        wp.packRecordAssetFile(record, resourceFile, blockDigest);
         wp.addRecordToPackagedList(record);
     }
     
@@ -105,60 +371,460 @@ public class BitmagPreserver {
         wp.packMetadata(metadataFile, null, warcRecordId);
     }
     
+    /**
+     * Packages the metadata of a given Cumulus Record from a metadata buffer.
+     * @param record The Cumulus Record for the metadata.
+     * @param metadata The buffer with the transformed metadata for the Cumulus Record.
+     */
+    public void packRecordMetadata(CumulusRecord record, MetadataBuffer metadata) {
+        try {
+            WarcPacker wp = getWarcPacker(record.getFieldValue(Constants.FieldNames.COLLECTION_ID));
+            log.debug("In packRecordMetadata");
+            String fileGuid = GuidExtractionUtils.extractGuid(record.getFieldValue(Constants.FieldNames.GUID));
+
+            Uri refersToUri = new Uri("urn:uuid:" + fileGuid);
+            wp.packMetadata(metadata, refersToUri, metadata.getName());
+            wp.addRecordToMetadataPackagedList(record);
+        } catch (URISyntaxException e) {
+            throw new IllegalStateException("Could not package metadata.", e);
+        }
+    }
+    
+    /**
+     * Packages the metadata of a representation from a metadata buffer. 
+     * @param metadata The buffer with the metadata.
+     * @param collectionID The ID of the preservation collection, where the metadata must be preserved.
+     * @param warcRecordId The ID of the warc record.
+     */
+    public void packRepresentationMetadata(MetadataBuffer metadata, String collectionID, String warcRecordId) {
+        if(warcRecordId == null) {
+            warcRecordId = metadata.getName();
+        }
+        WarcPacker wp = getWarcPacker(collectionID);
+        log.debug("packRepresentationMetadata: WarcPacker created");
+        wp.packMetadata(metadata, null, warcRecordId);
+    }
+    
     /**
      * Checks the conditions for all the current instantiated warc packers.
-     * If any of the them satisfies the conditions, then the file is finished and sent to the archive.
+     * If any of the them satisfies the conditions of the rollover policy, then the file is finished and sent to 
+     * the archive.
      */
     public void checkConditions() {
         log.debug("In checkConditions. ");
-        for(Map.Entry<String, WarcPacker> warc : warcPackerForCollection.entrySet()) {
-            if(warc.getValue().getSize() > conf.getBitmagConf().getWarcFileSizeLimit()) {
-                String collectionId = warc.getKey();
-                uploadWarcFile(collectionId);
+        if(findWarcFilesForRollover().isEmpty()) {
+            return;
+        }
+        packagingLock.writeLock().lock();
+        try {
+            for(String shardKey : findWarcFilesForRollover()) {
+                uploadWarcFile(shardKey);
+            }
+        } finally {
+            packagingLock.writeLock().unlock();
+        }
+    }
+    
+    /**
+     * Finds the shards, whose WARC files must be finished and uploaded according to the rollover policy.
+     * This does not take the packaging lock, so it must be repeated under the exclusive packaging lock, before the 
+     * WARC files are finished.
+     * @return The keys for the shards, whose WARC files must be finished and uploaded.
+     */
+    protected List<String> findWarcFilesForRollover() {
+        Map<String, String> collectionForWarcFile = new HashMap<String, String>();
+        synchronized(warcPackerForCollection) {
+            for(String shardKey : warcPackerForCollection.keySet()) {
+                collectionForWarcFile.put(shardKey, collectionForShard.containsKey(shardKey) 
+                        ? collectionForShard.get(shardKey) : shardKey);
             }
         }
+        RolloverPolicy policy = getRolloverPolicy();
+        List<String> res = new ArrayList<String>();
+        for(Map.Entry<String, String> warcFile : collectionForWarcFile.entrySet()) {
+            WarcPacker wp = warcPackerForCollection.get(warcFile.getKey());
+            if(wp != null && policy.isRolloverRequired(warcFile.getValue(), wp)) {
+                res.add(warcFile.getKey());
+            }
+        }
+        return res;
+    }
+    
+    /**
+     * Retrieves the rollover policy without locking, since it is also used while holding the warcPackerForCollection 
+     * lock. Concurrent first calls may each create a policy from the same configuration.
+     * @return The policy for when the WARC files are finished.
+     */
+    protected RolloverPolicy getRolloverPolicy() {
+        RolloverPolicy res = rolloverPolicy;
+        if(res == null) {
+            res = new ConfiguredRolloverPolicy(conf.getBitmagConf());
+            rolloverPolicy = res;
+        }
+        return res;
     }
     
     /**
-     * Uploads all warc files to their given collection.
+     * Replaces the policy for when the WARC files are finished.
+     * @param rolloverPolicy The new rollover policy.
+     */
+    public void setRolloverPolicy(RolloverPolicy rolloverPolicy) {
+        this.rolloverPolicy = rolloverPolicy;
+    }
+    
+    /**
+     * Uploads all warc files to their given collection, and waits for all the uploads to complete.
      */
     public void uploadAll() {
         log.debug("In uploadAll");
-        for(String collectionId : warcPackerForCollection.keySet()) {
-            log.debug("uploadAll: collectionID: {}, thread ID: {}", collectionId, Thread.currentThread().getId());
-            uploadWarcFile(collectionId);
+        packagingLock.writeLock().lock();
+        try {
+            for(String shardKey : warcPackerForCollection.keySet()) {
+                log.debug("uploadAll: shard: {}, thread ID: {}", shardKey, Thread.currentThread().getId());
+                uploadWarcFile(shardKey);
+            }
+        } finally {
+            packagingLock.writeLock().unlock();
         }
+        waitForUploads();
     }
     
     /**
-     * Performs the upload of the warc file for the given collection.
-     * @param collectionId The id of the collection to upload to.
+     * Waits for the uploads, which have been started, to complete.
      */
-    protected synchronized void uploadWarcFile(String collectionId) {
-        synchronized(warcPackerForCollection) {
-            WarcPacker wp = warcPackerForCollection.get(collectionId);
-            log.debug("In uploadWarcFile: collectionId= {}, thread ID: {}", collectionId, Thread.currentThread().getId());
-            wp.close();
-            if(!wp.hasContent()) {
-                log.info("WARC file without content for collection '" + collectionId + "' will not be uploaded.");
-                FileUtils.deleteFile(wp.getWarcFile());
-                warcPackerForCollection.remove(collectionId);
-                return;
+    public void waitForUploads() {
+        for(Future<?> upload : new ArrayList<Future<?>>(pendingUploads)) {
+            try {
+                upload.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for the uploads to complete.", e);
+            } catch (ExecutionException e) {
+                log.warn("An upload of a WARC file failed.", e);
             }
-
+            pendingUploads.remove(upload);
+        }
+    }
+    
+    /**
+     * Stops the rollover timer, waits for the pending uploads and stops the upload executor.
+     */
+    @PreDestroy
+    public synchronized void shutDown() {
+        if(rolloverTimer != null) {
+            rolloverTimer.shutdownNow();
+            rolloverTimer = null;
+        }
+        waitForUploads();
+        if(uploadExecutor != null) {
+            uploadExecutor.shutdown();
+            uploadExecutor = null;
+        }
+    }
+    
+    /**
+     * Finishes the warc file for the given shard, and hands it to the upload executor for the upload to its 
+     * collection. The shard is removed, so the following records are packaged in a new WARC file.
+     * Must be called while holding the exclusive packaging lock.
+     * @param shardKey The key for the shard, whose WARC file should be uploaded.
+     */
+    protected void uploadWarcFile(String shardKey) {
+        WarcPacker wp;
+        String collectionId;
+        synchronized(warcPackerForCollection) {
+            collectionId = collectionForShard.containsKey(shardKey) ? collectionForShard.get(shardKey) : shardKey;
+            wp = warcPackerForCollection.get(shardKey);
+            removeShard(shardKey);
+        }
+        log.debug("In uploadWarcFile: collectionId= {}, thread ID: {}", collectionId, Thread.currentThread().getId());
+        wp.close();
+        if(!wp.hasContent()) {
+            log.info("WARC file without content for collection '" + collectionId + "' will not be uploaded.");
+            FileUtils.deleteFile(wp.getWarcFile());
+            getPackagingCheckpoint().removeCheckpoint(wp.getWarcFile());
+            return;
+        }
+        UploadJournal.Entry entry = null;
+        try {
+            entry = getUploadJournal().addEntry(wp, collectionId);
+            getPackagingCheckpoint().removeCheckpoint(wp.getWarcFile());
+            UploadJournal.Entry journaled = entry;
+            submitUpload(() -> uploadFinishedWarcFile(wp, collectionId, journaled));
+        } catch (RuntimeException e) {
+            discardFailedWarcFile(wp, entry, "Could not start the upload to the archive.");
+            throw e;
+        }
+    }
+    
+    /**
+     * Hands an upload to the upload executor.
+     * Waits, if the maximum number of WARC files are already being uploaded.
+     * @param uploadTask The task performing the upload.
+     */
+    protected void submitUpload(Runnable uploadTask) {
+        ExecutorService executor = getUploadExecutor();
+        try {
+            uploadPermits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting to upload a WARC file.", e);
+        }
+        CompletableFuture<Void> upload;
+        try {
+            upload = CompletableFuture.runAsync(uploadTask, executor)
+                    .whenComplete((result, error) -> uploadPermits.release());
+        } catch (RuntimeException e) {
+            uploadPermits.release();
+            throw e;
+        }
+        trackUpload(upload);
+    }
+    
+    /**
+     * Hands a resumed upload to the upload executor without waiting for a permit, so the startup is not blocked.
+     * The resumed uploads are queued by the executor, until an upload thread is free.
+     * @param uploadTask The task performing the upload.
+     */
+    protected void submitResumedUpload(Runnable uploadTask) {
+        trackUpload(CompletableFuture.runAsync(uploadTask, getUploadExecutor()));
+    }
+    
+    /**
+     * Keeps track of an upload until it completes.
+     * @param upload The upload.
+     */
+    protected void trackUpload(CompletableFuture<Void> upload) {
+        pendingUploads.add(upload);
+        upload.whenComplete((result, error) -> pendingUploads.remove(upload));
+    }
+    
+    /**
+     * @return The executor for the uploads. It is created at the first call.
+     */
+    protected synchronized ExecutorService getUploadExecutor() {
+        if(uploadExecutor == null) {
+            int maxUploads = conf.getBitmagConf().getMaxConcurrentUploads();
+            uploadExecutor = Executors.newFixedThreadPool(maxUploads);
+            uploadPermits = new Semaphore(maxUploads);
+        }
+        return uploadExecutor;
+    }
+    
+    /**
+     * @return The journal of the finished WARC files, which have not yet been uploaded. Created at the first call.
+     */
+    protected synchronized UploadJournal getUploadJournal() {
+        if(uploadJournal == null) {
+            uploadJournal = new UploadJournal(new File(conf.getBitmagConf().getTempDir(), UPLOAD_JOURNAL_DIR_NAME));
+        }
+        return uploadJournal;
+    }
+    
+    /**
+     * @return The checkpoints of the open WARC files. Created at the first call.
+     */
+    protected synchronized PackagingCheckpoint getPackagingCheckpoint() {
+        if(packagingCheckpoint == null) {
+            packagingCheckpoint = new PackagingCheckpoint(new File(conf.getBitmagConf().getTempDir(), 
+                    PACKAGING_CHECKPOINT_DIR_NAME), conf.getBitmagConf().getWarcIndexDir());
+        }
+        return packagingCheckpoint;
+    }
+    
+    /**
+     * Performs the upload of a finished WARC file, and reports the result to the Cumulus records in the WARC file.
+     * The journal entry is removed, when the upload has succeeded and the records have been reported.
+     * When the upload fails, the records are reported as failed, and the WARC file is discarded.
+     * When the reporting fails after a successful upload, the journal entry is kept, so the records are reported 
+     * as preserved at the next startup.
+     * @param wp The warc packer with the finished WARC file.
+     * @param collectionId The id of the collection to upload to.
+     * @param entry The journal entry for the WARC file.
+     */
+    protected void uploadFinishedWarcFile(WarcPacker wp, String collectionId, UploadJournal.Entry entry) {
+        boolean uploadSuccess = false;
+        try {
             log.info("Uploading warc file for collection '" + collectionId + "'");
-            WarcDigest checksumDigest = ChecksumUtils.calculateChecksum(wp.getWarcFile(), ChecksumUtils.MD5_ALGORITHM);
+            WarcDigest checksumDigest = wp.getWarcFileChecksum();
+            if(checksumDigest == null) {
+                checksumDigest = ChecksumUtils.calculateChecksum(wp.getWarcFile(), ChecksumUtils.MD5_ALGORITHM);
+            }
+            getUploadJournal().setChecksum(entry, checksumDigest.digestString);
 
-            boolean uploadSuccess = archive.uploadFile(wp.getWarcFile(), collectionId);
+            uploadSuccess = archive.uploadFile(wp.getWarcFile(), collectionId);
             if(uploadSuccess) {
                 log.info("Successfully uploaded the WARC file '" + wp.getWarcFile().getName() + "'"); 
+                if(conf.getBitmagConf().isArchiveWarcIndex()) {
+                    archiveWarcIndex(wp.getWarcFileId(), collectionId);
+                }
                 wp.reportSucces(checksumDigest);
+                getUploadJournal().removeEntry(entry);
+            } else {
+                log.warn("Failed to upload the file '" + wp.getWarcFile().getName() + "'.");
+                discardFailedWarcFile(wp, entry, "Could not upload the file to the archive.");
+            }
+        } catch (RuntimeException e) {
+            if(uploadSuccess) {
+                log.error("Failed to report the records of the uploaded WARC file for collection '" + collectionId 
+                        + "'. They are reported at the next startup.", e);
             } else {
-                log.warn("Failed to upload the file '" + wp.getWarcFile().getName() + "'. "
-                        + "Keeping it in temp dir: '" + conf.getBitmagConf().getTempDir().getAbsolutePath() + "'");
-                wp.reportFailure("Could not upload the file to the archive.");
+                log.error("Failed to upload the WARC file for collection '" + collectionId + "'.", e);
+                discardFailedWarcFile(wp, entry, "Could not upload the file to the archive: " + e.getMessage());
+            }
+        }
+    }
+    
+    /**
+     * Discards a WARC file, which could not be uploaded. The records are reported as failed, so they are preserved 
+     * again, and the WARC file and its index are deleted and removed from the upload journal, so the upload is not 
+     * resumed at the next startup.
+     * @param wp The warc packer with the finished WARC file.
+     * @param entry The journal entry for the WARC file. May be null, if it was not journaled.
+     * @param reason The reason for the failure.
+     */
+    protected void discardFailedWarcFile(WarcPacker wp, UploadJournal.Entry entry, String reason) {
+        wp.reportFailure(reason);
+        try {
+            if(entry != null) {
+                getUploadJournal().removeEntry(entry);
             }
-            warcPackerForCollection.remove(collectionId);
+            FileUtils.deleteFile(wp.getWarcFile());
+            if(wp.getWarcFileId() != null) {
+                FileUtils.deleteFile(WarcRecordIndex.getIndexFile(conf.getBitmagConf().getWarcIndexDir(), 
+                        wp.getWarcFileId()));
+            }
+        } catch (RuntimeException e) {
+            log.warn("Could not discard the WARC file '" + wp.getWarcFile().getName() + "'.", e);
+        }
+    }
+    
+    /**
+     * Uploads the index of an uploaded WARC file to the archive.
+     * @param warcFileId The id of the WARC file. May be null, in which case the index cannot be found.
+     * @param collectionId The id of the collection of the WARC file.
+     */
+    protected void archiveWarcIndex(String warcFileId, String collectionId) {
+        if(warcFileId == null) {
+            log.info("Cannot archive the index of a WARC file without id.");
+            return;
+        }
+        new WarcIndexRetriever(archive, conf.getBitmagConf()).archiveIndex(warcFileId, collectionId);
+    }
+    
+    /**
+     * Recovers the WARC files, which were open when the preservation was aborted, by adding their checkpointed 
+     * records to the upload journal. Must be called before the uploads are resumed.
+     */
+    public void recoverCheckpoints() {
+        int recovered = getPackagingCheckpoint().recover(getUploadJournal());
+        if(recovered > 0) {
+            log.info("Recovered " + recovered + " WARC files from the packaging checkpoints.");
         }
     }
+    
+    /**
+     * Resumes the uploads of the finished WARC files in the upload journal.
+     */
+    public void resumeUploads() {
+        for(UploadJournal.Entry entry : getUploadJournal().getPendingEntries()) {
+            log.info("Resuming the upload of the WARC file '" + entry.getWarcFile().getName() + "' to collection '" 
+                    + entry.getCollectionId() + "'.");
+            submitResumedUpload(() -> resumeUpload(entry));
+        }
+    }
+    
+    /**
+     * Resumes the upload of a WARC file from the upload journal, and reports the Cumulus records in the WARC file.
+     * If the WARC file no longer exists, but its checksum was journaled, then it was deleted by the successful 
+     * upload before the records were reported, so only the records are reported.
+     * @param entry The journal entry for the WARC file.
+     */
+    protected void resumeUpload(UploadJournal.Entry entry) {
+        try {
+            File warcFile = entry.getWarcFile();
+            String md5 = entry.getMd5();
+            if(warcFile.isFile()) {
+                if(md5 == null) {
+                    md5 = ChecksumUtils.calculateChecksum(warcFile, ChecksumUtils.MD5_ALGORITHM).digestString;
+                    getUploadJournal().setChecksum(entry, md5);
+                }
+                if(!archive.uploadFile(warcFile, entry.getCollectionId())) {
+                    log.warn("Failed to upload the file '" + warcFile.getName() + "'. Keeping it in temp dir: '" 
+                            + conf.getBitmagConf().getTempDir().getAbsolutePath() + "'");
+                    return;
+                }
+                if(conf.getBitmagConf().isArchiveWarcIndex()) {
+                    archiveWarcIndex(entry.getWarcFileId(), entry.getCollectionId());
+                }
+            } else if(md5 == null) {
+                log.warn("The WARC file '" + warcFile.getAbsolutePath() + "' of the upload journal no longer "
+                        + "exists, and has not been uploaded. The records must be preserved again.");
+                getUploadJournal().removeEntry(entry);
+                return;
+            }
+            reportResumedRecords(entry, md5);
+            getUploadJournal().removeEntry(entry);
+        } catch (RuntimeException e) {
+            log.error("Failed to resume the upload of the WARC file '" + entry.getWarcFile().getName() + "'.", e);
+        }
+    }
+    
+    /**
+     * Reports the successful preservation to the Cumulus records of a resumed upload.
+     * @param entry The journal entry for the uploaded WARC file.
+     * @param md5 The MD5 checksum of the WARC file.
+     */
+    protected void reportResumedRecords(UploadJournal.Entry entry, String md5) {
+        CumulusServer server = cumulusWrapper.getServer();
+        Date now = new Date();
+        for(UploadJournal.RecordReference reference : entry.getCompleteRecords()) {
+            CumulusRecord record = findRecord(server, reference);
+            if(record != null) {
+                CumulusPreservationUtils.setRecordPreserved(record, entry.getWarcFileId(), md5, now);
+            }
+        }
+        for(UploadJournal.RecordReference reference : entry.getMetadataRecords()) {
+            CumulusRecord record = findRecord(server, reference);
+            if(record != null) {
+                CumulusPreservationUtils.setRecordMetadataPreserved(record, entry.getWarcFileId(), now);
+            }
+        }
+    }
+    
+    /**
+     * Finds the Cumulus record of a journal reference.
+     * @param server The Cumulus server.
+     * @param reference The reference to the record.
+     * @return The Cumulus record, or null if it cannot be found.
+     */
+    protected CumulusRecord findRecord(CumulusServer server, UploadJournal.RecordReference reference) {
+        if(reference.getCatalogName() == null) {
+            log.warn("Cannot find the record '" + reference.getUUID() + "' without its catalog.");
+            return null;
+        }
+        try {
+            CumulusRecord record = server.findCumulusRecord(reference.getCatalogName(), reference.getUUID());
+            if(record == null) {
+                log.warn("Could not find the record '" + reference.getUUID() + "' in the catalog '" 
+                        + reference.getCatalogName() + "'.");
+            }
+            return record;
+        } catch (RuntimeException e) {
+            log.warn("Could not find the record '" + reference.getUUID() + "' in the catalog '" 
+                    + reference.getCatalogName() + "'.", e);
+            return null;
+        }
+    }
+    
+    /**
+     * Removes the WARC packer of the shard, when its WARC file is finished.
+     * The records waiting for a checkpoint are dropped, since the finished WARC file is in the upload journal.
+     * Must be called while holding the warcPackerForCollection lock.
+     * @param shardKey The key for the shard.
+     */
+    protected void removeShard(String shardKey) {
+        warcPackerForCollection.remove(shardKey);
+        collectionForShard.remove(shardKey);
+        pendingCheckpoints.remove(shardKey);
+    }
 }
@@ -0,0 +1,289 @@
+package dk.kb.ginnungagap.archive;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import dk.kb.ginnungagap.exception.ArgumentCheck;
+import dk.kb.ginnungagap.utils.ChecksumUtils;
+import dk.kb.ginnungagap.utils.FileUtils;
+
+/**
+ * Archive, which keeps the retrieved files in a local disk cache in front of another archive.
+ *
+ * The cache has a budget in bytes. When it is exceeded, the least recently used files are evicted.
+ * A file is pinned from it is retrieved with getFile until it is released with releaseFile, and pinned files are
+ * never evicted, so the cache may temporarily exceed its budget while all its files are in use.
+ *
+ * The MD5 checksum of each retrieved file is verified against the checksum in the archive, before the file
+ * is inserted in the cache. The files in the cache directory are deleted at startup, since they are not verified.
+ */
+public class CachingArchive implements Archive {
+    /** The logger.*/
+    private static final Logger log = LoggerFactory.getLogger(CachingArchive.class);
+
+    /** The archive, which the files are retrieved from.*/
+    protected final Archive archive;
+    /** The directory with the cached files.*/
+    protected final File cacheDir;
+    /** The maximum number of bytes of the cached files, which are not in use.*/
+    protected final long maxBytes;
+
+    /** The cached files, in least recently used order. Guarded by this.*/
+    protected final LinkedHashMap<String, CachedFile> cachedFiles = new LinkedHashMap<String, CachedFile>(16, 0.75f,
+            true);
+    /** The locks for the files being retrieved, so the same file is only retrieved once at a time.*/
+    protected final ConcurrentMap<String, Object> retrievalLocks = new ConcurrentHashMap<String, Object>();
+    /** The number of bytes of the cached files. Guarded by this.*/
+    protected long cachedBytes = 0L;
+    /** The number of requests for files, which were in the cache. Guarded by this.*/
+    protected long hits = 0L;
+    /** The number of requests for files, which had to be retrieved from the archive. Guarded by this.*/
+    protected long misses = 0L;
+    /** The number of files evicted from the cache. Guarded by this.*/
+    protected long evictions = 0L;
+
+    /**
+     * Constructor.
+     * @param archive The archive, which the files are retrieved from.
+     * @param cacheDir The directory for the cached files.
+     * @param maxBytes The maximum number of bytes of the cached files, which are not in use.
+     */
+    public CachingArchive(Archive archive, File cacheDir, long maxBytes) {
+        ArgumentCheck.checkNotNull(archive, "Archive archive");
+        ArgumentCheck.checkNotNull(cacheDir, "File cacheDir");
+        ArgumentCheck.checkPositiveLong(maxBytes, "long maxBytes");
+        this.archive = archive;
+        this.cacheDir = FileUtils.getDirectory(cacheDir.getAbsolutePath());
+        this.maxBytes = maxBytes;
+        clearCacheDir(this.cacheDir);
+    }
+
+    @Override
+    public boolean uploadFile(File file, String collectionId) {
+        return archive.uploadFile(file, collectionId);
+    }
+
+    /**
+     * Retrieves the file from the cache, or from the archive if it is not in the cache.
+     * The file is pinned in the cache until it is released.
+     */
+    @Override
+    public File getFile(String warcId, String collectionId) {
+        String key = getKey(warcId, collectionId);
+        File res = pinCachedFile(key);
+        if(res != null) {
+            return res;
+        }
+
+        Object lock = retrievalLocks.computeIfAbsent(key, k -> new Object());
+        try {
+            synchronized(lock) {
+                res = pinCachedFile(key);
+                if(res != null) {
+                    return res;
+                }
+                File cachedFile = retrieveFile(warcId, collectionId);
+                insertFile(key, cachedFile);
+                return cachedFile;
+            }
+        } finally {
+            retrievalLocks.remove(key, lock);
+        }
+    }
+
+    @Override
+    public synchronized void releaseFile(String warcId, String collectionId) {
+        CachedFile cachedFile = cachedFiles.get(getKey(warcId, collectionId));
+        if(cachedFile == null || cachedFile.pins == 0) {
+            log.warn("Released the file '" + warcId + "' from collection '" + collectionId + "', which was not in "
+                    + "use.");
+            return;
+        }
+        cachedFile.pins--;
+        evictFiles();
+    }
+
+    @Override
+    public String getChecksum(String warcId, String collectionId) {
+        return archive.getChecksum(warcId, collectionId);
+    }
+
+    @Override
+    public void close() {
+        synchronized(this) {
+            log.info("WARC file cache: " + hits + " hits, " + misses + " misses, " + evictions + " evictions, "
+                    + cachedBytes + " bytes cached.");
+        }
+        archive.close();
+    }
+
+    /**
+     * Pins the cached file, if it is in the cache.
+     * @param key The key for the file.
+     * @return The cached file, or null if it is not in the cache.
+     */
+    protected synchronized File pinCachedFile(String key) {
+        CachedFile cachedFile = cachedFiles.get(key);
+        if(cachedFile == null) {
+            return null;
+        }
+        if(!cachedFile.file.isFile()) {
+            log.warn("The cached file '" + cachedFile.file.getAbsolutePath() + "' has disappeared.");
+            cachedFiles.remove(key);
+            cachedBytes -= cachedFile.size;
+            return null;
+        }
+        cachedFile.pins++;
+        hits++;
+        log.debug("WARC file cache hit for '" + key + "'.");
+        return cachedFile.file;
+    }
+
+    /**
+     * Retrieves the file from the archive, verifies its checksum, and moves it into the cache directory.
+     * @param warcId The id of the WARC file.
+     * @param collectionId The id of the collection.
+     * @return The file in the cache directory.
+     */
+    protected File retrieveFile(String warcId, String collectionId) {
+        File retrievedFile = archive.getFile(warcId, collectionId);
+        if(retrievedFile == null || !retrievedFile.isFile()) {
+            throw new IllegalStateException("Could not retrieve the file '" + warcId + "' from collection '"
+                    + collectionId + "'.");
+        }
+        try {
+            String expectedChecksum = archive.getChecksum(warcId, collectionId);
+            String checksum = ChecksumUtils.calculateChecksum(retrievedFile, ChecksumUtils.MD5_ALGORITHM)
+                    .digestString;
+            if(expectedChecksum == null || !expectedChecksum.equalsIgnoreCase(checksum)) {
+                FileUtils.deleteFile(retrievedFile);
+                throw new IllegalStateException("The retrieved file '" + warcId + "' from collection '"
+                        + collectionId + "' has the checksum '" + checksum + "', but the archive has the checksum '"
+                        + expectedChecksum + "'.");
+            }
+            File collectionDir = FileUtils.getDirectory(cacheDir, collectionId);
+            File cachedFile = new File(collectionDir, warcId);
+            Files.move(retrievedFile.toPath(), cachedFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            return cachedFile;
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not move the retrieved file '" + warcId + "' into the cache.", e);
+        } finally {
+            archive.releaseFile(warcId, collectionId);
+        }
+    }
+
+    /**
+     * Inserts a retrieved file in the cache. It is pinned, since it is about to be used.
+     * @param key The key for the file.
+     * @param file The file in the cache directory.
+     */
+    protected synchronized void insertFile(String key, File file) {
+        CachedFile cachedFile = new CachedFile(file);
+        cachedFile.pins++;
+        CachedFile replaced = cachedFiles.put(key, cachedFile);
+        if(replaced != null) {
+            cachedBytes -= replaced.size;
+        }
+        cachedBytes += cachedFile.size;
+        misses++;
+        log.debug("WARC file cache miss for '" + key + "'.");
+        evictFiles();
+    }
+
+    /**
+     * Evicts the least recently used files, which are not in use, until the cache is within its budget.
+     * Must be called while holding the lock of this cache.
+     */
+    protected void evictFiles() {
+        Iterator<Map.Entry<String, CachedFile>> iterator = cachedFiles.entrySet().iterator();
+        while(cachedBytes > maxBytes && iterator.hasNext()) {
+            CachedFile cachedFile = iterator.next().getValue();
+            if(cachedFile.pins > 0) {
+                continue;
+            }
+            iterator.remove();
+            cachedBytes -= cachedFile.size;
+            evictions++;
+            try {
+                FileUtils.deleteFile(cachedFile.file);
+            } catch (IllegalStateException e) {
+                log.warn("Could not delete the evicted file '" + cachedFile.file.getAbsolutePath() + "'.", e);
+            }
+        }
+    }
+
+    /**
+     * Deletes the files left in the cache directory.
+     * @param dir The directory to clear.
+     */
+    protected void clearCacheDir(File dir) {
+        File[] files = dir.listFiles();
+        if(files == null) {
+            return;
+        }
+        for(File f : files) {
+            if(f.isDirectory()) {
+                clearCacheDir(f);
+            }
+            FileUtils.deleteFile(f);
+        }
+    }
+
+    /**
+     * @param warcId The id of the WARC file.
+     * @param collectionId The id of the collection.
+     * @return The key for the file in the cache.
+     */
+    protected String getKey(String warcId, String collectionId) {
+        return collectionId + File.separator + warcId;
+    }
+
+    /** @return The number of requests for files, which were in the cache.*/
+    public synchronized long getHits() {
+        return hits;
+    }
+    /** @return The number of requests for files, which had to be retrieved from the archive.*/
+    public synchronized long getMisses() {
+        return misses;
+    }
+    /** @return The number of files evicted from the cache.*/
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+    /** @return The number of bytes of the cached files.*/
+    public synchronized long getCachedBytes() {
+        return cachedBytes;
+    }
+
+    /**
+     * A file in the cache.
+     */
+    protected static class CachedFile {
+        /** The file in the cache directory.*/
+        protected final File file;
+        /** The size of the file.*/
+        protected final long size;
+        /** The number of users of the file. Guarded by the lock of the cache.*/
+        protected int pins;
+
+        /**
+         * Constructor.
+         * @param file The file in the cache directory.
+         */
+        protected CachedFile(File file) {
+            this.file = file;
+            this.size = file.length();
+            this.pins = 0;
+        }
+    }
+}
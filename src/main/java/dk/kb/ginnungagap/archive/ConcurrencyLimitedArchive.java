@@ -0,0 +1,90 @@
+package dk.kb.ginnungagap.archive;
+
+import java.io.File;
+import java.util.concurrent.Semaphore;
+import java.util.function.Supplier;
+
+import dk.kb.ginnungagap.exception.ArgumentCheck;
+
+/**
+ * Archive, which limits the number of operations running concurrently against another archive.
+ *
+ * Used when several workers access the archive at the same time, so they do not overload the archive
+ * (e.g. the bitrepository and its message bus) with simultaneous retrievals and checksum conversations.
+ * The operations waiting for a permit are handled in the order they arrived.
+ */
+public class ConcurrencyLimitedArchive implements Archive {
+    /** The archive with the actual operations.*/
+    protected final Archive archive;
+    /** The permits for running operations against the archive.*/
+    protected final Semaphore permits;
+    /** The maximum number of concurrent operations.*/
+    protected final int maxOperations;
+
+    /**
+     * Constructor.
+     * @param archive The archive with the actual operations.
+     * @param maxOperations The maximum number of concurrent operations.
+     */
+    public ConcurrencyLimitedArchive(Archive archive, int maxOperations) {
+        ArgumentCheck.checkNotNull(archive, "Archive archive");
+        ArgumentCheck.checkPositiveInt(maxOperations, "int maxOperations");
+        this.archive = archive;
+        this.maxOperations = maxOperations;
+        this.permits = new Semaphore(maxOperations, true);
+    }
+
+    @Override
+    public boolean uploadFile(File file, String collectionId) {
+        return limit(() -> archive.uploadFile(file, collectionId));
+    }
+
+    @Override
+    public File getFile(String warcId, String collectionId) {
+        return limit(() -> archive.getFile(warcId, collectionId));
+    }
+
+    @Override
+    public void releaseFile(String warcId, String collectionId) {
+        archive.releaseFile(warcId, collectionId);
+    }
+
+    @Override
+    public String getChecksum(String warcId, String collectionId) {
+        return limit(() -> archive.getChecksum(warcId, collectionId));
+    }
+
+    @Override
+    public void close() {
+        archive.close();
+    }
+
+    /**
+     * Performs an operation against the archive, when a permit is available.
+     * @param operation The operation.
+     * @return The result of the operation.
+     */
+    protected <T> T limit(Supplier<T> operation) {
+        try {
+            permits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting to access the archive.", e);
+        }
+        try {
+            return operation.get();
+        } finally {
+            permits.release();
+        }
+    }
+
+    /** @return The maximum number of concurrent operations.*/
+    public int getMaxOperations() {
+        return maxOperations;
+    }
+
+    /** @return The number of operations, which may currently be started without waiting.*/
+    public int getAvailablePermits() {
+        return permits.availablePermits();
+    }
+}
@@ -0,0 +1,81 @@
+package dk.kb.ginnungagap.archive;
+
+import dk.kb.ginnungagap.config.BitmagConfiguration;
+import dk.kb.ginnungagap.config.RolloverConfiguration;
+import dk.kb.ginnungagap.exception.ArgumentCheck;
+
+/**
+ * Rollover policy from the configuration of the bitrepository.
+ * 
+ * A WARC file must be finished, when it exceeds the size limit, when it contains the maximum number of records, 
+ * or when it has been open with content for longer than the maximum age. 
+ * The limits can be configured for each collection, otherwise the default limits are used.
+ */
+public class ConfiguredRolloverPolicy implements RolloverPolicy {
+    /** The number of milliseconds in a second.*/
+    protected static final long MILLIS_PER_SECOND = 1000L;
+    /** The maximum interval in seconds between the checks of the age of the WARC files.*/
+    protected static final long MAX_CHECK_INTERVAL = 60L;
+    
+    /** The configuration for the bitrepository.*/
+    protected final BitmagConfiguration conf;
+    
+    /**
+     * Constructor.
+     * @param conf The configuration for the bitrepository.
+     */
+    public ConfiguredRolloverPolicy(BitmagConfiguration conf) {
+        ArgumentCheck.checkNotNull(conf, "BitmagConfiguration conf");
+        this.conf = conf;
+    }
+    
+    @Override
+    public boolean isRolloverRequired(String collectionId, WarcPacker wp) {
+        RolloverConfiguration rolloverConf = conf.getRolloverConf(collectionId);
+        if(wp.getSize() > getWarcSizeLimit(rolloverConf)) {
+            return true;
+        }
+        if(rolloverConf.getMaxRecords() > RolloverConfiguration.NO_LIMIT 
+                && wp.getRecordCount() >= rolloverConf.getMaxRecords()) {
+            return true;
+        }
+        if(rolloverConf.getMaxAge() > RolloverConfiguration.NO_LIMIT && wp.hasContent()
+                && System.currentTimeMillis() - wp.getCreationTime() >= rolloverConf.getMaxAge() * MILLIS_PER_SECOND) {
+            return true;
+        }
+        return false;
+    }
+    
+    @Override
+    public int getMaxOpenFiles(String collectionId) {
+        return conf.getRolloverConf(collectionId).getMaxOpenFiles();
+    }
+    
+    /**
+     * The WARC files are checked at the shortest maximum age of any collection, though at least every minute.
+     * @return The interval in milliseconds, or zero if no collection has a maximum age.
+     */
+    @Override
+    public long getCheckInterval() {
+        long shortestMaxAge = RolloverConfiguration.NO_LIMIT;
+        for(RolloverConfiguration rolloverConf : conf.getRolloverConfs()) {
+            long maxAge = rolloverConf.getMaxAge();
+            if(maxAge > RolloverConfiguration.NO_LIMIT 
+                    && (shortestMaxAge == RolloverConfiguration.NO_LIMIT || maxAge < shortestMaxAge)) {
+                shortestMaxAge = maxAge;
+            }
+        }
+        return Math.min(shortestMaxAge, MAX_CHECK_INTERVAL) * MILLIS_PER_SECOND;
+    }
+    
+    /**
+     * @param rolloverConf The rollover configuration for the collection.
+     * @return The size limit for the WARC files of the collection.
+     */
+    protected long getWarcSizeLimit(RolloverConfiguration rolloverConf) {
+        if(rolloverConf.getWarcSizeLimit() > RolloverConfiguration.NO_LIMIT) {
+            return rolloverConf.getWarcSizeLimit();
+        }
+        return conf.getWarcFileSizeLimit();
+    }
+}
@@ -44,6 +44,11 @@ public class LocalArchive implements Archive {
         return new File(collectionDir, warcId);
     }
 
+    @Override
+    public void releaseFile(String warcId, String collectionId) {
+        // Do nothing, since the file is not copied from the archive.
+    }
+
     @Override
     public String getChecksum(String warcId, String collectionId) {
         WarcDigest digest = ChecksumUtils.calculateChecksum(getFile(warcId, collectionId), 
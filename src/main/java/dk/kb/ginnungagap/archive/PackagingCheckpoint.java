@@ -0,0 +1,431 @@
+package dk.kb.ginnungagap.archive;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import dk.kb.cumulus.Constants;
+import dk.kb.cumulus.CumulusRecord;
+import dk.kb.ginnungagap.exception.ArgumentCheck;
+import dk.kb.ginnungagap.utils.FileUtils;
+import dk.kb.ginnungagap.utils.WarcRecordIndex;
+
+/**
+ * Durable checkpoints of the open WARC files, and the Cumulus records which have been completely packaged in them.
+ * The WARC file is forced to the storage device before its records are checkpointed, and the checkpoint lines are 
+ * written synchronously.
+ *
+ * Each open WARC file has a checkpoint file in the checkpoint directory, which starts with the WARC file, its id
+ * and its collection, followed by a line for each record, when all the parts of the record have been packaged.
+ * The line has the size of the WARC file after the record, so the WARC file can be truncated to the last
+ * checkpointed record, when it is recovered after a crash.
+ * The lines are only appended, so checkpointing a record does not rewrite the records before it. A line, which was
+ * only partially written, or whose record was not completely written to the WARC file, is ignored at the recovery.
+ * The entries of the record index of the WARC file, which have been written since the previous checkpoint, are
+ * appended with the records, since the warc packer only writes the index when the WARC file is closed. The index of 
+ * a recovered WARC file is written from these entries.
+ *
+ * The checkpoint is removed, when the WARC file is finished and handed to the upload journal.
+ */
+public class PackagingCheckpoint {
+    /** The logger.*/
+    private static final Logger log = LoggerFactory.getLogger(PackagingCheckpoint.class);
+
+    /** The suffix for the checkpoint files.*/
+    protected static final String CHECKPOINT_SUFFIX = ".checkpoint";
+    /** The separator between the fields of the lines in the checkpoint files.*/
+    protected static final String SEPARATOR = "\t";
+
+    /** The key for the line with the path of the WARC file.*/
+    protected static final String KEY_WARC_FILE = "warc_file";
+    /** The key for the line with the id of the WARC file.*/
+    protected static final String KEY_WARC_FILE_ID = "warc_file_id";
+    /** The key for the line with the id of the collection.*/
+    protected static final String KEY_COLLECTION_ID = "collection_id";
+    /** The key for the lines with the completely packaged records.*/
+    protected static final String KEY_COMPLETE_RECORD = "complete";
+    /** The key for the lines with the records, where only the metadata has been packaged.*/
+    protected static final String KEY_METADATA_RECORD = "metadata";
+    /** The key for the lines with the entries of the record index of the WARC file.*/
+    protected static final String KEY_INDEX_ENTRY = "index";
+
+    /** The directory with the checkpoint files.*/
+    protected final File checkpointDir;
+    /** The directory with the record indexes of the WARC files.*/
+    protected final File indexDir;
+    /** The size of the WARC files, until which the index entries have been checkpointed, mapped by file name.*/
+    protected final Map<String, Long> indexedSizes = new HashMap<String, Long>();
+
+    /**
+     * Constructor.
+     * @param checkpointDir The directory with the checkpoint files. It is created, if it does not exist.
+     * @param indexDir The directory with the record indexes of the WARC files, where the index of a recovered 
+     * WARC file is written.
+     */
+    public PackagingCheckpoint(File checkpointDir, File indexDir) {
+        ArgumentCheck.checkNotNull(checkpointDir, "File checkpointDir");
+        ArgumentCheck.checkNotNull(indexDir, "File indexDir");
+        if(!checkpointDir.isDirectory() && !checkpointDir.mkdirs()) {
+            throw new IllegalStateException("Could not create the packaging checkpoint directory '"
+                    + checkpointDir.getAbsolutePath() + "'.");
+        }
+        this.checkpointDir = checkpointDir;
+        this.indexDir = indexDir;
+    }
+
+    /**
+     * Checkpoints a record, which has been completely packaged in the WARC file of a warc packer.
+     * @param wp The warc packer with the WARC file.
+     * @param collectionId The id of the collection, where the WARC file must be uploaded.
+     * @param record The record.
+     * @see #addRecords(WarcPacker, String, Collection)
+     */
+    public void addRecord(WarcPacker wp, String collectionId, CumulusRecord record) {
+        addRecords(wp, collectionId, Collections.singletonList(record));
+    }
+
+    /**
+     * Checkpoints records, which have been completely packaged in the WARC file of a warc packer, at the current
+     * size of the WARC file.
+     * The checkpoint file is created with the WARC file and the collection at the first record of the WARC file.
+     * The index entries of the WARC records written since the previous checkpoint are checkpointed with the records.
+     * The WARC file is forced to the storage device before the lines are written, and the lines are written 
+     * synchronously, so a checkpointed record survives a crash.
+     * Must be called while no other record is being packaged in the WARC file, so the size of the WARC file is at 
+     * the boundary of the checkpointed records.
+     * @param wp The warc packer with the WARC file.
+     * @param collectionId The id of the collection, where the WARC file must be uploaded.
+     * @param records The records.
+     */
+    public synchronized void addRecords(WarcPacker wp, String collectionId, Collection<CumulusRecord> records) {
+        long packagedBytes = wp.getPackagedBytes();
+        List<String> recordLines = new ArrayList<String>();
+        for(CumulusRecord record : records) {
+            String line = getRecordLine(wp, record, packagedBytes);
+            if(line != null) {
+                recordLines.add(line);
+            }
+        }
+        if(recordLines.isEmpty()) {
+            return;
+        }
+
+        File checkpointFile = getCheckpointFile(wp.getWarcFile());
+        List<String> lines = new ArrayList<String>();
+        long indexedSize = 0L;
+        if(!checkpointFile.isFile()) {
+            lines.add(KEY_WARC_FILE + SEPARATOR + wp.getWarcFile().getAbsolutePath());
+            lines.add(KEY_COLLECTION_ID + SEPARATOR + collectionId);
+            if(wp.getWarcFileId() != null) {
+                lines.add(KEY_WARC_FILE_ID + SEPARATOR + wp.getWarcFileId());
+            }
+        } else if(indexedSizes.containsKey(wp.getWarcFile().getName())) {
+            indexedSize = indexedSizes.get(wp.getWarcFile().getName());
+        }
+        lines.addAll(getIndexLines(wp.getRecordIndex(), indexedSize, packagedBytes));
+        lines.addAll(recordLines);
+        wp.syncWarcFile();
+        try {
+            Files.write(checkpointFile.toPath(), lines, StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+                    StandardOpenOption.APPEND, StandardOpenOption.DSYNC);
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not checkpoint " + recordLines.size() + " records in the WARC "
+                    + "file '" + wp.getWarcFile().getName() + "'.", e);
+        }
+        indexedSizes.put(wp.getWarcFile().getName(), packagedBytes);
+    }
+
+    /**
+     * Creates the checkpoint lines for the index entries of the WARC records, which have been completely written 
+     * between the given sizes of the WARC file.
+     * @param recordIndex The record index of the WARC file. May be null.
+     * @param fromSize The size of the WARC file, until which the index entries are already checkpointed.
+     * @param toSize The current size of the WARC file.
+     * @return The lines for the index entries.
+     */
+    protected List<String> getIndexLines(WarcRecordIndex recordIndex, long fromSize, long toSize) {
+        List<String> res = new ArrayList<String>();
+        if(recordIndex == null) {
+            return res;
+        }
+        for(WarcRecordIndex.Entry entry : recordIndex.getEntries()) {
+            if(entry.getOffset() >= fromSize && entry.getOffset() + entry.getLength() <= toSize) {
+                res.add(KEY_INDEX_ENTRY + SEPARATOR + entry.getOffset() + SEPARATOR + entry.getLength() + SEPARATOR
+                        + entry.getRecordId() + SEPARATOR + entry.getDigest());
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Creates the checkpoint line for a record.
+     * @param wp The warc packer with the WARC file.
+     * @param record The record.
+     * @param packagedBytes The size of the WARC file after the record.
+     * @return The line, or null if the record has no parts in the WARC file, or has no UUID.
+     */
+    protected String getRecordLine(WarcPacker wp, CumulusRecord record, long packagedBytes) {
+        String kind;
+        if(wp.getPackagedCompleteRecords().contains(record)) {
+            kind = KEY_COMPLETE_RECORD;
+        } else if(wp.getPackagedMetadataRecords().contains(record)) {
+            kind = KEY_METADATA_RECORD;
+        } else {
+            log.debug("The record '" + record.getUUID() + "' has no parts in the WARC file '"
+                    + wp.getWarcFile().getName() + "' to checkpoint.");
+            return null;
+        }
+        String uuid = record.getUUID();
+        if(uuid == null) {
+            log.warn("Cannot checkpoint a record without UUID in the WARC file '" + wp.getWarcFile().getName() + "'.");
+            return null;
+        }
+        String catalogName = record.getFieldValue(Constants.FieldNames.CATALOG_NAME);
+        return kind + SEPARATOR + packagedBytes + SEPARATOR + uuid
+                + (catalogName == null ? "" : SEPARATOR + catalogName);
+    }
+
+    /**
+     * Removes the checkpoint of a WARC file, when it has been finished.
+     * @param warcFile The WARC file.
+     */
+    public synchronized void removeCheckpoint(File warcFile) {
+        if(warcFile == null) {
+            return;
+        }
+        File checkpointFile = getCheckpointFile(warcFile);
+        if(checkpointFile.exists()) {
+            FileUtils.deleteFile(checkpointFile);
+        }
+        indexedSizes.remove(warcFile.getName());
+    }
+
+    /**
+     * Recovers the WARC files, which were open when the checkpoints were written.
+     * Each WARC file is truncated to its last checkpointed record, and added to the upload journal with the
+     * checkpointed records, so it is uploaded and the records reported, when the uploads are resumed.
+     * The record index of the WARC file is written from the checkpointed index entries within the truncated size.
+     * WARC files already in the upload journal, missing WARC files, and WARC files without any checkpointed records
+     * are not recovered. The checkpoints are removed, also when they cannot be recovered.
+     * @param journal The upload journal for the recovered WARC files.
+     * @return The number of recovered WARC files.
+     */
+    public synchronized int recover(UploadJournal journal) {
+        File[] files = checkpointDir.listFiles((dir, name) -> name.endsWith(CHECKPOINT_SUFFIX));
+        if(files == null) {
+            return 0;
+        }
+        int res = 0;
+        for(File checkpointFile : files) {
+            try {
+                if(recoverCheckpoint(checkpointFile, journal)) {
+                    res++;
+                }
+                FileUtils.deleteFile(checkpointFile);
+            } catch (IOException | RuntimeException e) {
+                log.warn("Could not recover the packaging checkpoint '" + checkpointFile.getAbsolutePath()
+                        + "'. It is kept for a later attempt.", e);
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Recovers the WARC file of a checkpoint.
+     * @param checkpointFile The checkpoint file.
+     * @param journal The upload journal for the recovered WARC file.
+     * @return Whether the WARC file was recovered and added to the upload journal.
+     * @throws IOException If the checkpoint cannot be read, or the WARC file cannot be truncated.
+     */
+    protected boolean recoverCheckpoint(File checkpointFile, UploadJournal journal) throws IOException {
+        String warcPath = null;
+        String warcFileId = null;
+        String collectionId = null;
+        List<CheckpointedRecord> records = new ArrayList<CheckpointedRecord>();
+        List<String[]> indexEntries = new ArrayList<String[]>();
+        for(String line : Files.readAllLines(checkpointFile.toPath(), StandardCharsets.UTF_8)) {
+            String[] fields = line.split(SEPARATOR);
+            if(fields.length == 2 && KEY_WARC_FILE.equals(fields[0])) {
+                warcPath = fields[1];
+            } else if(fields.length == 2 && KEY_WARC_FILE_ID.equals(fields[0])) {
+                warcFileId = fields[1];
+            } else if(fields.length == 2 && KEY_COLLECTION_ID.equals(fields[0])) {
+                collectionId = fields[1];
+            } else if(fields.length == 5 && KEY_INDEX_ENTRY.equals(fields[0])) {
+                indexEntries.add(fields);
+            } else if(fields.length >= 3 && (KEY_COMPLETE_RECORD.equals(fields[0])
+                    || KEY_METADATA_RECORD.equals(fields[0]))) {
+                try {
+                    records.add(new CheckpointedRecord(KEY_COMPLETE_RECORD.equals(fields[0]),
+                            Long.parseLong(fields[1]), fields[2], fields.length > 3 ? fields[3] : null));
+                } catch (NumberFormatException e) {
+                    log.debug("Ignoring the invalid checkpoint line '" + line + "'.", e);
+                }
+            } else {
+                log.debug("Ignoring the invalid checkpoint line '" + line + "'.");
+            }
+        }
+        if(warcPath == null || collectionId == null) {
+            log.warn("The packaging checkpoint '" + checkpointFile.getName() + "' is missing the WARC file or the "
+                    + "collection, and cannot be recovered.");
+            return false;
+        }
+
+        File warcFile = new File(warcPath);
+        if(journal.hasEntry(warcFile)) {
+            log.info("The WARC file '" + warcFile.getName() + "' was finished before the checkpoint was removed.");
+            return false;
+        }
+        if(!warcFile.isFile()) {
+            log.warn("The WARC file '" + warcFile.getAbsolutePath() + "' of the packaging checkpoint no longer "
+                    + "exists. The records must be preserved again.");
+            return false;
+        }
+
+        long warcSize = warcFile.length();
+        long recoveredSize = 0L;
+        List<UploadJournal.RecordReference> completeRecords = new ArrayList<UploadJournal.RecordReference>();
+        List<UploadJournal.RecordReference> metadataRecords = new ArrayList<UploadJournal.RecordReference>();
+        for(CheckpointedRecord record : records) {
+            if(record.size > warcSize) {
+                continue;
+            }
+            recoveredSize = Math.max(recoveredSize, record.size);
+            if(record.complete) {
+                completeRecords.add(record.reference);
+            } else {
+                metadataRecords.add(record.reference);
+            }
+        }
+        removeMetadataRecordsAlsoComplete(completeRecords, metadataRecords);
+        if(completeRecords.isEmpty() && metadataRecords.isEmpty()) {
+            log.info("The WARC file '" + warcFile.getName() + "' has no checkpointed records, and is removed.");
+            FileUtils.deleteFile(warcFile);
+            return false;
+        }
+
+        if(recoveredSize < warcSize) {
+            log.info("Truncating the WARC file '" + warcFile.getName() + "' from " + warcSize + " to "
+                    + recoveredSize + " bytes, after its last checkpointed record.");
+            try (RandomAccessFile raf = new RandomAccessFile(warcFile, "rw")) {
+                raf.setLength(recoveredSize);
+            }
+        }
+        writeRecoveredIndex(indexEntries, recoveredSize, warcFileId == null ? warcFile.getName() : warcFileId);
+        log.info("Recovered the WARC file '" + warcFile.getName() + "' for collection '" + collectionId
+                + "' with " + completeRecords.size() + " complete records and " + metadataRecords.size()
+                + " metadata records.");
+        journal.addEntry(warcFile, warcFileId, collectionId, completeRecords, metadataRecords);
+        return true;
+    }
+
+    /**
+     * Writes the record index of a recovered WARC file from the checkpointed index entries, which are within the 
+     * truncated WARC file.
+     * A failure is only logged, since the records can still be found by scanning the WARC file.
+     * @param indexEntries The fields of the checkpoint lines with the index entries.
+     * @param recoveredSize The size of the recovered WARC file.
+     * @param warcId The id of the WARC file.
+     */
+    protected void writeRecoveredIndex(List<String[]> indexEntries, long recoveredSize, String warcId) {
+        WarcRecordIndex recordIndex = new WarcRecordIndex();
+        for(String[] fields : indexEntries) {
+            try {
+                long offset = Long.parseLong(fields[1]);
+                long length = Long.parseLong(fields[2]);
+                if(offset + length <= recoveredSize) {
+                    recordIndex.addEntry(fields[3], offset, length, fields[4]);
+                }
+            } catch (RuntimeException e) {
+                log.debug("Ignoring the invalid checkpointed index entry for '" + fields[3] + "'.", e);
+            }
+        }
+        if(recordIndex.size() == 0) {
+            return;
+        }
+        try {
+            if(!indexDir.isDirectory() && !indexDir.mkdirs()) {
+                throw new IllegalStateException("Could not create the WARC index directory '" 
+                        + indexDir.getAbsolutePath() + "'");
+            }
+            recordIndex.write(WarcRecordIndex.getIndexFile(indexDir, warcId));
+        } catch (RuntimeException e) {
+            log.warn("Could not write the index of the recovered WARC file '" + warcId + "'.", e);
+        }
+    }
+
+    /**
+     * Removes the metadata records, which have also been completely packaged in the WARC file, like the warc packer
+     * does not list a record both as complete and as metadata.
+     * @param completeRecords The references to the completely packaged records.
+     * @param metadataRecords The references to the records, where only the metadata has been packaged.
+     */
+    protected void removeMetadataRecordsAlsoComplete(List<UploadJournal.RecordReference> completeRecords,
+            List<UploadJournal.RecordReference> metadataRecords) {
+        List<String> completeUuids = new ArrayList<String>();
+        for(UploadJournal.RecordReference reference : completeRecords) {
+            completeUuids.add(reference.getUUID());
+        }
+        metadataRecords.removeIf(reference -> completeUuids.contains(reference.getUUID()));
+    }
+
+    /**
+     * @return The WARC files, which currently have a checkpoint.
+     */
+    public synchronized List<String> getCheckpointedWarcFiles() {
+        File[] files = checkpointDir.listFiles((dir, name) -> name.endsWith(CHECKPOINT_SUFFIX));
+        if(files == null) {
+            return Collections.emptyList();
+        }
+        List<String> res = new ArrayList<String>();
+        for(File file : files) {
+            res.add(file.getName().substring(0, file.getName().length() - CHECKPOINT_SUFFIX.length()));
+        }
+        return res;
+    }
+
+    /**
+     * @param warcFile The WARC file.
+     * @return The checkpoint file of the WARC file.
+     */
+    protected File getCheckpointFile(File warcFile) {
+        return new File(checkpointDir, warcFile.getName() + CHECKPOINT_SUFFIX);
+    }
+
+    /**
+     * A record line of a checkpoint.
+     */
+    protected static class CheckpointedRecord {
+        /** Whether the record was completely packaged, or only its metadata.*/
+        protected final boolean complete;
+        /** The size of the WARC file after the record.*/
+        protected final long size;
+        /** The reference to the record.*/
+        protected final UploadJournal.RecordReference reference;
+
+        /**
+         * Constructor.
+         * @param complete Whether the record was completely packaged, or only its metadata.
+         * @param size The size of the WARC file after the record.
+         * @param uuid The UUID of the record.
+         * @param catalogName The name of the catalog of the record. May be null.
+         */
+        protected CheckpointedRecord(boolean complete, long size, String uuid, String catalogName) {
+            this.complete = complete;
+            this.size = size;
+            this.reference = new UploadJournal.RecordReference(catalogName, uuid);
+        }
+    }
+}
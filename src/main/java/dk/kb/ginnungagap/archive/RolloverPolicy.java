@@ -0,0 +1,28 @@
+package dk.kb.ginnungagap.archive;
+
+/**
+ * Policy for when the WARC files of a collection must be finished and uploaded.
+ */
+public interface RolloverPolicy {
+    /**
+     * Checks whether the WARC file of the warc packer must be finished and uploaded.
+     * @param collectionId The id of the collection, where the WARC file will be uploaded.
+     * @param wp The warc packer with the WARC file.
+     * @return Whether or not the WARC file must be finished and uploaded.
+     */
+    boolean isRolloverRequired(String collectionId, WarcPacker wp);
+    
+    /**
+     * @param collectionId The id of the collection.
+     * @return The maximum number of WARC files, which may be open for the collection at the same time, 
+     * or zero for the configured number of WARC shards per collection.
+     */
+    int getMaxOpenFiles(String collectionId);
+    
+    /**
+     * The open WARC files must be checked at this interval, also when no records are packaged, so a WARC file is 
+     * finished, when it gets too old, even though nothing is added to it.
+     * @return The interval in milliseconds, or zero if the WARC files do not need to be checked by time.
+     */
+    long getCheckInterval();
+}
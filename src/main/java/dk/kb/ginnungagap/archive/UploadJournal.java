@@ -0,0 +1,350 @@
+package dk.kb.ginnungagap.archive;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import dk.kb.cumulus.Constants;
+import dk.kb.cumulus.CumulusRecord;
+import dk.kb.ginnungagap.cumulus.CumulusPreservationUtils;
+import dk.kb.ginnungagap.exception.ArgumentCheck;
+import dk.kb.ginnungagap.utils.FileUtils;
+
+/**
+ * Durable journal of the finished WARC files, which have not yet been successfully uploaded.
+ *
+ * Each finished WARC file has an entry in the journal directory with the collection it must be uploaded to,
+ * the MD5 checksum of the WARC file (when it has been calculated), and the Cumulus records packaged in it.
+ * The entry is removed when the upload has succeeded and the records have been reported, so the remaining entries
+ * can be resumed after a crash or a failed upload, without packaging the records again.
+ *
+ * The entries are written to a temporary file, which is then moved in place, so an entry is never partially written.
+ */
+public class UploadJournal {
+    /** The logger.*/
+    private static final Logger log = LoggerFactory.getLogger(UploadJournal.class);
+
+    /** The suffix for the journal entry files.*/
+    protected static final String JOURNAL_SUFFIX = ".journal";
+    /** The suffix for the journal entry files, while they are being written.*/
+    protected static final String TEMPORARY_SUFFIX = ".tmp";
+
+    /** The property for the path of the WARC file.*/
+    protected static final String PROPERTY_WARC_FILE = "warc_file";
+    /** The property for the id of the WARC file.*/
+    protected static final String PROPERTY_WARC_FILE_ID = "warc_file_id";
+    /** The property for the id of the collection.*/
+    protected static final String PROPERTY_COLLECTION_ID = "collection_id";
+    /** The property for the MD5 checksum of the WARC file.*/
+    protected static final String PROPERTY_MD5 = "md5";
+    /** The prefix for the properties of the completely packaged records.*/
+    protected static final String PREFIX_COMPLETE_RECORD = "complete.";
+    /** The prefix for the properties of the records, where only the metadata has been packaged.*/
+    protected static final String PREFIX_METADATA_RECORD = "metadata.";
+    /** The suffix for the property with the UUID of a record.*/
+    protected static final String SUFFIX_UUID = ".uuid";
+    /** The suffix for the property with the catalog of a record.*/
+    protected static final String SUFFIX_CATALOG = ".catalog";
+
+    /** The directory with the journal entries.*/
+    protected final File journalDir;
+
+    /**
+     * Constructor.
+     * @param journalDir The directory with the journal entries. It is created, if it does not exist.
+     */
+    public UploadJournal(File journalDir) {
+        ArgumentCheck.checkNotNull(journalDir, "File journalDir");
+        if(!journalDir.isDirectory() && !journalDir.mkdirs()) {
+            throw new IllegalStateException("Could not create the upload journal directory '"
+                    + journalDir.getAbsolutePath() + "'.");
+        }
+        this.journalDir = journalDir;
+    }
+
+    /**
+     * Adds an entry for a finished WARC file to the journal.
+     * @param wp The warc packer with the finished WARC file.
+     * @param collectionId The id of the collection, where the WARC file must be uploaded.
+     * @return The journal entry.
+     */
+    public Entry addEntry(WarcPacker wp, String collectionId) {
+        return addEntry(wp.getWarcFile(), wp.getWarcFileId(), collectionId,
+                getReferences(wp.getPackagedCompleteRecords()), getReferences(wp.getPackagedMetadataRecords()));
+    }
+
+    /**
+     * Adds an entry for a finished WARC file to the journal, e.g. for a WARC file recovered from a checkpoint.
+     * @param warcFile The finished WARC file.
+     * @param warcFileId The id of the WARC file. May be null.
+     * @param collectionId The id of the collection, where the WARC file must be uploaded.
+     * @param completeRecords The references to the completely packaged records.
+     * @param metadataRecords The references to the records, where only the metadata has been packaged.
+     * @return The journal entry.
+     */
+    public Entry addEntry(File warcFile, String warcFileId, String collectionId,
+            List<RecordReference> completeRecords, List<RecordReference> metadataRecords) {
+        Entry entry = new Entry(warcFile, warcFileId, collectionId, completeRecords, metadataRecords);
+        writeEntry(entry);
+        return entry;
+    }
+
+    /**
+     * @param warcFile The WARC file.
+     * @return Whether the journal has an entry for the WARC file.
+     */
+    public boolean hasEntry(File warcFile) {
+        return getEntryFile(warcFile).isFile();
+    }
+
+    /**
+     * Sets the MD5 checksum of the WARC file for the entry, and writes it to the journal.
+     * @param entry The journal entry.
+     * @param md5 The MD5 checksum of the WARC file.
+     */
+    public void setChecksum(Entry entry, String md5) {
+        entry.md5 = md5;
+        writeEntry(entry);
+    }
+
+    /**
+     * Removes the entry from the journal, when the upload has succeeded and the records have been reported.
+     * @param entry The journal entry.
+     */
+    public void removeEntry(Entry entry) {
+        FileUtils.deleteFile(getEntryFile(entry.warcFile));
+    }
+
+    /**
+     * Retrieves the entries, whose WARC files have not yet been successfully uploaded.
+     * Entries, which cannot be read, are logged and skipped.
+     * @return The pending entries.
+     */
+    public List<Entry> getPendingEntries() {
+        File[] files = journalDir.listFiles((dir, name) -> name.endsWith(JOURNAL_SUFFIX));
+        if(files == null) {
+            return Collections.emptyList();
+        }
+        List<Entry> res = new ArrayList<Entry>();
+        for(File file : files) {
+            try {
+                res.add(readEntry(file));
+            } catch (IOException | RuntimeException e) {
+                log.warn("Could not read the upload journal entry '" + file.getAbsolutePath() + "'.", e);
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Writes the entry to its file in the journal directory.
+     * @param entry The journal entry.
+     */
+    protected void writeEntry(Entry entry) {
+        Properties properties = new Properties();
+        properties.setProperty(PROPERTY_WARC_FILE, entry.warcFile.getAbsolutePath());
+        properties.setProperty(PROPERTY_COLLECTION_ID, entry.collectionId);
+        if(entry.warcFileId != null) {
+            properties.setProperty(PROPERTY_WARC_FILE_ID, entry.warcFileId);
+        }
+        if(entry.md5 != null) {
+            properties.setProperty(PROPERTY_MD5, entry.md5);
+        }
+        setReferences(properties, PREFIX_COMPLETE_RECORD, entry.completeRecords);
+        setReferences(properties, PREFIX_METADATA_RECORD, entry.metadataRecords);
+
+        File entryFile = getEntryFile(entry.warcFile);
+        File tmpFile = new File(journalDir, entryFile.getName() + TEMPORARY_SUFFIX);
+        try {
+            try (OutputStream out = new FileOutputStream(tmpFile)) {
+                properties.store(out, "Upload of " + entry.warcFile.getName());
+            }
+            Files.move(tmpFile.toPath(), entryFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not write the upload journal entry for the WARC file '"
+                    + entry.warcFile.getName() + "'.", e);
+        }
+    }
+
+    /**
+     * Reads an entry from its file in the journal directory.
+     * @param entryFile The file with the journal entry.
+     * @return The journal entry.
+     * @throws IOException If the file cannot be read.
+     */
+    protected Entry readEntry(File entryFile) throws IOException {
+        Properties properties = new Properties();
+        try (InputStream in = new FileInputStream(entryFile)) {
+            properties.load(in);
+        }
+        String warcPath = properties.getProperty(PROPERTY_WARC_FILE);
+        String collectionId = properties.getProperty(PROPERTY_COLLECTION_ID);
+        if(warcPath == null || collectionId == null) {
+            throw new IOException("Missing the WARC file or collection in the journal entry.");
+        }
+        Entry entry = new Entry(new File(warcPath), properties.getProperty(PROPERTY_WARC_FILE_ID), collectionId,
+                getReferences(properties, PREFIX_COMPLETE_RECORD), getReferences(properties, PREFIX_METADATA_RECORD));
+        entry.md5 = properties.getProperty(PROPERTY_MD5);
+        return entry;
+    }
+
+    /**
+     * @param warcFile The WARC file.
+     * @return The file for the journal entry of the WARC file.
+     */
+    protected File getEntryFile(File warcFile) {
+        return new File(journalDir, warcFile.getName() + JOURNAL_SUFFIX);
+    }
+
+    /**
+     * Extracts the references to the given Cumulus records.
+     * @param records The Cumulus records.
+     * @return The references to the records.
+     */
+    protected List<RecordReference> getReferences(List<CumulusRecord> records) {
+        List<RecordReference> res = new ArrayList<RecordReference>();
+        for(CumulusRecord record : records) {
+            String uuid = record.getUUID();
+            if(uuid == null) {
+                log.warn("Cannot journal the record '" + CumulusPreservationUtils.getRecordName(record) 
+                        + "', since it has no UUID.");
+                continue;
+            }
+            res.add(new RecordReference(record.getFieldValue(Constants.FieldNames.CATALOG_NAME), uuid));
+        }
+        return res;
+    }
+
+    /**
+     * Sets the properties for the references to the records.
+     * @param properties The properties.
+     * @param prefix The prefix for the kind of records.
+     * @param references The references to the records.
+     */
+    protected void setReferences(Properties properties, String prefix, List<RecordReference> references) {
+        for(int i = 0; i < references.size(); i++) {
+            RecordReference reference = references.get(i);
+            properties.setProperty(prefix + i + SUFFIX_UUID, reference.getUUID());
+            if(reference.getCatalogName() != null) {
+                properties.setProperty(prefix + i + SUFFIX_CATALOG, reference.getCatalogName());
+            }
+        }
+    }
+
+    /**
+     * Extracts the references to the records from the properties.
+     * @param properties The properties.
+     * @param prefix The prefix for the kind of records.
+     * @return The references to the records.
+     */
+    protected List<RecordReference> getReferences(Properties properties, String prefix) {
+        List<RecordReference> res = new ArrayList<RecordReference>();
+        for(int i = 0; properties.containsKey(prefix + i + SUFFIX_UUID); i++) {
+            res.add(new RecordReference(properties.getProperty(prefix + i + SUFFIX_CATALOG),
+                    properties.getProperty(prefix + i + SUFFIX_UUID)));
+        }
+        return res;
+    }
+
+    /**
+     * An entry in the journal for a finished WARC file.
+     */
+    public static class Entry {
+        /** The WARC file.*/
+        protected final File warcFile;
+        /** The id of the WARC file. May be null.*/
+        protected final String warcFileId;
+        /** The id of the collection, where the WARC file must be uploaded.*/
+        protected final String collectionId;
+        /** The references to the completely packaged records.*/
+        protected final List<RecordReference> completeRecords;
+        /** The references to the records, where only the metadata has been packaged.*/
+        protected final List<RecordReference> metadataRecords;
+        /** The MD5 checksum of the WARC file. Null until it has been calculated.*/
+        protected String md5;
+
+        /**
+         * Constructor.
+         * @param warcFile The WARC file.
+         * @param warcFileId The id of the WARC file.
+         * @param collectionId The id of the collection, where the WARC file must be uploaded.
+         * @param completeRecords The references to the completely packaged records.
+         * @param metadataRecords The references to the records, where only the metadata has been packaged.
+         */
+        protected Entry(File warcFile, String warcFileId, String collectionId,
+                List<RecordReference> completeRecords, List<RecordReference> metadataRecords) {
+            this.warcFile = warcFile;
+            this.warcFileId = warcFileId;
+            this.collectionId = collectionId;
+            this.completeRecords = completeRecords;
+            this.metadataRecords = metadataRecords;
+        }
+
+        /** @return The WARC file.*/
+        public File getWarcFile() {
+            return warcFile;
+        }
+        /** @return The id of the WARC file. May be null.*/
+        public String getWarcFileId() {
+            return warcFileId;
+        }
+        /** @return The id of the collection, where the WARC file must be uploaded.*/
+        public String getCollectionId() {
+            return collectionId;
+        }
+        /** @return The references to the completely packaged records.*/
+        public List<RecordReference> getCompleteRecords() {
+            return completeRecords;
+        }
+        /** @return The references to the records, where only the metadata has been packaged.*/
+        public List<RecordReference> getMetadataRecords() {
+            return metadataRecords;
+        }
+        /** @return The MD5 checksum of the WARC file. Null until it has been calculated.*/
+        public String getMd5() {
+            return md5;
+        }
+    }
+
+    /**
+     * Reference to a Cumulus record, so it can be found again after a restart.
+     */
+    public static class RecordReference {
+        /** The name of the catalog of the record. May be null.*/
+        protected final String catalogName;
+        /** The UUID of the record.*/
+        protected final String uuid;
+
+        /**
+         * Constructor.
+         * @param catalogName The name of the catalog of the record.
+         * @param uuid The UUID of the record.
+         */
+        protected RecordReference(String catalogName, String uuid) {
+            this.catalogName = catalogName;
+            this.uuid = uuid;
+        }
+
+        /** @return The name of the catalog of the record. May be null.*/
+        public String getCatalogName() {
+            return catalogName;
+        }
+        /** @return The UUID of the record.*/
+        public String getUUID() {
+            return uuid;
+        }
+    }
+}
@@ -0,0 +1,304 @@
+package dk.kb.ginnungagap.archive;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.time.Instant;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import org.jwat.common.ContentType;
+import org.jwat.common.Uri;
+import org.jwat.warc.WarcDigest;
+
+import dk.kb.ginnungagap.exception.ArgumentCheck;
+import dk.kb.ginnungagap.utils.ChecksumUtils;
+
+/**
+ * Writes the records of an uncompressed WARC file.
+ *
+ * The records are written directly to the file channel of the WARC file, through a direct buffer for the payload
+ * of a resource record.
+ * The MD5 checksum of the WARC file is updated with the bytes as they are written, so the WARC file is never read
+ * again to calculate it. Since MD5 digests cannot be combined, the payload is digested as it is copied, rather than
+ * transferred by the operating system.
+ * The block digest of a record must be calculated before the record is written.
+ */
+public class WarcFileWriter implements Closeable {
+    /** The version line of the WARC records.*/
+    protected static final String WARC_VERSION = "WARC/1.0";
+    /** The line ending of the WARC headers.*/
+    protected static final String CRLF = "\r\n";
+    /** The bytes after the payload of each WARC record.*/
+    protected static final byte[] RECORD_END = (CRLF + CRLF).getBytes(StandardCharsets.US_ASCII);
+    /** The prefix for the URN of an UUID.*/
+    protected static final String UUID_URN_PREFIX = "urn:uuid:";
+    /** The content type of the warc-info record.*/
+    protected static final String WARCINFO_CONTENT_TYPE = "application/warc-fields";
+    /** The size of the buffer for copying a payload stream.*/
+    protected static final int BUFFER_SIZE = 16*1024;
+
+    /** The WARC file.*/
+    protected final File warcFile;
+    /** The id of the WARC file.*/
+    protected final String warcFileId;
+    /** The channel for writing the WARC file.*/
+    protected final FileChannel channel;
+    /** The id of the warc-info record. Null until it has been written.*/
+    protected String warcinfoRecordId;
+    /** The running MD5 digest of the bytes written to the WARC file.*/
+    protected final MessageDigest fileDigest;
+    /** The number of bytes written to the WARC file.*/
+    protected long writtenBytes;
+    /** The MD5 checksum of the WARC file. Null until the WARC file has been closed.*/
+    protected WarcDigest fileChecksum;
+
+    /**
+     * Constructor. Creates a new empty WARC file, named after its id.
+     * @param dir The directory for the WARC file.
+     * @param warcFileId The id of the WARC file.
+     * @throws IOException If the WARC file cannot be created.
+     */
+    public WarcFileWriter(File dir, String warcFileId) throws IOException {
+        ArgumentCheck.checkExistsDirectory(dir, "File dir");
+        ArgumentCheck.checkNotNullOrEmpty(warcFileId, "String warcFileId");
+        this.warcFileId = warcFileId;
+        this.warcFile = new File(dir, warcFileId);
+        this.channel = FileChannel.open(warcFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        this.fileDigest = ChecksumUtils.getMessageDigest(ChecksumUtils.MD5_ALGORITHM);
+        this.writtenBytes = 0L;
+    }
+
+    /**
+     * Writes the warc-info record. Must be the first record of the WARC file.
+     * @param payload The payload of the warc-info record.
+     * @param blockDigest The digest of the payload.
+     * @return The id of the warc-info record.
+     * @throws IOException If the record cannot be written.
+     */
+    public synchronized String writeWarcinfoRecord(byte[] payload, WarcDigest blockDigest) throws IOException {
+        ArgumentCheck.checkNotNull(payload, "byte[] payload");
+        String recordId = UUID_URN_PREFIX + UUID.randomUUID().toString();
+        Map<String, String> fields = new LinkedHashMap<String, String>();
+        fields.put("WARC-Type", "warcinfo");
+        fields.put("WARC-Date", getDate());
+        fields.put("WARC-Filename", warcFileId);
+        fields.put("WARC-Record-ID", "<" + recordId + ">");
+        fields.put("WARC-Block-Digest", getDigest(blockDigest));
+        fields.put("Content-Type", WARCINFO_CONTENT_TYPE);
+        fields.put("Content-Length", Long.toString(payload.length));
+        writeHeader(fields);
+        writeFully(ByteBuffer.wrap(payload));
+        writeFully(ByteBuffer.wrap(RECORD_END));
+        warcinfoRecordId = recordId;
+        return recordId;
+    }
+
+    /**
+     * Writes a resource record with the content of a file.
+     * The content is copied from the file channel of the file to the WARC file through a direct buffer.
+     * @param resourceFile The file with the content of the record.
+     * @param contentType The content type of the file.
+     * @param blockDigest The digest of the file.
+     * @param uuid The UUID of the record.
+     * @return The URI of the record.
+     * @throws IOException If the record cannot be written, or the file changed while it was written.
+     */
+    public synchronized String writeResourceRecord(File resourceFile, ContentType contentType,
+            WarcDigest blockDigest, String uuid) throws IOException {
+        ArgumentCheck.checkExistsNormalFile(resourceFile, "File resourceFile");
+        ArgumentCheck.checkNotNullOrEmpty(uuid, "String uuid");
+        try (FileChannel source = FileChannel.open(resourceFile.toPath(), StandardOpenOption.READ)) {
+            long length = source.size();
+            String uri = UUID_URN_PREFIX + uuid;
+            Map<String, String> fields = new LinkedHashMap<String, String>();
+            fields.put("WARC-Type", "resource");
+            fields.put("WARC-Target-URI", uri);
+            fields.put("WARC-Date", getDate());
+            fields.put("WARC-Record-ID", "<" + uri + ">");
+            addWarcinfoId(fields);
+            fields.put("WARC-Block-Digest", getDigest(blockDigest));
+            fields.put("Content-Type", contentType.toString());
+            fields.put("Content-Length", Long.toString(length));
+            writeHeader(fields);
+            long written = 0L;
+            ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+            while(source.read(buffer) != -1) {
+                buffer.flip();
+                written += buffer.remaining();
+                writeFully(buffer);
+                buffer.clear();
+            }
+            if(written != length) {
+                throw new IOException("The file '" + resourceFile.getAbsolutePath() + "' changed size while it "
+                        + "was written to the WARC file '" + warcFileId + "'.");
+            }
+            writeFully(ByteBuffer.wrap(RECORD_END));
+            return uri;
+        }
+    }
+
+    /**
+     * Writes a metadata record.
+     * @param in The stream with the metadata.
+     * @param length The length of the metadata.
+     * @param contentType The content type of the metadata.
+     * @param refersTo The record, which the metadata refers to. May be null.
+     * @param blockDigest The digest of the metadata.
+     * @param warcRecordId The id of the record, without the UUID URN prefix.
+     * @param uuid The UUID for the target URI of the record.
+     * @return The URI of the record.
+     * @throws IOException If the record cannot be written, or the stream does not have the given length.
+     */
+    public synchronized String writeMetadataRecord(InputStream in, long length, ContentType contentType,
+            Uri refersTo, WarcDigest blockDigest, String warcRecordId, String uuid) throws IOException {
+        ArgumentCheck.checkNotNull(in, "InputStream in");
+        ArgumentCheck.checkNotNullOrEmpty(warcRecordId, "String warcRecordId");
+        String uri = UUID_URN_PREFIX + uuid;
+        Map<String, String> fields = new LinkedHashMap<String, String>();
+        fields.put("WARC-Type", "metadata");
+        fields.put("WARC-Target-URI", uri);
+        fields.put("WARC-Date", getDate());
+        fields.put("WARC-Record-ID", "<" + UUID_URN_PREFIX + warcRecordId + ">");
+        if(refersTo != null) {
+            fields.put("WARC-Refers-To", "<" + refersTo.toString() + ">");
+        }
+        addWarcinfoId(fields);
+        fields.put("WARC-Block-Digest", getDigest(blockDigest));
+        fields.put("Content-Type", contentType.toString());
+        fields.put("Content-Length", Long.toString(length));
+        writeHeader(fields);
+        long written = 0L;
+        ReadableByteChannel source = Channels.newChannel(in);
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        while(source.read(buffer) != -1) {
+            buffer.flip();
+            written += buffer.remaining();
+            writeFully(buffer);
+            buffer.clear();
+        }
+        if(written != length) {
+            throw new IOException("Wrote " + written + " bytes of metadata for the record '" + warcRecordId
+                    + "', but expected " + length + " bytes.");
+        }
+        writeFully(ByteBuffer.wrap(RECORD_END));
+        return uri;
+    }
+
+    /**
+     * Adds the id of the warc-info record to the header fields, if it has been written.
+     * @param fields The header fields.
+     */
+    protected void addWarcinfoId(Map<String, String> fields) {
+        if(warcinfoRecordId != null) {
+            fields.put("WARC-Warcinfo-ID", "<" + warcinfoRecordId + ">");
+        }
+    }
+
+    /**
+     * Writes the header of a WARC record, including the empty line after the header fields.
+     * @param fields The header fields.
+     * @throws IOException If the header cannot be written.
+     */
+    protected void writeHeader(Map<String, String> fields) throws IOException {
+        StringBuilder header = new StringBuilder(WARC_VERSION).append(CRLF);
+        for(Map.Entry<String, String> field : fields.entrySet()) {
+            header.append(field.getKey()).append(": ").append(field.getValue()).append(CRLF);
+        }
+        header.append(CRLF);
+        writeFully(ByteBuffer.wrap(header.toString().getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Writes all the remaining bytes of the buffer to the WARC file, and updates the checksum of the WARC file
+     * with them.
+     * @param buffer The buffer.
+     * @throws IOException If the bytes cannot be written.
+     */
+    protected void writeFully(ByteBuffer buffer) throws IOException {
+        ByteBuffer digested = buffer.duplicate();
+        while(buffer.hasRemaining()) {
+            writtenBytes += channel.write(buffer);
+        }
+        fileDigest.update(digested);
+    }
+
+    /**
+     * Forces the written records of the WARC file to the storage device.
+     * @throws IOException If the WARC file cannot be forced to the storage device.
+     */
+    public synchronized void force() throws IOException {
+        channel.force(false);
+    }
+
+    /**
+     * @return The current time in the format of the WARC-Date header.
+     */
+    protected String getDate() {
+        return DateTimeFormatter.ISO_INSTANT.format(Instant.now().truncatedTo(ChronoUnit.SECONDS));
+    }
+
+    /**
+     * @param digest The digest.
+     * @return The digest in the format of the WARC-Block-Digest header.
+     */
+    protected String getDigest(WarcDigest digest) {
+        ArgumentCheck.checkNotNull(digest, "WarcDigest digest");
+        return digest.algorithm + ":" + digest.digestString;
+    }
+
+    /**
+     * @return The WARC file.
+     */
+    public File getWarcFile() {
+        return warcFile;
+    }
+
+    /**
+     * @return The id of the WARC file.
+     */
+    public String getWarcFileId() {
+        return warcFileId;
+    }
+
+    /**
+     * @return The current size of the WARC file.
+     */
+    public long getWarcFileSize() {
+        return warcFile.length();
+    }
+
+    /**
+     * @return The number of bytes written to the WARC file.
+     */
+    public synchronized long getWrittenBytes() {
+        return writtenBytes;
+    }
+
+    /**
+     * @return The MD5 checksum of the WARC file, or null if the WARC file has not been closed yet.
+     */
+    public synchronized WarcDigest getWarcFileChecksum() {
+        return fileChecksum;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        channel.close();
+        if(fileChecksum == null) {
+            fileChecksum = ChecksumUtils.createWarcDigest(ChecksumUtils.MD5_ALGORITHM, fileDigest.digest());
+        }
+    }
+}
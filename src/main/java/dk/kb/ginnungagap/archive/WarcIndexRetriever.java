@@ -0,0 +1,155 @@
+package dk.kb.ginnungagap.archive;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import dk.kb.ginnungagap.config.BitmagConfiguration;
+import dk.kb.ginnungagap.exception.ArgumentCheck;
+import dk.kb.ginnungagap.utils.FileUtils;
+import dk.kb.ginnungagap.utils.WarcRecordIndex;
+
+/**
+ * Retrieves and archives the indexes of the WARC files.
+ * 
+ * The indexes are kept in the local WARC index directory. When the indexes are also archived, then an index, 
+ * which is not in the local directory, is retrieved from the archive and kept in the local directory.
+ * The indexes are archived with the id of the WARC file and the index suffix.
+ * 
+ * A WARC file, whose index could not be retrieved from the archive, is not retried by the same retriever, so a 
+ * retriever should be used for a whole run. The indexes retrieved from the archive can be pruned from the local 
+ * directory at the end of the run, so the local directory does not keep a copy of all the archived indexes.
+ */
+public class WarcIndexRetriever {
+    /** The logger.*/
+    private static final Logger log = LoggerFactory.getLogger(WarcIndexRetriever.class);
+    
+    /** The archive.*/
+    protected final Archive archive;
+    /** The configuration for the bitrepository.*/
+    protected final BitmagConfiguration conf;
+    /** The ids of the WARC files, whose index could not be retrieved from the archive.*/
+    protected final Set<String> missingIndexes = ConcurrentHashMap.newKeySet();
+    /** The local index files, which have been retrieved from the archive.*/
+    protected final Set<File> retrievedIndexes = ConcurrentHashMap.newKeySet();
+    
+    /**
+     * Constructor.
+     * @param archive The archive.
+     * @param conf The configuration for the bitrepository.
+     */
+    public WarcIndexRetriever(Archive archive, BitmagConfiguration conf) {
+        ArgumentCheck.checkNotNull(archive, "Archive archive");
+        ArgumentCheck.checkNotNull(conf, "BitmagConfiguration conf");
+        this.archive = archive;
+        this.conf = conf;
+    }
+    
+    /**
+     * Retrieves the index of a WARC file.
+     * The archive is not asked again for an index, which it did not have.
+     * @param warcId The id of the WARC file.
+     * @param collectionId The id of the collection of the WARC file.
+     * @return The index of the WARC file, or null if the WARC file has no index.
+     */
+    public WarcRecordIndex getIndex(String warcId, String collectionId) {
+        File indexFile = WarcRecordIndex.getIndexFile(conf.getWarcIndexDir(), warcId);
+        if(!indexFile.isFile() && conf.isArchiveWarcIndex() && !missingIndexes.contains(warcId)) {
+            retrieveIndex(warcId, collectionId, indexFile);
+            if(indexFile.isFile()) {
+                retrievedIndexes.add(indexFile);
+            } else {
+                missingIndexes.add(warcId);
+            }
+        }
+        if(!indexFile.isFile()) {
+            log.debug("No index for the WARC file '" + warcId + "'.");
+            return null;
+        }
+        try {
+            return WarcRecordIndex.read(indexFile);
+        } catch (IOException e) {
+            log.warn("Could not read the index of the WARC file '" + warcId + "'.", e);
+            return null;
+        }
+    }
+    
+    /**
+     * Retrieves the index of a WARC file from the archive into the local WARC index directory.
+     * A failure is only logged, since WARC files packaged before the indexes were archived have no index.
+     * @param warcId The id of the WARC file.
+     * @param collectionId The id of the collection of the WARC file.
+     * @param indexFile The local index file.
+     */
+    protected void retrieveIndex(String warcId, String collectionId, File indexFile) {
+        String indexId = warcId + WarcRecordIndex.INDEX_SUFFIX;
+        try {
+            File retrieved = archive.getFile(indexId, collectionId);
+            try {
+                if(retrieved == null || !retrieved.isFile()) {
+                    return;
+                }
+                File indexDir = indexFile.getParentFile();
+                if(!indexDir.isDirectory() && !indexDir.mkdirs()) {
+                    throw new IllegalStateException("Could not create the WARC index directory '" 
+                            + indexDir.getAbsolutePath() + "'");
+                }
+                File tmpFile = new File(indexDir, indexFile.getName() + ".tmp");
+                Files.copy(retrieved.toPath(), tmpFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                Files.move(tmpFile.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING, 
+                        StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                archive.releaseFile(indexId, collectionId);
+            }
+        } catch (IOException | RuntimeException e) {
+            log.info("Could not retrieve the index of the WARC file '" + warcId + "' from the archive.", e);
+        }
+    }
+    
+    /**
+     * Deletes the indexes, which have been retrieved from the archive by this retriever, from the local WARC index 
+     * directory. A failure is only logged.
+     */
+    public void pruneRetrievedIndexes() {
+        for(File indexFile : retrievedIndexes) {
+            try {
+                FileUtils.deleteFile(indexFile);
+            } catch (RuntimeException e) {
+                log.warn("Could not delete the retrieved index '" + indexFile.getAbsolutePath() + "'.", e);
+            }
+        }
+        log.debug("Pruned " + retrievedIndexes.size() + " retrieved indexes from the local WARC index directory.");
+        retrievedIndexes.clear();
+    }
+    
+    /**
+     * Uploads a copy of the local index of a WARC file to the archive.
+     * A failure is only logged, since the records can still be found by scanning the WARC file.
+     * @param warcId The id of the WARC file.
+     * @param collectionId The id of the collection of the WARC file.
+     */
+    public void archiveIndex(String warcId, String collectionId) {
+        File indexFile = WarcRecordIndex.getIndexFile(conf.getWarcIndexDir(), warcId);
+        if(!indexFile.isFile()) {
+            log.info("The WARC file '" + warcId + "' has no index to archive.");
+            return;
+        }
+        File uploadFile = new File(conf.getTempDir(), indexFile.getName());
+        try {
+            Files.copy(indexFile.toPath(), uploadFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            if(!archive.uploadFile(uploadFile, collectionId)) {
+                log.warn("Failed to archive the index of the WARC file '" + warcId + "'.");
+            }
+        } catch (IOException | RuntimeException e) {
+            log.warn("Failed to archive the index of the WARC file '" + warcId + "'.", e);
+        } finally {
+            FileUtils.deleteFile(uploadFile);
+        }
+    }
+}
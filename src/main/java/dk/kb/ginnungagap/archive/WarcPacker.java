@@ -3,6 +3,7 @@ package dk.kb.ginnungagap.archive;
 import java.io.Closeable;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
@@ -21,13 +22,22 @@ import dk.kb.cumulus.CumulusRecord;
 import dk.kb.ginnungagap.config.BitmagConfiguration;
 import dk.kb.ginnungagap.cumulus.CumulusPreservationUtils;
 import dk.kb.ginnungagap.exception.ArgumentCheck;
-import dk.kb.ginnungagap.utils.ChecksumUtils;
+import dk.kb.ginnungagap.transformation.MetadataBuffer;
+import dk.kb.ginnungagap.transformation.MetadataValidationResult;
+import dk.kb.ginnungagap.utils.WarcRecordIndex;
 import dk.kb.yggdrasil.exceptions.YggdrasilException;
 import dk.kb.yggdrasil.warc.Digest;
-import dk.kb.yggdrasil.warc.WarcWriterWrapper;
 
 /**
  * Packages the warc files.
+ * 
+ * The MD5 checksum of the WARC file is calculated by the WARC writer from the bytes it writes, so the WARC file does 
+ * not have to be read again after it has been finished.
+ * 
+ * The offset and length of each record are recorded in an index, which is written to the WARC index directory 
+ * when the WARC file is closed, so the records can be read without scanning the WARC file. The entries of the index 
+ * are also checkpointed with the records (see PackagingCheckpoint), so a WARC file recovered after a crash has an 
+ * index too.
  */
 public class WarcPacker implements Closeable {
     /** The logger.*/
@@ -36,15 +46,21 @@ public class WarcPacker implements Closeable {
     /** The content type for the metadata. */
     public static final String METADATA_CONTENT_TYPE = "text/xml";
     
-    /** The warc writer wrapper, for writing the warc records.*/
-    protected final WarcWriterWrapper warcWrapper;
+    /** The warc writer, for writing the warc records.*/
+    protected final WarcFileWriter warcWriter;
     /** The records which has been packaged in the warc file, but content file and metadata.*/
     protected final List<CumulusRecord> packagedCompleteRecords;
     /** The records whose metadata has been packaged in the warc file.*/
     protected final List<CumulusRecord> packagedMetadataRecords;
     /** The configuration for the bitrepository.*/
     protected final BitmagConfiguration bitmagConf;
+    /** The index of the records in the WARC file.*/
+    protected final WarcRecordIndex recordIndex;
+    /** The time when the WARC file was created, in milliseconds since epoch.*/
+    protected final long creationTime;
     
+    /** The number of WARC records in the WARC file besides the warc-info.*/
+    protected int recordCount;
     /** Whether or not the current WARC file has any content besides the warc-info.*/
     protected boolean hasContent;
     /** Whether or not this WARC packer is closed.*/
@@ -58,9 +74,12 @@ public class WarcPacker implements Closeable {
         this.bitmagConf = conf;
         this.packagedCompleteRecords = new ArrayList<CumulusRecord>();
         this.packagedMetadataRecords = new ArrayList<CumulusRecord>();
+        this.recordIndex = new WarcRecordIndex();
+        this.creationTime = System.currentTimeMillis();
+        this.recordCount = 0;
         
         try {
-            this.warcWrapper = WarcWriterWrapper.getWriter(conf.getTempDir(), UUID.randomUUID().toString());
+            this.warcWriter = new WarcFileWriter(conf.getTempDir(), UUID.randomUUID().toString());
             writeWarcinfo();
             this.hasContent = false;
             this.isClosed = false;
@@ -72,12 +91,13 @@ public class WarcPacker implements Closeable {
     /**
      * Write the warc info of the WARC file.
      * This should be done as the first thing after instantiating a new WARC file. 
-     * @throws YggdrasilException If it fails to write the warc info.
+     * @throws YggdrasilException If it fails to digest the warc info.
+     * @throws IOException If it fails to write the warc info.
      */
-    protected void writeWarcinfo() throws YggdrasilException {
+    protected void writeWarcinfo() throws YggdrasilException, IOException {
         log.debug("In writeWarcinfo");
         ArgumentCheck.checkTrue(!isClosed, "WarcPacker must not be closed");
-        synchronized(warcWrapper) {
+        synchronized(warcWriter) {
             Digest digestor = new Digest(bitmagConf.getAlgorithm());
             StringBuffer payload = new StringBuffer();
             payload.append(WarcInfoConstants.INFO_RECORD_HEADER);
@@ -98,25 +118,31 @@ public class WarcPacker implements Closeable {
             }
 
             byte[] warcInfoPayloadBytes = payload.toString().getBytes(StandardCharsets.UTF_8);
-            warcWrapper.writeWarcinfoRecord(warcInfoPayloadBytes,
+            warcWriter.writeWarcinfoRecord(warcInfoPayloadBytes,
                     digestor.getDigestOfBytes(warcInfoPayloadBytes));
         }
     }
 
     /**
      * Pack a record into the Warc file.
+     * The block digest must already be calculated with the algorithm for the WARC records, since the file must not
+     * be read while the WARC file is locked.
      * @param record The record from Cumulus.
      * @param resourceFile The Cumulus Asset file for the record.
+     * @param blockDigest The already calculated digest of the Asset file.
      */
-    public synchronized void packRecordAssetFile(CumulusRecord record, File resourceFile) {
+    public synchronized void packRecordAssetFile(CumulusRecord record, File resourceFile, WarcDigest blockDigest) {
+        ArgumentCheck.checkNotNull(blockDigest, "WarcDigest blockDigest");
+        ArgumentCheck.checkTrue(isBlockDigest(blockDigest), "The block digest must have the algorithm '" 
+                + bitmagConf.getAlgorithm() + "', but had '" + blockDigest.algorithm + "'");
         ContentType contentType = getContentType(record);
-        WarcDigest blockDigest = ChecksumUtils.calculateChecksum(resourceFile, bitmagConf.getAlgorithm());
 
         packResource(resourceFile, blockDigest, contentType, record.getUUID());
     }
     
     /**
      * Packages a file in a WARC-resource.
+     * The content of the file is transferred directly from the file to the WARC file.
      * @param resourceFile The file with the content for the resource record.
      * @param blockDigest The digest for the warc record.
      * @param contentType The content type for the warc record (refers to the content of the file).
@@ -126,12 +152,15 @@ public class WarcPacker implements Closeable {
             String uuid) {
         log.debug("In packResource");
         ArgumentCheck.checkTrue(!isClosed, "WarcPacker must not be closed");
-        synchronized(warcWrapper) {
-            try (InputStream in = new FileInputStream(resourceFile)) {
-                Uri uri = warcWrapper.writeResourceRecord(in, resourceFile.length(), contentType, blockDigest, uuid);
+        synchronized(warcWriter) {
+            try {
+                long offset = warcWriter.getWrittenBytes();
+                String uri = warcWriter.writeResourceRecord(resourceFile, contentType, blockDigest, uuid);
                 log.debug("Packed file '" + resourceFile.getName() + "' for uuid '" + uuid + "', and the "
                         + "record received the URI:" + uri + "'");
                 hasContent = true;
+                recordCount++;
+                addIndexEntry(offset, blockDigest, uuid);
             } catch (Exception e) {
                 throw new IllegalStateException("Could not package the metadata into the WARC file.", e);
             }
@@ -150,33 +179,165 @@ public class WarcPacker implements Closeable {
         ArgumentCheck.checkTrue(!isClosed, "WarcPacker must not be closed");
         ArgumentCheck.checkNotNullOrEmpty(warcRecordId, "String warcRecordId");
         log.info("WarcRecordId: {}", warcRecordId);
-        synchronized(warcWrapper) {
+        synchronized(warcWriter) {
             try (InputStream in = new FileInputStream(metadataFile)) {
+                long offset = warcWriter.getWrittenBytes();
                 String uuid = metadataFile.getName();
                 Digest digestor = new Digest(bitmagConf.getAlgorithm());
                 WarcDigest blockDigest = digestor.getDigestOfFile(metadataFile);
-                warcWrapper.writeMetadataRecord(in, metadataFile.length(), 
+                warcWriter.writeMetadataRecord(in, metadataFile.length(), 
                         ContentType.parseContentType(METADATA_CONTENT_TYPE), refersTo, blockDigest, 
                         warcRecordId, uuid);
                 hasContent = true;
+                recordCount++;
+                addIndexEntry(offset, blockDigest, warcRecordId, uuid);
+            } catch (Exception e) {
+                throw new IllegalStateException("Could not package the metadata into the WARC file.", e);
+            }
+        }
+    }
+
+    /**
+     * Packages a metadata buffer.
+     * The digest calculated during the validation of the metadata is reused, when it has the algorithm for the
+     * WARC records. Otherwise, when the metadata is kept in memory, then the digest is calculated directly from 
+     * the bytes in memory, or else from the file of the buffer.
+     * @param metadata The buffer with the metadata. The name of the buffer must be the same 
+     * as the UUID of the metadata record.
+     * @param refersTo Value for the refers-to elements in the warc record header. This may be null.
+     * @param warcRecordId The id of the WARC record.
+     */
+    protected void packMetadata(MetadataBuffer metadata, Uri refersTo, String warcRecordId) {
+        log.debug("In packMetadata");
+        ArgumentCheck.checkTrue(!isClosed, "WarcPacker must not be closed");
+        ArgumentCheck.checkNotNullOrEmpty(warcRecordId, "String warcRecordId");
+        log.info("WarcRecordId: {}", warcRecordId);
+        synchronized(warcWriter) {
+            try (InputStream in = metadata.getInputStream()) {
+                long offset = warcWriter.getWrittenBytes();
+                WarcDigest blockDigest;
+                if(hasValidatedDigest(metadata)) {
+                    blockDigest = metadata.getValidationResult().getDigest();
+                } else if(metadata.isInMemory()) {
+                    blockDigest = new Digest(bitmagConf.getAlgorithm()).getDigestOfBytes(metadata.getBytes());
+                } else {
+                    blockDigest = new Digest(bitmagConf.getAlgorithm()).getDigestOfFile(metadata.getFile());
+                }
+                warcWriter.writeMetadataRecord(in, metadata.length(), 
+                        ContentType.parseContentType(METADATA_CONTENT_TYPE), refersTo, blockDigest, 
+                        warcRecordId, metadata.getName());
+                hasContent = true;
+                recordCount++;
+                addIndexEntry(offset, blockDigest, warcRecordId, metadata.getName());
             } catch (Exception e) {
                 throw new IllegalStateException("Could not package the metadata into the WARC file.", e);
             }
         }
     }
 
+    /**
+     * Adds the record, which has just been written, to the index of the WARC file.
+     * Must be called after the record has been completely written.
+     * @param offset The offset of the record in the WARC file.
+     * @param blockDigest The block digest of the record.
+     * @param ids The ids, which the record can be found by.
+     */
+    protected void addIndexEntry(long offset, WarcDigest blockDigest, String ... ids) {
+        long length = warcWriter.getWrittenBytes() - offset;
+        String digest = blockDigest == null ? null : blockDigest.algorithm + ":" + blockDigest.digestString;
+        for(String id : ids) {
+            if(id != null && !id.isEmpty()) {
+                recordIndex.addEntry(id, offset, length, digest);
+            }
+        }
+    }
+    
+    /**
+     * @param metadata The buffer with the metadata.
+     * @return Whether or not the metadata has a digest from its validation with the algorithm for the WARC records.
+     */
+    protected boolean hasValidatedDigest(MetadataBuffer metadata) {
+        MetadataValidationResult validationResult = metadata.getValidationResult();
+        return validationResult != null && isBlockDigest(validationResult.getDigest());
+    }
+
+    /**
+     * @param digest The digest.
+     * @return Whether or not the digest has the algorithm for the WARC records.
+     */
+    protected boolean isBlockDigest(WarcDigest digest) {
+        return digest != null && bitmagConf.getAlgorithm().equalsIgnoreCase(digest.algorithm);
+    }
+
     /**
      * @return The current size of the warc file.
      */
     public long getSize() {
-        return warcWrapper.getWarcFileSize();
+        return warcWriter.getWarcFileSize();
+    }
+
+    /**
+     * @return The number of bytes of the WARC records, which have been completely written to the warc file.
+     */
+    public long getPackagedBytes() {
+        synchronized(warcWriter) {
+            return warcWriter.getWrittenBytes();
+        }
+    }
+
+    /**
+     * Forces the records written to the warc file to the storage device, so they survive a crash.
+     */
+    public void syncWarcFile() {
+        synchronized(warcWriter) {
+            try {
+                warcWriter.force();
+            } catch (IOException e) {
+                throw new IllegalStateException("Could not force the warc file to the storage device", e);
+            }
+        }
+    }
+
+    /**
+     * @return The number of WARC records in the warc file besides the warc-info.
+     */
+    public int getRecordCount() {
+        synchronized(warcWriter) {
+            return recordCount;
+        }
+    }
+    
+    /**
+     * @return The time when the warc file was created, in milliseconds since epoch.
+     */
+    public long getCreationTime() {
+        return creationTime;
     }
 
     /**
      * @return The warc file with the data.
      */
     public File getWarcFile() {
-        return warcWrapper.getWarcFile();
+        return warcWriter.getWarcFile();
+    }
+    
+    /**
+     * @return The MD5 checksum of the whole warc file, or null if the warc packer has not been closed yet.
+     */
+    public WarcDigest getWarcFileChecksum() {
+        synchronized(warcWriter) {
+            if(!isClosed) {
+                return null;
+            }
+            return warcWriter.getWarcFileChecksum();
+        }
+    }
+    
+    /**
+     * @return The id of the warc file.
+     */
+    public String getWarcFileId() {
+        return warcWriter.getWarcFileId();
     }
     
     /**
@@ -193,15 +354,43 @@ public class WarcPacker implements Closeable {
      */
     @Override
     public void close() {
-        synchronized(warcWrapper) {
+        synchronized(warcWriter) {
             this.isClosed = true;
             try {
-                this.warcWrapper.close();
-            } catch (YggdrasilException e) {
+                this.warcWriter.close();
+            } catch (IOException e) {
                 throw new IllegalStateException("Issue occured while closing the resources of the warc file", e);
             }
+            writeIndex();
         }
     }
+    
+    /**
+     * Writes the index of the records to the WARC index directory. 
+     * A failure is only logged, since the records can still be found by scanning the WARC file.
+     */
+    protected void writeIndex() {
+        if(recordIndex.size() == 0) {
+            return;
+        }
+        try {
+            File indexDir = bitmagConf.getWarcIndexDir();
+            if(!indexDir.isDirectory() && !indexDir.mkdirs()) {
+                throw new IllegalStateException("Could not create the WARC index directory '" 
+                        + indexDir.getAbsolutePath() + "'");
+            }
+            recordIndex.write(WarcRecordIndex.getIndexFile(indexDir, warcWriter.getWarcFileId()));
+        } catch (RuntimeException e) {
+            log.warn("Could not write the index of the WARC file '" + getWarcFile().getName() + "'.", e);
+        }
+    }
+    
+    /**
+     * @return The index of the records in the warc file.
+     */
+    public WarcRecordIndex getRecordIndex() {
+        return recordIndex;
+    }
 
     /**
      * Reports back to Cumulus, that the preservation was successful for all records.
@@ -211,16 +400,11 @@ public class WarcPacker implements Closeable {
     public void reportSucces(WarcDigest checksumDigest) {
         Date now = new Date();
         for(CumulusRecord r : packagedCompleteRecords) {
-            r.setStringValueInField(Constants.FieldNames.METADATA_PACKAGE_ID, warcWrapper.getWarcFileId());
-            r.setStringValueInField(Constants.FieldNames.RESOURCE_PACKAGE_ID, warcWrapper.getWarcFileId());
-            r.setStringValueInField(Constants.FieldNames.ARCHIVE_MD5, checksumDigest.digestString);
-            r.setDateValueInField(Constants.FieldNames.BEVARINGS_DATO, now);
-            CumulusPreservationUtils.setPreservationFinished(r);
+            CumulusPreservationUtils.setRecordPreserved(r, warcWriter.getWarcFileId(), checksumDigest.digestString, 
+                    now);
         }
         for(CumulusRecord r : packagedMetadataRecords) {
-            r.setStringValueInField(Constants.FieldNames.METADATA_PACKAGE_ID, warcWrapper.getWarcFileId());
-            r.setDateValueInField(Constants.FieldNames.BEVARINGS_DATO, now);
-            CumulusPreservationUtils.setPreservationFinished(r);
+            CumulusPreservationUtils.setRecordMetadataPreserved(r, warcWriter.getWarcFileId(), now);
         }
 
     }
@@ -239,7 +423,7 @@ public class WarcPacker implements Closeable {
      * Adds the record to the list of packaged complete records, unless it already is part of the list.
      * @param record The record 
      */
-    public void addRecordToPackagedList(CumulusRecord record) {
+    public synchronized void addRecordToPackagedList(CumulusRecord record) {
         if(!packagedCompleteRecords.contains(record)) {
             packagedCompleteRecords.add(record);
         }
@@ -249,7 +433,7 @@ public class WarcPacker implements Closeable {
      * Adds the record to the list of packaged metadata records, unless it already is part of the list.
      * @param record The record 
      */
-    public void addRecordToMetadataPackagedList(CumulusRecord record) {
+    public synchronized void addRecordToMetadataPackagedList(CumulusRecord record) {
         if(!packagedMetadataRecords.contains(record) && !packagedCompleteRecords.contains(record)) {
             packagedMetadataRecords.add(record);
         }
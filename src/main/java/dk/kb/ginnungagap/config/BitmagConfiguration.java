@@ -1,14 +1,33 @@
 package dk.kb.ginnungagap.config;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 
+import dk.kb.ginnungagap.exception.ArgumentCheck;
 import dk.kb.yggdrasil.utils.HostName;
 
 /**
  * Configuration for the bitrepository.
  */
 public class BitmagConfiguration {
+    /** The default number of WARC files, which are packaged concurrently for each collection.*/
+    public static final int DEFAULT_WARC_SHARDS_PER_COLLECTION = 1;
+    /** The default maximum number of WARC files, which are uploaded concurrently.*/
+    public static final int DEFAULT_MAX_CONCURRENT_UPLOADS = 1;
+    /** The default for whether the indexes of the WARC files are also uploaded to the archive.*/
+    public static final boolean DEFAULT_ARCHIVE_WARC_INDEX = false;
+    /** The name of the directory for the indexes of the WARC files within the temporary directory.*/
+    public static final String WARC_INDEX_DIR_NAME = "warc-index";
+    /** The default size in bytes of the cache for the retrieved WARC files. Zero means no cache.*/
+    public static final long DEFAULT_WARC_CACHE_SIZE = 0L;
+    /** The name of the directory for the cache of the retrieved WARC files within the temporary directory.*/
+    public static final String WARC_CACHE_DIR_NAME = "warc-cache";
+    
     /** The settings directory.*/
     protected final File settingsDir;
     /** The private key file. May be null, when no authentication is used.*/
@@ -23,6 +42,18 @@ public class BitmagConfiguration {
     protected final File tempDir;
     /** The algorithm for packaging the warc-records.*/
     protected final String algorithm;
+    /** The number of WARC files, which are packaged concurrently for each collection.*/
+    protected final int warcShardsPerCollection;
+    /** The maximum number of WARC files, which are uploaded concurrently.*/
+    protected final int maxConcurrentUploads;
+    /** The default configuration for when the WARC files are finished.*/
+    protected final RolloverConfiguration rolloverConf;
+    /** The configurations for when the WARC files are finished for specific collections.*/
+    protected final Map<String, RolloverConfiguration> collectionRolloverConfs;
+    /** Whether the indexes of the WARC files are also uploaded to the archive.*/
+    protected final boolean archiveWarcIndex;
+    /** The size in bytes of the cache for the retrieved WARC files. Zero means no cache.*/
+    protected final long warcCacheSize;
 
     /**
      * Constructor.
@@ -35,6 +66,39 @@ public class BitmagConfiguration {
      */
     public BitmagConfiguration(File settingsDir, File privateKeyFile, int maxFailingPillars, int warcFileSizeLimit,
             File tempDir, String algorithm) {
+        this(settingsDir, privateKeyFile, maxFailingPillars, warcFileSizeLimit, tempDir, algorithm, 
+                DEFAULT_WARC_SHARDS_PER_COLLECTION, DEFAULT_MAX_CONCURRENT_UPLOADS, 
+                new RolloverConfiguration(RolloverConfiguration.NO_LIMIT, RolloverConfiguration.NO_LIMIT, 
+                        RolloverConfiguration.NO_LIMIT, RolloverConfiguration.NO_LIMIT), 
+                new HashMap<String, RolloverConfiguration>(), DEFAULT_ARCHIVE_WARC_INDEX, DEFAULT_WARC_CACHE_SIZE);
+    }
+    
+    /**
+     * Constructor.
+     * @param settingsDir The directory with bitrepository settings files.
+     * @param privateKeyFile The private key file. This may be null, if no key-file is used.
+     * @param maxFailingPillars The maximum number of failing pillars.
+     * @param warcFileSizeLimit The size limit of the warc files.
+     * @param tempDir The temporary directory for warc files.
+     * @param algorithm The algorithm for the packaging of the warc-records.
+     * @param warcShardsPerCollection The number of WARC files, which are packaged concurrently for each collection.
+     * @param maxConcurrentUploads The maximum number of WARC files, which are uploaded concurrently.
+     * @param rolloverConf The default configuration for when the WARC files are finished.
+     * @param collectionRolloverConfs The configurations for when the WARC files are finished for specific 
+     * collections, mapped by the collection id.
+     * @param archiveWarcIndex Whether the indexes of the WARC files are also uploaded to the archive.
+     * @param warcCacheSize The size in bytes of the cache for the retrieved WARC files. Zero means no cache.
+     */
+    public BitmagConfiguration(File settingsDir, File privateKeyFile, int maxFailingPillars, int warcFileSizeLimit,
+            File tempDir, String algorithm, int warcShardsPerCollection, int maxConcurrentUploads, 
+            RolloverConfiguration rolloverConf, Map<String, RolloverConfiguration> collectionRolloverConfs, 
+            boolean archiveWarcIndex, long warcCacheSize) {
+        ArgumentCheck.checkPositiveInt(warcShardsPerCollection, "int warcShardsPerCollection");
+        ArgumentCheck.checkPositiveInt(maxConcurrentUploads, "int maxConcurrentUploads");
+        ArgumentCheck.checkNotNull(rolloverConf, "RolloverConfiguration rolloverConf");
+        ArgumentCheck.checkNotNull(collectionRolloverConfs, "Map<String, RolloverConfiguration> "
+                + "collectionRolloverConfs");
+        ArgumentCheck.checkNotNegativeLong(warcCacheSize, "long warcCacheSize");
         this.settingsDir = settingsDir;
         this.privateKeyFile = privateKeyFile;
         this.maxNumberOfFailingPillars = maxFailingPillars;
@@ -42,6 +106,12 @@ public class BitmagConfiguration {
         this.warcFileSizeLimit = warcFileSizeLimit;
         this.tempDir = tempDir;
         this.algorithm = algorithm;
+        this.warcShardsPerCollection = warcShardsPerCollection;
+        this.maxConcurrentUploads = maxConcurrentUploads;
+        this.rolloverConf = rolloverConf;
+        this.collectionRolloverConfs = collectionRolloverConfs;
+        this.archiveWarcIndex = archiveWarcIndex;
+        this.warcCacheSize = warcCacheSize;
     }
     
     /** @return The settings directory.*/
@@ -72,6 +142,47 @@ public class BitmagConfiguration {
     public String getAlgorithm() {
         return algorithm;
     }
+    /** @return The number of WARC files, which are packaged concurrently for each collection.*/
+    public int getWarcShardsPerCollection() {
+        return warcShardsPerCollection;
+    }
+    /** @return The maximum number of WARC files, which are uploaded concurrently.*/
+    public int getMaxConcurrentUploads() {
+        return maxConcurrentUploads;
+    }
+    /**
+     * @param collectionId The id of the collection.
+     * @return The configuration for when the WARC files of the collection are finished.
+     */
+    public RolloverConfiguration getRolloverConf(String collectionId) {
+        RolloverConfiguration res = collectionRolloverConfs.get(collectionId);
+        if(res == null) {
+            return rolloverConf;
+        }
+        return res;
+    }
+    /** @return The default configuration and the configurations for specific collections for the rollover.*/
+    public Collection<RolloverConfiguration> getRolloverConfs() {
+        List<RolloverConfiguration> res = new ArrayList<RolloverConfiguration>(collectionRolloverConfs.values());
+        res.add(rolloverConf);
+        return res;
+    }
+    /** @return Whether the indexes of the WARC files are also uploaded to the archive.*/
+    public boolean isArchiveWarcIndex() {
+        return archiveWarcIndex;
+    }
+    /** @return The directory with the local indexes of the WARC files.*/
+    public File getWarcIndexDir() {
+        return new File(tempDir, WARC_INDEX_DIR_NAME);
+    }
+    /** @return The size in bytes of the cache for the retrieved WARC files. Zero means no cache.*/
+    public long getWarcCacheSize() {
+        return warcCacheSize;
+    }
+    /** @return The directory for the cache of the retrieved WARC files.*/
+    public File getWarcCacheDir() {
+        return new File(tempDir, WARC_CACHE_DIR_NAME);
+    }
     
     /**
      * Generates a component id, which includes the hostname and a random UUID.
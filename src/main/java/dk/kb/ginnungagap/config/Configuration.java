@@ -3,6 +3,9 @@ package dk.kb.ginnungagap.config;
 import java.io.File;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.time.LocalTime;
+import java.time.format.DateTimeParseException;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
@@ -37,6 +40,21 @@ import dk.kb.yggdrasil.utils.YamlTools;
  *       <li>warc_size_limit: $warc_size_limit</li>
  *       <li>temp_dir: $temp_dir</li>
  *       <li>algorithm: $algorithm</li>
+ *       <li>warc_shards_per_collection: $warc_shards_per_collection (optional - default 1)</li>
+ *       <li>max_concurrent_uploads: $max_concurrent_uploads (optional - default 1)</li>
+ *       <li>rollover: (optional - default only the warc_size_limit)</li>
+ *       <ul>
+ *         <li>warc_size_limit: $warc_size_limit (optional - default the bitrepository warc_size_limit)</li>
+ *         <li>max_records: $max_records (optional - default 0 = no limit)</li>
+ *         <li>max_age: $max_age in seconds (optional - default 0 = no limit)</li>
+ *         <li>max_open_files: $max_open_files (optional - default 0 = warc_shards_per_collection)</li>
+ *         <li>collections: (optional)</li>
+ *         <ul>
+ *           <li>$collection_id: the rollover elements above for the specific collection</li>
+ *         </ul>
+ *       </ul>
+ *       <li>archive_warc_index: $archive_warc_index (optional - default false)</li>
+ *       <li>warc_cache_size: $warc_cache_size in bytes (optional - default 0 = no cache)</li>
  *     </ul>
  *     <li>cumulus:</li>
  *     <ul>
@@ -44,11 +62,40 @@ import dk.kb.yggdrasil.utils.YamlTools;
  *       <li>username: $username</li>
  *       <li>password: $password</li>
  *       <li>catalogs: <br/>- $catalog 1<br/>- $catalog 2<br/>- ...</li>
+ *       <li>page_size: $page_size (optional - default 0 = no paging)</li>
+ *       <li>prefetch_pages: $prefetch_pages (optional - default true)</li>
  *     </ul>
  *     <li>workflow:</li>
  *     <ul>
  *       <li>interval: $interval</li>
  *       <li>retain_dir: $retain_dir</li>
+ *       <li>preservation_threads: $preservation_threads (optional - default 1)</li>
+ *       <li>validation_threads: $validation_threads (optional - default 1)</li>
+ *       <li>max_archive_operations: $max_archive_operations (optional - default 0 = no limit)</li>
+ *       <li>catalog_threads: $catalog_threads (optional - default 1)</li>
+ *       <li>schedules: (optional - default only the interval)</li>
+ *       <ul>
+ *         <li>$workflow (preservation, update, validation or import):</li>
+ *         <ul>
+ *           <li>cron: $cron expression for all catalogs (optional)</li>
+ *           <li>catalog_cron: (optional)</li>
+ *           <ul>
+ *             <li>$catalog: $cron expression for the catalog</li>
+ *           </ul>
+ *           <li>time_window: $start-$end, e.g. 20:00-06:00; the automatic runs only start within it, and stop
+ *           before their next record or page when it closes (optional - default no time window)</li>
+ *           <li>ready_threshold: $ready_threshold (optional - default 0 = no threshold)</li>
+ *           <li>threshold_check_interval: $interval in seconds (optional - default 600)</li>
+ *         </ul>
+ *       </ul>
+ *       <li>pipeline: (optional - default not used; cannot be combined with preservation_threads;
+ *       the WARC files are uploaded as limited by max_concurrent_uploads)</li>
+ *       <ul>
+ *         <li>queue_size: $queue_size (optional - default 10)</li>
+ *         <li>checksum_threads: $checksum_threads (optional - default 1)</li>
+ *         <li>transformation_threads: $transformation_threads (optional - default 1)</li>
+ *         <li>packaging_threads: $packaging_threads (optional - default 1)</li>
+ *       </ul>
  *     </ul>
  *     <li>transformation:</li>
  *     <ul>
@@ -56,6 +103,7 @@ import dk.kb.yggdrasil.utils.YamlTools;
  *       <li>xslt_dir: $xslt_dir</li>
  *       <li>required_fields_file: $required_fields_file</li>
  *       <li>metadata_temp_dir: $metadata_temp_dir</li>
+ *       <li>metadata_memory_threshold: $metadata_memory_threshold (optional - default 0)</li>
  *     </ul>
  *     <li>mail:</li>
  *     <ul>
@@ -92,6 +140,26 @@ public class Configuration {
     protected static final String CONF_BITREPOSITORY_TEMP_DIR = "temp_dir";
     /** The bitrepository algorithm leaf-element.*/
     protected static final String CONF_BITREPOSITORY_ALGORITHM = "algorithm";
+    /** [OPTIONAL] The bitrepository WARC shards per collection leaf-element. Default 1.*/
+    protected static final String CONF_BITREPOSITORY_WARC_SHARDS_PER_COLLECTION = "warc_shards_per_collection";
+    /** [OPTIONAL] The bitrepository max concurrent uploads leaf-element. Default 1.*/
+    protected static final String CONF_BITREPOSITORY_MAX_CONCURRENT_UPLOADS = "max_concurrent_uploads";
+    /** [OPTIONAL] The bitrepository rollover node-element. Default only the warc size limit is used.*/
+    protected static final String CONF_BITREPOSITORY_ROLLOVER = "rollover";
+    /** [OPTIONAL] The rollover warc size limit leaf-element. Default the bitrepository warc size limit.*/
+    protected static final String CONF_ROLLOVER_WARC_SIZE_LIMIT = "warc_size_limit";
+    /** [OPTIONAL] The rollover max records leaf-element. Default 0 (no limit).*/
+    protected static final String CONF_ROLLOVER_MAX_RECORDS = "max_records";
+    /** [OPTIONAL] The rollover max age (in seconds) leaf-element. Default 0 (no limit).*/
+    protected static final String CONF_ROLLOVER_MAX_AGE = "max_age";
+    /** [OPTIONAL] The rollover max open files leaf-element. Default 0 (the WARC shards per collection).*/
+    protected static final String CONF_ROLLOVER_MAX_OPEN_FILES = "max_open_files";
+    /** [OPTIONAL] The rollover collections node-element, with the rollover for specific collections.*/
+    protected static final String CONF_ROLLOVER_COLLECTIONS = "collections";
+    /** [OPTIONAL] The bitrepository leaf-element for also uploading the WARC indexes to the archive. Default false.*/
+    protected static final String CONF_BITREPOSITORY_ARCHIVE_WARC_INDEX = "archive_warc_index";
+    /** [OPTIONAL] The bitrepository warc cache size (in bytes) leaf-element. Default 0 (no cache).*/
+    protected static final String CONF_BITREPOSITORY_WARC_CACHE_SIZE = "warc_cache_size";
     
     /** Cumulus node-element.*/
     protected static final String CONF_CUMULUS = "cumulus";
@@ -103,6 +171,10 @@ public class Configuration {
     protected static final String CONF_CUMULUS_PASSWORD = "password";
     /** The cumulus catalogs array leaf-element.*/
     protected static final String CONF_CUMULUS_CATALOGS = "catalogs";
+    /** [OPTIONAL] The cumulus page size leaf-element. Default 0 (no paging).*/
+    protected static final String CONF_CUMULUS_PAGE_SIZE = "page_size";
+    /** [OPTIONAL] The cumulus prefetch pages leaf-element. Default true.*/
+    protected static final String CONF_CUMULUS_PREFETCH_PAGES = "prefetch_pages";
     
     /** The Workflow node-element.*/
     protected static final String CONF_WORKFLOW = "workflow";
@@ -110,6 +182,36 @@ public class Configuration {
     protected static final String CONF_WORKFLOW_INTERVAL = "interval";
     /** The workflow retain directory path leaf-element.*/
     protected static final String CONF_WORKFLOW_RETAIN_DIR = "retain_dir";
+    /** [OPTIONAL] The workflow preservation threads leaf-element. Default 1.*/
+    protected static final String CONF_WORKFLOW_PRESERVATION_THREADS = "preservation_threads";
+    /** [OPTIONAL] The workflow validation threads leaf-element. Default 1.*/
+    protected static final String CONF_WORKFLOW_VALIDATION_THREADS = "validation_threads";
+    /** [OPTIONAL] The workflow maximum concurrent archive operations leaf-element. Default 0 (no limit).*/
+    protected static final String CONF_WORKFLOW_MAX_ARCHIVE_OPERATIONS = "max_archive_operations";
+    /** [OPTIONAL] The workflow catalog threads leaf-element. Default 1.*/
+    protected static final String CONF_WORKFLOW_CATALOG_THREADS = "catalog_threads";
+    /** [OPTIONAL] The workflow schedules node-element. Default the workflows are only run at the interval.*/
+    protected static final String CONF_WORKFLOW_SCHEDULES = "schedules";
+    /** [OPTIONAL] The schedule cron expression leaf-element. Default no cron expression.*/
+    protected static final String CONF_SCHEDULE_CRON = "cron";
+    /** [OPTIONAL] The schedule catalog cron expressions node-element. Default no cron expressions for catalogs.*/
+    protected static final String CONF_SCHEDULE_CATALOG_CRON = "catalog_cron";
+    /** [OPTIONAL] The schedule time window leaf-element, e.g. '20:00-06:00'. Default no time window.*/
+    protected static final String CONF_SCHEDULE_TIME_WINDOW = "time_window";
+    /** [OPTIONAL] The schedule ready threshold leaf-element. Default 0 (no threshold).*/
+    protected static final String CONF_SCHEDULE_READY_THRESHOLD = "ready_threshold";
+    /** [OPTIONAL] The schedule threshold check interval leaf-element, in seconds. Default 600.*/
+    protected static final String CONF_SCHEDULE_THRESHOLD_CHECK_INTERVAL = "threshold_check_interval";
+    /** [OPTIONAL] The workflow pipeline node-element. Default the pipeline is not used.*/
+    protected static final String CONF_WORKFLOW_PIPELINE = "pipeline";
+    /** [OPTIONAL] The pipeline queue size leaf-element. Default 10.*/
+    protected static final String CONF_PIPELINE_QUEUE_SIZE = "queue_size";
+    /** [OPTIONAL] The pipeline checksum threads leaf-element. Default 1.*/
+    protected static final String CONF_PIPELINE_CHECKSUM_THREADS = "checksum_threads";
+    /** [OPTIONAL] The pipeline transformation threads leaf-element. Default 1.*/
+    protected static final String CONF_PIPELINE_TRANSFORMATION_THREADS = "transformation_threads";
+    /** [OPTIONAL] The pipeline packaging threads leaf-element. Default 1.*/
+    protected static final String CONF_PIPELINE_PACKAGING_THREADS = "packaging_threads";
     
     /** Transformation node-element.*/
     protected static final String CONF_TRANSFORMATION = "transformation";
@@ -121,6 +223,8 @@ public class Configuration {
     protected static final String CONF_TRANSFORMATION_REQUIRED_FIELDS_FILE = "required_fields_file";
     /** Transformation metadata temp file leaf-element.*/
     protected static final String CONF_TRANSFORMATION_METADATA_TEMP_FILE= "metadata_temp_dir";
+    /** [OPTIONAL] Transformation metadata memory threshold leaf-element. Default 0.*/
+    protected static final String CONF_TRANSFORMATION_METADATA_MEMORY_THRESHOLD = "metadata_memory_threshold";
     
     /** Local node-element.*/
     protected static final String CONF_LOCAL = "local";
@@ -145,6 +249,8 @@ public class Configuration {
     protected final BitmagConfiguration bitmagConf;
     /** The configruation for accessing Cumulus.*/
     protected final CumulusConfiguration cumulusConf;
+    /** The configuration for reading the results of the Cumulus queries in pages.*/
+    protected final CumulusPagingConfiguration cumulusPagingConf;
     /** The configuration for the transformation.*/
     protected final TransformationConfiguration transformationConf;
     /** The configuration for the workflows*/
@@ -187,6 +293,7 @@ public class Configuration {
 
             this.bitmagConf = loadBitmagConf((Map<String, Object>) confMap.get(CONF_BITREPOSITORY));
             this.cumulusConf = loadCumulusConfiguration((Map<String, Object>) confMap.get(CONF_CUMULUS));
+            this.cumulusPagingConf = loadCumulusPagingConfiguration((Map<String, Object>) confMap.get(CONF_CUMULUS));
             this.transformationConf = loadTransformationConfiguration(
                     (Map<String, Object>) confMap.get(CONF_TRANSFORMATION));
             this.workflowConfiguration = loadWorkflowConfiguration((Map<String, Object>) confMap.get(CONF_WORKFLOW));
@@ -239,7 +346,47 @@ public class Configuration {
             throw new ArgumentCheck("The algorithm '" + algorithm + "' is not supported.", e);
         }
         
-        return new BitmagConfiguration(settingsDir, keyFile, maxFailingPillars, warcSizeLimit, tempDir, algorithm);
+        int warcShards = getOptionalInt(map, CONF_BITREPOSITORY_WARC_SHARDS_PER_COLLECTION, 
+                BitmagConfiguration.DEFAULT_WARC_SHARDS_PER_COLLECTION);
+        int maxUploads = getOptionalInt(map, CONF_BITREPOSITORY_MAX_CONCURRENT_UPLOADS, 
+                BitmagConfiguration.DEFAULT_MAX_CONCURRENT_UPLOADS);
+        
+        RolloverConfiguration noLimits = new RolloverConfiguration(RolloverConfiguration.NO_LIMIT, 
+                RolloverConfiguration.NO_LIMIT, RolloverConfiguration.NO_LIMIT, RolloverConfiguration.NO_LIMIT);
+        Map<String, Object> rolloverMap = (Map<String, Object>) map.get(CONF_BITREPOSITORY_ROLLOVER);
+        RolloverConfiguration rolloverConf = loadRolloverConfiguration(rolloverMap, noLimits);
+        Map<String, RolloverConfiguration> collectionRolloverConfs = new HashMap<String, RolloverConfiguration>();
+        if(rolloverMap != null && rolloverMap.containsKey(CONF_ROLLOVER_COLLECTIONS)) {
+            Map<Object, Object> collectionsMap = (Map<Object, Object>) rolloverMap.get(CONF_ROLLOVER_COLLECTIONS);
+            for(Map.Entry<Object, Object> collection : collectionsMap.entrySet()) {
+                collectionRolloverConfs.put(String.valueOf(collection.getKey()), 
+                        loadRolloverConfiguration((Map<String, Object>) collection.getValue(), rolloverConf));
+            }
+        }
+        
+        boolean archiveWarcIndex = getOptionalBoolean(map, CONF_BITREPOSITORY_ARCHIVE_WARC_INDEX, 
+                BitmagConfiguration.DEFAULT_ARCHIVE_WARC_INDEX);
+        long warcCacheSize = getOptionalLong(map, CONF_BITREPOSITORY_WARC_CACHE_SIZE, 
+                BitmagConfiguration.DEFAULT_WARC_CACHE_SIZE);
+        
+        return new BitmagConfiguration(settingsDir, keyFile, maxFailingPillars, warcSizeLimit, tempDir, algorithm, 
+                warcShards, maxUploads, rolloverConf, collectionRolloverConfs, archiveWarcIndex, warcCacheSize);
+    }
+    
+    /**
+     * Loads the configuration for when the WARC files are finished.
+     * All the elements are optional.
+     * @param map The map with the rollover configuration. May be null.
+     * @param defaults The configuration with the values for the missing elements.
+     * @return The rollover configuration.
+     */
+    protected RolloverConfiguration loadRolloverConfiguration(Map<String, Object> map, 
+            RolloverConfiguration defaults) {
+        return new RolloverConfiguration(
+                getOptionalLong(map, CONF_ROLLOVER_WARC_SIZE_LIMIT, defaults.getWarcSizeLimit()), 
+                getOptionalInt(map, CONF_ROLLOVER_MAX_RECORDS, defaults.getMaxRecords()), 
+                getOptionalLong(map, CONF_ROLLOVER_MAX_AGE, defaults.getMaxAge()), 
+                getOptionalInt(map, CONF_ROLLOVER_MAX_OPEN_FILES, defaults.getMaxOpenFiles()));
     }
     
     /**
@@ -263,6 +410,18 @@ public class Configuration {
                 (String) map.get(CONF_CUMULUS_USERNAME), (String) map.get(CONF_CUMULUS_PASSWORD), catalogs);
     }
     
+    /**
+     * Loads the configuration for paging the Cumulus queries from the 'cumulus' element in the configuration.
+     * All the elements are optional.
+     * @param map The map with the Cumulus configuration.
+     * @return The configuration for paging the Cumulus queries.
+     */
+    protected CumulusPagingConfiguration loadCumulusPagingConfiguration(Map<String, Object> map) {
+        return new CumulusPagingConfiguration(
+                getOptionalInt(map, CONF_CUMULUS_PAGE_SIZE, CumulusPagingConfiguration.NO_PAGING), 
+                getOptionalBoolean(map, CONF_CUMULUS_PREFETCH_PAGES, CumulusPagingConfiguration.DEFAULT_PREFETCH));
+    }
+    
     /**
      * Loads the Cumulus configuration from the 'cumulus' element in the configuration.
      * @param map The map with the Cumulus configuration.
@@ -276,8 +435,133 @@ public class Configuration {
         
         int interval = (int) map.get(CONF_WORKFLOW_INTERVAL);
         File retainDir = FileUtils.getDirectory((String) map.get(CONF_WORKFLOW_RETAIN_DIR));
+        int preservationThreads = getOptionalInt(map, CONF_WORKFLOW_PRESERVATION_THREADS, 
+                WorkflowConfiguration.DEFAULT_PRESERVATION_THREADS);
+        int validationThreads = getOptionalInt(map, CONF_WORKFLOW_VALIDATION_THREADS, 
+                WorkflowConfiguration.DEFAULT_VALIDATION_THREADS);
+        int maxArchiveOperations = getOptionalInt(map, CONF_WORKFLOW_MAX_ARCHIVE_OPERATIONS, 
+                WorkflowConfiguration.DEFAULT_MAX_ARCHIVE_OPERATIONS);
+        int catalogThreads = getOptionalInt(map, CONF_WORKFLOW_CATALOG_THREADS, 
+                WorkflowConfiguration.DEFAULT_CATALOG_THREADS);
+        PipelineConfiguration pipelineConf = null;
+        if(map.containsKey(CONF_WORKFLOW_PIPELINE)) {
+            pipelineConf = loadPipelineConfiguration((Map<String, Object>) map.get(CONF_WORKFLOW_PIPELINE));
+        }
+        Map<String, ScheduleConfiguration> schedules = new HashMap<String, ScheduleConfiguration>();
+        if(map.containsKey(CONF_WORKFLOW_SCHEDULES)) {
+            Map<String, Object> schedulesMap = (Map<String, Object>) map.get(CONF_WORKFLOW_SCHEDULES);
+            for(Map.Entry<String, Object> schedule : schedulesMap.entrySet()) {
+                schedules.put(schedule.getKey(), 
+                        loadScheduleConfiguration((Map<String, Object>) schedule.getValue()));
+            }
+        }
+        
+        return new WorkflowConfiguration(interval, retainDir, preservationThreads, pipelineConf, validationThreads,
+                maxArchiveOperations, catalogThreads, schedules);
+    }
+    
+    /**
+     * Loads the configuration for when a workflow must be started automatically.
+     * All the elements are optional.
+     * @param map The map with the schedule configuration.
+     * @return The configuration for the schedule.
+     */
+    protected ScheduleConfiguration loadScheduleConfiguration(Map<String, Object> map) {
+        String cron = null;
+        if(map.containsKey(CONF_SCHEDULE_CRON)) {
+            cron = (String) map.get(CONF_SCHEDULE_CRON);
+        }
+        Map<String, String> catalogCrons = new HashMap<String, String>();
+        if(map.containsKey(CONF_SCHEDULE_CATALOG_CRON)) {
+            catalogCrons.putAll((Map<String, String>) map.get(CONF_SCHEDULE_CATALOG_CRON));
+        }
+        LocalTime windowStart = null;
+        LocalTime windowEnd = null;
+        if(map.containsKey(CONF_SCHEDULE_TIME_WINDOW)) {
+            String[] window = ((String) map.get(CONF_SCHEDULE_TIME_WINDOW)).split("-");
+            ArgumentCheck.checkTrue(window.length == 2, "The time window must be '$start-$end', but was '" 
+                    + map.get(CONF_SCHEDULE_TIME_WINDOW) + "'");
+            try {
+                windowStart = LocalTime.parse(window[0].trim());
+                windowEnd = LocalTime.parse(window[1].trim());
+            } catch (DateTimeParseException e) {
+                throw new ArgumentCheck("Invalid time window: '" + map.get(CONF_SCHEDULE_TIME_WINDOW) + "'", e);
+            }
+        }
         
-        return new WorkflowConfiguration(interval, retainDir);
+        return new ScheduleConfiguration(cron, catalogCrons, windowStart, windowEnd, 
+                getOptionalInt(map, CONF_SCHEDULE_READY_THRESHOLD, ScheduleConfiguration.NO_THRESHOLD), 
+                getOptionalLong(map, CONF_SCHEDULE_THRESHOLD_CHECK_INTERVAL, 
+                        ScheduleConfiguration.DEFAULT_THRESHOLD_CHECK_INTERVAL));
+    }
+    
+    /**
+     * Loads the configuration for the staged preservation pipeline.
+     * All the elements are optional.
+     * @param map The map with the pipeline configuration.
+     * @return The configuration for the pipeline.
+     */
+    protected PipelineConfiguration loadPipelineConfiguration(Map<String, Object> map) {
+        return new PipelineConfiguration(
+                getOptionalInt(map, CONF_PIPELINE_QUEUE_SIZE, PipelineConfiguration.DEFAULT_QUEUE_SIZE), 
+                getOptionalInt(map, CONF_PIPELINE_CHECKSUM_THREADS, PipelineConfiguration.DEFAULT_THREADS), 
+                getOptionalInt(map, CONF_PIPELINE_TRANSFORMATION_THREADS, PipelineConfiguration.DEFAULT_THREADS), 
+                getOptionalInt(map, CONF_PIPELINE_PACKAGING_THREADS, PipelineConfiguration.DEFAULT_THREADS));
+    }
+    
+    /**
+     * Retrieves an optional integer value from a configuration map.
+     * @param map The map with the configuration. 
+     * @param key The key for the optional value.
+     * @param defaultValue The value to return, if the map does not contain the key.
+     * @return The integer value from the map, or the default value.
+     */
+    protected int getOptionalInt(Map<String, Object> map, String key, int defaultValue) {
+        if(map != null && map.containsKey(key)) {
+            return (int) map.get(key);
+        }
+        return defaultValue;
+    }
+    
+    /**
+     * Retrieves an optional long value from a configuration map.
+     * The YAML parser delivers an integer or a long depending on the size of the number.
+     * @param map The map with the configuration. 
+     * @param key The key for the optional value.
+     * @param defaultValue The value to return, if the map does not contain the key.
+     * @return The long value from the map, or the default value.
+     */
+    protected long getOptionalLong(Map<String, Object> map, String key, long defaultValue) {
+        if(map != null && map.containsKey(key)) {
+            return ((Number) map.get(key)).longValue();
+        }
+        return defaultValue;
+    }
+    
+    /**
+     * Retrieves an optional boolean value from a configuration map.
+     * The YAML parser delivers a boolean, but a quoted value is delivered as a string, which is parsed.
+     * @param map The map with the configuration. 
+     * @param key The key for the optional value.
+     * @param defaultValue The value to return, if the map does not contain the key.
+     * @return The boolean value from the map, or the default value.
+     */
+    protected boolean getOptionalBoolean(Map<String, Object> map, String key, boolean defaultValue) {
+        if(map == null || !map.containsKey(key)) {
+            return defaultValue;
+        }
+        Object value = map.get(key);
+        if(value instanceof Boolean) {
+            return (Boolean) value;
+        }
+        String text = String.valueOf(value).trim();
+        if(text.equalsIgnoreCase("true") || text.equalsIgnoreCase("yes")) {
+            return true;
+        }
+        if(text.equalsIgnoreCase("false") || text.equalsIgnoreCase("no")) {
+            return false;
+        }
+        throw new ArgumentCheck("The element '" + key + "' must be a boolean, but was '" + value + "'");
     }
     
     /**
@@ -307,7 +591,11 @@ public class Configuration {
         
         RequiredFields requiredFields = RequiredFields.loadRequiredFieldsFile(requiredFieldsFile);
         
-        return new TransformationConfiguration(xsltDir, xsdDir, metadataTempDir, requiredFields);
+        int metadataMemoryThreshold = getOptionalInt(map, CONF_TRANSFORMATION_METADATA_MEMORY_THRESHOLD, 
+                TransformationConfiguration.DEFAULT_METADATA_MEMORY_THRESHOLD);
+        
+        return new TransformationConfiguration(xsltDir, xsdDir, metadataTempDir, requiredFields, 
+                metadataMemoryThreshold);
     }
     
     /**
@@ -362,6 +650,11 @@ public class Configuration {
         return cumulusConf;
     }
     
+    /** @return The configuration for reading the results of the Cumulus queries in pages.*/
+    public CumulusPagingConfiguration getCumulusPagingConf() {
+        return cumulusPagingConf;
+    }
+    
     /** @return The configuration for the workflows.*/
     public WorkflowConfiguration getWorkflowConf() {
         return workflowConfiguration;
@@ -0,0 +1,39 @@
+package dk.kb.ginnungagap.config;
+
+import dk.kb.ginnungagap.exception.ArgumentCheck;
+
+/**
+ * Configuration for reading the results of the Cumulus queries in pages, instead of in a single collection.
+ */
+public class CumulusPagingConfiguration {
+    /** The page size for not paging; the whole result is read as a single collection.*/
+    public static final int NO_PAGING = 0;
+    /** The default for whether the next page is fetched, while the current page is being handled.*/
+    public static final boolean DEFAULT_PREFETCH = true;
+
+    /** The targeted number of records in each page.*/
+    protected final int pageSize;
+    /** Whether the next page is fetched in the background, while the current page is being handled.*/
+    protected final boolean prefetch;
+
+    /**
+     * Constructor.
+     * @param pageSize The targeted number of records in each page, or zero for no paging.
+     * @param prefetch Whether the next page is fetched in the background, while the current page is being handled.
+     */
+    public CumulusPagingConfiguration(int pageSize, boolean prefetch) {
+        ArgumentCheck.checkNotNegativeInt(pageSize, "int pageSize");
+        this.pageSize = pageSize;
+        this.prefetch = prefetch;
+    }
+
+    /** @return The targeted number of records in each page, or zero for no paging.*/
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    /** @return Whether the next page is fetched in the background, while the current page is being handled.*/
+    public boolean isPrefetch() {
+        return prefetch;
+    }
+}
@@ -0,0 +1,64 @@
+package dk.kb.ginnungagap.config;
+
+import dk.kb.ginnungagap.exception.ArgumentCheck;
+
+/**
+ * Configuration for the staged preservation pipeline.
+ * Each stage has its own number of worker threads, and the stages are connected by queues of the same size.
+ * There is no stage for uploading the WARC files, since they are uploaded by the bitrepository preserver,
+ * which limits the number of concurrent uploads by the bitrepository max_concurrent_uploads setting.
+ */
+public class PipelineConfiguration {
+    /** The default size of the queues between the stages.*/
+    public static final int DEFAULT_QUEUE_SIZE = 10;
+    /** The default number of threads for each stage.*/
+    public static final int DEFAULT_THREADS = 1;
+
+    /** The size of the queues between the stages.*/
+    protected final int queueSize;
+    /** The number of threads for calculating the checksums of the asset files.*/
+    protected final int checksumThreads;
+    /** The number of threads for transforming and validating the metadata.*/
+    protected final int transformationThreads;
+    /** The number of threads for packaging the records into the WARC files.*/
+    protected final int packagingThreads;
+
+    /**
+     * Constructor.
+     * @param queueSize The size of the queues between the stages.
+     * @param checksumThreads The number of threads for calculating the checksums of the asset files.
+     * @param transformationThreads The number of threads for transforming and validating the metadata.
+     * @param packagingThreads The number of threads for packaging the records into the WARC files.
+     */
+    public PipelineConfiguration(int queueSize, int checksumThreads, int transformationThreads,
+            int packagingThreads) {
+        ArgumentCheck.checkPositiveInt(queueSize, "int queueSize");
+        ArgumentCheck.checkPositiveInt(checksumThreads, "int checksumThreads");
+        ArgumentCheck.checkPositiveInt(transformationThreads, "int transformationThreads");
+        ArgumentCheck.checkPositiveInt(packagingThreads, "int packagingThreads");
+        this.queueSize = queueSize;
+        this.checksumThreads = checksumThreads;
+        this.transformationThreads = transformationThreads;
+        this.packagingThreads = packagingThreads;
+    }
+
+    /** @return The size of the queues between the stages.*/
+    public int getQueueSize() {
+        return queueSize;
+    }
+
+    /** @return The number of threads for calculating the checksums of the asset files.*/
+    public int getChecksumThreads() {
+        return checksumThreads;
+    }
+
+    /** @return The number of threads for transforming and validating the metadata.*/
+    public int getTransformationThreads() {
+        return transformationThreads;
+    }
+
+    /** @return The number of threads for packaging the records into the WARC files.*/
+    public int getPackagingThreads() {
+        return packagingThreads;
+    }
+}
@@ -0,0 +1,60 @@
+package dk.kb.ginnungagap.config;
+
+import dk.kb.ginnungagap.exception.ArgumentCheck;
+
+/**
+ * Configuration for when the WARC files of a collection must be finished and uploaded.
+ * A WARC file is finished, when any of the limits is reached. A limit of zero means no limit.
+ */
+public class RolloverConfiguration {
+    /** The value for no limit.*/
+    public static final int NO_LIMIT = 0;
+
+    /** The size limit of the WARC files in bytes. When no limit, then the bitrepository warc size limit is used.*/
+    protected final long warcSizeLimit;
+    /** The maximum number of WARC records in a WARC file.*/
+    protected final int maxRecords;
+    /** The maximum time in seconds, a WARC file is kept open.*/
+    protected final long maxAge;
+    /** The maximum number of open WARC files for the collection. Overrides the WARC shards per collection.*/
+    protected final int maxOpenFiles;
+
+    /**
+     * Constructor.
+     * @param warcSizeLimit The size limit of the WARC files in bytes, or zero for the bitrepository warc size limit.
+     * @param maxRecords The maximum number of WARC records in a WARC file, or zero for no limit.
+     * @param maxAge The maximum time in seconds, a WARC file is kept open, or zero for no limit.
+     * @param maxOpenFiles The maximum number of open WARC files for the collection, or zero for the WARC shards 
+     * per collection.
+     */
+    public RolloverConfiguration(long warcSizeLimit, int maxRecords, long maxAge, int maxOpenFiles) {
+        ArgumentCheck.checkNotNegativeLong(warcSizeLimit, "long warcSizeLimit");
+        ArgumentCheck.checkNotNegativeInt(maxRecords, "int maxRecords");
+        ArgumentCheck.checkNotNegativeLong(maxAge, "long maxAge");
+        ArgumentCheck.checkNotNegativeInt(maxOpenFiles, "int maxOpenFiles");
+        this.warcSizeLimit = warcSizeLimit;
+        this.maxRecords = maxRecords;
+        this.maxAge = maxAge;
+        this.maxOpenFiles = maxOpenFiles;
+    }
+
+    /** @return The size limit of the WARC files in bytes, or zero for the bitrepository warc size limit.*/
+    public long getWarcSizeLimit() {
+        return warcSizeLimit;
+    }
+
+    /** @return The maximum number of WARC records in a WARC file, or zero for no limit.*/
+    public int getMaxRecords() {
+        return maxRecords;
+    }
+
+    /** @return The maximum time in seconds, a WARC file is kept open, or zero for no limit.*/
+    public long getMaxAge() {
+        return maxAge;
+    }
+
+    /** @return The maximum number of open WARC files for the collection, or zero for the WARC shards per collection.*/
+    public int getMaxOpenFiles() {
+        return maxOpenFiles;
+    }
+}
@@ -0,0 +1,101 @@
+package dk.kb.ginnungagap.config;
+
+import java.time.LocalTime;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.springframework.scheduling.support.CronSequenceGenerator;
+
+import dk.kb.ginnungagap.exception.ArgumentCheck;
+
+/**
+ * Configuration for when a workflow must be started automatically.
+ * 
+ * The workflow can be started by cron expressions, both for all the catalogs and for specific catalogs. 
+ * It can also be started, when enough records are ready for the workflow.
+ * The automatic starts can be restricted to a time window, e.g. only during the night. 
+ * The time window may wrap around midnight, e.g. from 20:00 to 06:00.
+ */
+public class ScheduleConfiguration {
+    /** The value for no threshold of ready records.*/
+    public static final int NO_THRESHOLD = 0;
+    /** The default interval in seconds between checking the number of ready records; 10 minutes.*/
+    public static final long DEFAULT_THRESHOLD_CHECK_INTERVAL = 600L;
+
+    /** The cron expression for running the workflow for all the catalogs. Null for no cron expression.*/
+    protected final String cron;
+    /** The cron expressions for running the workflow for specific catalogs, mapped by the catalog name.*/
+    protected final Map<String, String> catalogCrons;
+    /** The start of the time window for the automatic runs. Null for no time window.*/
+    protected final LocalTime windowStart;
+    /** The end of the time window for the automatic runs. Null for no time window.*/
+    protected final LocalTime windowEnd;
+    /** The number of ready records, which starts the workflow.*/
+    protected final int readyThreshold;
+    /** The interval in seconds between checking the number of ready records.*/
+    protected final long thresholdCheckInterval;
+
+    /**
+     * Constructor.
+     * @param cron The cron expression for running the workflow for all the catalogs. May be null.
+     * @param catalogCrons The cron expressions for running the workflow for specific catalogs. May be null.
+     * @param windowStart The start of the time window for the automatic runs. Null for no time window.
+     * @param windowEnd The end of the time window for the automatic runs. Null for no time window.
+     * @param readyThreshold The number of ready records, which starts the workflow, or zero for no threshold.
+     * @param thresholdCheckInterval The interval in seconds between checking the number of ready records.
+     */
+    public ScheduleConfiguration(String cron, Map<String, String> catalogCrons, LocalTime windowStart, 
+            LocalTime windowEnd, int readyThreshold, long thresholdCheckInterval) {
+        ArgumentCheck.checkTrue(cron == null || CronSequenceGenerator.isValidExpression(cron), 
+                "Invalid cron expression: '" + cron + "'");
+        if(catalogCrons != null) {
+            for(Map.Entry<String, String> catalogCron : catalogCrons.entrySet()) {
+                ArgumentCheck.checkTrue(CronSequenceGenerator.isValidExpression(catalogCron.getValue()), 
+                        "Invalid cron expression for catalog '" + catalogCron.getKey() + "': '" 
+                        + catalogCron.getValue() + "'");
+            }
+        }
+        ArgumentCheck.checkTrue((windowStart == null) == (windowEnd == null), 
+                "The time window must have both a start and an end");
+        ArgumentCheck.checkNotNegativeInt(readyThreshold, "int readyThreshold");
+        ArgumentCheck.checkPositiveLong(thresholdCheckInterval, "long thresholdCheckInterval");
+        this.cron = cron;
+        this.catalogCrons = catalogCrons == null ? new HashMap<String, String>() 
+                : new HashMap<String, String>(catalogCrons);
+        this.windowStart = windowStart;
+        this.windowEnd = windowEnd;
+        this.readyThreshold = readyThreshold;
+        this.thresholdCheckInterval = thresholdCheckInterval;
+    }
+
+    /** @return The cron expression for running the workflow for all the catalogs, or null.*/
+    public String getCron() {
+        return cron;
+    }
+
+    /** @return The cron expressions for running the workflow for specific catalogs, mapped by catalog name.*/
+    public Map<String, String> getCatalogCrons() {
+        return Collections.unmodifiableMap(catalogCrons);
+    }
+
+    /** @return The start of the time window for the automatic runs, or null for no time window.*/
+    public LocalTime getWindowStart() {
+        return windowStart;
+    }
+
+    /** @return The end of the time window for the automatic runs, or null for no time window.*/
+    public LocalTime getWindowEnd() {
+        return windowEnd;
+    }
+
+    /** @return The number of ready records, which starts the workflow, or zero for no threshold.*/
+    public int getReadyThreshold() {
+        return readyThreshold;
+    }
+
+    /** @return The interval in seconds between checking the number of ready records.*/
+    public long getThresholdCheckInterval() {
+        return thresholdCheckInterval;
+    }
+}
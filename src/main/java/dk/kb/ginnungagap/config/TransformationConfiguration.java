@@ -6,6 +6,10 @@ import java.io.File;
  * Configuration for the transformation and of the required fields.
  */
 public class TransformationConfiguration {
+    /** The default threshold for keeping the metadata in memory. Zero means that the metadata is always written to 
+     * files in the metadata temp dir.*/
+    public static final int DEFAULT_METADATA_MEMORY_THRESHOLD = 0;
+
     /** The directory with the XSLT files.*/
     protected final File xsltDir;
     /** The directory with XSD files.*/
@@ -14,19 +18,35 @@ public class TransformationConfiguration {
     protected final File metadataTempDir;
     /** The required fields from Cumulus for making the transformation.*/
     protected final RequiredFields requiredFields;
+    /** The maximum size in bytes of a metadata document kept in memory, before it is written to the metadata temp dir.*/
+    protected final int metadataMemoryThreshold;
     
     /**
-     * Constructor.
+     * Constructor, where the metadata is always written to files.
      * @param xsltDir The directory with XSLT files.
      * @param xsdDir The directory with XSD files.
      * @param metadataTempDir The temporary directory, where the metadata files are stored.
      * @param requiredFields The required fields.
      */
     public TransformationConfiguration(File xsltDir, File xsdDir, File metadataTempDir, RequiredFields requiredFields) {
+        this(xsltDir, xsdDir, metadataTempDir, requiredFields, DEFAULT_METADATA_MEMORY_THRESHOLD);
+    }
+    
+    /**
+     * Constructor.
+     * @param xsltDir The directory with XSLT files.
+     * @param xsdDir The directory with XSD files.
+     * @param metadataTempDir The temporary directory, where the metadata files are stored.
+     * @param requiredFields The required fields.
+     * @param metadataMemoryThreshold The maximum size in bytes of a metadata document kept in memory.
+     */
+    public TransformationConfiguration(File xsltDir, File xsdDir, File metadataTempDir, RequiredFields requiredFields,
+            int metadataMemoryThreshold) {
         this.xsdDir = xsdDir;
         this.xsltDir = xsltDir;
         this.metadataTempDir = metadataTempDir;
         this.requiredFields = requiredFields;
+        this.metadataMemoryThreshold = metadataMemoryThreshold;
     }
     
     /** @return The required fields. */
@@ -45,4 +65,8 @@ public class TransformationConfiguration {
     public File getMetadataTempDir() {
         return metadataTempDir;
     }
+    /** @return The maximum size in bytes of a metadata document kept in memory.*/
+    public int getMetadataMemoryThreshold() {
+        return metadataMemoryThreshold;
+    }
 }
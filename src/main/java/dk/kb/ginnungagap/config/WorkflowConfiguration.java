@@ -1,6 +1,8 @@
 package dk.kb.ginnungagap.config;
 
 import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
 
 import dk.kb.ginnungagap.exception.ArgumentCheck;
 
@@ -12,19 +14,111 @@ public class WorkflowConfiguration {
     protected final int interval;
     /** The directory, where the retained files should be stored.*/
     protected final File retainDir;
+    /** The number of records, which are preserved concurrently by a preservation step.*/
+    protected final int preservationThreads;
+    /** The configuration for the staged preservation pipeline. Null if the pipeline is not used.*/
+    protected final PipelineConfiguration pipelineConf;
+    /** The number of WARC files, which are validated concurrently by a validation step.*/
+    protected final int validationThreads;
+    /** The maximum number of concurrent operations on the archive by the validation, or 0 for no limit.*/
+    protected final int maxArchiveOperations;
+    /** The number of catalogs, which a workflow runs its steps for concurrently.*/
+    protected final int catalogThreads;
+    /** The schedules for starting the workflows automatically, mapped by the schedule name of the workflow.*/
+    protected final Map<String, ScheduleConfiguration> schedules;
 
     /** The default update retention; 180 days ~ 6 months.*/
     protected static final int DEFAULT_UPDATE_RETENTION = 180;
+    /** The default number of preservation threads; one record at the time.*/
+    public static final int DEFAULT_PRESERVATION_THREADS = 1;
+    /** The default number of validation threads; one WARC file at the time.*/
+    public static final int DEFAULT_VALIDATION_THREADS = 1;
+    /** The default maximum number of concurrent archive operations; no limit.*/
+    public static final int DEFAULT_MAX_ARCHIVE_OPERATIONS = 0;
+    /** The default number of catalog threads; one catalog at the time.*/
+    public static final int DEFAULT_CATALOG_THREADS = 1;
 
     /**
      * Constructor.
      * @param interval The interval for running the workflows.
      * @param retainDir The retain directory.
+     * @param preservationThreads The number of records to preserve concurrently.
+     * @param pipelineConf The configuration for the staged preservation pipeline. May be null.
      */
-    public WorkflowConfiguration(int interval, File retainDir) {
+    public WorkflowConfiguration(int interval, File retainDir, int preservationThreads, 
+            PipelineConfiguration pipelineConf) {
+        this(interval, retainDir, preservationThreads, pipelineConf, DEFAULT_VALIDATION_THREADS, 
+                DEFAULT_MAX_ARCHIVE_OPERATIONS);
+    }
+
+    /**
+     * Constructor.
+     * @param interval The interval for running the workflows.
+     * @param retainDir The retain directory.
+     * @param preservationThreads The number of records to preserve concurrently.
+     * @param pipelineConf The configuration for the staged preservation pipeline. May be null.
+     * @param validationThreads The number of WARC files to validate concurrently.
+     * @param maxArchiveOperations The maximum number of concurrent archive operations by the validation, 
+     * or 0 for no limit.
+     */
+    public WorkflowConfiguration(int interval, File retainDir, int preservationThreads, 
+            PipelineConfiguration pipelineConf, int validationThreads, int maxArchiveOperations) {
+        this(interval, retainDir, preservationThreads, pipelineConf, validationThreads, maxArchiveOperations, 
+                DEFAULT_CATALOG_THREADS);
+    }
+
+    /**
+     * Constructor.
+     * @param interval The interval for running the workflows.
+     * @param retainDir The retain directory.
+     * @param preservationThreads The number of records to preserve concurrently.
+     * @param pipelineConf The configuration for the staged preservation pipeline. May be null.
+     * Cannot be combined with more than one preservation thread.
+     * @param validationThreads The number of WARC files to validate concurrently.
+     * @param maxArchiveOperations The maximum number of concurrent archive operations by the validation, 
+     * or 0 for no limit.
+     * @param catalogThreads The number of catalogs, which a workflow runs its steps for concurrently.
+     */
+    public WorkflowConfiguration(int interval, File retainDir, int preservationThreads, 
+            PipelineConfiguration pipelineConf, int validationThreads, int maxArchiveOperations, 
+            int catalogThreads) {
+        this(interval, retainDir, preservationThreads, pipelineConf, validationThreads, maxArchiveOperations, 
+                catalogThreads, null);
+    }
+
+    /**
+     * Constructor.
+     * @param interval The interval for running the workflows.
+     * @param retainDir The retain directory.
+     * @param preservationThreads The number of records to preserve concurrently.
+     * @param pipelineConf The configuration for the staged preservation pipeline. May be null.
+     * Cannot be combined with more than one preservation thread.
+     * @param validationThreads The number of WARC files to validate concurrently.
+     * @param maxArchiveOperations The maximum number of concurrent archive operations by the validation, 
+     * or 0 for no limit.
+     * @param catalogThreads The number of catalogs, which a workflow runs its steps for concurrently.
+     * @param schedules The schedules for the workflows, mapped by the schedule name of the workflow. May be null.
+     */
+    public WorkflowConfiguration(int interval, File retainDir, int preservationThreads, 
+            PipelineConfiguration pipelineConf, int validationThreads, int maxArchiveOperations, 
+            int catalogThreads, Map<String, ScheduleConfiguration> schedules) {
         ArgumentCheck.checkExistsDirectory(retainDir, "File retainDir");
+        ArgumentCheck.checkPositiveInt(preservationThreads, "int preservationThreads");
+        ArgumentCheck.checkTrue(pipelineConf == null || preservationThreads == DEFAULT_PRESERVATION_THREADS, 
+                "The preservation threads cannot be used along with the preservation pipeline, which has its own "
+                + "threads for each stage");
+        ArgumentCheck.checkPositiveInt(validationThreads, "int validationThreads");
+        ArgumentCheck.checkNotNegativeInt(maxArchiveOperations, "int maxArchiveOperations");
+        ArgumentCheck.checkPositiveInt(catalogThreads, "int catalogThreads");
         this.interval = interval;
         this.retainDir = retainDir;
+        this.preservationThreads = preservationThreads;
+        this.pipelineConf = pipelineConf;
+        this.validationThreads = validationThreads;
+        this.maxArchiveOperations = maxArchiveOperations;
+        this.catalogThreads = catalogThreads;
+        this.schedules = schedules == null ? new HashMap<String, ScheduleConfiguration>() 
+                : new HashMap<String, ScheduleConfiguration>(schedules);
     }
 
     /**
@@ -40,4 +134,47 @@ public class WorkflowConfiguration {
     public File getRetainDir() {
         return retainDir;
     }
+    
+    /**
+     * @return The number of records to preserve concurrently.
+     */
+    public int getPreservationThreads() {
+        return preservationThreads;
+    }
+    
+    /**
+     * @return The configuration for the staged preservation pipeline, or null if the pipeline is not used.
+     */
+    public PipelineConfiguration getPipelineConf() {
+        return pipelineConf;
+    }
+    
+    /**
+     * @return The number of WARC files to validate concurrently.
+     */
+    public int getValidationThreads() {
+        return validationThreads;
+    }
+    
+    /**
+     * @return The maximum number of concurrent archive operations by the validation, or 0 for no limit.
+     */
+    public int getMaxArchiveOperations() {
+        return maxArchiveOperations;
+    }
+    
+    /**
+     * @return The number of catalogs, which a workflow runs its steps for concurrently.
+     */
+    public int getCatalogThreads() {
+        return catalogThreads;
+    }
+    
+    /**
+     * @param scheduleName The schedule name of the workflow.
+     * @return The schedule for the workflow, or null if the workflow does not have a schedule.
+     */
+    public ScheduleConfiguration getSchedule(String scheduleName) {
+        return schedules.get(scheduleName);
+    }
 }
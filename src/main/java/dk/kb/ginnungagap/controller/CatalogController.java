@@ -27,9 +27,9 @@ import org.springframework.web.servlet.view.RedirectView;
 import dk.kb.cumulus.Constants;
 import dk.kb.cumulus.CumulusQuery;
 import dk.kb.cumulus.CumulusRecord;
-import dk.kb.cumulus.CumulusRecordCollection;
 import dk.kb.ginnungagap.archive.BitmagPreserver;
 import dk.kb.ginnungagap.config.Configuration;
+import dk.kb.ginnungagap.cumulus.CumulusRecordCursor;
 import dk.kb.ginnungagap.cumulus.CumulusWrapper;
 import dk.kb.ginnungagap.transformation.MetadataTransformationHandler;
 import dk.kb.ginnungagap.transformation.MetadataTransformer;
@@ -193,9 +193,9 @@ public class CatalogController {
     protected boolean extractGuidsAndFileIDsForCatalog(String catalogName, String intellectualEntityID, String uuid,
             File outputFile) throws IOException {
         CumulusQuery query = CumulusQuery.getQueryForAllInCatalog(catalogName);
-        CumulusRecordCollection items = cumulusWrapper.getServer().getItems(catalogName, query);
-        
-        try (FileOutputStream os = new FileOutputStream(outputFile)) {
+        try (CumulusRecordCursor items = new CumulusRecordCursor(cumulusWrapper.getServer(), catalogName, query,
+                    conf.getCumulusPagingConf());
+                FileOutputStream os = new FileOutputStream(outputFile)) {
             boolean allRecords = true;
             os.write("<catalog>\n".getBytes(StandardCharsets.UTF_8));
             os.write("  <uuid>".getBytes(StandardCharsets.UTF_8));
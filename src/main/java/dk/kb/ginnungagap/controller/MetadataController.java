@@ -24,11 +24,13 @@ import org.springframework.web.bind.annotation.RequestParam;
 import dk.kb.cumulus.Constants;
 import dk.kb.cumulus.CumulusRecord;
 import dk.kb.ginnungagap.archive.ArchiveWrapper;
+import dk.kb.ginnungagap.archive.WarcIndexRetriever;
 import dk.kb.ginnungagap.config.Configuration;
 import dk.kb.ginnungagap.cumulus.CumulusPreservationUtils;
 import dk.kb.ginnungagap.cumulus.CumulusWrapper;
 import dk.kb.ginnungagap.transformation.MetadataTransformationHandler;
 import dk.kb.ginnungagap.transformation.MetadataTransformer;
+import dk.kb.ginnungagap.utils.WarcRecordIndex;
 import dk.kb.ginnungagap.utils.WarcUtils;
 
 /**
@@ -157,7 +159,13 @@ public class MetadataController {
             recordId = CumulusPreservationUtils.getMetadataUUID(record);
         }
         
-        WarcUtils.extractRecord(warcFile, recordId, outputFile);
+        try {
+            WarcRecordIndex index = new WarcIndexRetriever(archiveWrapper, conf.getBitmagConf()).getIndex(warcId, 
+                    collectionId);
+            WarcUtils.extractRecord(warcFile, recordId, outputFile, index);
+        } finally {
+            archiveWrapper.releaseFile(warcId, collectionId);
+        }
         return outputFile;
     }
     
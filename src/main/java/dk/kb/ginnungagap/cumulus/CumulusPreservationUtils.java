@@ -1,6 +1,9 @@
 package dk.kb.ginnungagap.cumulus;
 
 import java.io.File;
+import java.io.OutputStream;
+import java.util.Date;
+import java.util.Map;
 import java.util.UUID;
 
 import javax.xml.parsers.DocumentBuilder;
@@ -35,10 +38,23 @@ public class CumulusPreservationUtils {
      * @param record The Cumulus record to be initialized.
      */
     public static void initialiseRecordForPreservation(CumulusRecord record) {
+        initialiseRecordForPreservation(record, null);
+    }
+    
+    /**
+     * Initializes the Cumulus record for preservation.
+     * If the MD5 checksum of the asset file must be calculated, then the block digest for the WARC record of the 
+     * asset file is calculated at the same time, so the asset file is only read once.
+     * @param record The Cumulus record to be initialized.
+     * @param blockDigestAlgorithm The algorithm for the block digest of the WARC record. May be null.
+     * @return The block digest of the asset file, or null if no algorithm was given.
+     */
+    public static WarcDigest initialiseRecordForPreservation(CumulusRecord record, String blockDigestAlgorithm) {
         initIntellectualEntityUUID(record);
-        initRecordChecksum(record);
+        WarcDigest blockDigest = initRecordChecksum(record, blockDigestAlgorithm);
         
         resetMetadataGuid(record);
+        return blockDigest;
     }
     
     /**
@@ -102,12 +118,38 @@ public class CumulusPreservationUtils {
      * @param record The Cumulus record to have its checksum initialized.
      */
     public static void initRecordChecksum(CumulusRecord record) {
+        initRecordChecksum(record, null);
+    }
+    
+    /**
+     * Initializes the MD5 checksum field of the Cumulus record, if it does not already have a value.
+     * The block digest for the WARC record is calculated in the same read of the asset file, and it is also 
+     * calculated when the record already has the MD5 checksum.
+     * @param record The Cumulus record.
+     * @param blockDigestAlgorithm The algorithm for the block digest of the WARC record. May be null.
+     * @return The block digest of the asset file, or null if no algorithm was given.
+     */
+    public static WarcDigest initRecordChecksum(CumulusRecord record, String blockDigestAlgorithm) {
         if(record.getFieldValueOrNull(Constants.FieldNames.CHECKSUM_ORIGINAL_MASTER) != null) {
-            return;
+            if(blockDigestAlgorithm == null) {
+                return null;
+            }
+            return ChecksumUtils.calculateChecksum(record.getFile(), blockDigestAlgorithm);
         }
         
-        WarcDigest md5Digest = ChecksumUtils.calculateChecksum(record.getFile(), ChecksumUtils.MD5_ALGORITHM);
+        Map<String, WarcDigest> digests;
+        if(blockDigestAlgorithm == null || blockDigestAlgorithm.equalsIgnoreCase(ChecksumUtils.MD5_ALGORITHM)) {
+            digests = ChecksumUtils.calculateChecksums(record.getFile(), ChecksumUtils.MD5_ALGORITHM);
+        } else {
+            digests = ChecksumUtils.calculateChecksums(record.getFile(), ChecksumUtils.MD5_ALGORITHM, 
+                    blockDigestAlgorithm);
+        }
+        WarcDigest md5Digest = digests.get(ChecksumUtils.MD5_ALGORITHM);
         record.setStringValueInField(Constants.FieldNames.CHECKSUM_ORIGINAL_MASTER, md5Digest.digestString);
+        if(blockDigestAlgorithm == null) {
+            return null;
+        }
+        return digests.getOrDefault(blockDigestAlgorithm, md5Digest);
     }
     
     /**
@@ -121,6 +163,35 @@ public class CumulusPreservationUtils {
         record.setStringValueInField(Constants.FieldNames.QA_ERROR, "");
     }
     
+    /**
+     * Sets the fields of a record, whose asset file and metadata have been successfully preserved, and sets the
+     * preservation status to finished.
+     * @param record The record.
+     * @param warcFileId The id of the WARC file with the asset file and metadata of the record.
+     * @param archiveMd5 The MD5 checksum of the WARC file.
+     * @param date The date of the preservation.
+     */
+    public static void setRecordPreserved(CumulusRecord record, String warcFileId, String archiveMd5, Date date) {
+        record.setStringValueInField(Constants.FieldNames.METADATA_PACKAGE_ID, warcFileId);
+        record.setStringValueInField(Constants.FieldNames.RESOURCE_PACKAGE_ID, warcFileId);
+        record.setStringValueInField(Constants.FieldNames.ARCHIVE_MD5, archiveMd5);
+        record.setDateValueInField(Constants.FieldNames.BEVARINGS_DATO, date);
+        setPreservationFinished(record);
+    }
+    
+    /**
+     * Sets the fields of a record, whose metadata has been successfully preserved, and sets the preservation status 
+     * to finished.
+     * @param record The record.
+     * @param warcFileId The id of the WARC file with the metadata of the record.
+     * @param date The date of the preservation.
+     */
+    public static void setRecordMetadataPreserved(CumulusRecord record, String warcFileId, Date date) {
+        record.setStringValueInField(Constants.FieldNames.METADATA_PACKAGE_ID, warcFileId);
+        record.setDateValueInField(Constants.FieldNames.BEVARINGS_DATO, date);
+        setPreservationFinished(record);
+    }
+    
     /**
      * Sets the preservation status to failure.
      * @param record The cumulus record to set the status to failed.
@@ -147,6 +218,30 @@ public class CumulusPreservationUtils {
      * @param ieRawFile The file for the raw IE metadata output.
      */
     public static void createIErawFile(String ieUUID, String metadataUUID, String fileUUID, File ieRawFile) {
+        writeIErawMetadata(ieUUID, metadataUUID, fileUUID, new StreamResult(ieRawFile));
+    }
+    
+    /**
+     * Creates the raw XML for the intellectual entity, for the transformation, and writes it to the stream.
+     * It has the same format as the raw XML file for the intellectual entity.
+     * @param ieUUID The UUID for the intellectual entity.
+     * @param metadataUUID The UUID for the metadata object.
+     * @param fileUUID The UUID for the file. This may be null.
+     * @param out The stream for the raw IE metadata output.
+     */
+    public static void createIErawMetadata(String ieUUID, String metadataUUID, String fileUUID, OutputStream out) {
+        writeIErawMetadata(ieUUID, metadataUUID, fileUUID, new StreamResult(out));
+    }
+    
+    /**
+     * Creates the raw XML for the intellectual entity, and writes it to the result.
+     * @param ieUUID The UUID for the intellectual entity.
+     * @param metadataUUID The UUID for the metadata object.
+     * @param fileUUID The UUID for the file. This may be null.
+     * @param result The result for the raw IE metadata output.
+     */
+    protected static void writeIErawMetadata(String ieUUID, String metadataUUID, String fileUUID, 
+            StreamResult result) {
         try {
             DocumentBuilderFactory docFactory = DocumentBuilderFactory.newInstance();
             DocumentBuilder docBuilder = docFactory.newDocumentBuilder();
@@ -175,8 +270,6 @@ public class CumulusPreservationUtils {
             transformer.setOutputProperty("{http://xml.apache.org/xslt}indent-amount", "4");
 
             DOMSource source = new DOMSource(doc);
-            StreamResult result = new StreamResult(ieRawFile);
-
             transformer.transform(source, result);
         } catch(Exception e) {
             throw new IllegalStateException("Cannot create the raw IntellectualEntity metadata file.", e);
@@ -14,6 +14,9 @@ import dk.kb.cumulus.utils.StringUtils;
  * Utility class for generating the necessary Cumulus Queries for the different tasks of the preservation service.
  */
 public class CumulusQueryUtils {
+    /** The Cumulus field with the id of the records, which is unique and increasing within a catalog.*/
+    public static final String RECORD_ID_FIELD = "ID";
+    
     /**
      * The default query for extracting all the preservation ready items from a given catalog.
      * The records must have the preservation state 'ready for archival' and have the registration state
@@ -223,4 +226,49 @@ public class CumulusQueryUtils {
 
         return new CumulusQuery(query, findFlags, CombineMode.FIND_NEW);
     }
+    
+    /**
+     * Restricts a query to the records from a given record id, so the rest of the result of the query can be found
+     * after the records before the record id have been handled.
+     * 
+     * @param query The query to restrict.
+     * @param firstRecordId The first record id to include.
+     * @return The query for the records of the given query from the record id.
+     */
+    public static CumulusQuery getQueryFromRecordId(CumulusQuery query, long firstRecordId) {
+        ArgumentCheck.checkNotNull(query, "CumulusQuery query");
+        String restriction = String.format(StringUtils.replaceSpacesToTabs("\nand %s is greater than %s"), 
+                RECORD_ID_FIELD, 
+                firstRecordId - 1);
+        EnumSet<FindFlag> findFlags = EnumSet.of(
+                FindFlag.FIND_MISSING_FIELDS_ARE_ERROR, 
+                FindFlag.FIND_MISSING_STRING_LIST_VALUES_ARE_ERROR);    
+
+        return new CumulusQuery(query.getQuery() + restriction, findFlags, CombineMode.FIND_NEW);
+    }
+    
+    /**
+     * Restricts a query to the records within a range of record ids, so the result of the query can be read one 
+     * page at the time.
+     * 
+     * @param query The query to restrict.
+     * @param firstRecordId The first record id to include.
+     * @param endRecordId The record id after the last record id to include.
+     * @return The query for the records of the given query within the range of record ids.
+     */
+    public static CumulusQuery getQueryForRecordIdRange(CumulusQuery query, long firstRecordId, long endRecordId) {
+        ArgumentCheck.checkNotNull(query, "CumulusQuery query");
+        ArgumentCheck.checkTrue(firstRecordId < endRecordId, "The range of record ids must not be empty");
+        String restriction = String.format(
+                StringUtils.replaceSpacesToTabs("\nand %s is greater than %s\nand %s is less than %s"), 
+                RECORD_ID_FIELD, 
+                firstRecordId - 1, 
+                RECORD_ID_FIELD, 
+                endRecordId);
+        EnumSet<FindFlag> findFlags = EnumSet.of(
+                FindFlag.FIND_MISSING_FIELDS_ARE_ERROR, 
+                FindFlag.FIND_MISSING_STRING_LIST_VALUES_ARE_ERROR);    
+
+        return new CumulusQuery(query.getQuery() + restriction, findFlags, CombineMode.FIND_NEW);
+    }
 }
@@ -0,0 +1,311 @@
+package dk.kb.ginnungagap.cumulus;
+
+import java.io.Closeable;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import dk.kb.cumulus.CumulusQuery;
+import dk.kb.cumulus.CumulusRecord;
+import dk.kb.cumulus.CumulusRecordCollection;
+import dk.kb.cumulus.CumulusServer;
+import dk.kb.ginnungagap.config.CumulusPagingConfiguration;
+import dk.kb.ginnungagap.exception.ArgumentCheck;
+
+/**
+ * Cursor over the result of a Cumulus query, which reads the result one page at the time.
+ *
+ * The pages are found by restricting the query to ranges of record ids, so only the records of the current page
+ * are held in a Cumulus collection, instead of the whole result of the query. The range of record ids is widened,
+ * when the pages have few records, and narrowed when they have too many, so the pages keep close to the page size.
+ * The paging starts at once: an upper bound for the record ids of the result is found once, by halving the range of
+ * record ids above the records, and the ranges are walked until they pass the bound.
+ * The whole result is not queried, unless it is counted before the pages have all been read. When all the pages
+ * have been read, the count is the number of records in the pages.
+ *
+ * When prefetching, the next page is found in the background, while the records of the current page are handled.
+ * Without paging, the whole result is read as a single page, like a plain query.
+ * The cursor must be closed, when it is no longer used, to stop the prefetching.
+ */
+public class CumulusRecordCursor implements Iterable<CumulusRecord>, Closeable {
+    /** The logger.*/
+    private static final Logger log = LoggerFactory.getLogger(CumulusRecordCursor.class);
+
+    /** The highest record id in a Cumulus catalog.*/
+    protected static final long MAX_RECORD_ID = Integer.MAX_VALUE;
+    /** The count, when the number of records is not known yet.*/
+    public static final int UNKNOWN_COUNT = -1;
+
+    /** The Cumulus server.*/
+    protected final CumulusServer server;
+    /** The name of the catalog.*/
+    protected final String catalogName;
+    /** The query for the records.*/
+    protected final CumulusQuery query;
+    /** The targeted number of records in each page, or zero for no paging.*/
+    protected final int pageSize;
+    /** Whether the next page is fetched in the background.*/
+    protected final boolean prefetch;
+
+    /** The first record id of the next page. Only used by the thread fetching the pages.*/
+    protected long nextRecordId = 0L;
+    /** The width of the range of record ids for the next page. Only used by the thread fetching the pages.*/
+    protected long recordIdRange;
+    /** Whether all the pages have been fetched.*/
+    protected volatile boolean finished = false;
+    /** Whether the upper bound for the record ids has been found. Only used by the thread fetching the pages.*/
+    protected boolean started = false;
+    /** The number of records found by the query. Unknown until counted, or until all the pages are fetched.*/
+    protected volatile int count = UNKNOWN_COUNT;
+    /** The number of records in the pages fetched so far. Only used by the thread fetching the pages.*/
+    protected int fetchedRecords = 0;
+    /** The upper bound for the record ids of the result. Only used by the thread fetching the pages.*/
+    protected long maxRecordId = MAX_RECORD_ID;
+    /** The next page, which has been fetched or is being fetched in the background. May be null.*/
+    protected Future<CumulusRecordCollection> fetchedPage;
+    /** The executor for fetching the next page in the background. Created at the first prefetch.*/
+    protected ExecutorService prefetchExecutor;
+
+    /**
+     * Constructor.
+     * @param server The Cumulus server.
+     * @param catalogName The name of the catalog.
+     * @param query The query for the records.
+     * @param pagingConf The configuration for the paging. If null, then the result is not paged.
+     */
+    public CumulusRecordCursor(CumulusServer server, String catalogName, CumulusQuery query,
+            CumulusPagingConfiguration pagingConf) {
+        ArgumentCheck.checkNotNull(server, "CumulusServer server");
+        ArgumentCheck.checkNotNullOrEmpty(catalogName, "String catalogName");
+        ArgumentCheck.checkNotNull(query, "CumulusQuery query");
+        this.server = server;
+        this.catalogName = catalogName;
+        this.query = query;
+        this.pageSize = pagingConf == null ? CumulusPagingConfiguration.NO_PAGING : pagingConf.getPageSize();
+        this.prefetch = pagingConf != null && pagingConf.isPrefetch()
+                && pageSize != CumulusPagingConfiguration.NO_PAGING;
+        this.recordIdRange = pageSize;
+    }
+
+    /**
+     * Retrieves the number of records found by the query.
+     * Without paging, the whole result is fetched as the only page, if it has not been fetched yet. With paging, 
+     * the whole result is only queried for its count, when the pages have not all been fetched yet. 
+     * @return The number of records found by the query.
+     */
+    public synchronized int getCount() {
+        if(count == UNKNOWN_COUNT) {
+            if(pageSize == CumulusPagingConfiguration.NO_PAGING) {
+                fetchedPage = CompletableFuture.completedFuture(fetchPage());
+            } else {
+                count = server.getItems(catalogName, query).getCount();
+                if(count == 0) {
+                    finished = true;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Checks whether the query found any records, by fetching the first page, if it has not been fetched yet.
+     * Unlike the count, it does not query the whole result, when the result is paged.
+     * Must be called before the pages are retrieved.
+     * @return Whether the query found any records.
+     */
+    public synchronized boolean hasRecords() {
+        if(count == UNKNOWN_COUNT && fetchedPage == null && !finished) {
+            fetchedPage = CompletableFuture.completedFuture(fetchPage());
+        }
+        if(count != UNKNOWN_COUNT) {
+            return count > 0;
+        }
+        if(fetchedPage == null) {
+            return false;
+        }
+        CumulusRecordCollection page = getFetchedPage();
+        fetchedPage = CompletableFuture.completedFuture(page);
+        return page != null;
+    }
+
+    /**
+     * Retrieves the next page of records, and starts fetching the following page when prefetching.
+     * @return The next page of records, or null if there are no more records.
+     */
+    public synchronized CumulusRecordCollection nextPage() {
+        CumulusRecordCollection res;
+        if(fetchedPage != null) {
+            res = getFetchedPage();
+        } else if(finished) {
+            return null;
+        } else {
+            res = fetchPage();
+        }
+        if(res != null && prefetch && !finished) {
+            fetchedPage = getPrefetchExecutor().submit(() -> fetchPage());
+        }
+        return res;
+    }
+
+    /**
+     * Waits for the page, which is being fetched in the background.
+     * @return The fetched page, or null if there were no more records.
+     */
+    protected CumulusRecordCollection getFetchedPage() {
+        try {
+            return fetchedPage.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while fetching the next page of records from catalog '"
+                    + catalogName + "'.", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Could not fetch the next page of records from catalog '"
+                    + catalogName + "'.", e.getCause());
+        } finally {
+            fetchedPage = null;
+        }
+    }
+
+    /**
+     * Fetches the next page of records.
+     * Without paging, the whole result is the page. Otherwise the upper bound for the record ids is found at the 
+     * first page, and the following ranges of record ids are queried, until one of them has records, or the ranges 
+     * pass the bound. The count is set, when the ranges have passed the bound.
+     * Must only be called by one thread at the time.
+     * @return The next page of records, or null if there are no more pages.
+     */
+    protected CumulusRecordCollection fetchPage() {
+        if(finished) {
+            return null;
+        }
+        if(pageSize == CumulusPagingConfiguration.NO_PAGING) {
+            CumulusRecordCollection all = server.getItems(catalogName, query);
+            count = all.getCount();
+            finished = true;
+            return all;
+        }
+        if(!started) {
+            started = true;
+            maxRecordId = findMaxRecordId();
+        }
+
+        while(nextRecordId <= maxRecordId) {
+            long endRecordId = Math.min(nextRecordId + recordIdRange, maxRecordId + 1);
+            CumulusRecordCollection page = server.getItems(catalogName,
+                    CumulusQueryUtils.getQueryForRecordIdRange(query, nextRecordId, endRecordId));
+            int pageCount = page.getCount();
+            log.debug("Found " + pageCount + " records in catalog '" + catalogName + "' with record ids from "
+                    + nextRecordId + " to " + endRecordId + ".");
+            nextRecordId = endRecordId;
+            if(pageCount == 0 || pageCount < pageSize / 2) {
+                recordIdRange = Math.min(recordIdRange * 2, MAX_RECORD_ID);
+            } else if(pageCount > pageSize) {
+                recordIdRange = Math.max(recordIdRange / 2, 1L);
+            }
+            if(pageCount > 0) {
+                fetchedRecords += pageCount;
+                return page;
+            }
+        }
+        if(count == UNKNOWN_COUNT) {
+            count = fetchedRecords;
+        }
+        finished = true;
+        return null;
+    }
+
+    /**
+     * Finds an upper bound for the record ids of the result of the query, by halving the range of record ids, which
+     * is known to be above all the records, until it is no wider than a page.
+     * Each step counts the records above the middle of the range, so the bound is found with a logarithmic number 
+     * of queries.
+     * @return The upper bound for the record ids.
+     */
+    protected long findMaxRecordId() {
+        long lowest = 0L;
+        long end = MAX_RECORD_ID + 1;
+        while(end - lowest > pageSize) {
+            long middle = lowest + (end - lowest) / 2;
+            int above = server.getItems(catalogName, CumulusQueryUtils.getQueryFromRecordId(query, middle))
+                    .getCount();
+            if(above > 0) {
+                lowest = middle;
+            } else {
+                end = middle;
+            }
+        }
+        log.debug("The records of catalog '" + catalogName + "' have record ids below " + end + ".");
+        return end - 1;
+    }
+
+    /**
+     * @return The executor for fetching the next page in the background. Created at the first call.
+     */
+    protected ExecutorService getPrefetchExecutor() {
+        if(prefetchExecutor == null) {
+            prefetchExecutor = Executors.newSingleThreadExecutor(r -> {
+                Thread thread = new Thread(r, "Cumulus prefetch for " + catalogName);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return prefetchExecutor;
+    }
+
+    /**
+     * Iterates the records of all the pages. The pages are fetched, as the records are iterated.
+     * The cursor can only be iterated once.
+     * @return The iterator of the records.
+     */
+    @Override
+    public Iterator<CumulusRecord> iterator() {
+        return new Iterator<CumulusRecord>() {
+            /** The iterator of the records of the current page.*/
+            Iterator<CumulusRecord> records = Collections.emptyIterator();
+
+            @Override
+            public boolean hasNext() {
+                while(!records.hasNext()) {
+                    CumulusRecordCollection page = nextPage();
+                    if(page == null) {
+                        return false;
+                    }
+                    records = page.iterator();
+                }
+                return true;
+            }
+
+            @Override
+            public CumulusRecord next() {
+                if(!hasNext()) {
+                    throw new NoSuchElementException("No more records from catalog '" + catalogName + "'.");
+                }
+                return records.next();
+            }
+        };
+    }
+
+    /**
+     * Stops the prefetching.
+     */
+    @Override
+    public synchronized void close() {
+        if(fetchedPage != null) {
+            fetchedPage.cancel(true);
+            fetchedPage = null;
+        }
+        if(prefetchExecutor != null) {
+            prefetchExecutor.shutdownNow();
+            prefetchExecutor = null;
+        }
+        finished = true;
+    }
+}
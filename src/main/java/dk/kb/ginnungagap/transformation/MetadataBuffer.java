@@ -0,0 +1,196 @@
+package dk.kb.ginnungagap.transformation;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import dk.kb.ginnungagap.exception.ArgumentCheck;
+import dk.kb.ginnungagap.utils.FileUtils;
+
+/**
+ * Buffer for a metadata document, e.g. the raw export from Cumulus or the transformed metadata.
+ *
+ * The metadata is written to the buffer as an output stream, and when the buffer has been closed, the metadata can
+ * be read any number of times as an input stream.
+ * The metadata is kept in memory, until it exceeds the threshold. Then it is spilled to the file for the buffer.
+ * With a threshold of zero (or less), the metadata is written directly to the file.
+ */
+public class MetadataBuffer extends OutputStream {
+    /** The file, where the metadata is placed, if it exceeds the threshold.*/
+    protected final File file;
+    /** The maximum number of bytes kept in memory.*/
+    protected final int threshold;
+
+    /** The metadata in memory. Null when the metadata has been spilled to the file, or deleted.*/
+    protected MemoryBuffer memory;
+    /** The output stream to the file. Null until the metadata is spilled to the file.*/
+    protected OutputStream fileOut;
+    /** The number of bytes in the buffer.*/
+    protected long length;
+    /** Whether or not the buffer has been closed for writing.*/
+    protected boolean closed;
+    /** The result of validating the metadata. Null until the metadata has been validated.*/
+    protected MetadataValidationResult validationResult;
+
+    /**
+     * Constructor.
+     * @param file The file for the metadata, if it exceeds the threshold.
+     * The name of the file is also the name of the metadata document.
+     * @param threshold The maximum number of bytes kept in memory.
+     * @throws IOException If the threshold is zero or less, and the file cannot be opened for writing.
+     */
+    public MetadataBuffer(File file, int threshold) throws IOException {
+        ArgumentCheck.checkNotNull(file, "File file");
+        this.file = file;
+        this.threshold = threshold;
+        this.length = 0L;
+        this.closed = false;
+        if(threshold > 0) {
+            this.memory = new MemoryBuffer();
+        } else {
+            this.fileOut = new BufferedOutputStream(new FileOutputStream(file));
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if(closed) {
+            throw new IOException("The metadata buffer '" + file.getName() + "' is closed.");
+        }
+        if(fileOut == null && length + len > threshold) {
+            spill();
+        }
+        if(fileOut == null) {
+            memory.write(b, off, len);
+        } else {
+            fileOut.write(b, off, len);
+        }
+        length += len;
+    }
+
+    /**
+     * Moves the metadata from memory to the file, where the rest of the metadata will be written.
+     * @throws IOException If the file cannot be written.
+     */
+    protected void spill() throws IOException {
+        fileOut = new BufferedOutputStream(new FileOutputStream(file));
+        memory.writeTo(fileOut);
+        memory = null;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if(fileOut != null) {
+            fileOut.flush();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if(closed) {
+            return;
+        }
+        closed = true;
+        if(fileOut != null) {
+            fileOut.close();
+        }
+    }
+
+    /**
+     * Retrieves the metadata as a stream. The buffer must have been closed for writing.
+     * @return The stream with the metadata.
+     * @throws IOException If the metadata file cannot be read.
+     */
+    public InputStream getInputStream() throws IOException {
+        ArgumentCheck.checkTrue(closed, "The metadata buffer must be closed before it can be read.");
+        if(memory != null) {
+            return memory.getInputStream();
+        }
+        return new FileInputStream(file);
+    }
+
+    /**
+     * @return The metadata, when it is kept in memory, otherwise null.
+     */
+    public byte[] getBytes() {
+        if(memory != null) {
+            return memory.toByteArray();
+        }
+        return null;
+    }
+
+    /**
+     * @return The number of bytes in the buffer.
+     */
+    public long length() {
+        return length;
+    }
+
+    /**
+     * @return The name of the metadata document.
+     */
+    public String getName() {
+        return file.getName();
+    }
+
+    /**
+     * @return The file for the metadata. It only exists, if the metadata has been spilled to it.
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return Whether or not the metadata is kept in memory.
+     */
+    public boolean isInMemory() {
+        return memory != null;
+    }
+
+    /**
+     * @return The result of validating the metadata. Null until the metadata has been validated.
+     */
+    public MetadataValidationResult getValidationResult() {
+        return validationResult;
+    }
+
+    /**
+     * @param validationResult The result of validating the metadata.
+     */
+    public void setValidationResult(MetadataValidationResult validationResult) {
+        this.validationResult = validationResult;
+    }
+
+    /**
+     * Releases the metadata, both from memory and from the file.
+     */
+    public void delete() {
+        memory = null;
+        if(fileOut != null) {
+            FileUtils.deleteFile(file);
+        }
+    }
+
+    /**
+     * Byte array output stream, which can be read without copying the bytes.
+     */
+    protected static class MemoryBuffer extends ByteArrayOutputStream {
+        /**
+         * @return A stream for reading the bytes of the buffer.
+         */
+        protected InputStream getInputStream() {
+            return new ByteArrayInputStream(buf, 0, count);
+        }
+    }
+}
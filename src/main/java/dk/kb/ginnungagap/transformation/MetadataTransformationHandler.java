@@ -1,37 +1,52 @@
 package dk.kb.ginnungagap.transformation;
 
 import java.io.File;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.Collection;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.annotation.PostConstruct;
 import javax.xml.XMLConstants;
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
+import javax.xml.validation.ValidatorHandler;
 
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
-import org.w3c.dom.Document;
-import org.w3c.dom.Node;
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.Locator;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXParseException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.DefaultHandler;
+import org.xml.sax.helpers.NamespaceSupport;
 
 import dk.kb.ginnungagap.config.Configuration;
+import dk.kb.ginnungagap.utils.ChecksumUtils;
 import dk.kb.ginnungagap.utils.StringUtils;
-import dk.kb.yggdrasil.exceptions.YggdrasilException;
-import dk.kb.yggdrasil.xslt.XmlEntityResolver;
-import dk.kb.yggdrasil.xslt.XmlErrorHandler;
-import dk.kb.yggdrasil.xslt.XmlValidationResult;
-import dk.kb.yggdrasil.xslt.XmlValidator;
 
 /**
  * Handler for the metadata transformers.
  */
 @Component
 public class MetadataTransformationHandler {
+    /** The size of the buffer for reading the rest of the metadata after the validation.*/
+    protected static final int DRAIN_BUFFER_SIZE = 8192;
     
     /** The name for the transformation script for catalog structmaps.*/
     public static final String TRANSFORMATION_SCRIPT_FOR_CATALOG_STRUCTMAP = "transformCatalogStructmap.xsl";
@@ -42,13 +57,15 @@ public class MetadataTransformationHandler {
     /** The name for the transformation script for KB-IDs intellectuel entity metadata.*/
     public static final String TRANSFORMATION_SCRIPT_FOR_INTELLECTUEL_ENTITY = "transformToKbId.xsl";
     
-    /** Mapping between the name of the transformations and their transformers.*/
+    /** Mapping between the name of the transformations and their transformers. Each is only compiled once.*/
     protected Map<String, MetadataTransformer> transformers;
     /** The directory with the XSLT files.*/
     protected File xsltDir;
     
-    /** The xml validator.*/
-    protected XmlValidator xmlValidator;
+    /** The factory for the parsers, which feed the metadata to the validators.*/
+    protected SAXParserFactory parserFactory;
+    /** The cache of the compiled schemas for the validation.*/
+    protected SchemaCache schemaCache;
     
     /** The configuration. */
     @Autowired
@@ -58,10 +75,13 @@ public class MetadataTransformationHandler {
      * Initializes the metadata transformation handler.
      */
     @PostConstruct
-    protected void initialize() {
+    protected void initialize() throws IOException {
         this.xsltDir = conf.getTransformationConf().getXsltDir();
-        this.transformers = new HashMap<String, MetadataTransformer>();
-        this.xmlValidator = new XmlValidator();
+        this.transformers = new ConcurrentHashMap<String, MetadataTransformer>();
+        this.parserFactory = SAXParserFactory.newInstance();
+        this.parserFactory.setNamespaceAware(true);
+        this.schemaCache = new SchemaCache();
+        this.schemaCache.preload(conf.getTransformationConf().getXsdDir());
     }
     
     /**
@@ -70,84 +90,320 @@ public class MetadataTransformationHandler {
      * @return The transformer.
      */
     public MetadataTransformer getTransformer(String name) {
-        if(!transformers.containsKey(name)) {
-            File xsltFile = new File(xsltDir, name);
+        return transformers.computeIfAbsent(name, n -> {
+            File xsltFile = new File(xsltDir, n);
             if(!xsltFile.exists()) {
                 throw new IllegalArgumentException("The XSLT file '" + xsltFile.getAbsolutePath() + 
                         "' does not exist.");
             }
-            transformers.put(name, new MetadataTransformer(xsltFile));
-        } 
-        return transformers.get(name);
+            return new MetadataTransformer(xsltFile);
+        });
     }
     
-    
     /**
-     * Validates the transformed metadata.
+     * Validates the transformed metadata against the schemas it refers to.
+     * The metadata is only read once: the validation, the extraction of the schema locations and the calculation
+     * of the digest for the WARC record are all performed while parsing the metadata.
+     * The schemas are retrieved from the schema cache, so each schema is only compiled once.
      * @param metadata The metadata input stream.
+     * @return The result of the validation, with the schema locations and the digest of the metadata.
      * @throws IOException If an IO exception occurs when trying to validate the metadata.
      * If the validation itself fails, then an IllegalStateException will be thrown instead.
      */
-    public void validate(InputStream metadata) throws IOException {
-        XmlEntityResolver entityResolver = null;
-        XmlErrorHandler errorHandler = new XmlErrorHandler();
-        XmlValidationResult validationResult = new XmlValidationResult();
+    public MetadataValidationResult validate(InputStream metadata) throws IOException {
+        String algorithm = conf.getBitmagConf().getAlgorithm();
+        MessageDigest messageDigest = ChecksumUtils.getMessageDigest(algorithm);
+        ValidationHandler handler = new ValidationHandler(schemaCache);
 
-        try {
-            boolean res = xmlValidator.testDefinedValidity(metadata, entityResolver, errorHandler, validationResult);
+        try (InputStream in = new DigestInputStream(metadata, messageDigest)) {
+            try {
+                XMLReader reader;
+                synchronized(parserFactory) {
+                    reader = parserFactory.newSAXParser().getXMLReader();
+                }
+                reader.setContentHandler(handler);
+                reader.setErrorHandler(handler);
+                reader.parse(new InputSource(new UnclosableInputStream(in)));
+            } catch (SAXException e) {
+                if(handler.fatalErrors.isEmpty()) {
+                    handler.fatalErrors.add(e.getMessage());
+                }
+            } catch (ParserConfigurationException e) {
+                throw new IOException("Could not validate the metadata.", e);
+            }
 
-            if(!res) {
-                String fatalErrors = StringUtils.listToString(errorHandler.fatalErrors, "\n");
-                String errors = StringUtils.listToString(errorHandler.errors, "\n");
-                String warnings = StringUtils.listToString(errorHandler.warnings, "\n");
+            if(handler.hasErrors()) {
+                String fatalErrors = StringUtils.listToString(handler.fatalErrors, "\n");
+                String errors = StringUtils.listToString(handler.errors, "\n");
+                String warnings = StringUtils.listToString(handler.warnings, "\n");
                 throw new IllegalStateException("Failed validation: \nfatal errors: " + fatalErrors
                         + "\n other errors: " + errors + " \nwarnings: " + warnings);
             }
-        } catch (YggdrasilException e) {
-            throw new IOException("Could not validate the metadata.", e);
+            
+            // Include any trailing content after the root element in the digest.
+            byte[] buffer = new byte[DRAIN_BUFFER_SIZE];
+            while(in.read(buffer) != -1) {
+                continue;
+            }
         }
+        return new MetadataValidationResult(handler.schemaLocations, 
+                ChecksumUtils.createWarcDigest(algorithm, messageDigest.digest()));
     }
     
     /**
-     * Retrieves the schema versions of a given XML metadata stream.
-     * Will only retrieve each schema location once.
-     * @param metadata The XML metadata input stream.
-     * @return The collection of unique schemalocations.
+     * SAX handler for the validation, which collects the validation errors and warnings, 
+     * along with the schema locations of the elements.
+     * 
+     * Each element, which has a schema location for its namespace, is validated along with its subtree by a validator
+     * for the cached schema of that namespace and location. Elements in the namespace of an active validator are
+     * validated by that validator.
      */
-    public Collection<String> getMetadataStandards(InputStream metadata) {
-        try {
-            DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-            factory.setNamespaceAware(true);
-            DocumentBuilder builder = factory.newDocumentBuilder();
-            Document document = builder.parse(metadata);
-
-            return getNamespaceLocation(document);
-        } catch(Exception e) {
-            throw new IllegalStateException("Could not extract the metadata standards.", e);
+    protected static class ValidationHandler extends DefaultHandler {
+        /** The fatal errors.*/
+        protected final List<String> fatalErrors = new ArrayList<String>();
+        /** The errors.*/
+        protected final List<String> errors = new ArrayList<String>();
+        /** The warnings.*/
+        protected final List<String> warnings = new ArrayList<String>();
+        /** The unique schema locations.*/
+        protected final Set<String> schemaLocations = new HashSet<String>();
+        
+        /** The cache with the schemas.*/
+        protected final SchemaCache schemaCache;
+        /** The active validators for the current element and its ancestors.*/
+        protected final List<ActiveValidator> validators = new ArrayList<ActiveValidator>();
+        /** The schema locations in scope for the current element and its ancestors, mapped by namespace.*/
+        protected final Deque<Map<String, String>> locationScopes = new ArrayDeque<Map<String, String>>();
+        /** The namespace prefixes in scope.*/
+        protected final NamespaceSupport namespaces = new NamespaceSupport();
+        /** The prefix mappings declared for the next element.*/
+        protected final List<String[]> pendingPrefixes = new ArrayList<String[]>();
+        /** The locator for the document.*/
+        protected Locator locator;
+        /** The depth of the current element.*/
+        protected int depth = 0;
+        
+        /**
+         * Constructor.
+         * @param schemaCache The cache with the schemas.
+         */
+        protected ValidationHandler(SchemaCache schemaCache) {
+            this.schemaCache = schemaCache;
         }
-    }
-    
-    /**
-     * Retrieves the namespace locations of a given node, and all the subnodes.
-     * @param node The node.
-     * @return The namespaces of the current node and all its subnodes.
-     */
-    protected Set<String> getNamespaceLocation(Node node) {
-        Set<String> res = new HashSet<String>();
-        for(int i = 0; i < node.getChildNodes().getLength(); i++) {
-            Node n = node.getChildNodes().item(i);
-            if(n.hasChildNodes()) {
-                res.addAll(getNamespaceLocation(n));
+        
+        @Override
+        public void setDocumentLocator(Locator locator) {
+            this.locator = locator;
+        }
+        
+        @Override
+        public void startPrefixMapping(String prefix, String uri) {
+            pendingPrefixes.add(new String[]{prefix, uri});
+        }
+        
+        @Override
+        public void endPrefixMapping(String prefix) throws SAXException {
+            for(ActiveValidator v : validators) {
+                v.handler.endPrefixMapping(prefix);
             }
         }
-        if(node.hasAttributes()) {
-            Node schemaLocation = node.getAttributes().getNamedItemNS(XMLConstants.W3C_XML_SCHEMA_INSTANCE_NS_URI, 
+        
+        @Override
+        public void startElement(String uri, String localName, String qName, Attributes attributes) 
+                throws SAXException {
+            depth++;
+            namespaces.pushContext();
+            for(String[] prefix : pendingPrefixes) {
+                namespaces.declarePrefix(prefix[0], prefix[1]);
+                for(ActiveValidator v : validators) {
+                    v.handler.startPrefixMapping(prefix[0], prefix[1]);
+                }
+            }
+            pendingPrefixes.clear();
+            
+            Map<String, String> locations = locationScopes.isEmpty() ? Collections.<String, String>emptyMap() 
+                    : locationScopes.peek();
+            String schemaLocation = attributes.getValue(XMLConstants.W3C_XML_SCHEMA_INSTANCE_NS_URI, 
                     "schemaLocation");
             if(schemaLocation != null) {
-                res.add(schemaLocation.getNodeValue());
+                schemaLocations.add(schemaLocation);
+                locations = new HashMap<String, String>(locations);
+                String[] pairs = schemaLocation.trim().split("\\s+");
+                for(int i = 0; i + 1 < pairs.length; i += 2) {
+                    locations.put(pairs[i], pairs[i+1]);
+                }
+            }
+            String noNamespaceLocation = attributes.getValue(XMLConstants.W3C_XML_SCHEMA_INSTANCE_NS_URI, 
+                    "noNamespaceSchemaLocation");
+            if(noNamespaceLocation != null) {
+                locations = new HashMap<String, String>(locations);
+                locations.put("", noNamespaceLocation.trim());
+            }
+            locationScopes.push(locations);
+            
+            if(locations.containsKey(uri) && !isValidated(uri)) {
+                startValidator(uri, locations.get(uri));
+            }
+            if(validators.isEmpty() && depth == 1) {
+                error(new SAXParseException("No schema location found for the root element '" + qName + "'.", 
+                        locator));
+            }
+            for(ActiveValidator v : validators) {
+                v.handler.startElement(uri, localName, qName, attributes);
+            }
+        }
+        
+        @Override
+        public void endElement(String uri, String localName, String qName) throws SAXException {
+            Iterator<ActiveValidator> it = validators.iterator();
+            while(it.hasNext()) {
+                ActiveValidator v = it.next();
+                v.handler.endElement(uri, localName, qName);
+                if(v.depth == depth) {
+                    v.handler.endDocument();
+                    it.remove();
+                }
             }
+            locationScopes.pop();
+            namespaces.popContext();
+            depth--;
         }
         
-        return res;
+        @Override
+        public void characters(char[] ch, int start, int length) throws SAXException {
+            for(ActiveValidator v : validators) {
+                v.handler.characters(ch, start, length);
+            }
+        }
+        
+        @Override
+        public void ignorableWhitespace(char[] ch, int start, int length) throws SAXException {
+            for(ActiveValidator v : validators) {
+                v.handler.ignorableWhitespace(ch, start, length);
+            }
+        }
+        
+        @Override
+        public void processingInstruction(String target, String data) throws SAXException {
+            for(ActiveValidator v : validators) {
+                v.handler.processingInstruction(target, data);
+            }
+        }
+        
+        /**
+         * @param namespace The namespace.
+         * @return Whether or not an active validator is validating the given namespace.
+         */
+        protected boolean isValidated(String namespace) {
+            for(ActiveValidator v : validators) {
+                if(v.namespace.equals(namespace)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        
+        /**
+         * Starts a new validator for the current element and its subtree. 
+         * It is given the namespace prefixes in scope, since it starts in the middle of the document.
+         * @param namespace The namespace of the current element.
+         * @param location The location of the schema for the namespace.
+         * @throws SAXException If the schema cannot be retrieved or compiled.
+         */
+        protected void startValidator(String namespace, String location) throws SAXException {
+            ValidatorHandler handler = schemaCache.getSchema(namespace, location).newValidatorHandler();
+            handler.setErrorHandler(this);
+            handler.setResourceResolver(schemaCache);
+            if(locator != null) {
+                handler.setDocumentLocator(locator);
+            }
+            handler.startDocument();
+            Enumeration<?> prefixes = namespaces.getPrefixes();
+            while(prefixes.hasMoreElements()) {
+                String prefix = (String) prefixes.nextElement();
+                if(XMLConstants.XML_NS_PREFIX.equals(prefix)) {
+                    continue;
+                }
+                handler.startPrefixMapping(prefix, namespaces.getURI(prefix));
+            }
+            String defaultNamespace = namespaces.getURI("");
+            if(defaultNamespace != null) {
+                handler.startPrefixMapping("", defaultNamespace);
+            }
+            validators.add(new ActiveValidator(handler, namespace, depth));
+        }
+        
+        @Override
+        public void warning(SAXParseException e) {
+            warnings.add(getMessage(e));
+        }
+        
+        @Override
+        public void error(SAXParseException e) {
+            errors.add(getMessage(e));
+        }
+        
+        @Override
+        public void fatalError(SAXParseException e) throws SAXException {
+            fatalErrors.add(getMessage(e));
+            throw e;
+        }
+        
+        /**
+         * @return Whether or not any errors or fatal errors have been encountered.
+         */
+        protected boolean hasErrors() {
+            return !fatalErrors.isEmpty() || !errors.isEmpty();
+        }
+        
+        /**
+         * @param e The parse exception.
+         * @return The message of the exception along with its location.
+         */
+        protected String getMessage(SAXParseException e) {
+            return "Line " + e.getLineNumber() + ", column " + e.getColumnNumber() + ": " + e.getMessage();
+        }
+    }
+    
+    /**
+     * A validator, which validates an element and its subtree.
+     */
+    protected static class ActiveValidator {
+        /** The validator handler. It is not thread-safe, thus only used for this validation.*/
+        protected final ValidatorHandler handler;
+        /** The namespace of the element, where the validator was started.*/
+        protected final String namespace;
+        /** The depth of the element, where the validator was started.*/
+        protected final int depth;
+        
+        /**
+         * Constructor.
+         * @param handler The validator handler.
+         * @param namespace The namespace of the element, where the validator was started.
+         * @param depth The depth of the element, where the validator was started.
+         */
+        protected ActiveValidator(ValidatorHandler handler, String namespace, int depth) {
+            this.handler = handler;
+            this.namespace = namespace;
+            this.depth = depth;
+        }
+    }
+    
+    /**
+     * Input stream, which is not closed by the parser, so the rest of the stream can be read afterwards.
+     */
+    protected static class UnclosableInputStream extends FilterInputStream {
+        /**
+         * Constructor.
+         * @param in The input stream to wrap.
+         */
+        protected UnclosableInputStream(InputStream in) {
+            super(in);
+        }
+        
+        @Override
+        public void close() {
+            // The stream is closed by the owner.
+        }
     }
 }
@@ -4,25 +4,41 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 import javax.xml.transform.Source;
+import javax.xml.transform.Templates;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerConfigurationException;
 import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.stream.StreamResult;
 import javax.xml.transform.stream.StreamSource;
 
 import dk.kb.ginnungagap.exception.ArgumentCheck;
 import dk.kb.metadata.Cleaner;
 import dk.kb.yggdrasil.xslt.XslErrorListener;
-import dk.kb.yggdrasil.xslt.XslTransformer;
 import dk.kb.yggdrasil.xslt.XslUriResolver;
 
 /**
  * Transforms XML metadata through XSLT scripts.
+ * 
+ * The XSLT script is compiled once into a thread-safe Templates, and the transformers created from it are pooled
+ * and reused, since a transformer may only be used by one thread at the time.
+ * The state of the XSLT extension functions in dk.kb.metadata is confined to the thread performing the 
+ * transformation, so several records can be transformed concurrently.
+ * 
+ * The result of the transformation is serialized directly into the output stream, so the transformed metadata is 
+ * never held in memory as a whole. 
  */
 public class MetadataTransformer {
     /** The XSLT file with the XML transformation.*/
     protected final File xsltFile;
-    /** The XSL transformer.*/
-    protected final XslTransformer xslTransformer;
+    /** The compiled XSLT script.*/
+    protected final Templates templates;
+    /** The pool of idle transformers for the compiled XSLT script.*/
+    protected final Queue<Transformer> transformerPool = new ConcurrentLinkedQueue<Transformer>();
 
     /**
      * Constructor.
@@ -32,19 +48,54 @@ public class MetadataTransformer {
         ArgumentCheck.checkExistsNormalFile(xsltFile, "File xsltFile");
         try {
             this.xsltFile = xsltFile;
-            this.xslTransformer = XslTransformer.getTransformer(xsltFile);
+            TransformerFactory factory = TransformerFactory.newInstance();
+            this.templates = factory.newTemplates(new StreamSource(xsltFile));
         } catch (TransformerException e) {
             throw new ArgumentCheck("Cannot instantiate a XSL transformer from the file '" + xsltFile + "'.", e);
         }
     }
 
     /**
-     * Transforms metadata, and deliver the content into a file. 
+     * Transforms metadata, and streams the content into the output stream. 
+     * The output stream is flushed, but not closed.
+     * If the transformation fails, then a part of the transformed metadata may already have been written to the
+     * output stream.
      * @param metadata The stream with metadata.
      * @param out Where the output must be delivered.
      */
     public void transformXmlMetadata(InputStream metadata, OutputStream out) {
-        transform(metadata, out, xslTransformer);
+        Transformer transformer = borrowTransformer();
+        try {
+            transform(metadata, out, transformer);
+        } finally {
+            returnTransformer(transformer);
+        }
+    }
+    
+    /**
+     * Retrieves an idle transformer from the pool, or creates a new one if the pool is empty.
+     * @return The transformer.
+     */
+    protected Transformer borrowTransformer() {
+        Transformer res = transformerPool.poll();
+        if(res != null) {
+            return res;
+        }
+        try {
+            return templates.newTransformer();
+        } catch (TransformerConfigurationException e) {
+            throw new IllegalStateException("Could not create a transformer for the XSLT file '" + xsltFile + "'.", 
+                    e);
+        }
+    }
+    
+    /**
+     * Resets the transformer and returns it to the pool.
+     * @param transformer The transformer, which is no longer used.
+     */
+    protected void returnTransformer(Transformer transformer) {
+        transformer.reset();
+        transformerPool.offer(transformer);
     }
     
     /**
@@ -53,17 +104,17 @@ public class MetadataTransformer {
      * @param out The output stream where the transformed metadata is delivered.
      * @param transformer The transformer for the metadata.
      */
-    protected void transform(InputStream xmlFile, OutputStream out, XslTransformer transformer) {
+    protected void transform(InputStream xmlFile, OutputStream out, Transformer transformer) {
         try {
             Cleaner.cleanStuff();
 
             XslUriResolver uriResolver = new XslUriResolver();
             XslErrorListener errorListener = new XslErrorListener();
+            transformer.setURIResolver(uriResolver);
+            transformer.setErrorListener(errorListener);
 
             Source source = new StreamSource(xmlFile);
-            byte[] bytes = transformer.transform(source, uriResolver, errorListener);
-
-            out.write(bytes);
+            transformer.transform(source, new StreamResult(out));
             out.flush();
             
             if(errorListener.hasErrors()) {
@@ -74,6 +125,8 @@ public class MetadataTransformer {
             throw new IllegalStateException("Could not perform the transformation of the metadata", e);
         } catch (IOException e) {
             throw new IllegalStateException("Could not deliver the transformed metadata to the output stream.", e);
+        } finally {
+            Cleaner.cleanStuff();
         }
     }
 }
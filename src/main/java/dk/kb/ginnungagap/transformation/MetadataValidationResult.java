@@ -0,0 +1,40 @@
+package dk.kb.ginnungagap.transformation;
+
+import java.util.Collection;
+
+import org.jwat.warc.WarcDigest;
+
+/**
+ * The result of validating a metadata document in a single pass.
+ * Contains the schema locations found in the document, and the digest of the document.
+ */
+public class MetadataValidationResult {
+    /** The unique schema locations in the metadata.*/
+    protected final Collection<String> schemaLocations;
+    /** The digest of the metadata. May be null.*/
+    protected final WarcDigest digest;
+
+    /**
+     * Constructor.
+     * @param schemaLocations The unique schema locations in the metadata.
+     * @param digest The digest of the metadata. May be null.
+     */
+    public MetadataValidationResult(Collection<String> schemaLocations, WarcDigest digest) {
+        this.schemaLocations = schemaLocations;
+        this.digest = digest;
+    }
+
+    /**
+     * @return The unique schema locations in the metadata.
+     */
+    public Collection<String> getSchemaLocations() {
+        return schemaLocations;
+    }
+
+    /**
+     * @return The digest of the metadata. May be null.
+     */
+    public WarcDigest getDigest() {
+        return digest;
+    }
+}
@@ -0,0 +1,499 @@
+package dk.kb.ginnungagap.transformation;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.net.URI;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.SAXParserFactory;
+import javax.xml.transform.stream.StreamSource;
+import javax.xml.validation.Schema;
+import javax.xml.validation.SchemaFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.ls.LSInput;
+import org.w3c.dom.ls.LSResourceResolver;
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+import dk.kb.ginnungagap.exception.ArgumentCheck;
+import dk.kb.ginnungagap.utils.StreamUtils;
+
+/**
+ * Cache for the XML schemas used for validating the metadata.
+ *
+ * Both the schema documents and the compiled schemas are cached by their namespace and location, so each schema
+ * is only retrieved and compiled once.
+ * The compiled schemas are thread-safe, whereas the validators created from them are not, so a new validator must
+ * be created from the cached schema for each validation.
+ *
+ * The local schemas in the XSD directory can be preloaded, which also compiles them. When a remote schema cannot be 
+ * retrieved within the timeouts, then the local schema with the same file name is used instead, and its compiled 
+ * schema is reused. For the main schema of a namespace, whether requested directly or
+ * imported, the local schema for the namespace is used, if exactly one local schema has that target namespace.
+ * Included schemas are only replaced by a local schema with the same file name.
+ * If no local schema can replace a schema, which cannot be retrieved, then the compilation of the schema fails.
+ */
+public class SchemaCache implements LSResourceResolver {
+    /** The logger.*/
+    private static final Logger log = LoggerFactory.getLogger(SchemaCache.class);
+
+    /** The suffix for the local schema files.*/
+    protected static final String XSD_SUFFIX = ".xsd";
+    /** The default timeout in milliseconds for connecting to the location of a remote schema.*/
+    protected static final int DEFAULT_CONNECT_TIMEOUT = 10000;
+    /** The default timeout in milliseconds for reading a remote schema.*/
+    protected static final int DEFAULT_READ_TIMEOUT = 30000;
+
+    /** The schema documents, mapped by their namespace and location.*/
+    protected final Map<String, SchemaDocument> documents = new ConcurrentHashMap<String, SchemaDocument>();
+    /** The compiled schemas, mapped by their namespace and location.*/
+    protected final Map<String, Schema> schemas = new ConcurrentHashMap<String, Schema>();
+    /** The preloaded local schemas, mapped by their file name in lower case.*/
+    protected final Map<String, SchemaDocument> localSchemas = new ConcurrentHashMap<String, SchemaDocument>();
+    /** The preloaded local schemas, mapped by their target namespace.*/
+    protected final Map<String, List<SchemaDocument>> localNamespaces = 
+            new ConcurrentHashMap<String, List<SchemaDocument>>();
+    /** The timeout in milliseconds for connecting to the location of a remote schema.*/
+    protected int connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+    /** The timeout in milliseconds for reading a remote schema.*/
+    protected int readTimeout = DEFAULT_READ_TIMEOUT;
+
+    /**
+     * Preloads the local schemas in the given directory, and compiles them afterwards.
+     * A schema file, which cannot be read or parsed, is logged and skipped.
+     * @param xsdDir The directory with the local schema files.
+     */
+    public void preload(File xsdDir) {
+        ArgumentCheck.checkExistsDirectory(xsdDir, "File xsdDir");
+        File[] xsdFiles = xsdDir.listFiles();
+        Arrays.sort(xsdFiles);
+        List<SchemaDocument> preloaded = new ArrayList<SchemaDocument>();
+        for(File xsdFile : xsdFiles) {
+            if(!xsdFile.isFile() || !xsdFile.getName().toLowerCase().endsWith(XSD_SUFFIX)) {
+                continue;
+            }
+            try {
+                SchemaDocument document;
+                try (InputStream in = new FileInputStream(xsdFile)) {
+                    document = new SchemaDocument(xsdFile.toURI().toString(), readContent(in));
+                }
+                String namespace = getTargetNamespace(document);
+                document.targetNamespace = namespace;
+                documents.put(getKey(namespace, document.systemId), document);
+                localSchemas.put(xsdFile.getName().toLowerCase(), document);
+                preloaded.add(document);
+                if(!namespace.isEmpty()) {
+                    localNamespaces.computeIfAbsent(namespace, k -> new ArrayList<SchemaDocument>()).add(document);
+                }
+                log.debug("Preloaded the schema '" + xsdFile.getName() + "' for the namespace '" + namespace + "'.");
+            } catch (IOException e) {
+                log.warn("Could not preload the schema file '" + xsdFile.getAbsolutePath() + "'. It is skipped.", e);
+            }
+        }
+        // All the local schemas must be loaded before any is compiled, since they can replace each others imports.
+        for(SchemaDocument document : preloaded) {
+            try {
+                getSchema(document.targetNamespace, document.systemId);
+            } catch (SAXException e) {
+                log.warn("Could not precompile the schema '" + document.systemId + "'. It will be compiled when it "
+                        + "is requested.", e);
+            }
+        }
+    }
+
+    /**
+     * Retrieves the compiled schema for the given namespace and location. It is compiled at the first request.
+     * @param namespace The namespace of the schema.
+     * @param location The location of the schema.
+     * @return The compiled schema.
+     * @throws SAXException If the schema cannot be compiled.
+     */
+    public Schema getSchema(String namespace, String location) throws SAXException {
+        String key = getKey(namespace, location);
+        Schema schema = schemas.get(key);
+        if(schema == null) {
+            schema = compileSchema(namespace, location);
+            Schema existing = schemas.putIfAbsent(key, schema);
+            if(existing != null) {
+                schema = existing;
+            }
+        }
+        return schema;
+    }
+
+    /**
+     * Compiles the schema for the given namespace and location.
+     * Imported and included schemas are also retrieved through the cache.
+     * If the schema document is replaced by a local schema, which is already compiled, then that schema is used.
+     * @param namespace The namespace of the schema.
+     * @param location The location of the schema.
+     * @return The compiled schema.
+     * @throws SAXException If the schema cannot be retrieved or compiled.
+     */
+    protected Schema compileSchema(String namespace, String location) throws SAXException {
+        SchemaDocument document;
+        try {
+            document = getDocument(namespace, location, true);
+        } catch (IOException e) {
+            throw new SAXException("Could not retrieve the schema '" + location + "' for the namespace '"
+                    + namespace + "'.", e);
+        }
+        Schema localSchema = schemas.get(getKey(namespace, document.systemId));
+        if(localSchema != null) {
+            return localSchema;
+        }
+        // The schema factory is not thread-safe, so each compilation has its own.
+        SchemaFactory factory = SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI);
+        List<String> failures = new ArrayList<String>();
+        factory.setResourceResolver((type, namespaceURI, publicId, systemId, baseURI) -> {
+            try {
+                return resolveSchema(namespaceURI, publicId, systemId, baseURI);
+            } catch (IOException | RuntimeException e) {
+                log.warn("Could not resolve the schema '" + systemId + "' for the namespace '" + namespaceURI 
+                        + "'.", e);
+                failures.add(systemId + " (" + e.getMessage() + ")");
+                return null;
+            }
+        });
+        log.debug("Compiling the schema '" + location + "' for the namespace '" + namespace + "'.");
+        Schema res = factory.newSchema(new StreamSource(new ByteArrayInputStream(document.content), 
+                document.systemId));
+        if(!failures.isEmpty()) {
+            throw new SAXException("Could not compile the schema '" + location + "' for the namespace '" + namespace
+                    + "', since the following schemas could not be resolved: " + failures);
+        }
+        return res;
+    }
+
+    /**
+     * Retrieves the schema document for the given namespace and location.
+     * If it is not in the cache, then it is retrieved from the location, or from a preloaded local schema, if the 
+     * location cannot be reached.
+     * @param namespace The namespace of the schema.
+     * @param location The location of the schema.
+     * @param mainSchema Whether the schema is the main schema of the namespace, and not an included part of it.
+     * @return The schema document.
+     * @throws IOException If the schema document can neither be retrieved nor found locally.
+     */
+    protected SchemaDocument getDocument(String namespace, String location, boolean mainSchema) throws IOException {
+        String key = getKey(namespace, location);
+        SchemaDocument document = documents.get(key);
+        if(document != null) {
+            return document;
+        }
+        try (InputStream in = openLocation(location)) {
+            document = new SchemaDocument(location, readContent(in));
+        } catch (IOException e) {
+            document = getLocalSchema(namespace, location, mainSchema);
+            if(document == null) {
+                throw e;
+            }
+            log.warn("Could not retrieve the schema '" + location + "', using the local schema '" 
+                    + document.systemId + "' instead.", e);
+        }
+        SchemaDocument existing = documents.putIfAbsent(key, document);
+        return existing == null ? document : existing;
+    }
+
+    /**
+     * Opens the stream to the location of a schema with the connect and read timeouts, so an unresponsive
+     * location does not block the validation.
+     * @param location The location of the schema.
+     * @return The stream with the schema.
+     * @throws IOException If the location cannot be opened, e.g. if it times out.
+     */
+    protected InputStream openLocation(String location) throws IOException {
+        URLConnection connection = new URL(location).openConnection();
+        connection.setConnectTimeout(connectTimeout);
+        connection.setReadTimeout(readTimeout);
+        return connection.getInputStream();
+    }
+
+    /**
+     * Finds the preloaded local schema, which can replace the schema at the given location.
+     * This is the local schema with the same file name, unless it has another target namespace. 
+     * Otherwise for a main schema, it is the local schema for the namespace, if exactly one has that namespace.
+     * @param namespace The namespace of the schema.
+     * @param location The location of the schema.
+     * @param mainSchema Whether the schema is the main schema of the namespace, and not an included part of it.
+     * @return The local schema, or null if no local schema can replace the schema.
+     */
+    protected SchemaDocument getLocalSchema(String namespace, String location, boolean mainSchema) {
+        String ns = namespace == null ? "" : namespace;
+        SchemaDocument res = localSchemas.get(getFileName(location));
+        if(res != null && (res.targetNamespace.isEmpty() || res.targetNamespace.equals(ns))) {
+            return res;
+        }
+        List<SchemaDocument> namespaceSchemas = localNamespaces.get(ns);
+        if(mainSchema && namespaceSchemas != null && namespaceSchemas.size() == 1) {
+            return namespaceSchemas.get(0);
+        }
+        return null;
+    }
+
+    @Override
+    public LSInput resolveResource(String type, String namespaceURI, String publicId, String systemId,
+            String baseURI) {
+        try {
+            return resolveSchema(namespaceURI, publicId, systemId, baseURI);
+        } catch (Exception e) {
+            log.warn("Could not resolve the schema '" + systemId + "' for the namespace '" + namespaceURI + "'.", e);
+            return null;
+        }
+    }
+
+    /**
+     * Resolves an imported or included schema through the cache.
+     * A schema is included, when it is requested for the target namespace of the schema, which refers to it.
+     * @param namespaceURI The namespace of the schema.
+     * @param publicId The public id.
+     * @param systemId The location of the schema, possibly relative to the base URI.
+     * @param baseURI The location of the schema, which refers to the schema. May be null.
+     * @return The input for the schema, or null if it has no location.
+     * @throws IOException If the schema can neither be retrieved nor found locally.
+     */
+    protected LSInput resolveSchema(String namespaceURI, String publicId, String systemId, String baseURI) 
+            throws IOException {
+        if(systemId == null) {
+            return null;
+        }
+        String location = systemId;
+        boolean included = false;
+        if(baseURI != null) {
+            location = URI.create(baseURI).resolve(systemId).toString();
+            SchemaDocument baseDocument = findDocument(baseURI);
+            included = baseDocument != null 
+                    && getTargetNamespace(baseDocument).equals(namespaceURI == null ? "" : namespaceURI);
+        }
+        SchemaDocument document = getDocument(namespaceURI, location, !included);
+        return new SchemaInput(publicId, document, baseURI);
+    }
+
+    /**
+     * Finds a cached schema document by its system id.
+     * @param systemId The system id.
+     * @return The schema document, or null if it is not in the cache.
+     */
+    protected SchemaDocument findDocument(String systemId) {
+        for(SchemaDocument document : documents.values()) {
+            if(document.systemId.equals(systemId)) {
+                return document;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param location The location of a schema.
+     * @return The file name of the location in lower case, without any query or fragment.
+     */
+    protected String getFileName(String location) {
+        String res = location;
+        int end = res.indexOf('?') >= 0 ? res.indexOf('?') : res.indexOf('#');
+        if(end >= 0) {
+            res = res.substring(0, end);
+        }
+        return res.substring(res.lastIndexOf('/') + 1).toLowerCase();
+    }
+
+    /**
+     * @param namespace The namespace.
+     * @param location The location.
+     * @return The key for the namespace and location.
+     */
+    protected String getKey(String namespace, String location) {
+        return (namespace == null ? "" : namespace) + " " + location;
+    }
+
+    /**
+     * Reads all the content of the stream.
+     * @param in The input stream.
+     * @return The content.
+     * @throws IOException If the stream cannot be read.
+     */
+    protected byte[] readContent(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        StreamUtils.copyInputStreamToOutputStream(in, out);
+        return out.toByteArray();
+    }
+
+    /**
+     * Extracts the target namespace of a schema document.
+     * @param document The schema document.
+     * @return The target namespace, or the empty string, if the schema has no target namespace.
+     * @throws IOException If the schema document cannot be parsed.
+     */
+    protected String getTargetNamespace(SchemaDocument document) throws IOException {
+        if(document.targetNamespace != null) {
+            return document.targetNamespace;
+        }
+        TargetNamespaceHandler handler = new TargetNamespaceHandler();
+        try {
+            SAXParserFactory factory = SAXParserFactory.newInstance();
+            factory.setNamespaceAware(true);
+            factory.newSAXParser().parse(new ByteArrayInputStream(document.content), handler, document.systemId);
+        } catch (TargetNamespaceHandler.RootElementFound e) {
+            document.targetNamespace = handler.targetNamespace;
+            return handler.targetNamespace;
+        } catch (Exception e) {
+            throw new IOException("Could not parse the schema '" + document.systemId + "'.", e);
+        }
+        throw new IOException("No root element in the schema '" + document.systemId + "'.");
+    }
+
+    /**
+     * A cached schema document.
+     */
+    protected static class SchemaDocument {
+        /** The system id of the schema document, which relative imports and includes are resolved against.*/
+        protected final String systemId;
+        /** The content of the schema document.*/
+        protected final byte[] content;
+        /** The target namespace of the schema document. Null until it has been extracted.*/
+        protected volatile String targetNamespace;
+
+        /**
+         * Constructor.
+         * @param systemId The system id of the schema document.
+         * @param content The content of the schema document.
+         */
+        protected SchemaDocument(String systemId, byte[] content) {
+            this.systemId = systemId;
+            this.content = content;
+        }
+    }
+
+    /**
+     * SAX handler, which extracts the target namespace from the root element, and then stops the parsing.
+     */
+    protected static class TargetNamespaceHandler extends DefaultHandler {
+        /** The target namespace.*/
+        protected String targetNamespace;
+
+        @Override
+        public void startElement(String uri, String localName, String qName, Attributes attributes)
+                throws SAXException {
+            String namespace = attributes.getValue("targetNamespace");
+            targetNamespace = namespace == null ? "" : namespace;
+            throw new RootElementFound();
+        }
+
+        /**
+         * Exception for stopping the parsing, when the root element has been found.
+         */
+        @SuppressWarnings("serial")
+        protected static class RootElementFound extends SAXException {}
+    }
+
+    /**
+     * The input for the schema factory with a cached schema document.
+     */
+    protected static class SchemaInput implements LSInput {
+        /** The public id.*/
+        protected String publicId;
+        /** The system id.*/
+        protected String systemId;
+        /** The base URI.*/
+        protected String baseURI;
+        /** The content of the schema document.*/
+        protected final byte[] content;
+
+        /**
+         * Constructor.
+         * @param publicId The public id.
+         * @param document The cached schema document.
+         * @param baseURI The base URI.
+         */
+        protected SchemaInput(String publicId, SchemaDocument document, String baseURI) {
+            this.publicId = publicId;
+            this.systemId = document.systemId;
+            this.baseURI = baseURI;
+            this.content = document.content;
+        }
+
+        @Override
+        public Reader getCharacterStream() {
+            return null;
+        }
+
+        @Override
+        public void setCharacterStream(Reader characterStream) {}
+
+        @Override
+        public InputStream getByteStream() {
+            return new ByteArrayInputStream(content);
+        }
+
+        @Override
+        public void setByteStream(InputStream byteStream) {}
+
+        @Override
+        public String getStringData() {
+            return null;
+        }
+
+        @Override
+        public void setStringData(String stringData) {}
+
+        @Override
+        public String getSystemId() {
+            return systemId;
+        }
+
+        @Override
+        public void setSystemId(String systemId) {
+            this.systemId = systemId;
+        }
+
+        @Override
+        public String getPublicId() {
+            return publicId;
+        }
+
+        @Override
+        public void setPublicId(String publicId) {
+            this.publicId = publicId;
+        }
+
+        @Override
+        public String getBaseURI() {
+            return baseURI;
+        }
+
+        @Override
+        public void setBaseURI(String baseURI) {
+            this.baseURI = baseURI;
+        }
+
+        @Override
+        public String getEncoding() {
+            return null;
+        }
+
+        @Override
+        public void setEncoding(String encoding) {}
+
+        @Override
+        public boolean getCertifiedText() {
+            return false;
+        }
+
+        @Override
+        public void setCertifiedText(boolean certifiedText) {}
+    }
+}
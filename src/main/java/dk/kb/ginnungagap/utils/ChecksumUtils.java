@@ -1,8 +1,16 @@
 package dk.kb.ginnungagap.utils;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Collection;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Set;
 
 import org.bitrepository.access.getchecksums.conversation.ChecksumsCompletePillarEvent;
@@ -21,6 +29,8 @@ import dk.kb.yggdrasil.warc.Digest;
 public class ChecksumUtils {
     /** MD5 algorithm name.*/
     public static final String MD5_ALGORITHM = "MD5";
+    /** The size of the buffer for reading the file, when calculating the checksums.*/
+    protected static final int CHECKSUM_BUFFER_SIZE = 64*1024;
 
     /**
      * Calculates the checksum of a file with a given checksum.
@@ -39,6 +49,76 @@ public class ChecksumUtils {
         }
     }
 
+    /**
+     * Calculates the checksum of the rest of an input stream, while the data passes through a digesting stream.
+     * Nothing is written to disk, and the stream is not closed.
+     * @param in The input stream to calculate the checksum of.
+     * @param algorithm The algorithm for the checksum calculation.
+     * @return The checksum of the stream wrapped in a WarcDigest.
+     * @throws IOException If an error occurs while reading the stream.
+     */
+    public static WarcDigest calculateChecksum(InputStream in, String algorithm) throws IOException {
+        ArgumentCheck.checkNotNull(in, "InputStream in");
+        MessageDigest md = getMessageDigest(algorithm);
+        StreamUtils.readToEnd(new DigestInputStream(in, md));
+        return createWarcDigest(algorithm, md.digest());
+    }
+
+    /**
+     * Calculates the checksums of a file with several algorithms, while only reading the file once.
+     * @param file The file to calculate the checksums of.
+     * @param algorithms The algorithms for the checksum calculations.
+     * @return The checksums of the file wrapped in WarcDigests, mapped by their algorithm.
+     */
+    public static Map<String, WarcDigest> calculateChecksums(File file, String ... algorithms) {
+        ArgumentCheck.checkExistsNormalFile(file, "File file");
+        Map<String, MessageDigest> messageDigests = new LinkedHashMap<String, MessageDigest>();
+        for(String algorithm : algorithms) {
+            messageDigests.put(algorithm, getMessageDigest(algorithm));
+        }
+        try (InputStream in = new FileInputStream(file)) {
+            byte[] buffer = new byte[CHECKSUM_BUFFER_SIZE];
+            int bytesRead;
+            while((bytesRead = in.read(buffer)) != -1) {
+                for(MessageDigest md : messageDigests.values()) {
+                    md.update(buffer, 0, bytesRead);
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not calculate the checksums of the file '" 
+                    + file.getAbsolutePath() + "'", e);
+        }
+        
+        Map<String, WarcDigest> res = new LinkedHashMap<String, WarcDigest>();
+        for(Map.Entry<String, MessageDigest> entry : messageDigests.entrySet()) {
+            res.put(entry.getKey(), createWarcDigest(entry.getKey(), entry.getValue().digest()));
+        }
+        return res;
+    }
+
+    /**
+     * Retrieves the message digest for the given algorithm.
+     * @param algorithm The algorithm for the checksum calculation.
+     * @return The message digest.
+     */
+    public static MessageDigest getMessageDigest(String algorithm) {
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("Unknown checksum algorithm '" + algorithm + "'", e);
+        }
+    }
+
+    /**
+     * Wraps the result of a checksum calculation in a WarcDigest, with the checksum in base16.
+     * @param algorithm The algorithm used for the checksum calculation.
+     * @param digest The calculated checksum.
+     * @return The checksum wrapped in a WarcDigest.
+     */
+    public static WarcDigest createWarcDigest(String algorithm, byte[] digest) {
+        return WarcDigest.createWarcDigest(algorithm, digest, "base16", Base16Utils.encodeBase16(digest));
+    }
+
     /**
      * Validates that a collection of checksum complete pillar events have the same checksum for the same file. 
      * It will throw an exception if no results are found.
@@ -1,8 +1,6 @@
 package dk.kb.ginnungagap.utils;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.StandardCopyOption;
@@ -36,6 +34,7 @@ public class FileUtils {
     /**
      * Method for moving a file from one position to another.
      * It will override the destination file, if it already exists.
+     * Within the same file system the file is just renamed, otherwise the file system copies it.
      * @param from The file to move from.
      * @param to The file to move to.
      */
@@ -46,8 +45,7 @@ public class FileUtils {
         long moveDate = from.lastModified();
         
         try {
-            StreamUtils.copyInputStreamToOutputStream(new FileInputStream(from), new FileOutputStream(to));
-            deleteFile(from);
+            Files.move(from.toPath(), to.toPath(), StandardCopyOption.REPLACE_EXISTING);
         } catch (IOException e) {
             throw new IllegalStateException("Could not move the file '" + from.getAbsolutePath() 
                     + "' to the location '" + to.getAbsolutePath() + "'", e);
@@ -0,0 +1,49 @@
+package dk.kb.ginnungagap.utils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.jwat.warc.WarcReader;
+import org.jwat.warc.WarcRecord;
+
+/**
+ * A WARC record, which has been read directly at its offset in the WARC file from the WARC index.
+ * The reader, and thereby the payload of the record, is open until this is closed.
+ */
+public class IndexedWarcRecord implements Closeable {
+    /** The reader positioned at the record.*/
+    protected final WarcReader reader;
+    /** The stream of the WARC file, which the reader reads from.*/
+    protected final InputStream in;
+    /** The WARC record.*/
+    protected final WarcRecord record;
+    
+    /**
+     * Constructor.
+     * @param reader The reader positioned at the record.
+     * @param in The stream of the WARC file, which the reader reads from.
+     * @param record The WARC record.
+     */
+    protected IndexedWarcRecord(WarcReader reader, InputStream in, WarcRecord record) {
+        this.reader = reader;
+        this.in = in;
+        this.record = record;
+    }
+    
+    /**
+     * @return The WARC record.
+     */
+    public WarcRecord getRecord() {
+        return record;
+    }
+    
+    @Override
+    public void close() throws IOException {
+        try {
+            reader.close();
+        } finally {
+            in.close();
+        }
+    }
+}
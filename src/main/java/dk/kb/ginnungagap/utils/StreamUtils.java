@@ -1,10 +1,14 @@
 package dk.kb.ginnungagap.utils;
 
 import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
@@ -18,6 +22,8 @@ public final class StreamUtils {
     
     /**
      * Utility function for moving data from an inputstream to an outputstream.
+     * When copying from a file to a file, the data is transferred directly between the file channels, 
+     * without copying it through a buffer on the heap.
      * 
      * @param in The input stream to copy to the output stream.
      * @param out The output stream where the input stream should be copied.
@@ -30,6 +36,10 @@ public final class StreamUtils {
         }
         
         try {
+            if(in instanceof FileInputStream && out instanceof FileOutputStream) {
+                transferFileChannel(((FileInputStream) in).getChannel(), ((FileOutputStream) out).getChannel());
+                return;
+            }
             byte[] buf = new byte[IO_BUFFER_SIZE];
             int bytesRead;
             while ((bytesRead = in.read(buf)) != -1) {
@@ -42,6 +52,66 @@ public final class StreamUtils {
         }
     }
     
+    /**
+     * Reads the rest of the input stream and discards the data, e.g. to pass all the data through a digesting 
+     * stream. The stream is not closed.
+     * @param in The input stream to read to its end.
+     * @return The number of bytes read.
+     * @throws IOException If any problems occur while reading the stream.
+     */
+    public static long readToEnd(InputStream in) throws IOException {
+        if(in == null) {
+            throw new IllegalArgumentException("InputStream: " + in);
+        }
+        byte[] buf = new byte[IO_BUFFER_SIZE];
+        long res = 0L;
+        int bytesRead;
+        while ((bytesRead = in.read(buf)) != -1) {
+            res += bytesRead;
+        }
+        return res;
+    }
+    
+    /**
+     * Transfers the rest of the source file channel to the target file channel.
+     * The operating system may move the data directly between the files, without copying it into user-space.
+     * If a transfer makes no progress, then the rest is copied through a buffer instead.
+     * @param source The file channel to transfer from, starting at its current position.
+     * @param target The file channel to transfer to, starting at its current position.
+     * @throws IOException If any problems occur with transferring the data between the channels.
+     */
+    public static void transferFileChannel(FileChannel source, FileChannel target) throws IOException {
+        long position = source.position();
+        long size = source.size();
+        while(position < size) {
+            long transferred = source.transferTo(position, size - position, target);
+            if(transferred <= 0) {
+                source.position(position);
+                copyFileChannel(source, target);
+                return;
+            }
+            position += transferred;
+        }
+        source.position(position);
+    }
+    
+    /**
+     * Copies the rest of the source file channel to the target file channel through a buffer.
+     * @param source The file channel to copy from, starting at its current position.
+     * @param target The file channel to copy to, starting at its current position.
+     * @throws IOException If any problems occur with copying the data between the channels.
+     */
+    protected static void copyFileChannel(FileChannel source, FileChannel target) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(IO_BUFFER_SIZE);
+        while(source.read(buffer) != -1) {
+            buffer.flip();
+            while(buffer.hasRemaining()) {
+                target.write(buffer);
+            }
+            buffer.clear();
+        }
+    }
+    
     /**
      * Extracts the content of an input stream as lines.
      * @param is The input stream.
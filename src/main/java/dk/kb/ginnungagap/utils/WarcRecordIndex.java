@@ -0,0 +1,200 @@
+package dk.kb.ginnungagap.utils;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import dk.kb.ginnungagap.exception.ArgumentCheck;
+
+/**
+ * CDX-style index of the records in a WARC file.
+ * 
+ * Each line has the id of a WARC record, the offset of the record in the WARC file, the length of the record, 
+ * and the block digest of the record, separated by spaces. The index lets the readers seek directly to a record,
+ * instead of scanning the WARC file from the start.
+ * 
+ * The index is only a hint. Readers must verify the record found at the offset, and scan the WARC file, 
+ * if it is not the expected record.
+ */
+public class WarcRecordIndex {
+    /** The suffix for the index files. The index of a WARC file is named after the WARC file with this suffix.*/
+    public static final String INDEX_SUFFIX = ".cdx";
+    /** The header line of the index files.*/
+    protected static final String INDEX_HEADER = " CDX warc-record-id offset length digest";
+    /** The separator between the fields of a line in the index files.*/
+    protected static final String FIELD_SEPARATOR = " ";
+    /** The value for a missing digest.*/
+    protected static final String NO_DIGEST = "-";
+    
+    /** The entries of the index, mapped by the id of their WARC record.*/
+    protected final Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+    
+    /**
+     * @param indexDir The directory with the index files.
+     * @param warcId The id (file name) of the WARC file.
+     * @return The index file for the WARC file.
+     */
+    public static File getIndexFile(File indexDir, String warcId) {
+        return new File(indexDir, warcId + INDEX_SUFFIX);
+    }
+    
+    /**
+     * Adds an entry for a WARC record to the index.
+     * @param recordId The id of the WARC record.
+     * @param offset The offset of the WARC record in the WARC file.
+     * @param length The length of the WARC record, including its header.
+     * @param digest The block digest of the WARC record. May be null.
+     */
+    public synchronized void addEntry(String recordId, long offset, long length, String digest) {
+        ArgumentCheck.checkNotNullOrEmpty(recordId, "String recordId");
+        ArgumentCheck.checkNotNegativeLong(offset, "long offset");
+        if(recordId.contains(FIELD_SEPARATOR)) {
+            throw new ArgumentCheck("The WARC record id '" + recordId + "' cannot be indexed.");
+        }
+        entries.put(recordId, new Entry(recordId, offset, length, digest == null ? NO_DIGEST : digest));
+    }
+    
+    /**
+     * Finds the entry for a WARC record. 
+     * Like the sequential scan, it finds the first record whose id contains the given id, when no record has 
+     * exactly the given id.
+     * @param recordId The id of the WARC record, or the UUID in the id of the WARC record.
+     * @return The entry for the WARC record, or null if the index does not have the record.
+     */
+    public synchronized Entry getEntry(String recordId) {
+        Entry res = entries.get(recordId);
+        if(res != null) {
+            return res;
+        }
+        for(Entry entry : entries.values()) {
+            if(entry.getRecordId().contains(recordId)) {
+                return entry;
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * @return The entries of the index, in the order they were added.
+     */
+    public synchronized List<Entry> getEntries() {
+        return new ArrayList<Entry>(entries.values());
+    }
+    
+    /**
+     * @return The number of entries in the index.
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+    
+    /**
+     * Writes the index to a file. The index is written to a temporary file, which is then moved in place, so 
+     * readers never see a partially written index.
+     * @param indexFile The file to write the index to.
+     */
+    public synchronized void write(File indexFile) {
+        File tmpFile = new File(indexFile.getParentFile(), indexFile.getName() + ".tmp");
+        try {
+            try (Writer writer = Files.newBufferedWriter(tmpFile.toPath(), StandardCharsets.UTF_8)) {
+                writer.write(INDEX_HEADER + "\n");
+                for(Entry entry : entries.values()) {
+                    writer.write(entry.getRecordId() + FIELD_SEPARATOR + entry.getOffset() + FIELD_SEPARATOR 
+                            + entry.getLength() + FIELD_SEPARATOR + entry.getDigest() + "\n");
+                }
+            }
+            Files.move(tmpFile.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING, 
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not write the WARC index file '" + indexFile.getAbsolutePath() 
+                    + "'", e);
+        }
+    }
+    
+    /**
+     * Reads an index from a file.
+     * @param indexFile The index file.
+     * @return The index.
+     * @throws IOException If the file cannot be read, or is not a valid index file.
+     */
+    public static WarcRecordIndex read(File indexFile) throws IOException {
+        WarcRecordIndex res = new WarcRecordIndex();
+        try (BufferedReader reader = Files.newBufferedReader(indexFile.toPath(), StandardCharsets.UTF_8)) {
+            String line = reader.readLine();
+            if(line == null || !line.equals(INDEX_HEADER)) {
+                throw new IOException("The file '" + indexFile.getAbsolutePath() + "' is not a WARC index file.");
+            }
+            while((line = reader.readLine()) != null) {
+                if(line.isEmpty()) {
+                    continue;
+                }
+                String[] fields = line.split(FIELD_SEPARATOR);
+                if(fields.length != 4) {
+                    throw new IOException("Invalid line in the WARC index file '" + indexFile.getAbsolutePath() 
+                            + "': " + line);
+                }
+                try {
+                    res.entries.put(fields[0], new Entry(fields[0], Long.parseLong(fields[1]), 
+                            Long.parseLong(fields[2]), fields[3]));
+                } catch (NumberFormatException e) {
+                    throw new IOException("Invalid line in the WARC index file '" + indexFile.getAbsolutePath() 
+                            + "': " + line, e);
+                }
+            }
+        }
+        return res;
+    }
+    
+    /**
+     * An entry in the index for a WARC record.
+     */
+    public static class Entry {
+        /** The id of the WARC record.*/
+        protected final String recordId;
+        /** The offset of the WARC record in the WARC file.*/
+        protected final long offset;
+        /** The length of the WARC record, including its header.*/
+        protected final long length;
+        /** The block digest of the WARC record.*/
+        protected final String digest;
+        
+        /**
+         * Constructor.
+         * @param recordId The id of the WARC record.
+         * @param offset The offset of the WARC record in the WARC file.
+         * @param length The length of the WARC record, including its header.
+         * @param digest The block digest of the WARC record.
+         */
+        protected Entry(String recordId, long offset, long length, String digest) {
+            this.recordId = recordId;
+            this.offset = offset;
+            this.length = length;
+            this.digest = digest;
+        }
+        
+        /** @return The id of the WARC record.*/
+        public String getRecordId() {
+            return recordId;
+        }
+        /** @return The offset of the WARC record in the WARC file.*/
+        public long getOffset() {
+            return offset;
+        }
+        /** @return The length of the WARC record, including its header.*/
+        public long getLength() {
+            return length;
+        }
+        /** @return The block digest of the WARC record.*/
+        public String getDigest() {
+            return digest;
+        }
+    }
+}
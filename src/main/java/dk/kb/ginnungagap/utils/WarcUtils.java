@@ -9,11 +9,18 @@ import java.io.OutputStream;
 import org.jwat.warc.WarcReader;
 import org.jwat.warc.WarcReaderFactory;
 import org.jwat.warc.WarcRecord;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * Class for utility methods regarding WARC files.
+ * 
+ * When the WARC file has an index, the records are read directly at their offset in the WARC file. 
+ * Otherwise, or when the record at the offset is not the expected record, the WARC file is scanned from the start.
  */
 public class WarcUtils {
+    /** The logger.*/
+    private static final Logger log = LoggerFactory.getLogger(WarcUtils.class);
     
     /**
      * Extracts a record from a WARC file and delivers it to the output file.
@@ -24,16 +31,89 @@ public class WarcUtils {
      * if an error occurs while reading the WARC file or writing to the output file.
      */
     public static void extractRecord(File warcFile, String recordId, File outputFile) throws IOException {
+        extractRecord(warcFile, recordId, outputFile, null);
+    }
+    
+    /**
+     * Extracts a record from a WARC file and delivers it to the output file.
+     * @param warcFile The WARC file with the record.
+     * @param recordId The ID of the record to extract.
+     * @param outputFile The file where the record will be delivered.
+     * @param index The index of the WARC file. May be null, if the WARC file has no index.
+     * @throws IOException If the WARC files does not contain a record with the given id, or
+     * if an error occurs while reading the WARC file or writing to the output file.
+     */
+    public static void extractRecord(File warcFile, String recordId, File outputFile, WarcRecordIndex index) 
+            throws IOException {
+        try (IndexedWarcRecord indexedRecord = readIndexedRecord(warcFile, recordId, index)) {
+            if(indexedRecord != null) {
+                writePayload(indexedRecord.getRecord(), outputFile);
+                return;
+            }
+        }
+        
         try (WarcReader reader = WarcReaderFactory.getReader(new FileInputStream(warcFile))) {
             WarcRecord warcRecord = getWarcRecord(reader, recordId);
-
-            try (OutputStream os = new FileOutputStream(outputFile)) {
-                StreamUtils.copyInputStreamToOutputStream(warcRecord.getPayloadContent(), os);
-                os.flush();
-                os.close();
+            writePayload(warcRecord, outputFile);
+        }
+    }
+    
+    /**
+     * Writes the payload of a WARC record to a file.
+     * @param warcRecord The WARC record.
+     * @param outputFile The file where the payload will be written.
+     * @throws IOException If an error occurs while reading the WARC record or writing the file.
+     */
+    public static void writePayload(WarcRecord warcRecord, File outputFile) throws IOException {
+        try (OutputStream os = new FileOutputStream(outputFile)) {
+            StreamUtils.copyInputStreamToOutputStream(warcRecord.getPayloadContent(), os);
+            os.flush();
+            os.close();
+        }
+    }
+    
+    /**
+     * Reads a WARC record directly at its offset from the index of the WARC file.
+     * The record at the offset is verified to have the expected id.
+     * @param warcFile The WARC file with the record.
+     * @param recordId The ID of the record.
+     * @param index The index of the WARC file. May be null, if the WARC file has no index.
+     * @return The WARC record, which must be closed after use, or null if the index does not lead to the record.
+     * @throws IOException If the WARC file cannot be opened.
+     */
+    public static IndexedWarcRecord readIndexedRecord(File warcFile, String recordId, WarcRecordIndex index) 
+            throws IOException {
+        if(index == null) {
+            return null;
+        }
+        WarcRecordIndex.Entry entry = index.getEntry(recordId);
+        if(entry == null || entry.getOffset() >= warcFile.length()) {
+            log.debug("The index of the WARC file '" + warcFile.getName() + "' has no valid entry for the record '" 
+                    + recordId + "'.");
+            return null;
+        }
+        
+        FileInputStream in = new FileInputStream(warcFile);
+        WarcReader reader = null;
+        try {
+            in.getChannel().position(entry.getOffset());
+            reader = WarcReaderFactory.getReader(in);
+            WarcRecord record = reader.getNextRecord();
+            if(record != null && record.header.warcRecordIdStr != null 
+                    && record.header.warcRecordIdStr.contains(recordId)) {
+                return new IndexedWarcRecord(reader, in, record);
             }
+            log.info("The index of the WARC file '" + warcFile.getName() + "' did not lead to the record '" 
+                    + recordId + "'. Scanning the WARC file instead.");
+        } catch (IOException | RuntimeException e) {
+            log.info("Could not read the record '" + recordId + "' at its indexed offset in the WARC file '" 
+                    + warcFile.getName() + "'. Scanning the WARC file instead.", e);
         }
-
+        if(reader != null) {
+            reader.close();
+        }
+        in.close();
+        return null;
     }
     
     /**
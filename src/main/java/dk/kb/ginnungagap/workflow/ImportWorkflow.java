@@ -21,6 +21,8 @@ public class ImportWorkflow extends Workflow {
             + "asset file from the archive.";
     /** The name of this workflow.*/
     protected static final String WORKFLOW_NAME = "Importation Workflow";
+    /** The name of the schedule for this workflow in the workflow configuration.*/
+    protected static final String SCHEDULE_NAME = "import";
     
     /** The Cumulus Server.*/
     @Autowired
@@ -34,7 +36,7 @@ public class ImportWorkflow extends Workflow {
         List<WorkflowStep> steps = new ArrayList<WorkflowStep>();
         for(String catalogName : conf.getCumulusConf().getCatalogs()) {
             steps.add(new ImportationStep(cumulusWrapper.getServer(), archive, catalogName, 
-                    conf.getWorkflowConf().getRetainDir()));
+                    conf.getWorkflowConf().getRetainDir(), conf.getCumulusPagingConf()));
         }
         return steps;
     }
@@ -53,4 +55,9 @@ public class ImportWorkflow extends Workflow {
     public String getName() {
         return WORKFLOW_NAME;
     }
+
+    @Override
+    protected String getScheduleName() {
+        return SCHEDULE_NAME;
+    }
 }
@@ -1,9 +1,13 @@
 package dk.kb.ginnungagap.workflow;
 
+import dk.kb.cumulus.CumulusQuery;
 import dk.kb.ginnungagap.archive.BitmagPreserver;
+import dk.kb.ginnungagap.config.PipelineConfiguration;
+import dk.kb.ginnungagap.cumulus.CumulusQueryUtils;
 import dk.kb.ginnungagap.cumulus.CumulusWrapper;
 import dk.kb.ginnungagap.transformation.MetadataTransformationHandler;
 import dk.kb.ginnungagap.workflow.schedule.WorkflowStep;
+import dk.kb.ginnungagap.workflow.steps.PipelinePreservationStep;
 import dk.kb.ginnungagap.workflow.steps.PreservationFinalizationStep;
 import dk.kb.ginnungagap.workflow.steps.PreservationStep;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -20,6 +24,8 @@ import java.util.List;
  * Each Cumulus record will first be validated against its required fields, 
  * then all the metadata fields are extracted and transformed.
  * And finally the asset (content file) and transformed metadata will be packaged and sent to the bitrepository.
+ * 
+ * The workflow can be started, when the number of records ready for preservation reaches a threshold.
  */
 @Component
 public class PreservationWorkflow extends Workflow {
@@ -28,6 +34,8 @@ public class PreservationWorkflow extends Workflow {
             "Preserves all the Cumulus records, which have been set to 'Send til Langtidsbevaring'.";
     /** The name of this workflow.*/
     protected static final String WORKFLOW_NAME = "Preservation Workflow";
+    /** The name of the schedule for this workflow in the workflow configuration.*/
+    protected static final String SCHEDULE_NAME = "preservation";
     
     /** The Cumulus server.*/
     @Autowired
@@ -42,9 +50,16 @@ public class PreservationWorkflow extends Workflow {
     @Override
     protected Collection<WorkflowStep> createSteps() {
         List<WorkflowStep> steps = new ArrayList<>();
+        PipelineConfiguration pipelineConf = conf.getWorkflowConf().getPipelineConf();
         for(String catalogName : conf.getCumulusConf().getCatalogs()) {
-            steps.add(new PreservationStep(conf.getTransformationConf(), cumulusWrapper.getServer(), 
-                    transformationHandler, preserver, catalogName));
+            if(pipelineConf != null) {
+                steps.add(new PipelinePreservationStep(conf.getTransformationConf(), cumulusWrapper.getServer(), 
+                        transformationHandler, preserver, catalogName, pipelineConf, conf.getCumulusPagingConf()));
+            } else {
+                steps.add(new PreservationStep(conf.getTransformationConf(), cumulusWrapper.getServer(), 
+                        transformationHandler, preserver, catalogName, 
+                        conf.getWorkflowConf().getPreservationThreads(), conf.getCumulusPagingConf()));
+            }
         }
         steps.add(new PreservationFinalizationStep(preserver));
         return steps;
@@ -60,6 +75,28 @@ public class PreservationWorkflow extends Workflow {
         return WORKFLOW_NAME;
     }
 
+    @Override
+    protected String getScheduleName() {
+        return SCHEDULE_NAME;
+    }
+
+    /**
+     * Counts the records, which are ready for preservation in the catalogs, until the threshold is reached.
+     */
+    @Override
+    protected boolean isReadyThresholdReached(int threshold) {
+        int readyRecords = 0;
+        for(String catalogName : conf.getCumulusConf().getCatalogs()) {
+            CumulusQuery query = CumulusQueryUtils.getPreservationAllQuery(catalogName);
+            readyRecords += cumulusWrapper.getServer().getItems(catalogName, query).getCount();
+            if(readyRecords >= threshold) {
+                return true;
+            }
+        }
+        log.debug("Only " + readyRecords + " records are ready for preservation.");
+        return false;
+    }
+
     @Override
     public Long getInterval() {
         return conf.getWorkflowConf().getInterval();
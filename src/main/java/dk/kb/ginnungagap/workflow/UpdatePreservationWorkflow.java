@@ -30,6 +30,8 @@ public class UpdatePreservationWorkflow extends Workflow {
             + "for records with new/changed metadata, which is ready for preservation update.";
     /** The name of this workflow.*/
     protected static final String WORKFLOW_NAME = "Update Preservation Workflow";
+    /** The name of the schedule for this workflow in the workflow configuration.*/
+    protected static final String SCHEDULE_NAME = "update";
     
     /** The Cumulus server.*/
     @Autowired
@@ -66,4 +68,9 @@ public class UpdatePreservationWorkflow extends Workflow {
     public String getName() {
         return WORKFLOW_NAME;
     }
+
+    @Override
+    protected String getScheduleName() {
+        return SCHEDULE_NAME;
+    }
 }
@@ -1,6 +1,8 @@
 package dk.kb.ginnungagap.workflow;
 
+import dk.kb.ginnungagap.archive.Archive;
 import dk.kb.ginnungagap.archive.ArchiveWrapper;
+import dk.kb.ginnungagap.archive.ConcurrencyLimitedArchive;
 import dk.kb.ginnungagap.cumulus.CumulusWrapper;
 import dk.kb.ginnungagap.workflow.schedule.WorkflowStep;
 import dk.kb.ginnungagap.workflow.steps.FullValidationStep;
@@ -20,6 +22,11 @@ import java.util.List;
  * The simple validation just checks the default checksum for the WARC file.
  * 
  * The full validation retrieves the file and validates the specific WARC-record.
+ * 
+ * The WARC files may be validated concurrently, and the number of concurrent operations on the archive may be
+ * limited across all the validation steps.
+ * 
+ * The validation may run while the other workflows are running on the same catalogs.
  */
 @Component
 public class ValidationWorkflow extends Workflow {
@@ -31,6 +38,8 @@ public class ValidationWorkflow extends Workflow {
             + "both WARC file checksum, WARC record size, and WARC record checksum.";
     /** The name of this workflow.*/
     protected static final String WORKFLOW_NAME = "Validation Workflow";
+    /** The name of the schedule for this workflow in the workflow configuration.*/
+    protected static final String SCHEDULE_NAME = "validation";
     
     /** The Cumulus Server.*/
     @Autowired
@@ -42,9 +51,17 @@ public class ValidationWorkflow extends Workflow {
     @Override
     protected Collection<WorkflowStep> createSteps() {
         List<WorkflowStep> steps = new ArrayList<WorkflowStep>();
+        int validationThreads = conf.getWorkflowConf().getValidationThreads();
+        Archive validationArchive = archive;
+        if(conf.getWorkflowConf().getMaxArchiveOperations() > 0) {
+            validationArchive = new ConcurrencyLimitedArchive(archive, 
+                    conf.getWorkflowConf().getMaxArchiveOperations());
+        }
         for(String catalogName : conf.getCumulusConf().getCatalogs()) {
-            steps.add(new SimpleValidationStep(server.getServer(), catalogName, archive));
-            steps.add(new FullValidationStep(server.getServer(), catalogName, archive, conf));
+            steps.add(new SimpleValidationStep(server.getServer(), catalogName, validationArchive, 
+                    validationThreads, conf.getCumulusPagingConf()));
+            steps.add(new FullValidationStep(server.getServer(), catalogName, validationArchive, conf, 
+                    validationThreads, conf.getCumulusPagingConf()));
         }
         return steps;
     }
@@ -59,8 +76,22 @@ public class ValidationWorkflow extends Workflow {
         return -1L;
     }
 
+    /**
+     * The validation only reads the preserved files and writes the results of the validation, so it does not
+     * have to wait for the other workflows to finish with the catalogs.
+     */
+    @Override
+    protected boolean locksCatalogs() {
+        return false;
+    }
+
     @Override
     public String getName() {
         return WORKFLOW_NAME;
     }
+
+    @Override
+    protected String getScheduleName() {
+        return SCHEDULE_NAME;
+    }
 }
@@ -2,8 +2,13 @@ package dk.kb.ginnungagap.workflow;
 
 import dk.kb.ginnungagap.MailDispatcher;
 import dk.kb.ginnungagap.config.Configuration;
+import dk.kb.ginnungagap.config.ScheduleConfiguration;
+import dk.kb.ginnungagap.config.WorkflowConfiguration;
 import dk.kb.ginnungagap.utils.CalendarUtils;
 import dk.kb.ginnungagap.workflow.reporting.WorkflowReport;
+import dk.kb.ginnungagap.workflow.schedule.CatalogLocks;
+import dk.kb.ginnungagap.workflow.schedule.WorkflowSchedule;
+import dk.kb.ginnungagap.workflow.schedule.WorkflowSchedule.ScheduledRun;
 import dk.kb.ginnungagap.workflow.schedule.WorkflowState;
 import dk.kb.ginnungagap.workflow.schedule.WorkflowStep;
 import org.slf4j.Logger;
@@ -14,35 +19,76 @@ import javax.annotation.PostConstruct;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.TimerTask;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
 
 /**
  * Abstract class for workflows.
  * Deals with the generic part of when the workflow should run.
+ * 
+ * The workflows are run concurrently by the scheduler, so a workflow, which changes the records of the catalogs,
+ * holds the lock of a catalog while it runs a step for that catalog.
+ * 
+ * The steps for different catalogs may also be run concurrently within the workflow (see catalog_threads in the
+ * workflow configuration). The steps for the same catalog are still run in their order, and a step for all the 
+ * catalogs, e.g. the finalization of the preservation, is only started when the steps before it have finished.
+ * 
+ * The next run is given by the schedule of the workflow (cron expressions, possibly for specific catalogs), 
+ * or otherwise by its interval. The automatic runs are postponed until the time window of the schedule, 
+ * whereas the manual runs are started at once. The workflow may also be started, when the number of records 
+ * ready for it reaches the threshold of the schedule. An automatic run, which is still running when its time 
+ * window closes, is stopped cleanly: the steps finish the records they have started but no more records are 
+ * started, and the steps for all the catalogs, e.g. the finalization of the preservation, are still run.
+ * The scheduler waits on the workflow until its next run or threshold check, or until it is started manually.
+ * When the scheduler is shut down, the workflow is stopped, which only wakes up the scheduler waiting on it, 
+ * so a running workflow is allowed to finish instead of being interrupted.
  * @author jolf
  */
-public abstract class Workflow extends TimerTask {
+public abstract class Workflow implements Runnable {
     /** The log.*/
     protected final Logger log = LoggerFactory.getLogger(Workflow.class);
     
     /** The text for running the workflow manually.*/
     protected static final String WORKFLOW_MUST_BE_RUN_MANUALLY = "Must be run manual";
+    /** The maximum time in millis the scheduler waits, before checking the workflow again; 1 hour.*/
+    protected static final long MAX_WAIT_FOR_NEXT_CHECK = 3600000L;
     
     /** The date for the next run of the workflow.*/
-    protected Date nextRun;
+    protected volatile Date nextRun;
     /** The current state of the workflow.*/
-    protected WorkflowState state = WorkflowState.NOT_RUNNING;
+    protected volatile WorkflowState state = WorkflowState.NOT_RUNNING;
     /** The status of this workflow.*/
     protected String status = "Has not run yet";
     /** The current step running.*/
-    protected WorkflowStep currentStep = null;
+    protected volatile WorkflowStep currentStep = null;
+    /** The steps currently running, when the steps for several catalogs are run concurrently.*/
+    protected final Set<WorkflowStep> runningSteps = ConcurrentHashMap.newKeySet();
     /** The steps for the workflow.*/
     protected List<WorkflowStep> steps = new ArrayList<>();
     /** The time it took for the latest run. Set to -1 before any runs.*/
     protected Long lastRunTime = -1L;
     /** The name of the catalog for next run.*/
-    protected String catalogForNextRun = null;
+    protected volatile String catalogForNextRun = null;
+    /** Whether the next run has been started manually, and thus must not wait for the time window.*/
+    protected volatile boolean startedManually = false;
+    /** The schedule for the workflow. Null if the workflow only runs at its interval.*/
+    protected WorkflowSchedule schedule = null;
+    /** The time in millis for the next check of the number of records ready for the workflow.*/
+    protected volatile long nextThresholdCheck = 0L;
+    /** The monitor, which the scheduler waits on until the workflow must be checked.*/
+    protected final Object trigger = new Object();
+    /** Whether the workflow has been stopped, and thus must not be scheduled anymore.*/
+    protected volatile boolean stopped = false;
 
     /** The configuration. */
     @Autowired
@@ -50,6 +96,9 @@ public abstract class Workflow extends TimerTask {
     /** The mail dispatcher.*/
     @Autowired
     protected MailDispatcher mailer;
+    /** The locks for the catalogs, which are shared by the workflows.*/
+    @Autowired
+    protected CatalogLocks catalogLocks = new CatalogLocks();
 
     /**
      * Initialization
@@ -57,6 +106,14 @@ public abstract class Workflow extends TimerTask {
     @PostConstruct
     protected void init() {
         this.steps = new ArrayList<WorkflowStep>(createSteps());
+        String scheduleName = getScheduleName();
+        if(scheduleName != null) {
+            ScheduleConfiguration scheduleConf = conf.getWorkflowConf().getSchedule(scheduleName);
+            if(scheduleConf != null) {
+                this.schedule = new WorkflowSchedule(scheduleConf, TimeZone.getDefault());
+                this.nextThresholdCheck = System.currentTimeMillis() + schedule.getThresholdCheckInterval();
+            }
+        }
         readyForNextRun();
     }
     
@@ -81,33 +138,162 @@ public abstract class Workflow extends TimerTask {
      */
     abstract String getDescription();
     
+    /**
+     * Whether the steps of this workflow for a specific catalog must have the catalog to themselves, 
+     * since they change the records of the catalog.
+     * @return Whether the steps must hold the lock of their catalog.
+     */
+    protected boolean locksCatalogs() {
+        return true;
+    }
+    
+    /**
+     * @return The name of the schedule for this workflow in the workflow configuration, or null if the workflow 
+     * cannot be scheduled.
+     */
+    protected String getScheduleName() {
+        return null;
+    }
+    
+    /**
+     * Checks whether enough records are ready for this workflow, so it must be started.
+     * @param threshold The number of ready records, which starts the workflow.
+     * @return Whether the number of ready records has reached the threshold. 
+     * False, if the workflow does not support starting at a threshold.
+     */
+    protected boolean isReadyThresholdReached(int threshold) {
+        return false;
+    }
+    
     @Override
     public void run() {
-        if(state == WorkflowState.WAITING && nextRun.getTime() <= System.currentTimeMillis()) {
-            WorkflowReport report = new WorkflowReport(this);
-            try {
-                lastRunTime = 0L;
-                state = WorkflowState.RUNNING;
-                runWorkflowSteps(report);
-                state = WorkflowState.SUCCEEDED;
-            } catch (RuntimeException e) {
-                report.addWorkflowFailure(e.getMessage());
-                log.warn("Failure while running the workflow '" + getName() + "'", e);
-                state = WorkflowState.ABORTED;
-            } finally {
-                catalogForNextRun = null;
-                mailer.sendReport(report);
-                readyForNextRun();
+        long now = System.currentTimeMillis();
+        if(state == WorkflowState.WAITING && nextRun.getTime() <= now) {
+            if(!startedManually && schedule != null && !schedule.isWithinTimeWindow(new Date(now))) {
+                nextRun = schedule.getNextTimeWindowStart(new Date(now));
+                log.info("Postponing the workflow '" + getName() + "' until its time window at " 
+                        + CalendarUtils.dateToText(nextRun));
+                return;
             }
+            runWorkflow();
+        } else if(isThresholdCheckDue(now)) {
+            checkReadyThreshold(now);
+        }
+    }
+    
+    /**
+     * Runs the workflow, sends the report and makes the workflow ready for the next run.
+     */
+    protected void runWorkflow() {
+        WorkflowReport report = new WorkflowReport(this);
+        try {
+            lastRunTime = 0L;
+            state = WorkflowState.RUNNING;
+            runWorkflowSteps(report);
+            state = WorkflowState.SUCCEEDED;
+        } catch (RuntimeException e) {
+            report.addWorkflowFailure(e.getMessage());
+            log.warn("Failure while running the workflow '" + getName() + "'", e);
+            state = WorkflowState.ABORTED;
+        } finally {
+            catalogForNextRun = null;
+            mailer.sendReport(report);
+            readyForNextRun();
+        }
+    }
+    
+    /**
+     * @param now The current time in millis.
+     * @return Whether the number of records ready for the workflow must be checked.
+     */
+    protected boolean isThresholdCheckDue(long now) {
+        return schedule != null && schedule.getReadyThreshold() > ScheduleConfiguration.NO_THRESHOLD 
+                && state != WorkflowState.RUNNING && nextThresholdCheck <= now;
+    }
+    
+    /**
+     * Checks the number of records ready for the workflow, and runs the workflow for all the catalogs, 
+     * if the threshold is reached within the time window.
+     * @param now The current time in millis.
+     */
+    protected void checkReadyThreshold(long now) {
+        nextThresholdCheck = now + schedule.getThresholdCheckInterval();
+        if(!schedule.isWithinTimeWindow(new Date(now))) {
+            return;
+        }
+        boolean reached;
+        try {
+            reached = isReadyThresholdReached(schedule.getReadyThreshold());
+        } catch (RuntimeException e) {
+            log.warn("Could not check the number of records ready for the workflow '" + getName() + "'", e);
+            return;
+        }
+        if(reached) {
+            log.info("The threshold of " + schedule.getReadyThreshold() + " ready records has been reached, "
+                    + "so the workflow '" + getName() + "' is started.");
+            catalogForNextRun = null;
+            runWorkflow();
+        }
+    }
+    
+    /**
+     * Waits until the workflow must be checked by the scheduler, thus until its next run, until its next check 
+     * of the ready records, or until it is started manually.
+     * The wait is at most one hour, so a missed notification does not stall the workflow.
+     * @throws InterruptedException If the workflow is stopped, or the scheduler is interrupted, while waiting.
+     */
+    public void waitForNextCheck() throws InterruptedException {
+        synchronized(trigger) {
+            long delay = getMillisUntilNextCheck();
+            while(delay > 0 && !stopped) {
+                trigger.wait(delay);
+                delay = getMillisUntilNextCheck();
+            }
+            if(stopped) {
+                throw new InterruptedException("The workflow '" + getName() + "' has been stopped.");
+            }
+        }
+    }
+    
+    /**
+     * Stops the scheduling of this workflow, and wakes up the scheduler waiting on it.
+     * A running workflow is not interrupted, but it will not be checked again after it has finished.
+     */
+    public void stop() {
+        stopped = true;
+        synchronized(trigger) {
+            trigger.notifyAll();
+        }
+    }
+    
+    /**
+     * @return The time in millis until the workflow must be checked, at most one hour.
+     */
+    protected long getMillisUntilNextCheck() {
+        long now = System.currentTimeMillis();
+        long res = MAX_WAIT_FOR_NEXT_CHECK;
+        Date next = nextRun;
+        if(state == WorkflowState.WAITING && next != null) {
+            res = Math.min(res, next.getTime() - now);
         }
+        if(schedule != null && schedule.getReadyThreshold() > ScheduleConfiguration.NO_THRESHOLD) {
+            res = Math.min(res, nextThresholdCheck - now);
+        }
+        return res;
     }
     
     /**
      * The method for actually running the workflow.
      * Goes through all steps, check if they have to be run, and runs them one after the other.
+     * Unless the steps for the catalogs are run concurrently.
      * @param report The report.
      */
     protected void runWorkflowSteps(WorkflowReport report) {
+        int catalogThreads = getCatalogThreads();
+        if(catalogThreads > 1) {
+            runWorkflowStepsConcurrently(catalogThreads, report);
+            return;
+        }
         for(WorkflowStep step : steps) {
             if(step.runForCatalog(catalogForNextRun)) {
                 performStep(step, report);
@@ -116,6 +302,90 @@ public abstract class Workflow extends TimerTask {
         }
     }
     
+    /**
+     * Runs the workflow with the steps for different catalogs running concurrently.
+     * The consecutive steps for specific catalogs are grouped by their catalog, and the groups are run concurrently.
+     * The steps for all catalogs are run alone, when the steps before them have finished.
+     * @param catalogThreads The number of catalogs to run steps for concurrently.
+     * @param report The report.
+     */
+    protected void runWorkflowStepsConcurrently(int catalogThreads, WorkflowReport report) {
+        Map<String, List<WorkflowStep>> catalogSteps = new LinkedHashMap<String, List<WorkflowStep>>();
+        for(WorkflowStep step : steps) {
+            if(!step.runForCatalog(catalogForNextRun)) {
+                lastRunTime += step.getTimeForLastRun();
+                continue;
+            }
+            String catalogName = step.getCatalogName();
+            if(catalogName != null) {
+                catalogSteps.computeIfAbsent(catalogName.toLowerCase(Locale.ROOT), 
+                        k -> new ArrayList<WorkflowStep>()).add(step);
+                continue;
+            }
+            performCatalogSteps(catalogSteps.values(), catalogThreads, report);
+            catalogSteps.clear();
+            performStep(step, report);
+            lastRunTime += step.getTimeForLastRun();
+        }
+        performCatalogSteps(catalogSteps.values(), catalogThreads, report);
+    }
+    
+    /**
+     * Performs the steps for the catalogs, with the catalogs running concurrently.
+     * Waits for all the catalogs to finish, also when the steps for one of the catalogs fails.
+     * @param catalogSteps The steps for each catalog, in the order they must be run.
+     * @param catalogThreads The maximum number of catalogs to run steps for concurrently.
+     * @param report The report for running this workflow.
+     */
+    protected void performCatalogSteps(Collection<List<WorkflowStep>> catalogSteps, int catalogThreads, 
+            WorkflowReport report) {
+        if(catalogSteps.isEmpty()) {
+            return;
+        }
+        long startTime = System.currentTimeMillis();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(catalogThreads, catalogSteps.size()));
+        try {
+            List<Future<?>> results = new ArrayList<Future<?>>();
+            for(List<WorkflowStep> stepsForCatalog : catalogSteps) {
+                results.add(executor.submit(() -> {
+                    for(WorkflowStep step : stepsForCatalog) {
+                        performStep(step, report);
+                    }
+                }));
+            }
+            RuntimeException failure = null;
+            for(Future<?> result : results) {
+                try {
+                    result.get();
+                } catch (ExecutionException e) {
+                    if(failure == null) {
+                        failure = e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() 
+                                : new IllegalStateException("Failed to run the steps for a catalog", e.getCause());
+                    }
+                }
+            }
+            if(failure != null) {
+                throw failure;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while running the steps for the catalogs", e);
+        } finally {
+            executor.shutdownNow();
+            lastRunTime += System.currentTimeMillis() - startTime;
+        }
+    }
+    
+    /**
+     * @return The number of catalogs to run steps for concurrently.
+     */
+    protected int getCatalogThreads() {
+        if(conf == null || conf.getWorkflowConf() == null) {
+            return WorkflowConfiguration.DEFAULT_CATALOG_THREADS;
+        }
+        return conf.getWorkflowConf().getCatalogThreads();
+    }
+    
     /**
      * Initiates the given step and sets it to the current running step.
      * @param step The step to start.
@@ -125,31 +395,59 @@ public abstract class Workflow extends TimerTask {
         if(state != WorkflowState.ABORTED) {
             this.state = WorkflowState.RUNNING;
             this.currentStep = step;
+            String catalogToLock = locksCatalogs() ? step.getCatalogName() : null;
+            if(catalogToLock != null && !catalogLocks.tryLock(catalogToLock)) {
+                log.info("Waiting for other workflows to finish with the catalog '" + catalogToLock + "'");
+                catalogLocks.lock(catalogToLock);
+            }
             log.info("Starting step: '" + step.getName() + "'");
+            step.setStopCondition(this::isStopRequested);
+            runningSteps.add(step);
             try {
                 step.run(report);
             } catch (Exception e) {
                 report.addWorkflowFailure(e.getMessage());
                 log.error("Failure in step: '" + step.getName() + "'.", e);
                 throw new IllegalStateException("Failed to run step " + step.getName(), e);
+            } finally {
+                runningSteps.remove(step);
+                if(catalogToLock != null) {
+                    catalogLocks.unlock(catalogToLock);
+                }
             }
         }
     }
     
+    /**
+     * Whether the running workflow must stop cleanly, since either its time window has closed or the workflow
+     * has been stopped. A manual run is only stopped together with the workflow.
+     * @return Whether the steps must stop before their next record or page.
+     */
+    protected boolean isStopRequested() {
+        if(stopped) {
+            return true;
+        }
+        return !startedManually && schedule != null && !schedule.isWithinTimeWindow(new Date());
+    }
+    
     /**
      * Start the workflow by setting the nextRun time to 'now'.
-     * It will not actually start the workflow immediately, but it will trigger that the timertask is executed 
-     * the next time it is executed by the scheduler.
+     * It will not actually start the workflow immediately, but it will wake up the scheduler waiting on this 
+     * workflow, which will then run it. A manual run is not restricted by the time window of the schedule.
      * @param catalogForNextRun The name of the catalog for next run. Null for all catalogs.
      */
     public void startManually(String catalogForNextRun) {
         this.nextRun = new Date(System.currentTimeMillis());
-        this.state = WorkflowState.WAITING;
+        this.startedManually = true;
         if(catalogForNextRun == null || catalogForNextRun.isEmpty()) {
             this.catalogForNextRun = null;
         } else {
             this.catalogForNextRun = catalogForNextRun;
         }
+        this.state = WorkflowState.WAITING;
+        synchronized(trigger) {
+            trigger.notifyAll();
+        }
     }
     
     /**
@@ -179,9 +477,16 @@ public abstract class Workflow extends TimerTask {
     
     /**
      * Sets this workflow ready for the next run by setting the date for the next run and the state to 'waiting'.
+     * The cron expressions of the schedule are used instead of the interval, when the workflow has any.
      */
     protected void readyForNextRun() {
-        if(getInterval() > 0) {
+        startedManually = false;
+        ScheduledRun scheduledRun = schedule == null ? null : schedule.getNextRun(new Date());
+        if(scheduledRun != null) {
+            nextRun = scheduledRun.getDate();
+            catalogForNextRun = scheduledRun.getCatalogName();
+            state = WorkflowState.WAITING;
+        } else if(getInterval() > 0) {
             Long time = System.currentTimeMillis() + getInterval(); 
             nextRun = new Date(time);
             state = WorkflowState.WAITING;
@@ -208,6 +513,10 @@ public abstract class Workflow extends TimerTask {
      * @return The human readable text for the current state.
      */
     public String getHumanReadableState() {
+        List<WorkflowStep> running = new ArrayList<WorkflowStep>(runningSteps);
+        if(running.size() > 1) {
+            return running.stream().map(WorkflowStep::getName).collect(Collectors.joining(", "));
+        }
         if(currentStep == null) {
             return state.name();
         } else {
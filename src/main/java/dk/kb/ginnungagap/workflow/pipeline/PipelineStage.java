@@ -0,0 +1,250 @@
+package dk.kb.ginnungagap.workflow.pipeline;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import dk.kb.ginnungagap.exception.ArgumentCheck;
+
+/**
+ * A stage in a pipeline, where items are handled by a fixed number of worker threads.
+ * The items are delivered to the stage through a bounded queue, so submitting an item blocks when the queue is full.
+ * This way a slow stage will hold back the stages before it (backpressure).
+ * If the stage is aborted, or all its workers have stopped, then submitting an item fails instead of blocking.
+ *
+ * The stage keeps track of the depth of its queue, the maximum depth, and the number of handled and failed items.
+ *
+ * @param <T> The type of items handled by the stage.
+ */
+public class PipelineStage<T> {
+    /** The logger.*/
+    private static final Logger log = LoggerFactory.getLogger(PipelineStage.class);
+
+    /** The interval in millis for the workers to check whether the input has been closed.*/
+    protected static final long POLL_INTERVAL = 100L;
+
+    /**
+     * The handling of the items in a stage.
+     * @param <T> The type of items.
+     */
+    public interface ItemHandler<T> {
+        /**
+         * Handles the item, and delivers it to the next stage.
+         * @param item The item to handle.
+         * @throws Exception If the handling of the item fails.
+         */
+        void handle(T item) throws Exception;
+    }
+
+    /**
+     * The handling of the items, which failed in a stage.
+     * @param <T> The type of items.
+     */
+    public interface FailureHandler<T> {
+        /**
+         * Handles a failure for an item.
+         * @param item The item, which failed.
+         * @param e The cause of the failure.
+         */
+        void failed(T item, Exception e);
+    }
+
+    /** The name of the stage.*/
+    protected final String name;
+    /** The number of worker threads.*/
+    protected final int threads;
+    /** The bounded queue of items waiting to be handled.*/
+    protected final BlockingQueue<T> queue;
+    /** The handler of the items.*/
+    protected final ItemHandler<T> handler;
+    /** The handler of the failed items.*/
+    protected final FailureHandler<T> failureHandler;
+    /** The executor with the worker threads.*/
+    protected final ExecutorService workers;
+
+    /** The maximum depth of the queue.*/
+    protected final AtomicInteger maxQueueDepth = new AtomicInteger();
+    /** The number of items successfully handled.*/
+    protected final AtomicLong handled = new AtomicLong();
+    /** The number of items, which failed.*/
+    protected final AtomicLong failed = new AtomicLong();
+    /** Whether or not more items may be delivered to the stage.*/
+    protected volatile boolean inputClosed = false;
+    /** Whether or not the worker threads have been started.*/
+    protected volatile boolean started = false;
+    /** The number of worker threads, which are still taking items from the queue.*/
+    protected final AtomicInteger activeWorkers = new AtomicInteger();
+
+    /**
+     * Constructor.
+     * @param name The name of the stage.
+     * @param threads The number of worker threads.
+     * @param queueSize The capacity of the queue.
+     * @param handler The handler of the items.
+     * @param failureHandler The handler of the failed items.
+     */
+    public PipelineStage(String name, int threads, int queueSize, ItemHandler<T> handler,
+            FailureHandler<T> failureHandler) {
+        ArgumentCheck.checkNotNullOrEmpty(name, "String name");
+        ArgumentCheck.checkPositiveInt(threads, "int threads");
+        ArgumentCheck.checkPositiveInt(queueSize, "int queueSize");
+        ArgumentCheck.checkNotNull(handler, "ItemHandler<T> handler");
+        ArgumentCheck.checkNotNull(failureHandler, "FailureHandler<T> failureHandler");
+        this.name = name;
+        this.threads = threads;
+        this.queue = new ArrayBlockingQueue<T>(queueSize);
+        this.handler = handler;
+        this.failureHandler = failureHandler;
+        this.workers = Executors.newFixedThreadPool(threads);
+    }
+
+    /**
+     * Starts the worker threads.
+     */
+    public void start() {
+        activeWorkers.set(threads);
+        started = true;
+        for(int i = 0; i < threads; i++) {
+            workers.execute(() -> work());
+        }
+        workers.shutdown();
+    }
+
+    /**
+     * Delivers an item to the stage. Blocks until there is room for it in the queue.
+     * @param item The item.
+     * @throws InterruptedException If interrupted while waiting for room in the queue.
+     * @throws IllegalStateException If the stage does not accept items, or stops taking them while waiting.
+     */
+    public void submit(T item) throws InterruptedException {
+        checkAcceptsItems();
+        while(!queue.offer(item, POLL_INTERVAL, TimeUnit.MILLISECONDS)) {
+            checkAcceptsItems();
+        }
+        maxQueueDepth.accumulateAndGet(queue.size(), Math::max);
+    }
+
+    /**
+     * Checks that the stage still accepts items, and that it has workers to take them from the queue.
+     * @throws IllegalStateException If the input is closed, or all the workers have stopped.
+     */
+    protected void checkAcceptsItems() {
+        if(inputClosed) {
+            throw new IllegalStateException("The stage '" + name + "' does not accept any more items.");
+        }
+        if(started && activeWorkers.get() == 0) {
+            throw new IllegalStateException("The stage '" + name + "' has no running workers to take the items.");
+        }
+    }
+
+    /**
+     * Tells the stage, that no more items will be delivered, and waits for the workers to handle the remaining
+     * items in the queue.
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    public void finish() throws InterruptedException {
+        inputClosed = true;
+        while(!workers.awaitTermination(1, TimeUnit.MINUTES)) {
+            log.debug("Waiting for stage: " + this);
+        }
+    }
+
+    /**
+     * Stops the workers immediately. Any items in the queue will not be handled.
+     */
+    public void abort() {
+        inputClosed = true;
+        workers.shutdownNow();
+        queue.clear();
+    }
+
+    /**
+     * The work loop for the worker threads.
+     * Handles items until the input has been closed and the queue is empty.
+     */
+    protected void work() {
+        try {
+            while(!inputClosed || !queue.isEmpty()) {
+                T item = queue.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+                if(item == null) {
+                    continue;
+                }
+                try {
+                    handler.handle(item);
+                    handled.incrementAndGet();
+                } catch (InterruptedException e) {
+                    failureHandler.failed(item, e);
+                    failed.incrementAndGet();
+                    throw e;
+                } catch (Exception e) {
+                    failureHandler.failed(item, e);
+                    failed.incrementAndGet();
+                }
+            }
+        } catch (InterruptedException e) {
+            log.warn("Worker in stage '" + name + "' was interrupted.", e);
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            log.error("Worker in stage '" + name + "' failed.", e);
+        } finally {
+            if(activeWorkers.decrementAndGet() == 0 && !inputClosed) {
+                log.warn("All the workers in stage '" + name + "' stopped, before the input was closed.");
+            }
+        }
+    }
+
+    /**
+     * @return The name of the stage.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return The number of worker threads.
+     */
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * @return The current number of items waiting in the queue.
+     */
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    /**
+     * @return The maximum number of items, which have been waiting in the queue.
+     */
+    public int getMaxQueueDepth() {
+        return maxQueueDepth.get();
+    }
+
+    /**
+     * @return The number of items successfully handled.
+     */
+    public long getHandled() {
+        return handled.get();
+    }
+
+    /**
+     * @return The number of items, which failed.
+     */
+    public long getFailed() {
+        return failed.get();
+    }
+
+    @Override
+    public String toString() {
+        return name + " [threads: " + threads + ", queue: " + getQueueDepth() + " (max " + getMaxQueueDepth()
+                + "), handled: " + getHandled() + ", failed: " + getFailed() + "]";
+    }
+}
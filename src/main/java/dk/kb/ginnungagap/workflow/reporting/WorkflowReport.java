@@ -10,6 +10,8 @@ import java.util.stream.Collectors;
 
 /**
  * Class for creating a report for a workflow.
+ * Records may be reported concurrently from several threads, and the report is read under the same lock, 
+ * so it is always consistent.
  */
 public class WorkflowReport {
 
@@ -33,7 +35,7 @@ public class WorkflowReport {
      * @param recordID The ID of the record.
      * @param catalogName The name of the catalog for the record.
      */
-    public void addSuccessRecord(String recordID, String catalogName) {
+    public synchronized void addSuccessRecord(String recordID, String catalogName) {
         getCatalogReport(catalogName).addSuccessRecord(recordID);
     }
 
@@ -43,7 +45,7 @@ public class WorkflowReport {
      * @param cause The cause for the failure.
      * @param catalogName The name of the catalog for the record.
      */
-    public void addFailedRecord(String recordID, String cause, String catalogName) {
+    public synchronized void addFailedRecord(String recordID, String cause, String catalogName) {
         getCatalogReport(catalogName).addFailedRecord(recordID, cause);
     }
 
@@ -51,7 +53,7 @@ public class WorkflowReport {
      * Adds a failure for the entire workflow.
      * @param cause The description of the failure of the workflow.
      */
-    public void addWorkflowFailure(String cause) {
+    public synchronized void addWorkflowFailure(String cause) {
         otherFailure.add(cause);
     }
 
@@ -67,7 +69,7 @@ public class WorkflowReport {
      * Creates the mail content.
      * @return The mail content for this report.
      */
-    public String getMainContentForMail() {
+    public synchronized String getMainContentForMail() {
         StringBuffer res = new StringBuffer();
         res.append("Report for workflow: ");
         res.append(workflowName);
@@ -107,7 +109,7 @@ public class WorkflowReport {
     /**
      * @return The success content for the mail (to be an attachment).
      */
-    public String getSuccessContentForMail() {
+    public synchronized String getSuccessContentForMail() {
         StringBuffer res = new StringBuffer();
         for(Map.Entry<String, CatalogReport> entry : catalogReports.entrySet()) {
             res.append("Successes for catalog: ");
@@ -129,7 +131,7 @@ public class WorkflowReport {
     /**
      * @return The failure content for the mail (to be an attachment).
      */
-    public String getFailedContentForMail() {
+    public synchronized String getFailedContentForMail() {
         StringBuffer res = new StringBuffer();
         for(Map.Entry<String, CatalogReport> entry : catalogReports.entrySet()) {
             res.append("Failures for catalog: ");
@@ -153,7 +155,7 @@ public class WorkflowReport {
     /**
      * @return Whether or not any incidents have been reported.
      */
-    public boolean hasContent() {
+    public synchronized boolean hasContent() {
         return !catalogReports.isEmpty() || !otherFailure.isEmpty();
     }
 
@@ -170,7 +172,7 @@ public class WorkflowReport {
      * @param catalogName The name of the catalog whose report should be retrieved.
      * @return The catalog report for the catalog.
      */
-    protected CatalogReport getCatalogReport(String catalogName) {
+    protected synchronized CatalogReport getCatalogReport(String catalogName) {
         if(!catalogReports.containsKey(catalogName)) {
             catalogReports.put(catalogName, new CatalogReport(catalogName));
         }
@@ -180,7 +182,7 @@ public class WorkflowReport {
     /**
      * @return The number of successes.
      */
-    public long getNumberOfSuccesses() {
+    public synchronized long getNumberOfSuccesses() {
         return catalogReports.values().stream().collect(
                 Collectors.summarizingInt(CatalogReport::getNumberOfSuccess)).getSum();
     }
@@ -188,7 +190,7 @@ public class WorkflowReport {
     /**
      * @return The number of failures.
      */
-    public long getNumberOfFailures() {
+    public synchronized long getNumberOfFailures() {
         return catalogReports.values().stream().collect(
                 Collectors.summarizingInt(CatalogReport::getNumberOfFailed)).getSum();
     }
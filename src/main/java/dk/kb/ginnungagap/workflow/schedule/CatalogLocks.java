@@ -0,0 +1,70 @@
+package dk.kb.ginnungagap.workflow.schedule;
+
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.springframework.stereotype.Component;
+
+import dk.kb.ginnungagap.exception.ArgumentCheck;
+
+/**
+ * The locks for the Cumulus catalogs, which the workflows use for not changing the same catalog at the same time.
+ *
+ * Each workflow step for a specific catalog, which changes the records of the catalog, must hold the lock of the
+ * catalog while it runs. The catalog names are case insensitive, like for the steps.
+ * The locks are fair, so the workflows waiting for a catalog get it in the order they asked for it.
+ */
+@Component
+public class CatalogLocks {
+    /** The locks mapped by the lowercase name of the catalog.*/
+    protected final ConcurrentMap<String, ReentrantLock> locks = new ConcurrentHashMap<String, ReentrantLock>();
+
+    /**
+     * Acquires the lock for a catalog, and waits until it is available.
+     * @param catalogName The name of the catalog.
+     */
+    public void lock(String catalogName) {
+        try {
+            getLock(catalogName).lockInterruptibly();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for the catalog '" + catalogName + "'.", e);
+        }
+    }
+
+    /**
+     * Acquires the lock for a catalog, if it is available.
+     * @param catalogName The name of the catalog.
+     * @return Whether the lock was acquired.
+     */
+    public boolean tryLock(String catalogName) {
+        return getLock(catalogName).tryLock();
+    }
+
+    /**
+     * Releases the lock for a catalog. Must only be called by the thread holding the lock.
+     * @param catalogName The name of the catalog.
+     */
+    public void unlock(String catalogName) {
+        getLock(catalogName).unlock();
+    }
+
+    /**
+     * @param catalogName The name of the catalog.
+     * @return Whether the lock for the catalog is held by any thread.
+     */
+    public boolean isLocked(String catalogName) {
+        return getLock(catalogName).isLocked();
+    }
+
+    /**
+     * @param catalogName The name of the catalog.
+     * @return The lock for the catalog.
+     */
+    protected ReentrantLock getLock(String catalogName) {
+        ArgumentCheck.checkNotNullOrEmpty(catalogName, "String catalogName");
+        return locks.computeIfAbsent(catalogName.toLowerCase(Locale.ROOT), k -> new ReentrantLock(true));
+    }
+}
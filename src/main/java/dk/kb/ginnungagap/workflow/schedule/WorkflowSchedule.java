@@ -0,0 +1,150 @@
+package dk.kb.ginnungagap.workflow.schedule;
+
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TimeZone;
+
+import org.springframework.scheduling.support.CronSequenceGenerator;
+
+import dk.kb.ginnungagap.config.ScheduleConfiguration;
+import dk.kb.ginnungagap.exception.ArgumentCheck;
+
+/**
+ * The schedule for when a workflow must be started automatically.
+ * 
+ * Calculates the next run from the cron expressions of the workflow and its catalogs, and whether a given time
+ * is within the time window for the automatic runs.
+ */
+public class WorkflowSchedule {
+    /** The configuration for the schedule.*/
+    protected final ScheduleConfiguration conf;
+    /** The time zone of the cron expressions and the time window.*/
+    protected final TimeZone timeZone;
+    /** The cron sequence for all the catalogs. Null if no cron expression.*/
+    protected final CronSequenceGenerator cron;
+    /** The cron sequences for the specific catalogs, mapped by the catalog name.*/
+    protected final Map<String, CronSequenceGenerator> catalogCrons;
+
+    /**
+     * Constructor.
+     * @param conf The configuration for the schedule.
+     * @param timeZone The time zone of the cron expressions and the time window.
+     */
+    public WorkflowSchedule(ScheduleConfiguration conf, TimeZone timeZone) {
+        ArgumentCheck.checkNotNull(conf, "ScheduleConfiguration conf");
+        ArgumentCheck.checkNotNull(timeZone, "TimeZone timeZone");
+        this.conf = conf;
+        this.timeZone = timeZone;
+        this.cron = conf.getCron() == null ? null : new CronSequenceGenerator(conf.getCron(), timeZone);
+        this.catalogCrons = new LinkedHashMap<String, CronSequenceGenerator>();
+        for(Map.Entry<String, String> catalogCron : conf.getCatalogCrons().entrySet()) {
+            catalogCrons.put(catalogCron.getKey(), new CronSequenceGenerator(catalogCron.getValue(), timeZone));
+        }
+    }
+
+    /**
+     * Finds the next run according to the cron expressions. 
+     * If several cron expressions give the same time, then the one for all catalogs is preferred.
+     * @param after The time after which to find the next run.
+     * @return The next run, or null if the schedule has no cron expressions.
+     */
+    public ScheduledRun getNextRun(Date after) {
+        ScheduledRun res = null;
+        if(cron != null) {
+            res = new ScheduledRun(cron.next(after), null);
+        }
+        for(Map.Entry<String, CronSequenceGenerator> catalogCron : catalogCrons.entrySet()) {
+            Date next = catalogCron.getValue().next(after);
+            if(res == null || next.before(res.getDate())) {
+                res = new ScheduledRun(next, catalogCron.getKey());
+            }
+        }
+        return res;
+    }
+
+    /**
+     * @param date The time to check.
+     * @return Whether the time is within the time window, or true if the schedule has no time window.
+     */
+    public boolean isWithinTimeWindow(Date date) {
+        if(conf.getWindowStart() == null) {
+            return true;
+        }
+        LocalTime time = toLocalDateTime(date).toLocalTime();
+        LocalTime start = conf.getWindowStart();
+        LocalTime end = conf.getWindowEnd();
+        if(start.isBefore(end)) {
+            return !time.isBefore(start) && time.isBefore(end);
+        }
+        return !time.isBefore(start) || time.isBefore(end);
+    }
+
+    /**
+     * @param date The time to find the next start of the time window from.
+     * @return The given time, if it is within the time window, otherwise the next start of the time window.
+     */
+    public Date getNextTimeWindowStart(Date date) {
+        if(isWithinTimeWindow(date)) {
+            return date;
+        }
+        LocalDateTime time = toLocalDateTime(date);
+        LocalDateTime start = time.toLocalDate().atTime(conf.getWindowStart());
+        if(start.isBefore(time)) {
+            start = start.plusDays(1);
+        }
+        return Date.from(start.atZone(timeZone.toZoneId()).toInstant());
+    }
+
+    /** @return The number of ready records, which starts the workflow, or zero for no threshold.*/
+    public int getReadyThreshold() {
+        return conf.getReadyThreshold();
+    }
+
+    /** @return The interval in millis between checking the number of ready records.*/
+    public long getThresholdCheckInterval() {
+        return conf.getThresholdCheckInterval() * 1000L;
+    }
+
+    /**
+     * @param date The date.
+     * @return The date as local time in the time zone of the schedule.
+     */
+    protected LocalDateTime toLocalDateTime(Date date) {
+        ZoneId zone = timeZone.toZoneId();
+        return LocalDateTime.ofInstant(date.toInstant(), zone);
+    }
+
+    /**
+     * A run of the workflow according to a cron expression.
+     */
+    public static class ScheduledRun {
+        /** The time of the run.*/
+        protected final Date date;
+        /** The name of the catalog for the run. Null for all catalogs.*/
+        protected final String catalogName;
+
+        /**
+         * Constructor.
+         * @param date The time of the run.
+         * @param catalogName The name of the catalog for the run. Null for all catalogs.
+         */
+        public ScheduledRun(Date date, String catalogName) {
+            this.date = date;
+            this.catalogName = catalogName;
+        }
+
+        /** @return The time of the run.*/
+        public Date getDate() {
+            return date;
+        }
+
+        /** @return The name of the catalog for the run. Null for all catalogs.*/
+        public String getCatalogName() {
+            return catalogName;
+        }
+    }
+}
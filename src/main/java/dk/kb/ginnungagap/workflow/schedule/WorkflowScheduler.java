@@ -1,12 +1,15 @@
 package dk.kb.ginnungagap.workflow.schedule;
 
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
@@ -14,17 +17,28 @@ import dk.kb.ginnungagap.workflow.ImportWorkflow;
 import dk.kb.ginnungagap.workflow.PreservationWorkflow;
 import dk.kb.ginnungagap.workflow.UpdatePreservationWorkflow;
 import dk.kb.ginnungagap.workflow.ValidationWorkflow;
+import dk.kb.ginnungagap.workflow.Workflow;
 
 /**
  * The workflow scheduler for scheduling the workflows.
  * 
- * Wraps a ScheduledExecutorService, which checks whether to run any of workflows once every second.
- * It is the workflows themselves, who checks their conditions and performs their tasks if the conditions are met.
+ * Wraps an ExecutorService with a thread for each workflow. Each thread waits on its workflow until the workflow 
+ * must be checked (at its next run, at its next check of the ready records, or when it is started manually), 
+ * and then lets the workflow check its conditions and perform its tasks if the conditions are met.
+ * 
+ * Since each workflow has its own thread, a long running workflow does not prevent the other workflows 
+ * from starting. The workflows, which change the same catalog, do not run their steps for the catalog at the 
+ * same time, since they share the catalog locks.
  */
 @Service
 public class WorkflowScheduler {
-    /** The interval for the timer, so it .*/
-    protected static final long TIMER_INTERVAL = 1000L;
+    /** The logger.*/
+    private static final Logger log = LoggerFactory.getLogger(WorkflowScheduler.class);
+    
+    /** The number of workflows, and thus the number of threads for running them.*/
+    protected static final int NUMBER_OF_WORKFLOWS = 4;
+    /** The maximum time in millis to wait for the running workflows to finish at shut down; 1 hour.*/
+    protected static final long MAX_WAIT_FOR_SHUTDOWN = 3600000L;
     
     /** The preservation workflow.*/
     @Autowired
@@ -39,20 +53,35 @@ public class WorkflowScheduler {
     @Autowired
     ImportWorkflow importWorkflow;
     
-    /** The timer for running the TimerTasks.*/
-    ScheduledExecutorService executorService;
+    /** The executor for running the workflows.*/
+    ExecutorService executorService;
+    
+    /** The time in millis to wait for the running workflows to finish at shut down.*/
+    long shutdownTimeout = MAX_WAIT_FOR_SHUTDOWN;
     
     /**
-     * Method for shutting down this service.
+     * Method for shutting down this service. 
+     * Stops the workflows, which only wakes up the threads waiting on them, and waits for the running workflows 
+     * to finish, since interrupting them would close the files they are writing.
+     * The threads are only interrupted, if the workflows have not finished within the timeout.
      */
     @PreDestroy
     public void shutDown() {
-        preservationWorkflow.cancel();
-        updateWorkflow.cancel();
-        validationWorkflow.cancel();
-        importWorkflow.cancel();
-        
-        executorService.shutdownNow();
+        for(Workflow workflow : Arrays.asList(preservationWorkflow, updateWorkflow, validationWorkflow, 
+                importWorkflow)) {
+            workflow.stop();
+        }
+        executorService.shutdown();
+        try {
+            if(!executorService.awaitTermination(shutdownTimeout, TimeUnit.MILLISECONDS)) {
+                log.warn("The workflows did not finish within " + shutdownTimeout + " ms, and are interrupted.");
+                executorService.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            log.warn("Interrupted while waiting for the workflows to finish.", e);
+            executorService.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
     }
     
     /**
@@ -60,15 +89,30 @@ public class WorkflowScheduler {
      */
     @PostConstruct
     public void scheduleWorkflows() {
-        executorService = Executors.newSingleThreadScheduledExecutor();
+        executorService = Executors.newFixedThreadPool(NUMBER_OF_WORKFLOWS);
         
-        executorService.scheduleAtFixedRate(preservationWorkflow, TIMER_INTERVAL, 
-                TIMER_INTERVAL, TimeUnit.MILLISECONDS);
-        executorService.scheduleAtFixedRate(updateWorkflow, TIMER_INTERVAL, 
-                TIMER_INTERVAL, TimeUnit.MILLISECONDS);
-        executorService.scheduleAtFixedRate(validationWorkflow, TIMER_INTERVAL, 
-                TIMER_INTERVAL, TimeUnit.MILLISECONDS);
-        executorService.scheduleAtFixedRate(importWorkflow, TIMER_INTERVAL, 
-                TIMER_INTERVAL, TimeUnit.MILLISECONDS);
+        executorService.submit(() -> runWorkflow(preservationWorkflow));
+        executorService.submit(() -> runWorkflow(updateWorkflow));
+        executorService.submit(() -> runWorkflow(validationWorkflow));
+        executorService.submit(() -> runWorkflow(importWorkflow));
+    }
+    
+    /**
+     * Runs a workflow whenever it must be checked, until the scheduler is shut down.
+     * @param workflow The workflow.
+     */
+    protected void runWorkflow(Workflow workflow) {
+        try {
+            while(!Thread.currentThread().isInterrupted()) {
+                workflow.waitForNextCheck();
+                try {
+                    workflow.run();
+                } catch (RuntimeException e) {
+                    log.error("Unexpected failure when running a workflow.", e);
+                }
+            }
+        } catch (InterruptedException e) {
+            log.debug("Stopped scheduling a workflow.", e);
+        }
     }
 }
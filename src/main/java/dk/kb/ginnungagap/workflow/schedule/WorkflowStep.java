@@ -4,6 +4,8 @@ import dk.kb.ginnungagap.workflow.reporting.WorkflowReport;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.function.BooleanSupplier;
+
 /**
  * The interface for a step for a workflow.
  */
@@ -27,15 +29,17 @@ public abstract class WorkflowStep {
     protected static final String STATUS_FAILED = "Failed";
     
     /** The status of the workflow.*/
-    protected String status;
-    /** The results of the last run.*/
-    protected String resultsOfLastRun;
+    protected volatile String status;
+    /** The results of the last run. May be updated by the threads working on the step.*/
+    protected volatile String resultsOfLastRun;
     /** The time it has taken for the last run, in millis.*/
-    protected long timeForLastRun;
+    protected volatile long timeForLastRun;
     /** The start time for the current run (0 when not running)*/
-    protected long currentRunStart = 0L;
+    protected volatile long currentRunStart = 0L;
     /** The name of the catalog, which this steps runs for.*/
     protected final String catalog;
+    /** The condition for stopping the step before its next record or page, e.g. when the time window closes.*/
+    protected volatile BooleanSupplier stopCondition = () -> false;
 
     /**
      * Constructor.
@@ -115,6 +119,22 @@ public abstract class WorkflowStep {
         return catalogName.equalsIgnoreCase(this.catalog);
     }
 
+    /**
+     * @param stopCondition The condition for stopping the step cleanly before its next record or page.
+     */
+    public void setStopCondition(BooleanSupplier stopCondition) {
+        this.stopCondition = stopCondition;
+    }
+    
+    /**
+     * The steps going through many records check this between the records or pages, and stop handing out more
+     * records when it is true. The records already started are finished.
+     * @return Whether the step must stop before its next record or page.
+     */
+    protected boolean isStopRequested() {
+        return stopCondition.getAsBoolean();
+    }
+
     /**
      * @return The catalog for this catalog to run upon. Null if all catalogs.
      */
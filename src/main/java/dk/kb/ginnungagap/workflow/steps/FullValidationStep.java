@@ -2,9 +2,12 @@ package dk.kb.ginnungagap.workflow.steps;
 
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
+import java.io.InputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import dk.kb.ginnungagap.workflow.reporting.WorkflowReport;
 import org.jwat.warc.WarcDigest;
@@ -18,10 +21,14 @@ import dk.kb.cumulus.Constants;
 import dk.kb.cumulus.CumulusRecord;
 import dk.kb.cumulus.CumulusServer;
 import dk.kb.ginnungagap.archive.Archive;
+import dk.kb.ginnungagap.archive.WarcIndexRetriever;
 import dk.kb.ginnungagap.config.Configuration;
+import dk.kb.ginnungagap.config.CumulusPagingConfiguration;
 import dk.kb.ginnungagap.utils.ChecksumUtils;
-import dk.kb.ginnungagap.utils.FileUtils;
+import dk.kb.ginnungagap.utils.IndexedWarcRecord;
 import dk.kb.ginnungagap.utils.StreamUtils;
+import dk.kb.ginnungagap.utils.WarcRecordIndex;
+import dk.kb.ginnungagap.utils.WarcUtils;
 
 /**
  * Workflow step for simple validation of a specific Cumulus catalog.
@@ -34,6 +41,8 @@ public class FullValidationStep extends ValidationStep {
     protected final Archive archive;
     /** The configuration.*/
     protected final Configuration conf;
+    /** The retriever of the WARC indexes for the current run. Null outside a run.*/
+    protected WarcIndexRetriever indexRetriever;
     
     /**
      * Constructor.
@@ -43,7 +52,35 @@ public class FullValidationStep extends ValidationStep {
      * @param conf The configuration.
      */
     public FullValidationStep(CumulusServer server, String catalogName, Archive archive, Configuration conf) {
-        super(server, catalogName, Constants.FieldValues.PRESERVATION_VALIDATION_FULL_CHECK);
+        this(server, catalogName, archive, conf, 1);
+    }
+    
+    /**
+     * Constructor.
+     * @param server The Cumulus server.
+     * @param catalogName The name of the catalog.
+     * @param archive The bitrepository archive where the data must be validated.
+     * @param conf The configuration.
+     * @param validationThreads The number of WARC files to validate concurrently.
+     */
+    public FullValidationStep(CumulusServer server, String catalogName, Archive archive, Configuration conf, 
+            int validationThreads) {
+        this(server, catalogName, archive, conf, validationThreads, null);
+    }
+    
+    /**
+     * Constructor.
+     * @param server The Cumulus server.
+     * @param catalogName The name of the catalog.
+     * @param archive The bitrepository archive where the data must be validated.
+     * @param conf The configuration.
+     * @param validationThreads The number of WARC files to validate concurrently.
+     * @param pagingConf The configuration for reading the records in pages. May be null.
+     */
+    public FullValidationStep(CumulusServer server, String catalogName, Archive archive, Configuration conf, 
+            int validationThreads, CumulusPagingConfiguration pagingConf) {
+        super(server, catalogName, Constants.FieldValues.PRESERVATION_VALIDATION_FULL_CHECK, validationThreads, 
+                pagingConf);
         this.archive = archive;
         this.conf = conf;
     }
@@ -53,6 +90,21 @@ public class FullValidationStep extends ValidationStep {
         return "Full Validation Step for '" + catalogName + "'";
     }
 
+    /**
+     * Performs the validation with a single retriever of the WARC indexes for the whole run, so a missing index is
+     * only looked up in the archive once. The indexes retrieved from the archive are pruned after the run.
+     */
+    @Override
+    public void performStep(WorkflowReport report) throws Exception {
+        indexRetriever = new WarcIndexRetriever(archive, conf.getBitmagConf());
+        try {
+            super.performStep(report);
+        } finally {
+            indexRetriever.pruneRetrievedIndexes();
+            indexRetriever = null;
+        }
+    }
+
     @Override
     protected void validateRecord(CumulusRecord record, WorkflowReport report) {
         try {
@@ -60,20 +112,146 @@ public class FullValidationStep extends ValidationStep {
             String collectionId = record.getFieldValue(Constants.FieldNames.COLLECTION_ID);
             String uuid = record.getUUID();
             File f = archive.getFile(warcId, collectionId);
-            validateWarcFileChecksum(record, f);
-            
-            try (WarcReader reader = WarcReaderFactory.getReader(new FileInputStream(f))) {
-                WarcRecord warcRecord = getWarcRecord(reader, uuid);
-
-                validateSize(warcRecord, record);
-                validateRecordChecksum(warcRecord, record);
+            try {
+                validateWarcFileChecksum(record, f);
+                
+                WarcRecordIndex index = getIndexRetriever().getIndex(warcId, collectionId);
+                try (IndexedWarcRecord indexedRecord = WarcUtils.readIndexedRecord(f, uuid, index)) {
+                    if(indexedRecord != null) {
+                        validateWarcRecord(indexedRecord.getRecord(), record);
+                    } else {
+                        try (WarcReader reader = WarcReaderFactory.getReader(new FileInputStream(f))) {
+                            validateWarcRecord(getWarcRecord(reader, uuid), record);
+                        }
+                    }
+                }
+            } finally {
+                archive.releaseFile(warcId, collectionId);
             }
             setValid(record, report);
-        } catch (IllegalStateException e) {
+        } catch (Exception e) {
+            setFailed(record, e, report);
+        }
+    }
+    
+    /**
+     * @return The retriever of the WARC indexes for the current run, or a new retriever outside a run.
+     */
+    protected WarcIndexRetriever getIndexRetriever() {
+        WarcIndexRetriever res = indexRetriever;
+        if(res == null) {
+            res = new WarcIndexRetriever(archive, conf.getBitmagConf());
+        }
+        return res;
+    }
+    
+    /**
+     * Validates all the records of a WARC file, while the WARC file is retrieved once and read sequentially once.
+     * The checksum of the WARC file is calculated while its records are validated, so each byte of the WARC file is
+     * only read once, and nothing is written to disk.
+     * The records, which are not found in the WARC file, are invalid.
+     * @param warcFileRecords The records of the WARC file.
+     * @param report The report for workflow.
+     */
+    @Override
+    protected void validateWarcFileRecords(WarcFileRecords warcFileRecords, WorkflowReport report) {
+        String warcId = warcFileRecords.getWarcId();
+        String collectionId = warcFileRecords.getCollectionId();
+        File f;
+        try {
+            f = archive.getFile(warcId, collectionId);
+        } catch (Exception e) {
+            for(CumulusRecord record : warcFileRecords.getRecords()) {
+                setFailed(record, e, report);
+            }
+            return;
+        }
+        
+        Map<CumulusRecord, Exception> results = new LinkedHashMap<CumulusRecord, Exception>();
+        String warcChecksum;
+        MessageDigest md = ChecksumUtils.getMessageDigest(ChecksumUtils.MD5_ALGORITHM);
+        try (InputStream in = new DigestInputStream(new FileInputStream(f), md);
+                WarcReader reader = WarcReaderFactory.getReader(in)) {
+            WarcRecord warcRecord;
+            while(!warcFileRecords.isEmpty() && (warcRecord = reader.getNextRecord()) != null) {
+                CumulusRecord record = warcFileRecords.takeRecord(warcRecord.header.warcRecordIdStr);
+                if(record != null) {
+                    results.put(record, validateWarcRecordInPass(warcRecord, record));
+                }
+            }
+            StreamUtils.readToEnd(in);
+            warcChecksum = ChecksumUtils.createWarcDigest(ChecksumUtils.MD5_ALGORITHM, md.digest()).digestString;
+        } catch (Exception e) {
+            log.warn("Error when trying to read the WARC file '" + warcId + "'", e);
+            for(CumulusRecord record : results.keySet()) {
+                setFailed(record, e, report);
+            }
+            for(CumulusRecord record : warcFileRecords.getRecords()) {
+                setFailed(record, e, report);
+            }
+            return;
+        } finally {
+            archive.releaseFile(warcId, collectionId);
+        }
+        
+        for(Map.Entry<CumulusRecord, Exception> result : results.entrySet()) {
+            validateRecord(result.getKey(), result.getValue(), warcChecksum, report);
+        }
+        for(CumulusRecord record : warcFileRecords.getRecords()) {
+            setFailed(record, new IllegalStateException("Could not find the record in the WARC file '" + warcId 
+                    + "'."), report);
+        }
+    }
+    
+    /**
+     * Validates the WARC record of a record during the pass of the WARC file.
+     * @param warcRecord The WARC record.
+     * @param record The Cumulus record.
+     * @return The exception, if the validation failed, or null if the WARC record is valid.
+     */
+    protected Exception validateWarcRecordInPass(WarcRecord warcRecord, CumulusRecord record) {
+        try {
+            validateWarcRecord(warcRecord, record);
+            return null;
+        } catch (Exception e) {
+            return e;
+        }
+    }
+    
+    /**
+     * Reports the result of the validation of a record, when the checksum of its WARC file is known.
+     * The checksum of the WARC file is validated first, as when the records are validated individually.
+     * @param record The Cumulus record.
+     * @param failure The failure of the validation of the WARC record, or null if the WARC record is valid.
+     * @param warcChecksum The MD5 checksum of the WARC file.
+     * @param report The report for workflow.
+     */
+    protected void validateRecord(CumulusRecord record, Exception failure, String warcChecksum, 
+            WorkflowReport report) {
+        try {
+            validateWarcFileChecksum(record, warcChecksum);
+            if(failure != null) {
+                throw failure;
+            }
+            setValid(record, report);
+        } catch (Exception e) {
+            setFailed(record, e, report);
+        }
+    }
+    
+    /**
+     * Report back that the validation of the record failed with the given exception.
+     * An IllegalStateException means that the record is invalid, whereas other exceptions are errors.
+     * @param record The record which failed the validation.
+     * @param e The exception, which caused the failure.
+     * @param report The report for workflow.
+     */
+    protected void setFailed(CumulusRecord record, Exception e, WorkflowReport report) {
+        if(e instanceof IllegalStateException) {
             String errMsg = "The record '" + record + "' is invalid: " + e.getMessage();
             log.info(errMsg, e);
             setInvalid(record, errMsg, report);
-        } catch (Exception e) {
+        } else {
             String errMsg = "Error when trying to validate record '" + record + "'";
             log.warn(errMsg, e);
             setInvalid(record, errMsg + " : " + e.getMessage(), report);
@@ -81,7 +259,18 @@ public class FullValidationStep extends ValidationStep {
     }
     
     /**
-     * Retrieves the WARC record from the WARC file.
+     * Validates the size and the checksum of the WARC record.
+     * @param warcRecord The WARC record.
+     * @param cumulusRecord The Cumulus record.
+     * @throws IOException If an issue occurs when reading the WARC record.
+     */
+    protected void validateWarcRecord(WarcRecord warcRecord, CumulusRecord cumulusRecord) throws IOException {
+        validateSize(warcRecord, cumulusRecord);
+        validateRecordChecksum(warcRecord, cumulusRecord);
+    }
+    
+    /**
+     * Retrieves the WARC record from the WARC file by scanning it from the start.
      * Will throw an exception, if the record is not found.
      * @param recordId The id of the WARC record.
      * @return The WARC record.
@@ -103,7 +292,15 @@ public class FullValidationStep extends ValidationStep {
      */
     protected void validateWarcFileChecksum(CumulusRecord cumulusRecord, File warcFile) {
         WarcDigest digest = ChecksumUtils.calculateChecksum(warcFile, ChecksumUtils.MD5_ALGORITHM);
-        String warcChecksum = digest.digestString;
+        validateWarcFileChecksum(cumulusRecord, digest.digestString);
+    }
+    
+    /**
+     * Validate the already calculated checksum of the WARC file.
+     * @param cumulusRecord The Cumulus record with the expected checksum for the WARC file.
+     * @param warcChecksum The MD5 checksum of the WARC file.
+     */
+    protected void validateWarcFileChecksum(CumulusRecord cumulusRecord, String warcChecksum) {
         String cumulusWarcChecksum = cumulusRecord.getFieldValue(Constants.FieldNames.ARCHIVE_MD5);
         if(!warcChecksum.equals(cumulusWarcChecksum)) {
             throw new IllegalStateException("The WARC file checksum for the Cumulus record '" + cumulusRecord 
@@ -133,17 +330,8 @@ public class FullValidationStep extends ValidationStep {
      * @throws IOException If an issue occurs when calculating the checksum of the WARC record.
      */
     protected void validateRecordChecksum(WarcRecord warcRecord, CumulusRecord cumulusRecord) throws IOException {
-        File tmpFile = new File(conf.getBitmagConf().getTempDir(), cumulusRecord.getUUID());
-        
-        WarcDigest digest;
-        try (OutputStream os = new FileOutputStream(tmpFile)) {
-            StreamUtils.copyInputStreamToOutputStream(warcRecord.getPayloadContent(), os);
-            os.flush();
-            os.close();
-            digest = ChecksumUtils.calculateChecksum(tmpFile, ChecksumUtils.MD5_ALGORITHM);
-        } finally {
-            FileUtils.deleteFile(tmpFile);
-        }
+        WarcDigest digest = ChecksumUtils.calculateChecksum(warcRecord.getPayloadContent(), 
+                ChecksumUtils.MD5_ALGORITHM);
         
         String warcRecordChecksum = digest.digestString; //warcRecord.computedPayloadDigest.digestString;
         String cumulusRecordChecksum = cumulusRecord.getFieldValue(Constants.FieldNames.CHECKSUM_ORIGINAL_MASTER);
@@ -1,9 +1,16 @@
 package dk.kb.ginnungagap.workflow.steps;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
 
 import dk.kb.ginnungagap.cumulus.CumulusPreservationUtils;
 import dk.kb.ginnungagap.workflow.reporting.WorkflowReport;
+import org.jwat.warc.WarcReader;
+import org.jwat.warc.WarcReaderFactory;
+import org.jwat.warc.WarcRecord;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -13,7 +20,9 @@ import dk.kb.cumulus.CumulusRecord;
 import dk.kb.cumulus.CumulusRecordCollection;
 import dk.kb.cumulus.CumulusServer;
 import dk.kb.ginnungagap.archive.Archive;
+import dk.kb.ginnungagap.config.CumulusPagingConfiguration;
 import dk.kb.ginnungagap.cumulus.CumulusQueryUtils;
+import dk.kb.ginnungagap.cumulus.CumulusRecordCursor;
 import dk.kb.ginnungagap.utils.FileUtils;
 import dk.kb.ginnungagap.utils.WarcUtils;
 import dk.kb.ginnungagap.workflow.schedule.WorkflowStep;
@@ -34,6 +43,8 @@ public class ImportationStep extends WorkflowStep {
     protected final String catalogName;
     /** The retain directory, where existing files will be placed, so they are not overridden.*/
     protected final File retainDir;
+    /** The configuration for reading the records in pages. May be null.*/
+    protected final CumulusPagingConfiguration pagingConf;
     
     /**
      * Constructor.
@@ -43,31 +54,129 @@ public class ImportationStep extends WorkflowStep {
      * @param retainDir The directory to place existing files, so they will not be overridden.
      */
     public ImportationStep(CumulusServer server, Archive archive, String catalogName, File retainDir) {
+        this(server, archive, catalogName, retainDir, null);
+    }
+    
+    /**
+     * Constructor.
+     * @param server The Cumulus server.
+     * @param archive The bitrepository archive.
+     * @param catalogName The name of the catalog to validate.
+     * @param retainDir The directory to place existing files, so they will not be overridden.
+     * @param pagingConf The configuration for reading the records in pages. May be null.
+     */
+    public ImportationStep(CumulusServer server, Archive archive, String catalogName, File retainDir, 
+            CumulusPagingConfiguration pagingConf) {
         super(catalogName);
         this.server = server;
         this.archive = archive;
         this.catalogName = catalogName;
         this.retainDir = retainDir;
+        this.pagingConf = pagingConf;
     }
     
+    /**
+     * Imports the records one page at the time, so only the records of the current page are grouped by their 
+     * WARC files.
+     */
     @Override
     public void performStep(WorkflowReport report) throws Exception {
         CumulusQuery query = CumulusQueryUtils.getQueryForPreservationImportation(catalogName);
         
-        CumulusRecordCollection items = server.getItems(catalogName, query);
         int i = 0;
-        for(CumulusRecord record : items) {
+        try (CumulusRecordCursor cursor = new CumulusRecordCursor(server, catalogName, query, pagingConf)) {
+            CumulusRecordCollection items;
+            while(!isStopRequested() && (items = cursor.nextPage()) != null) {
+                i += importPage(items, report);
+            }
+        }
+        setResultOfRun("Imported " + i + " records");
+    }
+    
+    /**
+     * Imports the records of a page, grouped by their WARC files.
+     * @param items The records of the page.
+     * @param report The report for workflow.
+     * @return The number of records handled.
+     */
+    protected int importPage(CumulusRecordCollection items, WorkflowReport report) {
+        List<CumulusRecord> ungroupedRecords = new ArrayList<CumulusRecord>();
+        Collection<WarcFileRecords> warcFiles = WarcFileRecords.groupRecords(items, ungroupedRecords);
+        int res = 0;
+        for(WarcFileRecords warcFileRecords : warcFiles) {
+            setResultOfRun("Running... Importing from " + warcFileRecords.getWarcId());
+            importWarcFileRecords(warcFileRecords, report);
+            res += warcFileRecords.getNumberOfRecords();
+        }
+        for(CumulusRecord record : ungroupedRecords) {
             setResultOfRun("Running... Importing " + record.getUUID());
             importRecord(record, report);
-            i++;
+            res++;
+        }
+        return res;
+    }
+    
+    /**
+     * Imports all the records of a WARC file, while the WARC file is retrieved once and read sequentially once.
+     * The records, which are not found in the WARC file, fail the importation.
+     * @param warcFileRecords The records of the WARC file.
+     * @param report The report for workflow.
+     */
+    protected void importWarcFileRecords(WarcFileRecords warcFileRecords, WorkflowReport report) {
+        String warcId = warcFileRecords.getWarcId();
+        String collectionId = warcFileRecords.getCollectionId();
+        File f;
+        try {
+            f = archive.getFile(warcId, collectionId);
+        } catch (Exception e) {
+            for(CumulusRecord record : warcFileRecords.getRecords()) {
+                setFailed(record, e, report);
+            }
+            return;
+        }
+        
+        String missingMessage = "Could not find the record in the WARC file '" + warcId + "'.";
+        try (WarcReader reader = WarcReaderFactory.getReader(new FileInputStream(f))) {
+            WarcRecord warcRecord;
+            while(!warcFileRecords.isEmpty() && (warcRecord = reader.getNextRecord()) != null) {
+                CumulusRecord record = warcFileRecords.takeRecord(warcRecord.header.warcRecordIdStr);
+                if(record != null) {
+                    importRecord(record, warcRecord, report);
+                }
+            }
+        } catch (Exception e) {
+            log.warn("Error when trying to read the WARC file '" + warcId + "'", e);
+            missingMessage = "Error when trying to read the WARC file '" + warcId + "' : " + e.getMessage();
+        } finally {
+            archive.releaseFile(warcId, collectionId);
+        }
+        
+        for(CumulusRecord record : warcFileRecords.getRecords()) {
+            setFailed(record, new IllegalStateException(missingMessage), report);
+        }
+    }
+    
+    /**
+     * Imports a record from its WARC record.
+     * @param record The record to import.
+     * @param warcRecord The WARC record of the record.
+     * @param report The report for workflow.
+     */
+    protected void importRecord(CumulusRecord record, WarcRecord warcRecord, WorkflowReport report) {
+        try {
+            File file = new File(retainDir, record.getUUID());
+            WarcUtils.writePayload(warcRecord, file);
+            importFile(record, file);
+            
+            setValid(record, report);
+        } catch (Exception e) {
+            setFailed(record, e, report);
         }
-        setResultOfRun("Imported " + i + " records");
     }
 
     /**
-     * The step for performing the specific validation.
-     * Must be implemented by the sub-classes.
-     * @param record The record to validate.
+     * Imports a single record, by extracting it from its WARC file.
+     * @param record The record to import.
      * @param report The report for workflow.
      */
     protected void importRecord(CumulusRecord record, WorkflowReport report) {
@@ -78,16 +187,33 @@ public class ImportationStep extends WorkflowStep {
             File f = archive.getFile(warcId, collectionId);
             
             File file = new File(retainDir, uuid);
-            WarcUtils.extractRecord(f, uuid, file);
+            try {
+                WarcUtils.extractRecord(f, uuid, file);
+            } finally {
+                archive.releaseFile(warcId, collectionId);
+            }
             importFile(record, file);
             
             setValid(record, report);
-        } catch (IllegalStateException e) {
+        } catch (Exception e) {
+            setFailed(record, e, report);
+        }
+    }
+    
+    /**
+     * Report back that the importation of the record failed with the given exception.
+     * An IllegalStateException means that the record is invalid, whereas other exceptions are errors.
+     * @param record The record which failed the importation.
+     * @param e The exception, which caused the failure.
+     * @param report The report for workflow.
+     */
+    protected void setFailed(CumulusRecord record, Exception e, WorkflowReport report) {
+        if(e instanceof IllegalStateException) {
             String errMsg = "The record '" + record + "' is invalid: " + e.getMessage();
             log.info(errMsg, e);
             setInvalid(record, errMsg, report);
-        } catch (Exception e) {
-            String errMsg = "Error when trying to validate record '" + record + "'";
+        } else {
+            String errMsg = "Error when trying to import record '" + record + "'";
             log.warn(errMsg, e);
             setInvalid(record, errMsg + " : " + e.getMessage(), report);
         }
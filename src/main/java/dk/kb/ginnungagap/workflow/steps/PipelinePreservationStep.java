@@ -0,0 +1,229 @@
+package dk.kb.ginnungagap.workflow.steps;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.jwat.warc.WarcDigest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import dk.kb.cumulus.CumulusRecord;
+import dk.kb.cumulus.CumulusServer;
+import dk.kb.ginnungagap.archive.BitmagPreserver;
+import dk.kb.ginnungagap.config.CumulusPagingConfiguration;
+import dk.kb.ginnungagap.config.PipelineConfiguration;
+import dk.kb.ginnungagap.config.TransformationConfiguration;
+import dk.kb.ginnungagap.cumulus.CumulusPreservationUtils;
+import dk.kb.ginnungagap.exception.ArgumentCheck;
+import dk.kb.ginnungagap.transformation.MetadataTransformationHandler;
+import dk.kb.ginnungagap.workflow.pipeline.PipelineStage;
+import dk.kb.ginnungagap.workflow.reporting.WorkflowReport;
+
+/**
+ * The preservation step, where the records are preserved through a pipeline of stages connected by bounded queues.
+ * <ul>
+ *   <li>Cumulus fetch: the records are read from Cumulus by the thread running the step.</li>
+ *   <li>Asset checksum: the record is initialised, and the checksum and block digest of its asset file are 
+ *   calculated in a single read.</li>
+ *   <li>Metadata transformation: the metadata is transformed and validated.</li>
+ *   <li>WARC packaging: the asset file and metadata are packaged, the metadata files are deleted, and the
+ *   conditions for finishing and uploading the WARC files are checked.</li>
+ * </ul>
+ * The finished WARC files are uploaded by the bitrepository preserver, which limits the number of concurrent
+ * uploads, so there is no stage for the uploads.
+ * When a stage cannot keep up, the queue in front of it fills up and holds back the previous stages.
+ * Thus at most a bounded number of records have their metadata buffered at any time,
+ * and no more records are packaged while a WARC file is being finished.
+ */
+public class PipelinePreservationStep extends PreservationStep {
+    /** The logger.*/
+    private static final Logger log = LoggerFactory.getLogger(PipelinePreservationStep.class);
+
+    /** The configuration for the pipeline.*/
+    protected final PipelineConfiguration pipelineConf;
+
+    /**
+     * Constructor.
+     * @param transConf The configuration for the transformation
+     * @param server The Cumulus server where the Cumulus records are extracted.
+     * @param transformationHandler The metadata transformer handler.
+     * @param preserver the bitrepository preserver, for packaging and preserving the records.
+     * @param catalogName The name of the catalog for this step.
+     * @param pipelineConf The configuration for the pipeline.
+     */
+    public PipelinePreservationStep(TransformationConfiguration transConf, CumulusServer server,
+            MetadataTransformationHandler transformationHandler, BitmagPreserver preserver, String catalogName,
+            PipelineConfiguration pipelineConf) {
+        this(transConf, server, transformationHandler, preserver, catalogName, pipelineConf, null);
+    }
+
+    /**
+     * Constructor.
+     * @param transConf The configuration for the transformation
+     * @param server The Cumulus server where the Cumulus records are extracted.
+     * @param transformationHandler The metadata transformer handler.
+     * @param preserver the bitrepository preserver, for packaging and preserving the records.
+     * @param catalogName The name of the catalog for this step.
+     * @param pipelineConf The configuration for the pipeline.
+     * @param pagingConf The configuration for reading the records in pages. May be null.
+     */
+    public PipelinePreservationStep(TransformationConfiguration transConf, CumulusServer server,
+            MetadataTransformationHandler transformationHandler, BitmagPreserver preserver, String catalogName,
+            PipelineConfiguration pipelineConf, CumulusPagingConfiguration pagingConf) {
+        super(transConf, server, transformationHandler, preserver, catalogName, 1, pagingConf);
+        ArgumentCheck.checkNotNull(pipelineConf, "PipelineConfiguration pipelineConf");
+        this.pipelineConf = pipelineConf;
+    }
+
+    @Override
+    protected void preserveRecordItems(Iterable<CumulusRecord> items, int count, String catalogName,
+            WorkflowReport report) {
+        if(count == 0) {
+            log.debug("No items to preserve from catalog: " + catalogName);
+            setResultOfRun("No preservable records found for catalog '" + catalogName + "'.");
+            return;
+        }
+        AtomicInteger failures = new AtomicInteger();
+        AtomicReference<String> failure = new AtomicReference<>("");
+        // The block digests of the asset files calculated in the checksum stage, until they are packaged.
+        Map<CumulusRecord, WarcDigest> assetDigests = new ConcurrentHashMap<>();
+        PipelineStage.FailureHandler<CumulusRecord> recordFailure = (record, e) -> {
+            assetDigests.remove(record);
+            handleFailure(record, e, catalogName, report);
+            failures.incrementAndGet();
+            failure.compareAndSet("", String.valueOf(e.getMessage()));
+        };
+        PipelineStage.FailureHandler<PreparedRecord> preparedRecordFailure = (preparedRecord, e) -> {
+            deleteTemporaryFiles(preparedRecord);
+            recordFailure.failed(preparedRecord.getRecord(), e);
+        };
+        // The record is already packaged, so its preservation state is set when its WARC file is uploaded.
+        PipelineStage.FailureHandler<PreparedRecord> packagedRecordFailure = (preparedRecord, e) -> {
+            handlePackagedRecordFailure(preparedRecord.getRecord(), e, catalogName, report);
+            failures.incrementAndGet();
+            failure.compareAndSet("", String.valueOf(e.getMessage()));
+        };
+
+        int queueSize = pipelineConf.getQueueSize();
+        PipelineStage<PreparedRecord> packaging = new PipelineStage<>("WARC packaging",
+                pipelineConf.getPackagingThreads(), queueSize, preparedRecord -> {
+                    packRecord(preparedRecord);
+                    deleteTemporaryFiles(preparedRecord);
+                    try {
+                        preserver.checkConditions();
+                        report.addSuccessRecord(CumulusPreservationUtils.getRecordName(preparedRecord.getRecord()),
+                                catalogName);
+                    } catch (RuntimeException e) {
+                        packagedRecordFailure.failed(preparedRecord, e);
+                    }
+                }, preparedRecordFailure);
+        PipelineStage<CumulusRecord> transformation = new PipelineStage<>("Metadata transformation",
+                pipelineConf.getTransformationThreads(), queueSize,
+                record -> {
+                    PreparedRecord preparedRecord = transformRecordMetadata(record);
+                    preparedRecord.setAssetDigest(assetDigests.remove(record));
+                    packaging.submit(preparedRecord);
+                }, recordFailure);
+        PipelineStage<CumulusRecord> checksum = new PipelineStage<>("Asset checksum",
+                pipelineConf.getChecksumThreads(), queueSize, record -> {
+                    WarcDigest assetDigest = initialiseRecord(record);
+                    if(assetDigest != null) {
+                        assetDigests.put(record, assetDigest);
+                    }
+                    transformation.submit(record);
+                }, recordFailure);
+        List<PipelineStage<?>> stages = Arrays.asList(checksum, transformation, packaging);
+
+        int fetched = 0;
+        boolean completed = false;
+        try {
+            for(PipelineStage<?> stage : stages) {
+                stage.start();
+            }
+            Iterator<CumulusRecord> iterator = items.iterator();
+            while(!isStopRequested(catalogName) && iterator.hasNext()) {
+                CumulusRecord record = iterator.next();
+                checksum.submit(record);
+                fetched++;
+                setResultOfRun("Running! Fetched " + fetched + " records. " + getStagesStatus(stages));
+            }
+            for(PipelineStage<?> stage : stages) {
+                stage.finish();
+            }
+            completed = true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while preserving records from catalog '" + catalogName
+                    + "'", e);
+        } finally {
+            if(!completed) {
+                for(PipelineStage<?> stage : stages) {
+                    stage.abort();
+                }
+            }
+            log.info("Pipeline for catalog '" + catalogName + "' fetched " + fetched + " records. "
+                    + getStagesStatus(stages));
+        }
+
+        String results = "Preservation of " + fetched + " records";
+        if(failures.get() > 0) {
+            results += ", with " + failures.get() + " failures.";
+            results += " First error message: " + failure.get();
+        }
+        setResultOfRun(results);
+    }
+
+    /**
+     * Handles a record, which failed in one of the stages of the pipeline.
+     * @param record The record, which failed.
+     * @param e The cause of the failure.
+     * @param catalogName The name of the catalog for the record.
+     * @param report The report for workflow.
+     */
+    protected void handleFailure(CumulusRecord record, Exception e, String catalogName, WorkflowReport report) {
+        log.error("Runtime exception caught while trying to handle Cumulus record '"
+                + record.getUUID() + "'. Something must be seriously wrong with that item!!!\n"
+                + "Trying to handle next item.", e);
+        try {
+            CumulusPreservationUtils.setPreservationFailed(record, "Failed to preserve record '"
+                    + record.getUUID() + ": \n" + e.getMessage());
+        } catch (RuntimeException re) {
+            log.warn("Could not set the preservation failure for record '" + record.getUUID() + "'", re);
+        }
+        report.addFailedRecord(CumulusPreservationUtils.getRecordName(record), e.getMessage(), catalogName);
+    }
+
+    /**
+     * Handles a record, which failed after it was packaged into a WARC file.
+     * The record is only reported as failed for this run, since the preservation state of the record in Cumulus
+     * is set when its WARC file is uploaded, or fails to be uploaded.
+     * @param record The packaged record, which failed.
+     * @param e The cause of the failure.
+     * @param catalogName The name of the catalog for the record.
+     * @param report The report for workflow.
+     */
+    protected void handlePackagedRecordFailure(CumulusRecord record, Exception e, String catalogName,
+            WorkflowReport report) {
+        log.error("Failure after packaging the Cumulus record '" + record.getUUID() + "'. Its preservation state "
+                + "is set when its WARC file is uploaded.", e);
+        report.addFailedRecord(CumulusPreservationUtils.getRecordName(record), e.getMessage(), catalogName);
+    }
+
+    /**
+     * @param stages The stages of the pipeline.
+     * @return The status of the stages of the pipeline.
+     */
+    protected String getStagesStatus(List<PipelineStage<?>> stages) {
+        StringBuilder res = new StringBuilder();
+        for(PipelineStage<?> stage : stages) {
+            res.append(stage.toString());
+            res.append(" ");
+        }
+        return res.toString().trim();
+    }
+}
@@ -0,0 +1,88 @@
+package dk.kb.ginnungagap.workflow.steps;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jwat.warc.WarcDigest;
+
+import dk.kb.cumulus.CumulusRecord;
+import dk.kb.ginnungagap.transformation.MetadataBuffer;
+
+/**
+ * A Cumulus record, which has been prepared for preservation, along with the buffers containing its
+ * transformed and validated metadata.
+ */
+public class PreparedRecord {
+    /** The Cumulus record.*/
+    protected final CumulusRecord record;
+    /** The buffer with the transformed metadata for the record.*/
+    protected final MetadataBuffer metadata;
+    /** The buffers with the other transformed metadata, e.g. intellectual entities and representation.*/
+    protected final List<MetadataBuffer> representationMetadata;
+    /** The digest of the asset file, if it was calculated when the record was initialised. May be null.*/
+    protected WarcDigest assetDigest;
+
+    /**
+     * Constructor.
+     * @param record The Cumulus record.
+     * @param metadata The buffer with the transformed metadata for the record.
+     */
+    public PreparedRecord(CumulusRecord record, MetadataBuffer metadata) {
+        this.record = record;
+        this.metadata = metadata;
+        this.representationMetadata = new ArrayList<MetadataBuffer>();
+    }
+
+    /**
+     * Adds other metadata for the record, which must be packaged as representation metadata.
+     * @param metadata The buffer with the transformed metadata.
+     */
+    public void addRepresentationMetadata(MetadataBuffer metadata) {
+        representationMetadata.add(metadata);
+    }
+
+    /**
+     * @return The digest of the asset file, or null if it was not calculated when the record was initialised.
+     */
+    public WarcDigest getAssetDigest() {
+        return assetDigest;
+    }
+
+    /**
+     * @param assetDigest The digest of the asset file.
+     */
+    public void setAssetDigest(WarcDigest assetDigest) {
+        this.assetDigest = assetDigest;
+    }
+
+    /**
+     * @return The Cumulus record.
+     */
+    public CumulusRecord getRecord() {
+        return record;
+    }
+
+    /**
+     * @return The buffer with the transformed metadata for the record.
+     */
+    public MetadataBuffer getMetadata() {
+        return metadata;
+    }
+
+    /**
+     * @return The buffers with the transformed metadata, which must be packaged as representation metadata.
+     */
+    public List<MetadataBuffer> getRepresentationMetadata() {
+        return representationMetadata;
+    }
+
+    /**
+     * @return All the buffers with transformed metadata for the record.
+     */
+    public List<MetadataBuffer> getAllMetadata() {
+        List<MetadataBuffer> res = new ArrayList<MetadataBuffer>();
+        res.add(metadata);
+        res.addAll(representationMetadata);
+        return res;
+    }
+}
@@ -1,16 +1,22 @@
 package dk.kb.ginnungagap.workflow.steps;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.Collection;
+import java.util.Iterator;
 import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import dk.kb.ginnungagap.workflow.reporting.WorkflowReport;
 import dk.kb.metadata.utils.GuidExtractionUtils;
+import org.jwat.warc.WarcDigest;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -20,11 +26,17 @@ import dk.kb.cumulus.CumulusRecord;
 import dk.kb.cumulus.CumulusRecordCollection;
 import dk.kb.cumulus.CumulusServer;
 import dk.kb.ginnungagap.archive.BitmagPreserver;
+import dk.kb.ginnungagap.config.CumulusPagingConfiguration;
 import dk.kb.ginnungagap.config.TransformationConfiguration;
 import dk.kb.ginnungagap.cumulus.CumulusPreservationUtils;
 import dk.kb.ginnungagap.cumulus.CumulusQueryUtils;
+import dk.kb.ginnungagap.cumulus.CumulusRecordCursor;
+import dk.kb.ginnungagap.exception.ArgumentCheck;
+import dk.kb.ginnungagap.transformation.MetadataBuffer;
 import dk.kb.ginnungagap.transformation.MetadataTransformationHandler;
 import dk.kb.ginnungagap.transformation.MetadataTransformer;
+import dk.kb.ginnungagap.transformation.MetadataValidationResult;
+import dk.kb.ginnungagap.utils.FileUtils;
 import dk.kb.ginnungagap.workflow.schedule.WorkflowStep;
 
 /**
@@ -47,9 +59,13 @@ public class PreservationStep extends WorkflowStep {
     protected final BitmagPreserver preserver;
     /** The name of the catalog to preserve.*/
     protected final String catalogName;
+    /** The number of records to preserve concurrently.*/
+    protected final int preservationThreads;
+    /** The configuration for reading the records in pages. May be null, for reading them in a single collection.*/
+    protected final CumulusPagingConfiguration pagingConf;
 
     /**
-     * Constructor.
+     * Constructor for preserving one record at the time.
      * @param transConf The configuration for the transformation
      * @param server The Cumulus server where the Cumulus records are extracted.
      * @param transformationHandler The metadata transformer handler.
@@ -58,12 +74,46 @@ public class PreservationStep extends WorkflowStep {
      */
     public PreservationStep(TransformationConfiguration transConf, CumulusServer server,
             MetadataTransformationHandler transformationHandler, BitmagPreserver preserver, String catalogName) {
+        this(transConf, server, transformationHandler, preserver, catalogName, 1);
+    }
+
+    /**
+     * Constructor.
+     * @param transConf The configuration for the transformation
+     * @param server The Cumulus server where the Cumulus records are extracted.
+     * @param transformationHandler The metadata transformer handler.
+     * @param preserver the bitrepository preserver, for packaging and preserving the records.
+     * @param catalogName The name of the catalog for this step.
+     * @param preservationThreads The number of records to preserve concurrently.
+     */
+    public PreservationStep(TransformationConfiguration transConf, CumulusServer server,
+            MetadataTransformationHandler transformationHandler, BitmagPreserver preserver, String catalogName,
+            int preservationThreads) {
+        this(transConf, server, transformationHandler, preserver, catalogName, preservationThreads, null);
+    }
+
+    /**
+     * Constructor.
+     * @param transConf The configuration for the transformation
+     * @param server The Cumulus server where the Cumulus records are extracted.
+     * @param transformationHandler The metadata transformer handler.
+     * @param preserver the bitrepository preserver, for packaging and preserving the records.
+     * @param catalogName The name of the catalog for this step.
+     * @param preservationThreads The number of records to preserve concurrently.
+     * @param pagingConf The configuration for reading the records in pages. May be null.
+     */
+    public PreservationStep(TransformationConfiguration transConf, CumulusServer server,
+            MetadataTransformationHandler transformationHandler, BitmagPreserver preserver, String catalogName,
+            int preservationThreads, CumulusPagingConfiguration pagingConf) {
         super(catalogName);
+        ArgumentCheck.checkPositiveInt(preservationThreads, "int preservationThreads");
         this.conf = transConf;
         this.server = server;
         this.transformationHandler = transformationHandler;
         this.preserver = preserver;
         this.catalogName = catalogName;
+        this.preservationThreads = preservationThreads;
+        this.pagingConf = pagingConf;
     }
 
     @Override
@@ -74,9 +124,14 @@ public class PreservationStep extends WorkflowStep {
     @Override
     protected void performStep(WorkflowReport report) throws Exception {
         CumulusQuery query = CumulusQueryUtils.getPreservationAllQuery(catalogName);
-        CumulusRecordCollection items = server.getItems(catalogName, query);
-        log.info("Catalog '" + catalogName + "' had " + items.getCount() + " records to be preserved.");
-        preserveRecordItems(items, catalogName, report);
+        try (CumulusRecordCursor items = new CumulusRecordCursor(server, catalogName, query, pagingConf)) {
+            if(!items.hasRecords()) {
+                preserveRecordItems(items, 0, catalogName, report);
+                return;
+            }
+            log.info("Catalog '" + catalogName + "' had records to be preserved.");
+            preserveRecordItems(items, CumulusRecordCursor.UNKNOWN_COUNT, catalogName, report);
+        }
     }
 
     /**
@@ -85,15 +140,33 @@ public class PreservationStep extends WorkflowStep {
      * @param report The report for workflow.
      */
     protected void preserveRecordItems(CumulusRecordCollection items, String catalogName, WorkflowReport report) {
-        if(items.getCount() == 0) {
+        preserveRecordItems(items, items.getCount(), catalogName, report);
+    }
+
+    /**
+     * Preserves the given record items, e.g. as they are read page by page from Cumulus.
+     * @param items The record items to preserve.
+     * @param count The number of record items, or a negative number if it is not known.
+     * @param catalogName The name of the catalog for the records.
+     * @param report The report for workflow.
+     */
+    protected void preserveRecordItems(Iterable<CumulusRecord> items, int count, String catalogName,
+            WorkflowReport report) {
+        if(count == 0) {
             log.debug("No items to preserve from catalog: " + catalogName);
             setResultOfRun("No preservable records found for catalog '" + catalogName + "'.");
             return;
         }
+        if(preservationThreads > 1) {
+            preserveRecordItemsConcurrently(items, catalogName, report);
+            return;
+        }
         int i = 0;
         int failures = 0;
         String failure = "";
-        for(CumulusRecord record : items) {
+        Iterator<CumulusRecord> iterator = items.iterator();
+        while(!isStopRequested(catalogName) && iterator.hasNext()) {
+            CumulusRecord record = iterator.next();
             try {
                 setResultOfRun("Running! Preservation of #" + i + ", " + record.getUUID());
                 log.debug("Initiating preservation on record '" + record.getUUID() + "'");
@@ -119,26 +192,96 @@ public class PreservationStep extends WorkflowStep {
         setResultOfRun(results);
     }
 
+    /**
+     * Preserves the record items through a bounded pool of workers.
+     * The records are handed to the workers as they are read from Cumulus, and at most twice the number
+     * of workers are waiting to be preserved at any given time.
+     * The packaging into the WARC files are kept consistent by the bitrepository preserver.
+     * @param items The record items to preserve.
+     * @param catalogName The name of the catalog for the records.
+     * @param report The report for workflow.
+     */
+    protected void preserveRecordItemsConcurrently(Iterable<CumulusRecord> items, String catalogName,
+            WorkflowReport report) {
+        ExecutorService executor = Executors.newFixedThreadPool(preservationThreads);
+        Semaphore pending = new Semaphore(preservationThreads * 2);
+        AtomicInteger started = new AtomicInteger();
+        AtomicInteger finished = new AtomicInteger();
+        AtomicInteger failures = new AtomicInteger();
+        AtomicReference<String> failure = new AtomicReference<>("");
+        try {
+            Iterator<CumulusRecord> iterator = items.iterator();
+            while(!isStopRequested(catalogName) && iterator.hasNext()) {
+                CumulusRecord record = iterator.next();
+                pending.acquire();
+                int number = started.getAndIncrement();
+                executor.execute(() -> {
+                    try {
+                        log.debug("Initiating preservation on record #" + number + ", '" + record.getUUID() + "'");
+                        sendRecordToPreservation(record);
+                        report.addSuccessRecord(CumulusPreservationUtils.getRecordName(record), catalogName);
+                    } catch (Exception e) {
+                        report.addFailedRecord(CumulusPreservationUtils.getRecordName(record), e.getMessage(), 
+                                catalogName);
+                        log.error("Runtime exception caught while trying to handle Cumulus record '"
+                                + record.getUUID() + "'. Something must be seriously wrong with that item!!!\n"
+                                + "Trying to handle next item.", e);
+                        failures.incrementAndGet();
+                        failure.compareAndSet("", String.valueOf(e.getMessage()));
+                    } finally {
+                        setResultOfRun("Running! Preserved " + finished.incrementAndGet() + " of " 
+                                + started.get() + " started records, " + failures.get() + " failures.");
+                        pending.release();
+                    }
+                });
+            }
+            executor.shutdown();
+            while(!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                log.debug("Still waiting for " + (started.get() - finished.get()) + " records to be preserved.");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while preserving records from catalog '" + catalogName 
+                    + "'", e);
+        } finally {
+            executor.shutdownNow();
+        }
+        String results = "Preservation of " + started.get() + " records";
+        if(failures.get() > 0) {
+            results += ", with " + failures.get() + " failures.";
+            results += " First error message: " + failure.get();
+        }
+        setResultOfRun(results);
+    }
+
+    /**
+     * Checks whether the step must stop before preserving the next record, and logs it when it must.
+     * @param catalogName The name of the catalog for the records.
+     * @return Whether no more records must be preserved.
+     */
+    protected boolean isStopRequested(String catalogName) {
+        if(isStopRequested()) {
+            log.info("Stopping the preservation of the records from catalog '" + catalogName + "' before the "
+                    + "next record, since the workflow must stop.");
+            return true;
+        }
+        return false;
+    }
+
     /**
      * Preserves the record, and if it is a master-asset, then the representation is also preserved.
+     * The temporary metadata files are deleted after the packaging.
      * @param record The given Cumulus record to preserve.
      */
     protected void sendRecordToPreservation(CumulusRecord record) throws Exception {
         try {
-            CumulusPreservationUtils.initialiseRecordForPreservation(record);
-
-            record.validateFieldsExists(conf.getRequiredFields().getWritableFields());
-            record.validateFieldsHasValue(conf.getRequiredFields().getBaseFields());
-            
-            preserveFile(record);
-            preserveMetadata(record);
-            preserveIntellectuelEntity(record);
-
-            if(record.isMasterAsset()) {
-                CumulusPreservationUtils.initializeRecordRepresentaitonForPreservation(record);
-
-                transformAndPreserveRepresentation(record);
-                preserveRepresentationIntellectuelEntity(record);
+            WarcDigest assetDigest = initialiseRecord(record);
+            PreparedRecord preparedRecord = transformRecordMetadata(record);
+            try {
+                preparedRecord.setAssetDigest(assetDigest);
+                packRecord(preparedRecord);
+            } finally {
+                deleteTemporaryFiles(preparedRecord);
             }
             preserver.checkConditions();
         } catch (Exception e) {
@@ -149,155 +292,252 @@ public class PreservationStep extends WorkflowStep {
         }
     }
     
+    /**
+     * Initialises the record for preservation, which includes calculating the checksum of the content file, 
+     * and validates that the record has the required fields.
+     * The block digest for the WARC record of the content file is calculated along with its checksum.
+     * @param record The Cumulus record to initialise.
+     * @return The block digest of the content file, or null if the content file was not read.
+     */
+    protected WarcDigest initialiseRecord(CumulusRecord record) {
+        WarcDigest assetDigest = CumulusPreservationUtils.initialiseRecordForPreservation(record, 
+                getAssetDigestAlgorithm());
 
+        record.validateFieldsExists(conf.getRequiredFields().getWritableFields());
+        record.validateFieldsHasValue(conf.getRequiredFields().getBaseFields());
+        return assetDigest;
+    }
+    
     /**
-     * Preserves the content-file of a given record.
-     * @param record The given Cumulus record with the file to preserve.
-     * @throws IOException If it fails to package the file.
+     * @return The algorithm for the block digest of the content file, or null if the content file is not packaged.
      */
-    protected void preserveFile(CumulusRecord record) throws IOException {
-        preserver.packRecordResource(record);
+    protected String getAssetDigestAlgorithm() {
+        return preserver.getBlockDigestAlgorithm();
     }
-
+    
     /**
-     * Preserves the metadata of a Cumulus record.
-     * Transformes the metadata
-     * @param record The Cumulus record.
-     * @throws IOException If it fails to read or write metadata.
+     * Transforms and validates all the metadata of the record, which must be preserved along with it. 
+     * If the record is a master-asset, then the representation metadata is also transformed.
+     * @param record The initialised Cumulus record.
+     * @return The record along with the buffers with its transformed metadata.
+     * @throws Exception If the metadata cannot be transformed or validated.
      */
-    protected void preserveMetadata(CumulusRecord record) throws Exception {
-        File metadataFile = transformAndValidateMetadata(record);
+    protected PreparedRecord transformRecordMetadata(CumulusRecord record) throws Exception {
+        MetadataBuffer metadata = transformAndValidateMetadata(record);
+        setMetadataStandardsForRecord(record, metadata.getValidationResult().getSchemaLocations());
+        PreparedRecord res = new PreparedRecord(record, metadata);
+        res.addRepresentationMetadata(transformIntellectuelEntity(record));
+
+        if(record.isMasterAsset()) {
+            CumulusPreservationUtils.initializeRecordRepresentaitonForPreservation(record);
 
-        setMetadataStandardsForRecord(record, metadataFile);
-        preserver.packRecordMetadata(record, metadataFile);
+            res.addRepresentationMetadata(transformAndValidateRepresentation(record));
+            res.addRepresentationMetadata(transformRepresentationIntellectuelEntity(record));
+        }
+        return res;
     }
     
     /**
-     * Preserve the intellectual entity for the Cumulus record.
-     * @param record The record to have its intellectual entity preserved.
+     * Packages the content file and the transformed metadata of the record.
+     * All the parts of the record are packaged into the same WARC file.
+     * @param preparedRecord The record with its transformed metadata.
+     * @throws IOException If it fails to package the file.
+     */
+    protected void packRecord(PreparedRecord preparedRecord) throws IOException {
+        CumulusRecord record = preparedRecord.getRecord();
+        preserver.startRecordPackaging();
+        try {
+            preserveFile(record, preparedRecord.getAssetDigest());
+            preserver.packRecordMetadata(record, preparedRecord.getMetadata());
+            for(MetadataBuffer representationMetadata : preparedRecord.getRepresentationMetadata()) {
+                preserver.packRepresentationMetadata(representationMetadata, 
+                        record.getFieldValue(Constants.FieldNames.COLLECTION_ID), UUID.randomUUID().toString());
+            }
+            preserver.checkpointRecordPackaging(record);
+        } finally {
+            preserver.finishRecordPackaging();
+        }
+    }
+
+    /**
+     * Preserves the content-file of a given record.
+     * @param record The given Cumulus record with the file to preserve.
+     * @param assetDigest The already calculated block digest of the file. May be null.
+     * @throws IOException If it fails to package the file.
+     */
+    protected void preserveFile(CumulusRecord record, WarcDigest assetDigest) throws IOException {
+        preserver.packRecordResource(record, assetDigest);
+    }
+
+    /**
+     * Transforms the intellectual entity for the Cumulus record.
+     * @param record The record to have its intellectual entity transformed.
+     * @return The buffer with the transformed intellectual entity.
+     * @throws IOException If it fails to write the metadata.
      */
-    protected void preserveIntellectuelEntity(CumulusRecord record) throws IOException {
+    protected MetadataBuffer transformIntellectuelEntity(CumulusRecord record) throws IOException {
         String ieUUID = GuidExtractionUtils.extractGuid(record.getFieldValue(
                 Constants.FieldNames.RELATED_OBJECT_IDENTIFIER_VALUE_INTELLECTUEL_ENTITY));
         String metadataUUID = CumulusPreservationUtils.getMetadataUUID(record);
         String fileUUID = record.getUUID();
-        transformAndPreserveIntellectualEntity(ieUUID, metadataUUID, fileUUID, record);
+        return transformAndValidateIntellectualEntity(ieUUID, metadataUUID, fileUUID);
     }
 
     /**
-     * Preserve the representation part of a master asset as its own METS.
+     * Transforms the representation part of a master asset as its own METS.
      * @param record The Cumulus record.
-     * @throws Exception If an issue occurs when writing or preserving the Master asset metadata,
+     * @return The buffer with the transformed representation metadata.
+     * @throws Exception If an issue occurs when writing or validating the Master asset metadata,
      */
-    protected void transformAndPreserveRepresentation(CumulusRecord record) throws Exception {
+    protected MetadataBuffer transformAndValidateRepresentation(CumulusRecord record) throws Exception {
         String representationMetadataGuid = record.getFieldValue(
                 Constants.FieldNames.REPRESENTATION_METADATA_GUID);
-        File metadataFile = new File(conf.getMetadataTempDir(), representationMetadataGuid);
-        try (OutputStream os = new FileOutputStream(metadataFile)) {
-            File cumulusMetadataFile = new File(conf.getMetadataTempDir(), representationMetadataGuid 
-                    + RAW_FILE_SUFFIX);
-            MetadataTransformer transformer = transformationHandler.getTransformer(
-                    MetadataTransformationHandler.TRANSFORMATION_SCRIPT_FOR_REPRESENTATION);
-            try (OutputStream metadataOutputStream = new FileOutputStream(cumulusMetadataFile)) {
-                record.writeFieldMetadata(metadataOutputStream);
-            }
-            try (InputStream cumulusIn = new FileInputStream(cumulusMetadataFile)) {
-                transformer.transformXmlMetadata(cumulusIn, os);
-            }
-            os.flush();
+        MetadataBuffer metadata = createMetadataBuffer(representationMetadataGuid);
+        MetadataTransformer transformer = transformationHandler.getTransformer(
+                MetadataTransformationHandler.TRANSFORMATION_SCRIPT_FOR_REPRESENTATION);
+        MetadataBuffer cumulusMetadata = createMetadataBuffer(representationMetadataGuid + RAW_FILE_SUFFIX);
+        try (OutputStream metadataOutputStream = cumulusMetadata) {
+            record.writeFieldMetadata(metadataOutputStream);
         }
+        transform(transformer, cumulusMetadata, metadata);
 
-        try (InputStream is = new FileInputStream(metadataFile)) {
-            transformationHandler.validate(is);
-        }
-        preserver.packRepresentationMetadata(metadataFile, record.getFieldValue(Constants.FieldNames.COLLECTION_ID),
-                UUID.randomUUID().toString());
+        validate(metadata);
+        return metadata;
     }
 
     /**
-     * Preserve the intellectual entity for the Cumulus record.
-     * @param record The record to have its intellectual entity preserved.
-     * @throws IOException If it fails to write the metadata file.
+     * Transforms the intellectual entity for the representation of the Cumulus record.
+     * @param record The record to have the intellectual entity of its representation transformed.
+     * @return The buffer with the transformed intellectual entity.
+     * @throws IOException If it fails to write the metadata.
      */
-    protected void preserveRepresentationIntellectuelEntity(CumulusRecord record) throws IOException {
+    protected MetadataBuffer transformRepresentationIntellectuelEntity(CumulusRecord record) throws IOException {
         String ieUUID = record.getFieldValue(Constants.FieldNames.REPRESENTATION_INTELLECTUAL_ENTITY_UUID);
         String metadataUUID = record.getFieldValue(Constants.FieldNames.REPRESENTATION_METADATA_GUID);
-        transformAndPreserveIntellectualEntity(ieUUID, metadataUUID, null, record);
+        return transformAndValidateIntellectualEntity(ieUUID, metadataUUID, null);
     }
 
     /**
-     * Transforms and preserves the intellectual entity.
+     * Transforms and validates the intellectual entity.
      * @param ieUUID The UUID for the intellectual entity.
      * @param metadataUUID The UUID for the metadata object.
      * @param fileUUID The UUID for the file. This may be null.
-     * @throws IOException If it fails to write the metadata file.
+     * @return The buffer with the transformed intellectual entity.
+     * @throws IOException If it fails to write the metadata.
      */
-    protected void transformAndPreserveIntellectualEntity(String ieUUID, String metadataUUID, String fileUUID, 
-            CumulusRecord record) throws IOException {
-        File ieRawFile = new File(conf.getMetadataTempDir(), ieUUID + RAW_FILE_SUFFIX);
-        CumulusPreservationUtils.createIErawFile(ieUUID, metadataUUID, fileUUID, ieRawFile);
-        File metadataFile = new File(conf.getMetadataTempDir(), ieUUID);
-        try (OutputStream os = new FileOutputStream(metadataFile);
-                InputStream in = new FileInputStream(ieRawFile)) {
-            MetadataTransformer transformer = transformationHandler.getTransformer(
-                    MetadataTransformationHandler.TRANSFORMATION_SCRIPT_FOR_INTELLECTUEL_ENTITY);
-            transformer.transformXmlMetadata(in, os);
-            os.flush();
+    protected MetadataBuffer transformAndValidateIntellectualEntity(String ieUUID, String metadataUUID, 
+            String fileUUID) throws IOException {
+        MetadataBuffer ieRawMetadata = createMetadataBuffer(ieUUID + RAW_FILE_SUFFIX);
+        try (OutputStream os = ieRawMetadata) {
+            CumulusPreservationUtils.createIErawMetadata(ieUUID, metadataUUID, fileUUID, os);
         }
+        MetadataBuffer metadata = createMetadataBuffer(ieUUID);
+        MetadataTransformer transformer = transformationHandler.getTransformer(
+                MetadataTransformationHandler.TRANSFORMATION_SCRIPT_FOR_INTELLECTUEL_ENTITY);
+        transform(transformer, ieRawMetadata, metadata);
 
-        try (InputStream is = new FileInputStream(metadataFile)) {
-            transformationHandler.validate(is);
-        }
-        preserver.packRepresentationMetadata(metadataFile, record.getFieldValue(Constants.FieldNames.COLLECTION_ID), 
-                UUID.randomUUID().toString());
+        validate(metadata);
+        return metadata;
     }
     
     /**
      * Transforms and validates the metadata from the Cumulus record.
      * 
      * @param record The record with the metadata to transform and validate.
-     * @return The file containing the transformed metadata.
+     * @return The buffer containing the transformed metadata.
      * @throws IOException If an error occurs when reading or writing the metadata.
      */
-    protected File transformAndValidateMetadata(CumulusRecord record) throws Exception {
+    protected MetadataBuffer transformAndValidateMetadata(CumulusRecord record) throws Exception {
         String metadataUUID = CumulusPreservationUtils.getMetadataUUID(record);
-        File metadataFile = new File(conf.getMetadataTempDir(), metadataUUID);
-        try (OutputStream os = new FileOutputStream(metadataFile)) {
-            File cumulusMetadataFile = new File(conf.getMetadataTempDir(), metadataUUID + RAW_FILE_SUFFIX);
-            MetadataTransformer transformer = transformationHandler.getTransformer(
-                    MetadataTransformationHandler.TRANSFORMATION_SCRIPT_FOR_METS);
-            try (OutputStream cumulusOut = new FileOutputStream(cumulusMetadataFile)) {
-                record.writeFieldMetadata(cumulusOut);
-            }
-            try (InputStream cumulusIn = new FileInputStream(cumulusMetadataFile)) {
-                transformer.transformXmlMetadata(cumulusIn, os);
-            }
+        MetadataBuffer metadata = createMetadataBuffer(metadataUUID);
+        MetadataTransformer transformer = transformationHandler.getTransformer(
+                MetadataTransformationHandler.TRANSFORMATION_SCRIPT_FOR_METS);
+        MetadataBuffer cumulusMetadata = createMetadataBuffer(metadataUUID + RAW_FILE_SUFFIX);
+        try (OutputStream cumulusOut = cumulusMetadata) {
+            record.writeFieldMetadata(cumulusOut);
+        }
+        transform(transformer, cumulusMetadata, metadata);
+
+        validate(metadata);
+
+        return metadata;
+    }
+    
+    /**
+     * Transforms the raw metadata into the buffer for the transformed metadata, and closes the buffer.
+     * @param transformer The transformer for the metadata.
+     * @param rawMetadata The buffer with the raw metadata.
+     * @param metadata The buffer for the transformed metadata.
+     * @throws IOException If it fails to read or write the metadata.
+     */
+    protected void transform(MetadataTransformer transformer, MetadataBuffer rawMetadata, MetadataBuffer metadata) 
+            throws IOException {
+        try (InputStream in = rawMetadata.getInputStream();
+                OutputStream os = metadata) {
+            transformer.transformXmlMetadata(in, os);
             os.flush();
         }
+    }
+    
+    /**
+     * Creates the buffer for a metadata document. 
+     * It is kept in memory, unless it exceeds the metadata memory threshold, in which case it is written to a
+     * file with the given name in the metadata temp dir.
+     * @param name The name of the metadata document.
+     * @return The buffer for the metadata.
+     * @throws IOException If the file for the metadata cannot be created.
+     */
+    protected MetadataBuffer createMetadataBuffer(String name) throws IOException {
+        return new MetadataBuffer(new File(conf.getMetadataTempDir(), name), conf.getMetadataMemoryThreshold());
+    }
 
-        try (InputStream is = new FileInputStream(metadataFile)) {
-            transformationHandler.validate(is);
+    /**
+     * Deletes the buffers with the transformed metadata of the record, along with the files with their raw metadata.
+     * @param preparedRecord The record with the transformed metadata.
+     */
+    protected void deleteTemporaryFiles(PreparedRecord preparedRecord) {
+        for(MetadataBuffer metadata : preparedRecord.getAllMetadata()) {
+            try {
+                metadata.delete();
+                FileUtils.deleteFile(new File(metadata.getFile().getParentFile(), metadata.getName()
+                        + RAW_FILE_SUFFIX));
+            } catch (IllegalStateException e) {
+                log.warn("Could not clean up the metadata '" + metadata.getFile().getAbsolutePath() + "'", e);
+            }
         }
+    }
 
-        return metadataFile;
+    /**
+     * Validates the metadata in the buffer, and keeps the result of the validation along with the metadata.
+     * The validation also extracts the schema locations and calculates the digest of the metadata. 
+     * @param metadata The buffer with the metadata.
+     * @throws IOException If it fails to read the metadata.
+     * @throws IllegalStateException If the validation did not give any result.
+     */
+    protected void validate(MetadataBuffer metadata) throws IOException {
+        MetadataValidationResult result;
+        try (InputStream is = metadata.getInputStream()) {
+            result = transformationHandler.validate(is);
+        }
+        if(result == null) {
+            throw new IllegalStateException("The validation of the metadata '" + metadata.getName() 
+                    + "' did not give any result.");
+        }
+        metadata.setValidationResult(result);
     }
 
     /**
-     * Finds the metadata standards used in the metadata file, and set it as the value for the corresponding field 
+     * Sets the metadata standards used in the metadata as the value for the corresponding field 
      * in the cumulus record.
      * @param record The cumulus record where the metadata standards are written to.
-     * @param metadataFile The file with the metadata.
-     * @throws IOException If it fails to read the metadata standards from the metadata file.
+     * @param schemaLocations The schema locations found when validating the metadata.
      */
-    protected void setMetadataStandardsForRecord(CumulusRecord record, File metadataFile) throws IOException {
-        try (InputStream is = new FileInputStream(metadataFile)){
-            Collection<String> namespaces = transformationHandler.getMetadataStandards(is);
-            StringBuilder value = new StringBuilder();
-            for(String s : namespaces) {
-                value.append(s);
-                value.append("\n");
-            }
-            record.setStringValueInField(Constants.FieldNames.BEVARINGS_METADATA, value.toString());
+    protected void setMetadataStandardsForRecord(CumulusRecord record, Collection<String> schemaLocations) {
+        StringBuilder value = new StringBuilder();
+        for(String s : schemaLocations) {
+            value.append(s);
+            value.append("\n");
         }
+        record.setStringValueInField(Constants.FieldNames.BEVARINGS_METADATA, value.toString());
     }
 }
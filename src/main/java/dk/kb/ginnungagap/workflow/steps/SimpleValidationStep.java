@@ -8,10 +8,14 @@ import dk.kb.cumulus.Constants;
 import dk.kb.cumulus.CumulusRecord;
 import dk.kb.cumulus.CumulusServer;
 import dk.kb.ginnungagap.archive.Archive;
+import dk.kb.ginnungagap.config.CumulusPagingConfiguration;
 import dk.kb.metadata.utils.CalendarUtils;
 
 /**
  * Workflow step for simple validation of a specific Cumulus catalog.
+ *
+ * The records are validated together with the other records of their WARC file, so the checksum of each WARC file 
+ * is only retrieved once for all its records in a page.
  */
 public class SimpleValidationStep extends ValidationStep {
     /** The logger.*/
@@ -26,7 +30,33 @@ public class SimpleValidationStep extends ValidationStep {
      * @param archive The bitrepository archive where the data must be validated.
      */
     public SimpleValidationStep(CumulusServer server, String catalogName, Archive archive) {
-        super(server, catalogName, Constants.FieldValues.PRESERVATION_VALIDATION_SIMPLE_CHECK);
+        this(server, catalogName, archive, 1);
+    }
+
+    /**
+     * Constructor.
+     * @param server The Cumulus server.
+     * @param catalogName The name of the catalog.
+     * @param archive The bitrepository archive where the data must be validated.
+     * @param validationThreads The number of WARC files to validate concurrently.
+     */
+    public SimpleValidationStep(CumulusServer server, String catalogName, Archive archive, 
+            int validationThreads) {
+        this(server, catalogName, archive, validationThreads, null);
+    }
+
+    /**
+     * Constructor.
+     * @param server The Cumulus server.
+     * @param catalogName The name of the catalog.
+     * @param archive The bitrepository archive where the data must be validated.
+     * @param validationThreads The number of WARC files to validate concurrently.
+     * @param pagingConf The configuration for reading the records in pages. May be null.
+     */
+    public SimpleValidationStep(CumulusServer server, String catalogName, Archive archive, 
+            int validationThreads, CumulusPagingConfiguration pagingConf) {
+        super(server, catalogName, Constants.FieldValues.PRESERVATION_VALIDATION_SIMPLE_CHECK, validationThreads, 
+                pagingConf);
         this.archive = archive;
     }
 
@@ -35,12 +65,48 @@ public class SimpleValidationStep extends ValidationStep {
         return "Simple Validation Step for '" + catalogName + "'";
     }
 
+    /**
+     * Validates all the records of a WARC file against the checksum of the WARC file, which is only retrieved once 
+     * from the archive for all the records of the WARC file.
+     */
+    @Override
+    protected void validateWarcFileRecords(WarcFileRecords warcFileRecords, WorkflowReport report) {
+        String checksumResult = null;
+        Exception failure = null;
+        try {
+            checksumResult = archive.getChecksum(warcFileRecords.getWarcId(), warcFileRecords.getCollectionId());
+        } catch (Exception e) {
+            failure = e;
+        }
+        for(CumulusRecord record : warcFileRecords.getRecords()) {
+            if(failure != null) {
+                setFailed(record, failure, report);
+            } else {
+                validateRecord(record, checksumResult, report);
+            }
+        }
+    }
+
     @Override
     protected void validateRecord(CumulusRecord record, WorkflowReport report) {
         try {
             String warcId = record.getFieldValue(Constants.FieldNames.RESOURCE_PACKAGE_ID);
             String collectionId = record.getFieldValue(Constants.FieldNames.COLLECTION_ID);
             String checksumResult = archive.getChecksum(warcId, collectionId);
+            validateRecord(record, checksumResult, report);
+        } catch (Exception e) {
+            setFailed(record, e, report);
+        }
+    }
+
+    /**
+     * Validates the record against the checksum of its WARC file in the archive.
+     * @param record The record to validate.
+     * @param checksumResult The checksum of the WARC file in the archive.
+     * @param report The report for workflow.
+     */
+    protected void validateRecord(CumulusRecord record, String checksumResult, WorkflowReport report) {
+        try {
             String warcChecksum = record.getFieldValue(Constants.FieldNames.ARCHIVE_MD5);
             
             if(checksumResult.equalsIgnoreCase(warcChecksum)) {
@@ -49,12 +115,25 @@ public class SimpleValidationStep extends ValidationStep {
                 throw new IllegalStateException("Checksums did not match. Expected '" + warcChecksum 
                         + "', but received '" + checksumResult + "' from the archive.");
             }
-        } catch (IllegalStateException e) {
+        } catch (Exception e) {
+            setFailed(record, e, report);
+        }
+    }
+
+    /**
+     * Report back that the validation of the record failed with the given exception.
+     * An IllegalStateException means that the WARC file has an integrity issue, whereas other exceptions are errors.
+     * @param record The record which failed the validation.
+     * @param e The exception, which caused the failure.
+     * @param report The report for workflow.
+     */
+    protected void setFailed(CumulusRecord record, Exception e, WorkflowReport report) {
+        if(e instanceof IllegalStateException) {
             log.info("Failed to validate the WARC file", e);
             String message = "WARC file exists, but it has an integrity issue. Discovered at: " 
                     + CalendarUtils.getCurrentDate();
             setInvalid(record, message, report);
-        } catch (Exception e) {
+        } else {
             String errMsg = "Error when trying to validate record '" + record + "'";
             log.warn(errMsg, e);
             setInvalid(record, errMsg + " : " + e.getMessage(), report);
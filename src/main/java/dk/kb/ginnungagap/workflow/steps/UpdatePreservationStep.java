@@ -1,7 +1,10 @@
 package dk.kb.ginnungagap.workflow.steps;
 
+import java.util.Iterator;
+
 import dk.kb.ginnungagap.cumulus.CumulusPreservationUtils;
 import dk.kb.ginnungagap.workflow.reporting.WorkflowReport;
+import org.jwat.warc.WarcDigest;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -80,7 +83,9 @@ public class UpdatePreservationStep extends PreservationStep {
             log.debug("No items for preservation update from catalog: " + catalogName);
             return;
         }
-        for(CumulusRecord record : items) {
+        Iterator<CumulusRecord> iterator = items.iterator();
+        while(!isStopRequested(catalogName) && iterator.hasNext()) {
+            CumulusRecord record = iterator.next();
             try {
                 log.debug("Initiating preservation update on record '" + record.getUUID() + "'");
                 String oldMetadataReference = getOldMetadataReference(record);
@@ -121,12 +126,22 @@ public class UpdatePreservationStep extends PreservationStep {
         record.setStringValueInField(PRESERVATION_UPDATE_HISTORY_FIELD_NAME, previousMetadata);
     }
 
+    /**
+     * The content-file is not packaged during a preservation update, so its block digest is not needed.
+     * @return Null.
+     */
+    @Override
+    protected String getAssetDigestAlgorithm() {
+        return null;
+    }
+
     /**
      * The content-file of the given record will not be preserved during a preservation update.
      * @param record The given Cumulus record with the file to preserve.
+     * @param assetDigest The block digest of the file. Not used.
      */
     @Override
-    protected void preserveFile(CumulusRecord record) {
+    protected void preserveFile(CumulusRecord record, WarcDigest assetDigest) {
         log.debug("Do not preserve the file again, when performing the preservation update.");
     }
 }
@@ -1,18 +1,34 @@
 package dk.kb.ginnungagap.workflow.steps;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import dk.kb.cumulus.Constants;
 import dk.kb.cumulus.CumulusQuery;
 import dk.kb.cumulus.CumulusRecord;
 import dk.kb.cumulus.CumulusRecordCollection;
 import dk.kb.cumulus.CumulusServer;
+import dk.kb.ginnungagap.config.CumulusPagingConfiguration;
 import dk.kb.ginnungagap.cumulus.CumulusPreservationUtils;
 import dk.kb.ginnungagap.cumulus.CumulusQueryUtils;
+import dk.kb.ginnungagap.cumulus.CumulusRecordCursor;
+import dk.kb.ginnungagap.exception.ArgumentCheck;
 import dk.kb.ginnungagap.workflow.reporting.WorkflowReport;
 import dk.kb.ginnungagap.workflow.schedule.WorkflowStep;
 import dk.kb.metadata.utils.CalendarUtils;
 
 /**
  * Abstract class for the Cumulus Record Validation steps.
+ *
+ * The records are validated in groups by their WARC file. With more than one validation thread, the WARC files are
+ * validated concurrently, while the records of each WARC file are still validated together by a single thread.
+ * When the records are read in pages, then the records of each page are grouped and validated, before the next page.
  */
 public abstract class ValidationStep extends WorkflowStep {
     /** Cumulus server.*/
@@ -21,29 +37,156 @@ public abstract class ValidationStep extends WorkflowStep {
     protected final String catalogName;
     /** The value for the validation field to have valued.*/
     protected final String validationFieldValue;
+    /** The number of WARC files to validate concurrently.*/
+    protected final int validationThreads;
+    /** The configuration for reading the records in pages. May be null, for reading them in a single collection.*/
+    protected final CumulusPagingConfiguration pagingConf;
     
     /**
-     * Constructor.
+     * Constructor for validating one WARC file at the time.
      * @param server The Cumulus server.
      * @param catalogName The name of the catalog to validate.
      * @param validationFieldValue The validation field value to extract.
      */
     protected ValidationStep(CumulusServer server, String catalogName, String validationFieldValue) {
+        this(server, catalogName, validationFieldValue, 1);
+    }
+    
+    /**
+     * Constructor.
+     * @param server The Cumulus server.
+     * @param catalogName The name of the catalog to validate.
+     * @param validationFieldValue The validation field value to extract.
+     * @param validationThreads The number of WARC files to validate concurrently.
+     */
+    protected ValidationStep(CumulusServer server, String catalogName, String validationFieldValue, 
+            int validationThreads) {
+        this(server, catalogName, validationFieldValue, validationThreads, null);
+    }
+    
+    /**
+     * Constructor.
+     * @param server The Cumulus server.
+     * @param catalogName The name of the catalog to validate.
+     * @param validationFieldValue The validation field value to extract.
+     * @param validationThreads The number of WARC files to validate concurrently.
+     * @param pagingConf The configuration for reading the records in pages. May be null.
+     */
+    protected ValidationStep(CumulusServer server, String catalogName, String validationFieldValue, 
+            int validationThreads, CumulusPagingConfiguration pagingConf) {
         super(catalogName);
+        ArgumentCheck.checkPositiveInt(validationThreads, "int validationThreads");
         this.server = server;
         this.catalogName = catalogName;
         this.validationFieldValue = validationFieldValue;
+        this.validationThreads = validationThreads;
+        this.pagingConf = pagingConf;
     }
     
     @Override
     public void performStep(WorkflowReport report) throws Exception {
         CumulusQuery query = CumulusQueryUtils.getQueryForPreservationValidation(catalogName, validationFieldValue);
         
-        CumulusRecordCollection items = server.getItems(catalogName, query);
-        for(CumulusRecord record : items) {
+        int validated = 0;
+        try (CumulusRecordCursor cursor = new CumulusRecordCursor(server, catalogName, query, pagingConf)) {
+            CumulusRecordCollection items;
+            while(!isStopRequested() && (items = cursor.nextPage()) != null) {
+                validated += validatePage(items, report);
+            }
+        }
+        setResultOfRun("Validated " + validated + " records.");
+    }
+
+    /**
+     * Validates the records of a page, grouped by their WARC files.
+     * @param items The records of the page.
+     * @param report The report for workflow.
+     * @return The number of records of the page.
+     */
+    protected int validatePage(CumulusRecordCollection items, WorkflowReport report) {
+        List<CumulusRecord> ungroupedRecords = new ArrayList<CumulusRecord>();
+        Collection<WarcFileRecords> warcFiles = WarcFileRecords.groupRecords(items, ungroupedRecords);
+        int res = ungroupedRecords.size();
+        for(WarcFileRecords warcFileRecords : warcFiles) {
+            res += warcFileRecords.getNumberOfRecords();
+        }
+        if(validationThreads > 1) {
+            validateConcurrently(warcFiles, ungroupedRecords, report);
+        } else {
+            for(WarcFileRecords warcFileRecords : warcFiles) {
+                validateWarcFileRecords(warcFileRecords, report);
+            }
+            for(CumulusRecord record : ungroupedRecords) {
+                validateRecord(record, report);
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Validates the WARC files and the ungrouped records through a bounded pool of workers.
+     * At most twice the number of workers are waiting to be validated at any given time.
+     * @param warcFiles The records grouped by their WARC files.
+     * @param ungroupedRecords The records, which could not be grouped by their WARC file.
+     * @param report The report for workflow, which is updated concurrently by the workers.
+     */
+    protected void validateConcurrently(Collection<WarcFileRecords> warcFiles, 
+            Collection<CumulusRecord> ungroupedRecords, WorkflowReport report) {
+        ExecutorService executor = Executors.newFixedThreadPool(validationThreads);
+        Semaphore pending = new Semaphore(validationThreads * 2);
+        AtomicInteger started = new AtomicInteger();
+        AtomicInteger finished = new AtomicInteger();
+        List<Runnable> tasks = new ArrayList<Runnable>();
+        for(WarcFileRecords warcFileRecords : warcFiles) {
+            tasks.add(() -> validateWarcFileRecords(warcFileRecords, report));
+        }
+        for(CumulusRecord record : ungroupedRecords) {
+            tasks.add(() -> validateRecord(record, report));
+        }
+        try {
+            for(Runnable task : tasks) {
+                pending.acquire();
+                started.incrementAndGet();
+                executor.execute(() -> {
+                    try {
+                        task.run();
+                    } catch (RuntimeException e) {
+                        log.error("Unexpected failure while validating records from catalog '" + catalogName 
+                                + "'.", e);
+                        report.addWorkflowFailure("Unexpected failure while validating records from catalog '" 
+                                + catalogName + "': " + e.getMessage());
+                    } finally {
+                        setResultOfRun("Running! Validated " + finished.incrementAndGet() + " of " 
+                                + tasks.size() + " WARC files and ungrouped records.");
+                        pending.release();
+                    }
+                });
+            }
+            executor.shutdown();
+            while(!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                log.debug("Still waiting for " + (started.get() - finished.get()) + " WARC files to be validated.");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while validating records from catalog '" + catalogName 
+                    + "'", e);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Validates all the records packaged in the same WARC file.
+     * By default each record is validated individually. Sub-classes, which must read the WARC file, can override 
+     * this to validate all the records in a single pass of the WARC file.
+     * May be called concurrently for different WARC files.
+     * @param warcFileRecords The records of the WARC file.
+     * @param report The report for workflow.
+     */
+    protected void validateWarcFileRecords(WarcFileRecords warcFileRecords, WorkflowReport report) {
+        for(CumulusRecord record : warcFileRecords.getRecords()) {
             validateRecord(record, report);
         }
-        setResultOfRun("Validated " + items.getCount() + " records.");
     }
 
     /**
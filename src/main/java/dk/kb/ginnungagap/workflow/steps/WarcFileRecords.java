@@ -0,0 +1,157 @@
+package dk.kb.ginnungagap.workflow.steps;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import dk.kb.cumulus.Constants;
+import dk.kb.cumulus.CumulusRecord;
+import dk.kb.ginnungagap.exception.ArgumentCheck;
+
+/**
+ * The Cumulus records, which are packaged in the same WARC file.
+ *
+ * The records of a WARC file are handled together in a single sequential pass of the WARC file, so each WARC file
+ * is only retrieved once from the archive, instead of once for each of its records.
+ */
+public class WarcFileRecords {
+    /** The logger.*/
+    private static final Logger log = LoggerFactory.getLogger(WarcFileRecords.class);
+
+    /** The prefix of the WARC record ids, which are UUIDs.*/
+    protected static final String UUID_URN_PREFIX = "urn:uuid:";
+
+    /** The id of the WARC file.*/
+    protected final String warcId;
+    /** The id of the collection of the WARC file.*/
+    protected final String collectionId;
+    /** The records, which have not yet been found in the WARC file, mapped by their UUID.*/
+    protected final Map<String, CumulusRecord> records;
+    /** The number of records added.*/
+    protected int numberOfRecords;
+
+    /**
+     * Constructor.
+     * @param warcId The id of the WARC file.
+     * @param collectionId The id of the collection of the WARC file.
+     */
+    public WarcFileRecords(String warcId, String collectionId) {
+        ArgumentCheck.checkNotNullOrEmpty(warcId, "String warcId");
+        ArgumentCheck.checkNotNullOrEmpty(collectionId, "String collectionId");
+        this.warcId = warcId;
+        this.collectionId = collectionId;
+        this.records = new LinkedHashMap<String, CumulusRecord>();
+        this.numberOfRecords = 0;
+    }
+
+    /**
+     * Adds a record, which is packaged in the WARC file.
+     * @param uuid The UUID of the record, which is the id of its WARC record.
+     * @param record The record.
+     * @return Whether the record was added. It is not added, if another record has the same UUID.
+     */
+    public boolean addRecord(String uuid, CumulusRecord record) {
+        if(records.containsKey(uuid)) {
+            return false;
+        }
+        records.put(uuid, record);
+        numberOfRecords++;
+        return true;
+    }
+
+    /**
+     * Finds and removes the record for a WARC record of the WARC file.
+     * The UUID is extracted from the WARC record id, and the record is looked up by it.
+     * @param warcRecordId The id of the WARC record, e.g. '&lt;urn:uuid:UUID&gt;'.
+     * @return The record, or null if none of the remaining records has the WARC record.
+     */
+    public CumulusRecord takeRecord(String warcRecordId) {
+        if(warcRecordId == null || records.isEmpty()) {
+            return null;
+        }
+        return records.remove(getUuid(warcRecordId));
+    }
+
+    /**
+     * Extracts the UUID from a WARC record id.
+     * @param warcRecordId The id of the WARC record.
+     * @return The UUID of the WARC record id.
+     */
+    protected String getUuid(String warcRecordId) {
+        String res = warcRecordId.trim();
+        if(res.startsWith("<") && res.endsWith(">")) {
+            res = res.substring(1, res.length() - 1);
+        }
+        if(res.startsWith(UUID_URN_PREFIX)) {
+            res = res.substring(UUID_URN_PREFIX.length());
+        }
+        return res;
+    }
+
+    /** @return The id of the WARC file.*/
+    public String getWarcId() {
+        return warcId;
+    }
+
+    /** @return The id of the collection of the WARC file.*/
+    public String getCollectionId() {
+        return collectionId;
+    }
+
+    /** @return The records, which have not yet been found in the WARC file.*/
+    public Collection<CumulusRecord> getRecords() {
+        return new ArrayList<CumulusRecord>(records.values());
+    }
+
+    /** @return Whether all the records have been found in the WARC file.*/
+    public boolean isEmpty() {
+        return records.isEmpty();
+    }
+
+    /** @return The number of records added.*/
+    public int getNumberOfRecords() {
+        return numberOfRecords;
+    }
+
+    /**
+     * Groups the records by the WARC file and collection they are packaged in.
+     * The records, which cannot be grouped, e.g. when their WARC file id cannot be extracted, are added to the
+     * collection of ungrouped records, so they can be handled individually.
+     * @param records The records to group.
+     * @param ungroupedRecords The collection for the records, which could not be grouped.
+     * @return The records grouped by WARC file, in the order the WARC files are first encountered.
+     */
+    public static Collection<WarcFileRecords> groupRecords(Iterable<CumulusRecord> records,
+            Collection<CumulusRecord> ungroupedRecords) {
+        Map<String, WarcFileRecords> res = new LinkedHashMap<String, WarcFileRecords>();
+        for(CumulusRecord record : records) {
+            try {
+                String warcId = record.getFieldValue(Constants.FieldNames.RESOURCE_PACKAGE_ID);
+                String collectionId = record.getFieldValue(Constants.FieldNames.COLLECTION_ID);
+                String uuid = record.getUUID();
+                if(warcId == null || warcId.isEmpty() || collectionId == null || collectionId.isEmpty()
+                        || uuid == null || uuid.isEmpty()) {
+                    ungroupedRecords.add(record);
+                    continue;
+                }
+                String key = collectionId + "/" + warcId;
+                WarcFileRecords warcFileRecords = res.get(key);
+                if(warcFileRecords == null) {
+                    warcFileRecords = new WarcFileRecords(warcId, collectionId);
+                    res.put(key, warcFileRecords);
+                }
+                if(!warcFileRecords.addRecord(uuid, record)) {
+                    ungroupedRecords.add(record);
+                }
+            } catch (RuntimeException e) {
+                log.debug("Could not group the record '" + record + "' by its WARC file.", e);
+                ungroupedRecords.add(record);
+            }
+        }
+        return new ArrayList<WarcFileRecords>(res.values());
+    }
+}
@@ -93,7 +93,7 @@ public final class AgentSelector {
     /**
      * The version for the ingest agent.
      */
-    protected static String kbApiVersion = null;
+    protected static volatile String kbApiVersion = null;
     
     /**
      * @param version Sets the version.
@@ -16,8 +16,11 @@ public final class CalendarUtils {
     /** constructor to prevent instantiation of utility class. */
     protected CalendarUtils() {}
 
-    /** A single instance of the DatatypeFactory to prevent overlap from recreating it too often.*/
-    private static DatatypeFactory factory = null;
+    /** 
+     * An instance of the DatatypeFactory per thread to prevent overlap from recreating it too often.
+     * The DatatypeFactory is not guaranteed to be thread-safe.
+     */
+    private static final ThreadLocal<DatatypeFactory> FACTORY = new ThreadLocal<DatatypeFactory>();
 
     /**
      * Turns a date into a XMLGregorianCalendar.
@@ -27,8 +30,10 @@ public final class CalendarUtils {
      */
     public static XMLGregorianCalendar getXmlGregorianCalendar(Date date) {
         try {
+            DatatypeFactory factory = FACTORY.get();
             if(factory == null) {
                 factory = DatatypeFactory.newInstance();
+                FACTORY.set(factory);
             }
 
             GregorianCalendar gc = new GregorianCalendar();
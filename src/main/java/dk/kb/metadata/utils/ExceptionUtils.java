@@ -12,14 +12,15 @@ public class ExceptionUtils {
     /** Constructor.*/
     protected ExceptionUtils() {}
 
-    /** The list of exceptions.*/
-    private static List<RuntimeException> exceptions = new ArrayList<RuntimeException>();
+    /** The list of exceptions. Confined to the thread performing the transformation.*/
+    private static final ThreadLocal<List<RuntimeException>> EXCEPTIONS = 
+            ThreadLocal.withInitial(() -> new ArrayList<RuntimeException>());
 
     /**
      * Cleans the list of exceptions.
      */
     public static void clean() {
-        exceptions.clear();
+        EXCEPTIONS.get().clear();
     }
 
     /**
@@ -27,7 +28,7 @@ public class ExceptionUtils {
      * @param e The exception to add.
      */
     public static void insertException(RuntimeException e) {
-        exceptions.add(e);
+        EXCEPTIONS.get().add(e);
     }
 
     /**
@@ -35,7 +36,7 @@ public class ExceptionUtils {
      * @return Whether any exceptions has been thrown.
      */
     public static boolean hasFailure() {
-        return !exceptions.isEmpty();
+        return !EXCEPTIONS.get().isEmpty();
     }
 
     /**
@@ -44,6 +45,7 @@ public class ExceptionUtils {
      * @return The caught exception(s). Or null if no exceptions have been caught.
      */
     public static Exception retrieveFailure() {
+        List<RuntimeException> exceptions = EXCEPTIONS.get();
         if(exceptions.size() < 1) {
             return null;
         }
@@ -10,8 +10,9 @@ public final class FileIdHandler {
     /** Constructor for this Utility class.*/
     protected FileIdHandler() {}
 
-    /** Maps between a GUID and the respective file id. */
-    private static final Map<String, String> FILE_IDS = new HashMap<String, String>();
+    /** Maps between a GUID and the respective file id. Confined to the thread performing the transformation.*/
+    private static final ThreadLocal<Map<String, String>> FILE_IDS = 
+            ThreadLocal.withInitial(() -> new HashMap<String, String>());
 
     /**
      * Returns the file id for the respective GUID. If no file id exists for such GUID, then it is created.
@@ -19,25 +20,26 @@ public final class FileIdHandler {
      * @return The file id corresponding to the GUID.
      */
     public static String getFileID(String guid) {
-        String fileId = FILE_IDS.get(guid);
+        Map<String, String> fileIds = FILE_IDS.get();
+        String fileId = fileIds.get(guid);
         if (fileId == null) {
-            fileId = "fileId" + (FILE_IDS.size() + 1);
-            FILE_IDS.put(guid, fileId);
+            fileId = "fileId" + (fileIds.size() + 1);
+            fileIds.put(guid, fileId);
         }
-        return FILE_IDS.get(guid);
+        return fileIds.get(guid);
     }
 
     /**
-     * @return The map of file-ids.
+     * @return The map of file-ids for the current thread.
      */
     public static Map<String, String> getMap() {
-        return FILE_IDS;
+        return FILE_IDS.get();
     }
     
     /**
      * Cleanup data after use (should be called after each transformation).
      */
     public static void clean() {
-        FILE_IDS.clear();
+        FILE_IDS.get().clear();
     }
 }
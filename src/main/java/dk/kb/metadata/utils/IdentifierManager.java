@@ -14,8 +14,12 @@ public final class IdentifierManager {
     /** Constructor for this utility class.*/
     protected IdentifierManager() {}
 
-    /** The mapping between the different file ids and their event identifiers.*/
-    private static Map<String, String> eventIdentifierMap = new HashMap<String, String>();
+    /** 
+     * The mapping between the different file ids and their event identifiers.
+     * Confined to the thread performing the transformation.
+     */
+    private static final ThreadLocal<Map<String, String>> EVENT_IDENTIFIER_MAP = 
+            ThreadLocal.withInitial(() -> new HashMap<String, String>());
 
     /**
      * Retrieves the event identifier for the given fileId.
@@ -24,6 +28,7 @@ public final class IdentifierManager {
      * @return The event identifier corresponding to the fileId.
      */
     public static String getEventIdentifier(String fileId) {
+        Map<String, String> eventIdentifierMap = EVENT_IDENTIFIER_MAP.get();
         String uuid = eventIdentifierMap.get(fileId);
         if(uuid == null) {
             uuid = UUID.randomUUID().toString();
@@ -36,6 +41,6 @@ public final class IdentifierManager {
      * Cleanup data after use (should be called after each transformation).
      */
     public static void clean() {
-        eventIdentifierMap.clear();
+        EVENT_IDENTIFIER_MAP.get().clear();
     }
 }
@@ -13,8 +13,12 @@ public final class MdIdHandler {
     /** Constructor for this utility class.*/
     protected MdIdHandler() {}
 
-    /** Container for the ids for the MD objects for different documents with different ids.*/
-    private static Map<String, List<String>> mdIds = new HashMap<String, List<String>>();
+    /** 
+     * Container for the ids for the MD objects for different documents with different ids.
+     * Confined to the thread performing the transformation.
+     */
+    private static final ThreadLocal<Map<String, List<String>>> MD_IDS = 
+            ThreadLocal.withInitial(() -> new HashMap<String, List<String>>());
 
     /** 
      * Creates the id for a new MD object of a specific metadata document.
@@ -23,6 +27,7 @@ public final class MdIdHandler {
      * @return The id for a new MD object.
      */
     public static String createNewMdId(String type) {
+        Map<String, List<String>> mdIds = MD_IDS.get();
         List<String> idList;
         if(mdIds.containsKey(type)) {
             idList = mdIds.get(type);
@@ -45,6 +50,7 @@ public final class MdIdHandler {
      * or an empty list if none is found.
      */
     public static List<String> getMdIDs(String type) {
+        Map<String, List<String>> mdIds = MD_IDS.get();
         if(mdIds.containsKey(type)) {
             return mdIds.get(type);
         }
@@ -77,6 +83,6 @@ public final class MdIdHandler {
      * Cleanup data after use (should be called after each transformation).
      */
     public static void clean() {
-        mdIds.clear();
+        MD_IDS.get().clear();
     }
 }
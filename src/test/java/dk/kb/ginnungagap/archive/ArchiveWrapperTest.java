@@ -70,6 +70,22 @@ public class ArchiveWrapperTest extends ExtendedTestCase {
         Mockito.verifyNoMoreInteractions(archive);
     }
 
+    @Test
+    public void testReleaseFile() {
+        addDescription("Test the releaseFile method.");
+        Archive archive = Mockito.mock(Archive.class);
+        String fileId = UUID.randomUUID().toString();
+        String collectionId = UUID.randomUUID().toString();
+
+        ArchiveWrapper wrapper = new ArchiveWrapper();
+        wrapper.archive = archive;
+
+        wrapper.releaseFile(fileId, collectionId);
+
+        Mockito.verify(archive).releaseFile(Mockito.eq(fileId), Mockito.eq(collectionId));
+        Mockito.verifyNoMoreInteractions(archive);
+    }
+
     @Test
     public void testGetChecksum() {
         addDescription("Test the getChecksum method.");
@@ -2,10 +2,16 @@ package dk.kb.ginnungagap.archive;
 
 import dk.kb.cumulus.Constants;
 import dk.kb.cumulus.CumulusRecord;
+import dk.kb.cumulus.CumulusServer;
 import dk.kb.ginnungagap.MailDispatcher;
+import dk.kb.ginnungagap.config.BitmagConfiguration;
+import dk.kb.ginnungagap.config.RolloverConfiguration;
 import dk.kb.ginnungagap.config.TestBitmagConfiguration;
 import dk.kb.ginnungagap.config.TestConfiguration;
+import dk.kb.ginnungagap.cumulus.CumulusWrapper;
 import dk.kb.ginnungagap.testutils.TestFileUtils;
+import dk.kb.ginnungagap.utils.ChecksumUtils;
+import dk.kb.ginnungagap.utils.WarcRecordIndex;
 import org.bitrepository.common.utils.FileUtils;
 import org.jaccept.structure.ExtendedTestCase;
 import org.jwat.common.Uri;
@@ -17,13 +23,23 @@ import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
 import java.io.File;
+import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
@@ -115,11 +131,12 @@ public class BitmagPreserverTest extends ExtendedTestCase {
         when(record.getFieldValue(eq(Constants.FieldNames.COLLECTION_ID))).thenReturn(collectionId);
         when(record.getFile()).thenReturn(resourceFile);
 
-        preserver.packRecordResource(record);
+        WarcDigest blockDigest = getBlockDigest();
+        preserver.packRecordResource(record, blockDigest);
         
         verifyZeroInteractions(archive);
         
-        verify(wp).packRecordAssetFile(eq(record), eq(resourceFile));
+        verify(wp).packRecordAssetFile(eq(record), eq(resourceFile), eq(blockDigest));
         verify(wp).addRecordToPackagedList(eq(record));
         verifyNoMoreInteractions(wp);
         
@@ -242,18 +259,57 @@ public class BitmagPreserverTest extends ExtendedTestCase {
         when(archive.uploadFile(any(File.class), anyString())).thenReturn(true);
         
         preserver.checkConditions();
+        preserver.waitForUploads();
         
         verify(archive).uploadFile(any(File.class), anyString());
         verifyNoMoreInteractions(archive);
         
-        verify(wp).getSize();
-        verify(wp, times(3)).getWarcFile();
+        verify(wp, times(2)).getSize();
+        verify(wp, times(4)).getWarcFile();
+        verify(wp).getWarcFileId();
+        verify(wp).getWarcFileChecksum();
+        verify(wp).getPackagedCompleteRecords();
+        verify(wp).getPackagedMetadataRecords();
         verify(wp).close();
         verify(wp).reportSucces(any(WarcDigest.class));
         verify(wp).hasContent();
         verifyNoMoreInteractions(wp);
     }
     
+    @Test
+    public void testCheckConditionsWaitsForRecordPackaging() throws Exception {
+        addDescription("Test that the WARC file is not uploaded while a record is being packaged.");
+        ArchiveWrapper archive = mock(ArchiveWrapper.class);
+        BitmagPreserver preserver = new BitmagPreserver();
+        preserver.archive = archive;
+        preserver.conf = conf;
+
+        WarcPacker wp = mock(WarcPacker.class);
+        preserver.warcPackerForCollection.put(collectionId, wp);
+        when(wp.getSize()).thenReturn(Long.MAX_VALUE);
+        when(wp.getWarcFile()).thenReturn(warcFile);
+        when(wp.hasContent()).thenReturn(true);
+        when(archive.uploadFile(any(File.class), anyString())).thenReturn(true);
+        
+        addStep("Start packaging a record, and check the conditions from another thread", 
+                "Must not upload before the packaging of the record has finished");
+        preserver.startRecordPackaging();
+        Thread checker = new Thread(() -> preserver.checkConditions());
+        checker.start();
+        checker.join(500);
+        Assert.assertTrue(checker.isAlive());
+        verifyZeroInteractions(archive);
+        
+        addStep("Finish the packaging of the record", "The WARC file must be uploaded");
+        preserver.finishRecordPackaging();
+        checker.join(10000);
+        Assert.assertFalse(checker.isAlive());
+        preserver.waitForUploads();
+        verify(archive).uploadFile(any(File.class), anyString());
+        verifyNoMoreInteractions(archive);
+        Assert.assertTrue(preserver.warcPackerForCollection.isEmpty());
+    }
+    
     @Test
     public void testUploadAllWhenItHasContent() {
         addDescription("Test the uploadAll method, when the warc-packer has content.");
@@ -265,7 +321,9 @@ public class BitmagPreserverTest extends ExtendedTestCase {
 
         WarcPacker wp = mock(WarcPacker.class);
         preserver.warcPackerForCollection.put(collectionId, wp);
-        when(wp.getWarcFile()).thenReturn(warcFile);
+        File failedWarcFile = new File(TestFileUtils.getTempDir(), UUID.randomUUID().toString());
+        FileUtils.copyFile(warcFile, failedWarcFile);
+        when(wp.getWarcFile()).thenReturn(failedWarcFile);
         when(wp.hasContent()).thenReturn(true);
         when(archive.uploadFile(any(File.class), anyString())).thenReturn(false);
         
@@ -273,8 +331,13 @@ public class BitmagPreserverTest extends ExtendedTestCase {
         
         verify(archive).uploadFile(any(File.class), anyString());
         verifyNoMoreInteractions(archive);
+        Assert.assertFalse(failedWarcFile.exists());
         
-        verify(wp, times(3)).getWarcFile();
+        verify(wp, times(6)).getWarcFile();
+        verify(wp, times(2)).getWarcFileId();
+        verify(wp).getWarcFileChecksum();
+        verify(wp).getPackagedCompleteRecords();
+        verify(wp).getPackagedMetadataRecords();
         verify(wp).close();
         verify(wp).reportFailure(anyString());
         verify(wp).hasContent();
@@ -307,4 +370,499 @@ public class BitmagPreserverTest extends ExtendedTestCase {
         verify(wp).hasContent();
         verifyNoMoreInteractions(wp);
     }
+    
+    @Test
+    public void testRecordKeepsItsShard() {
+        addDescription("Test that all the parts of a record are packaged in the same shard, and that concurrently "
+                + "packaged records are distributed over the shards of the collection.");
+        BitmagPreserver preserver = new BitmagPreserver();
+        preserver.archive = mock(ArchiveWrapper.class);
+        preserver.conf = conf;
+        bitmagConf.setWarcShardsPerCollection(2);
+        
+        addStep("Package a record in the current thread", "Uses the same packer for each part of the record");
+        preserver.startRecordPackaging();
+        WarcPacker packer = preserver.getWarcPacker(collectionId);
+        Assert.assertEquals(preserver.getWarcPacker(collectionId), packer);
+        Assert.assertEquals(preserver.activeRecordsForShard.get(collectionId), Integer.valueOf(1));
+        
+        addStep("Package another record concurrently in another thread", "Uses the other shard");
+        WarcPacker[] otherPacker = new WarcPacker[1];
+        Thread other = new Thread(() -> {
+            preserver.startRecordPackaging();
+            try {
+                otherPacker[0] = preserver.getWarcPacker(collectionId);
+            } finally {
+                preserver.finishRecordPackaging();
+            }
+        });
+        other.start();
+        try {
+            other.join(10000);
+        } catch (InterruptedException e) {
+            throw new IllegalStateException(e);
+        }
+        Assert.assertNotNull(otherPacker[0]);
+        Assert.assertNotEquals(otherPacker[0], packer);
+        Assert.assertEquals(preserver.warcPackerForCollection.size(), 2);
+        Assert.assertEquals(preserver.collectionForShard.get(collectionId + BitmagPreserver.SHARD_SEPARATOR + 1), 
+                collectionId);
+        
+        preserver.finishRecordPackaging();
+        Assert.assertTrue(preserver.activeRecordsForShard.isEmpty());
+    }
+    
+    @Test
+    public void testUploadShardToItsCollection() {
+        addDescription("Test that the WARC file of a shard is uploaded to the collection of the shard.");
+        ArchiveWrapper archive = mock(ArchiveWrapper.class);
+        BitmagPreserver preserver = new BitmagPreserver();
+        preserver.archive = archive;
+        preserver.conf = conf;
+
+        String shardKey = collectionId + BitmagPreserver.SHARD_SEPARATOR + 1;
+        WarcPacker wp = mock(WarcPacker.class);
+        preserver.warcPackerForCollection.put(shardKey, wp);
+        preserver.collectionForShard.put(shardKey, collectionId);
+        when(wp.getWarcFile()).thenReturn(warcFile);
+        when(wp.hasContent()).thenReturn(true);
+        when(archive.uploadFile(any(File.class), anyString())).thenReturn(true);
+        
+        preserver.uploadAll();
+        
+        verify(archive).uploadFile(any(File.class), eq(collectionId));
+        verifyNoMoreInteractions(archive);
+        Assert.assertTrue(preserver.warcPackerForCollection.isEmpty());
+        Assert.assertTrue(preserver.collectionForShard.isEmpty());
+    }
+    
+    @Test
+    public void testUploadDoesNotBlockPackaging() throws Exception {
+        addDescription("Test that the packaging continues in a new WARC file, while the finished WARC file is being "
+                + "uploaded, and that the records are reported when the upload completes.");
+        ArchiveWrapper archive = mock(ArchiveWrapper.class);
+        BitmagPreserver preserver = new BitmagPreserver();
+        preserver.archive = archive;
+        preserver.conf = conf;
+
+        WarcPacker wp = mock(WarcPacker.class);
+        preserver.warcPackerForCollection.put(collectionId, wp);
+        when(wp.getSize()).thenReturn(Long.MAX_VALUE);
+        when(wp.getWarcFile()).thenReturn(warcFile);
+        when(wp.hasContent()).thenReturn(true);
+        CountDownLatch uploadStarted = new CountDownLatch(1);
+        CountDownLatch uploadReleased = new CountDownLatch(1);
+        when(archive.uploadFile(any(File.class), anyString())).thenAnswer(invocation -> {
+            uploadStarted.countDown();
+            uploadReleased.await(10, TimeUnit.SECONDS);
+            return true;
+        });
+        
+        addStep("Finish the WARC file", "The upload is started, but does not block");
+        preserver.checkConditions();
+        Assert.assertTrue(uploadStarted.await(10, TimeUnit.SECONDS));
+        Assert.assertTrue(preserver.warcPackerForCollection.isEmpty());
+        
+        addStep("Package another record while the upload is still running", "Packaged in a new WARC file");
+        preserver.startRecordPackaging();
+        try {
+            Assert.assertNotEquals(preserver.getWarcPacker(collectionId), wp);
+        } finally {
+            preserver.finishRecordPackaging();
+        }
+        verify(wp, times(0)).reportSucces(any(WarcDigest.class));
+        
+        addStep("Complete the upload", "The records of the finished WARC file are reported");
+        uploadReleased.countDown();
+        preserver.waitForUploads();
+        verify(wp).reportSucces(any(WarcDigest.class));
+        Assert.assertTrue(preserver.pendingUploads.isEmpty());
+        preserver.shutDown();
+    }
+    
+    @Test
+    public void testRolloverOnMaxRecords() {
+        addDescription("Test that the WARC file is finished, when it contains the maximum number of records, even "
+                + "though it is below the size limit.");
+        ArchiveWrapper archive = mock(ArchiveWrapper.class);
+        BitmagPreserver preserver = new BitmagPreserver();
+        preserver.archive = archive;
+        preserver.conf = conf;
+        preserver.setRolloverPolicy(new ConfiguredRolloverPolicy(createRolloverBitmagConf(
+                new RolloverConfiguration(0, 3, 0, 0))));
+
+        WarcPacker wp = mock(WarcPacker.class);
+        preserver.warcPackerForCollection.put(collectionId, wp);
+        when(wp.getSize()).thenReturn(0L);
+        when(wp.getWarcFile()).thenReturn(warcFile);
+        when(wp.hasContent()).thenReturn(true);
+        when(archive.uploadFile(any(File.class), anyString())).thenReturn(true);
+        
+        addStep("Check the conditions below the maximum number of records", "The WARC file is kept open");
+        when(wp.getRecordCount()).thenReturn(2);
+        preserver.checkConditions();
+        verifyZeroInteractions(archive);
+        
+        addStep("Check the conditions at the maximum number of records", "The WARC file is uploaded");
+        when(wp.getRecordCount()).thenReturn(3);
+        preserver.checkConditions();
+        preserver.waitForUploads();
+        verify(archive).uploadFile(any(File.class), eq(collectionId));
+        verifyNoMoreInteractions(archive);
+        Assert.assertTrue(preserver.warcPackerForCollection.isEmpty());
+        preserver.shutDown();
+    }
+    
+    @Test
+    public void testMaxOpenFilesLimitsShards() throws Exception {
+        addDescription("Test that concurrently packaged records share the WARC file, when the maximum number of open "
+                + "WARC files for the collection is lower than the number of shards.");
+        BitmagPreserver preserver = new BitmagPreserver();
+        preserver.archive = mock(ArchiveWrapper.class);
+        preserver.conf = conf;
+        bitmagConf.setWarcShardsPerCollection(2);
+        preserver.setRolloverPolicy(new ConfiguredRolloverPolicy(createRolloverBitmagConf(
+                new RolloverConfiguration(0, 0, 0, 1))));
+        
+        preserver.startRecordPackaging();
+        try {
+            WarcPacker packer = preserver.getWarcPacker(collectionId);
+            WarcPacker[] otherPacker = new WarcPacker[1];
+            Thread other = new Thread(() -> {
+                preserver.startRecordPackaging();
+                try {
+                    otherPacker[0] = preserver.getWarcPacker(collectionId);
+                } finally {
+                    preserver.finishRecordPackaging();
+                }
+            });
+            other.start();
+            other.join(10000);
+            Assert.assertEquals(otherPacker[0], packer);
+            Assert.assertEquals(preserver.warcPackerForCollection.size(), 1);
+        } finally {
+            preserver.finishRecordPackaging();
+        }
+    }
+    
+    @Test
+    public void testMaxOpenFilesAboveShards() throws Exception {
+        addDescription("Test that concurrently packaged records use separate WARC files, when the maximum number of "
+                + "open WARC files for the collection is higher than the number of shards.");
+        BitmagPreserver preserver = new BitmagPreserver();
+        preserver.archive = mock(ArchiveWrapper.class);
+        preserver.conf = conf;
+        preserver.setRolloverPolicy(new ConfiguredRolloverPolicy(createRolloverBitmagConf(
+                new RolloverConfiguration(0, 0, 0, 2))));
+        
+        preserver.startRecordPackaging();
+        try {
+            WarcPacker packer = preserver.getWarcPacker(collectionId);
+            WarcPacker[] otherPacker = new WarcPacker[1];
+            Thread other = new Thread(() -> {
+                preserver.startRecordPackaging();
+                try {
+                    otherPacker[0] = preserver.getWarcPacker(collectionId);
+                } finally {
+                    preserver.finishRecordPackaging();
+                }
+            });
+            other.start();
+            other.join(10000);
+            Assert.assertNotEquals(otherPacker[0], packer);
+            Assert.assertEquals(preserver.warcPackerForCollection.size(), 2);
+        } finally {
+            preserver.finishRecordPackaging();
+        }
+    }
+    
+    @Test
+    public void testIdleWarcFileIsFinishedByTimer() throws Exception {
+        addDescription("Test that a WARC file is finished by the rollover timer, when it gets older than the maximum "
+                + "age, even though no more records are packaged.");
+        ArchiveWrapper archive = mock(ArchiveWrapper.class);
+        BitmagPreserver preserver = new BitmagPreserver();
+        preserver.archive = archive;
+        preserver.conf = conf;
+        preserver.uploadJournal = new UploadJournal(new File(TestFileUtils.getTempDir(), 
+                UUID.randomUUID().toString()));
+        preserver.setRolloverPolicy(new ConfiguredRolloverPolicy(createRolloverBitmagConf(
+                new RolloverConfiguration(0, 0, 1, 0))));
+
+        WarcPacker wp = mock(WarcPacker.class);
+        preserver.warcPackerForCollection.put(collectionId, wp);
+        when(wp.getSize()).thenReturn(0L);
+        when(wp.getWarcFile()).thenReturn(warcFile);
+        when(wp.hasContent()).thenReturn(true);
+        when(wp.getCreationTime()).thenReturn(System.currentTimeMillis());
+        when(archive.uploadFile(any(File.class), anyString())).thenReturn(true);
+        
+        addStep("Start the preserver and wait for the WARC file to get too old", "The WARC file is uploaded");
+        preserver.initialize();
+        verify(archive, timeout(10000)).uploadFile(any(File.class), eq(collectionId));
+        preserver.shutDown();
+        Assert.assertTrue(preserver.warcPackerForCollection.isEmpty());
+        Assert.assertNull(preserver.rolloverTimer);
+    }
+    
+    protected BitmagConfiguration createRolloverBitmagConf(RolloverConfiguration rolloverConf) {
+        return new BitmagConfiguration(TestFileUtils.getTempDir(), null, 1, 1000000, TestFileUtils.getTempDir(), 
+                "SHA-1", 1, 1, rolloverConf, new HashMap<String, RolloverConfiguration>(), false, 0L);
+    }
+    
+    @Test
+    public void testFailedUploadIsDiscarded() throws Exception {
+        addDescription("Test that a failed upload reports the records as failed, and removes the WARC file from the "
+                + "upload journal, so it is not resumed and reported as preserved at the next startup.");
+        File journalDir = new File(TestFileUtils.getTempDir(), UUID.randomUUID().toString());
+        File failedWarcFile = new File(TestFileUtils.getTempDir(), UUID.randomUUID().toString() + ".warc");
+        FileUtils.copyFile(warcFile, failedWarcFile);
+        
+        ArchiveWrapper archive = mock(ArchiveWrapper.class);
+        BitmagPreserver preserver = new BitmagPreserver();
+        preserver.archive = archive;
+        preserver.conf = conf;
+        preserver.uploadJournal = new UploadJournal(journalDir);
+        
+        CumulusRecord record = mock(CumulusRecord.class);
+        when(record.getUUID()).thenReturn(UUID.randomUUID().toString());
+        WarcPacker wp = mock(WarcPacker.class);
+        preserver.warcPackerForCollection.put(collectionId, wp);
+        when(wp.getWarcFile()).thenReturn(failedWarcFile);
+        when(wp.getWarcFileId()).thenReturn(UUID.randomUUID().toString());
+        when(wp.hasContent()).thenReturn(true);
+        when(wp.getPackagedCompleteRecords()).thenReturn(Arrays.asList(record));
+        when(archive.uploadFile(any(File.class), anyString())).thenReturn(false);
+        
+        addStep("Fail the upload", "The records are reported as failed, and the WARC file is discarded");
+        preserver.uploadAll();
+        verify(wp).reportFailure(anyString());
+        Assert.assertTrue(preserver.uploadJournal.getPendingEntries().isEmpty());
+        Assert.assertFalse(failedWarcFile.exists());
+        
+        addStep("Initialize a new preserver with the same journal", "Nothing is resumed");
+        BitmagPreserver restarted = new BitmagPreserver();
+        restarted.archive = archive;
+        restarted.conf = conf;
+        restarted.uploadJournal = new UploadJournal(journalDir);
+        restarted.initialize();
+        restarted.waitForUploads();
+        
+        verify(archive).uploadFile(eq(failedWarcFile), eq(collectionId));
+        verifyNoMoreInteractions(archive);
+        restarted.shutDown();
+        preserver.shutDown();
+    }
+    
+    @Test
+    public void testJournaledUploadIsResumed() throws Exception {
+        addDescription("Test that a WARC file left in the upload journal, e.g. by a crash before its upload, is "
+                + "uploaded and its records are reported, when the preserver is initialized again.");
+        File journalDir = new File(TestFileUtils.getTempDir(), UUID.randomUUID().toString());
+        File resumeWarcFile = new File(TestFileUtils.getTempDir(), UUID.randomUUID().toString() + ".warc");
+        FileUtils.copyFile(warcFile, resumeWarcFile);
+        String catalogName = "Test-catalog";
+        String recordUuid = UUID.randomUUID().toString();
+        String warcFileId = UUID.randomUUID().toString();
+        
+        CumulusRecord record = mock(CumulusRecord.class);
+        when(record.getUUID()).thenReturn(recordUuid);
+        when(record.getFieldValue(eq(Constants.FieldNames.CATALOG_NAME))).thenReturn(catalogName);
+        WarcPacker wp = mock(WarcPacker.class);
+        when(wp.getWarcFile()).thenReturn(resumeWarcFile);
+        when(wp.getWarcFileId()).thenReturn(warcFileId);
+        when(wp.getPackagedCompleteRecords()).thenReturn(Arrays.asList(record));
+        new UploadJournal(journalDir).addEntry(wp, collectionId);
+        
+        addStep("Initialize a new preserver with the journal", "The upload is resumed and the record reported");
+        ArchiveWrapper archive = mock(ArchiveWrapper.class);
+        BitmagPreserver restarted = new BitmagPreserver();
+        restarted.archive = archive;
+        restarted.conf = conf;
+        restarted.uploadJournal = new UploadJournal(journalDir);
+        restarted.cumulusWrapper = mock(CumulusWrapper.class);
+        CumulusServer server = mock(CumulusServer.class);
+        CumulusRecord foundRecord = mock(CumulusRecord.class);
+        when(restarted.cumulusWrapper.getServer()).thenReturn(server);
+        when(server.findCumulusRecord(eq(catalogName), eq(recordUuid))).thenReturn(foundRecord);
+        when(archive.uploadFile(any(File.class), anyString())).thenReturn(true);
+        
+        restarted.initialize();
+        restarted.waitForUploads();
+        
+        verify(archive).uploadFile(eq(resumeWarcFile), eq(collectionId));
+        verify(server).findCumulusRecord(eq(catalogName), eq(recordUuid));
+        verify(foundRecord).setStringValueInField(eq(Constants.FieldNames.RESOURCE_PACKAGE_ID), eq(warcFileId));
+        verify(foundRecord).setDateValueInField(eq(Constants.FieldNames.BEVARINGS_DATO), any(Date.class));
+        Assert.assertTrue(restarted.uploadJournal.getPendingEntries().isEmpty());
+        restarted.shutDown();
+    }
+    
+    @Test
+    public void testResumedUploadsDoNotBlockStartup() throws Exception {
+        addDescription("Test that the startup is not blocked, when more uploads are resumed than can be uploaded "
+                + "concurrently.");
+        File journalDir = new File(TestFileUtils.getTempDir(), UUID.randomUUID().toString());
+        UploadJournal journal = new UploadJournal(journalDir);
+        for(int i = 0; i < 3; i++) {
+            File resumeWarcFile = new File(TestFileUtils.getTempDir(), UUID.randomUUID().toString() + ".warc");
+            FileUtils.copyFile(warcFile, resumeWarcFile);
+            journal.addEntry(resumeWarcFile, null, collectionId, new ArrayList<UploadJournal.RecordReference>(), 
+                    new ArrayList<UploadJournal.RecordReference>());
+        }
+        
+        ArchiveWrapper archive = mock(ArchiveWrapper.class);
+        CountDownLatch uploadsReleased = new CountDownLatch(1);
+        when(archive.uploadFile(any(File.class), anyString())).thenAnswer(invocation -> {
+            uploadsReleased.await(10, TimeUnit.SECONDS);
+            return true;
+        });
+        BitmagPreserver restarted = new BitmagPreserver();
+        restarted.archive = archive;
+        restarted.conf = conf;
+        restarted.uploadJournal = new UploadJournal(journalDir);
+        restarted.cumulusWrapper = mock(CumulusWrapper.class);
+        
+        addStep("Initialize while the uploads are blocked", "The initialization returns");
+        Thread startup = new Thread(() -> restarted.initialize());
+        startup.start();
+        startup.join(5000);
+        Assert.assertFalse(startup.isAlive());
+        
+        uploadsReleased.countDown();
+        restarted.waitForUploads();
+        verify(archive, times(3)).uploadFile(any(File.class), eq(collectionId));
+        restarted.shutDown();
+    }
+    
+    @Test
+    public void testOpenWarcFileIsRecoveredAfterRestart() throws Exception {
+        addDescription("Test that the checkpointed records of a WARC file, which was open when the preserver "
+                + "stopped, are uploaded and reported, when the preserver is initialized again.");
+        File journalDir = new File(TestFileUtils.getTempDir(), UUID.randomUUID().toString());
+        File checkpointDir = new File(TestFileUtils.getTempDir(), UUID.randomUUID().toString());
+        String catalogName = "Test-catalog";
+        
+        ArchiveWrapper archive = mock(ArchiveWrapper.class);
+        BitmagPreserver preserver = new BitmagPreserver();
+        preserver.archive = archive;
+        preserver.conf = conf;
+        preserver.uploadJournal = new UploadJournal(journalDir);
+        preserver.packagingCheckpoint = new PackagingCheckpoint(checkpointDir, 
+                conf.getBitmagConf().getWarcIndexDir());
+        
+        addStep("Package a record completely, and only part of another record", 
+                "Only the completely packaged record is checkpointed");
+        CumulusRecord packagedRecord = createRecordForCheckpoint(catalogName);
+        preserver.startRecordPackaging();
+        preserver.packRecordResource(packagedRecord, getBlockDigest());
+        preserver.checkpointRecordPackaging(packagedRecord);
+        preserver.finishRecordPackaging();
+        WarcPacker wp = preserver.warcPackerForCollection.get(collectionId);
+        long checkpointedSize = wp.getPackagedBytes();
+        
+        CumulusRecord abortedRecord = createRecordForCheckpoint(catalogName);
+        preserver.startRecordPackaging();
+        preserver.packRecordResource(abortedRecord, getBlockDigest());
+        preserver.finishRecordPackaging();
+        Assert.assertTrue(wp.getWarcFile().length() > checkpointedSize);
+        Assert.assertEquals(preserver.packagingCheckpoint.getCheckpointedWarcFiles().size(), 1);
+        
+        addStep("Initialize a new preserver with the same checkpoints, as after a crash", 
+                "The WARC file is truncated, uploaded and the checkpointed record reported");
+        BitmagPreserver restarted = new BitmagPreserver();
+        restarted.archive = archive;
+        restarted.conf = conf;
+        restarted.uploadJournal = new UploadJournal(journalDir);
+        restarted.packagingCheckpoint = new PackagingCheckpoint(checkpointDir, 
+                conf.getBitmagConf().getWarcIndexDir());
+        restarted.cumulusWrapper = mock(CumulusWrapper.class);
+        CumulusServer server = mock(CumulusServer.class);
+        CumulusRecord foundRecord = mock(CumulusRecord.class);
+        when(restarted.cumulusWrapper.getServer()).thenReturn(server);
+        when(server.findCumulusRecord(eq(catalogName), eq(packagedRecord.getUUID()))).thenReturn(foundRecord);
+        when(archive.uploadFile(any(File.class), anyString())).thenReturn(true);
+        
+        restarted.initialize();
+        restarted.waitForUploads();
+        
+        verify(archive).uploadFile(eq(wp.getWarcFile()), eq(collectionId));
+        Assert.assertEquals(wp.getWarcFile().length(), checkpointedSize);
+        verify(server).findCumulusRecord(eq(catalogName), eq(packagedRecord.getUUID()));
+        verify(server, times(0)).findCumulusRecord(anyString(), eq(abortedRecord.getUUID()));
+        verify(foundRecord).setStringValueInField(eq(Constants.FieldNames.RESOURCE_PACKAGE_ID), 
+                eq(wp.getWarcFileId()));
+        Assert.assertTrue(restarted.uploadJournal.getPendingEntries().isEmpty());
+        Assert.assertTrue(restarted.packagingCheckpoint.getCheckpointedWarcFiles().isEmpty());
+        
+        WarcRecordIndex recordIndex = WarcRecordIndex.read(WarcRecordIndex.getIndexFile(
+                conf.getBitmagConf().getWarcIndexDir(), wp.getWarcFileId()));
+        Assert.assertNotNull(recordIndex.getEntry(packagedRecord.getUUID()));
+        Assert.assertNull(recordIndex.getEntry(abortedRecord.getUUID()));
+        restarted.shutDown();
+    }
+    
+    @Test
+    public void testCheckpointIsPostponedWhileShardIsShared() throws Exception {
+        addDescription("Test that a record is not checkpointed, while another record is being packaged in the same "
+                + "WARC file, and that it is checkpointed, when the WARC file has no other active record.");
+        File checkpointDir = new File(TestFileUtils.getTempDir(), UUID.randomUUID().toString());
+        String catalogName = "Test-catalog";
+        
+        BitmagPreserver preserver = new BitmagPreserver();
+        preserver.archive = mock(ArchiveWrapper.class);
+        preserver.conf = conf;
+        preserver.packagingCheckpoint = new PackagingCheckpoint(checkpointDir, 
+                conf.getBitmagConf().getWarcIndexDir());
+        ExecutorService otherThread = Executors.newSingleThreadExecutor();
+        try {
+            addStep("Start packaging a record, and package another record completely in another thread", 
+                    "The other record is not checkpointed, since the first record is still being packaged");
+            CumulusRecord firstRecord = createRecordForCheckpoint(catalogName);
+            CumulusRecord otherRecord = createRecordForCheckpoint(catalogName);
+            preserver.startRecordPackaging();
+            preserver.packRecordResource(firstRecord, getBlockDigest());
+            otherThread.submit(() -> {
+                preserver.startRecordPackaging();
+                try {
+                    preserver.packRecordResource(otherRecord, getBlockDigest());
+                    preserver.checkpointRecordPackaging(otherRecord);
+                } finally {
+                    preserver.finishRecordPackaging();
+                }
+            }).get(10, TimeUnit.SECONDS);
+            Assert.assertTrue(preserver.packagingCheckpoint.getCheckpointedWarcFiles().isEmpty());
+            
+            addStep("Finish packaging the first record", "Both records are checkpointed at the size of the WARC file");
+            preserver.checkpointRecordPackaging(firstRecord);
+            preserver.finishRecordPackaging();
+            WarcPacker wp = preserver.warcPackerForCollection.get(collectionId);
+            List<String> lines = Files.readAllLines(
+                    preserver.packagingCheckpoint.getCheckpointFile(wp.getWarcFile()).toPath());
+            String size = PackagingCheckpoint.SEPARATOR + wp.getPackagedBytes() + PackagingCheckpoint.SEPARATOR;
+            Assert.assertTrue(lines.contains(PackagingCheckpoint.KEY_COMPLETE_RECORD + size + firstRecord.getUUID() 
+                    + PackagingCheckpoint.SEPARATOR + catalogName), lines.toString());
+            Assert.assertTrue(lines.contains(PackagingCheckpoint.KEY_COMPLETE_RECORD + size + otherRecord.getUUID() 
+                    + PackagingCheckpoint.SEPARATOR + catalogName), lines.toString());
+            Assert.assertTrue(preserver.pendingCheckpoints.isEmpty());
+        } finally {
+            otherThread.shutdownNow();
+        }
+    }
+    
+    protected CumulusRecord createRecordForCheckpoint(String catalogName) {
+        CumulusRecord record = mock(CumulusRecord.class);
+        when(record.getUUID()).thenReturn(UUID.randomUUID().toString());
+        when(record.getFieldValue(eq(Constants.FieldNames.COLLECTION_ID))).thenReturn(collectionId);
+        when(record.getFieldValue(eq(Constants.FieldNames.CATALOG_NAME))).thenReturn(catalogName);
+        when(record.getFile()).thenReturn(resourceFile);
+        return record;
+    }
+
+    /**
+     * @return The block digest of the resource file with the algorithm for the WARC records.
+     */
+    protected WarcDigest getBlockDigest() {
+        return ChecksumUtils.calculateChecksum(resourceFile, conf.getBitmagConf().getAlgorithm());
+    }
 }
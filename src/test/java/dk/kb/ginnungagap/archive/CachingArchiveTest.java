@@ -0,0 +1,133 @@
+package dk.kb.ginnungagap.archive;
+
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.UUID;
+
+import org.apache.commons.io.FileUtils;
+import org.jaccept.structure.ExtendedTestCase;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import dk.kb.ginnungagap.testutils.TestFileUtils;
+import dk.kb.ginnungagap.utils.ChecksumUtils;
+
+public class CachingArchiveTest extends ExtendedTestCase {
+
+    File warcFile = new File("src/test/resources/warc/warcexample.warc");
+    String collectionId = "Test-collection-id";
+    String warcChecksum;
+
+    @BeforeClass
+    public void setup() {
+        TestFileUtils.setup();
+        warcChecksum = ChecksumUtils.calculateChecksum(warcFile, ChecksumUtils.MD5_ALGORITHM).digestString;
+    }
+
+    @AfterClass
+    public void tearDown() {
+        TestFileUtils.tearDown();
+    }
+
+    @Test
+    public void testCacheHit() {
+        addDescription("Test that a cached file is only retrieved once from the archive.");
+        Archive archive = createArchive();
+        CachingArchive cache = new CachingArchive(archive, createCacheDir(), 10 * warcFile.length());
+        String warcId = UUID.randomUUID().toString();
+
+        File first = cache.getFile(warcId, collectionId);
+        cache.releaseFile(warcId, collectionId);
+        File second = cache.getFile(warcId, collectionId);
+        cache.releaseFile(warcId, collectionId);
+
+        Assert.assertEquals(second, first);
+        Assert.assertTrue(second.isFile());
+        verify(archive, times(1)).getFile(eq(warcId), eq(collectionId));
+        verify(archive, times(1)).getChecksum(eq(warcId), eq(collectionId));
+        Assert.assertEquals(cache.getHits(), 1L);
+        Assert.assertEquals(cache.getMisses(), 1L);
+    }
+
+    @Test
+    public void testEvictionOfLeastRecentlyUsed() {
+        addDescription("Test that the least recently used file, which is not in use, is evicted.");
+        Archive archive = createArchive();
+        CachingArchive cache = new CachingArchive(archive, createCacheDir(), 2 * warcFile.length());
+        String firstId = UUID.randomUUID().toString();
+        String secondId = UUID.randomUUID().toString();
+        String thirdId = UUID.randomUUID().toString();
+
+        addStep("Retrieve two files, and use the first again", "Both files are cached");
+        File first = cache.getFile(firstId, collectionId);
+        cache.releaseFile(firstId, collectionId);
+        File second = cache.getFile(secondId, collectionId);
+        cache.releaseFile(secondId, collectionId);
+        cache.getFile(firstId, collectionId);
+        cache.releaseFile(firstId, collectionId);
+        Assert.assertEquals(cache.getEvictions(), 0L);
+
+        addStep("Retrieve a third file", "The second file is evicted");
+        cache.getFile(thirdId, collectionId);
+        cache.releaseFile(thirdId, collectionId);
+        Assert.assertEquals(cache.getEvictions(), 1L);
+        Assert.assertTrue(first.isFile());
+        Assert.assertFalse(second.isFile());
+        Assert.assertEquals(cache.getCachedBytes(), 2 * warcFile.length());
+    }
+
+    @Test
+    public void testPinnedFileIsNotEvicted() {
+        addDescription("Test that a file in use is not evicted, even when the cache exceeds its budget.");
+        Archive archive = createArchive();
+        CachingArchive cache = new CachingArchive(archive, createCacheDir(), 1L);
+        String warcId = UUID.randomUUID().toString();
+
+        File file = cache.getFile(warcId, collectionId);
+        Assert.assertTrue(file.isFile());
+        Assert.assertEquals(cache.getEvictions(), 0L);
+
+        cache.releaseFile(warcId, collectionId);
+        Assert.assertFalse(file.isFile());
+        Assert.assertEquals(cache.getEvictions(), 1L);
+        Assert.assertEquals(cache.getCachedBytes(), 0L);
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void testChecksumMismatch() {
+        addDescription("Test that a retrieved file with the wrong checksum is not inserted in the cache.");
+        Archive archive = createArchive();
+        when(archive.getChecksum(anyString(), anyString())).thenReturn("0123456789abcdef0123456789abcdef");
+        CachingArchive cache = new CachingArchive(archive, createCacheDir(), 10 * warcFile.length());
+        cache.getFile(UUID.randomUUID().toString(), collectionId);
+    }
+
+    protected File createCacheDir() {
+        return new File(TestFileUtils.getTempDir(), UUID.randomUUID().toString());
+    }
+
+    protected Archive createArchive() {
+        Archive archive = mock(Archive.class);
+        when(archive.getFile(anyString(), anyString())).thenAnswer(new Answer<File>() {
+            @Override
+            public File answer(InvocationOnMock invocation) throws IOException {
+                File retrieved = new File(TestFileUtils.getTempDir(), UUID.randomUUID().toString());
+                FileUtils.copyFile(warcFile, retrieved);
+                return retrieved;
+            }
+        });
+        when(archive.getChecksum(anyString(), anyString())).thenReturn(warcChecksum);
+        return archive;
+    }
+}
@@ -0,0 +1,88 @@
+package dk.kb.ginnungagap.archive;
+
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jaccept.structure.ExtendedTestCase;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class ConcurrencyLimitedArchiveTest extends ExtendedTestCase {
+
+    String collectionId = UUID.randomUUID().toString();
+
+    @Test
+    public void testDelegation() {
+        addDescription("Test that the operations are delegated to the archive.");
+        Archive archive = mock(Archive.class);
+        ConcurrencyLimitedArchive limitedArchive = new ConcurrencyLimitedArchive(archive, 1);
+        String warcId = UUID.randomUUID().toString();
+        File file = new File(UUID.randomUUID().toString());
+
+        limitedArchive.uploadFile(file, collectionId);
+        limitedArchive.getFile(warcId, collectionId);
+        limitedArchive.releaseFile(warcId, collectionId);
+        limitedArchive.getChecksum(warcId, collectionId);
+        limitedArchive.close();
+
+        verify(archive).uploadFile(eq(file), eq(collectionId));
+        verify(archive).getFile(eq(warcId), eq(collectionId));
+        verify(archive).releaseFile(eq(warcId), eq(collectionId));
+        verify(archive).getChecksum(eq(warcId), eq(collectionId));
+        verify(archive).close();
+        verifyNoMoreInteractions(archive);
+        Assert.assertEquals(limitedArchive.getAvailablePermits(), 1);
+    }
+
+    @Test
+    public void testLimitOfConcurrentOperations() throws Exception {
+        addDescription("Test that no more than the maximum number of operations run concurrently.");
+        Archive archive = mock(Archive.class);
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        when(archive.getChecksum(anyString(), anyString())).thenAnswer(new Answer<String>() {
+            @Override
+            public String answer(InvocationOnMock invocation) throws InterruptedException {
+                maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                Thread.sleep(50);
+                running.decrementAndGet();
+                return "checksum";
+            }
+        });
+        ConcurrencyLimitedArchive limitedArchive = new ConcurrencyLimitedArchive(archive, 2);
+
+        ExecutorService executor = Executors.newFixedThreadPool(6);
+        try {
+            List<Future<String>> results = new ArrayList<Future<String>>();
+            for(int i = 0; i < 6; i++) {
+                results.add(executor.submit(() -> limitedArchive.getChecksum(UUID.randomUUID().toString(), 
+                        collectionId)));
+            }
+            for(Future<String> result : results) {
+                Assert.assertEquals(result.get(), "checksum");
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        verify(archive, times(6)).getChecksum(anyString(), eq(collectionId));
+        Assert.assertTrue(maxRunning.get() <= 2, "Max running: " + maxRunning.get());
+        Assert.assertEquals(limitedArchive.getAvailablePermits(), 2);
+    }
+}
@@ -0,0 +1,103 @@
+package dk.kb.ginnungagap.archive;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.jaccept.structure.ExtendedTestCase;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import dk.kb.ginnungagap.config.BitmagConfiguration;
+import dk.kb.ginnungagap.config.RolloverConfiguration;
+import dk.kb.ginnungagap.testutils.TestFileUtils;
+
+public class ConfiguredRolloverPolicyTest extends ExtendedTestCase {
+
+    String collectionId = "Test-collection-id";
+    String otherCollectionId = "Other-collection-id";
+    int warcSizeLimit = 1000;
+
+    @BeforeClass
+    public void setup() {
+        TestFileUtils.setup();
+    }
+
+    @AfterClass
+    public void tearDown() {
+        TestFileUtils.tearDown();
+    }
+
+    @Test
+    public void testSizeLimit() {
+        addDescription("Test that the bitrepository size limit is used, when no size limit is configured for the "
+                + "rollover.");
+        ConfiguredRolloverPolicy policy = new ConfiguredRolloverPolicy(createConf(
+                new RolloverConfiguration(0, 0, 0, 0), new HashMap<String, RolloverConfiguration>()));
+        Assert.assertFalse(policy.isRolloverRequired(collectionId, createPacker(warcSizeLimit, 1000, 0L)));
+        Assert.assertTrue(policy.isRolloverRequired(collectionId, createPacker(warcSizeLimit + 1, 0, 0L)));
+    }
+
+    @Test
+    public void testMaxRecordsAndMaxAge() {
+        addDescription("Test that the WARC file must be finished, when it reaches the maximum number of records or "
+                + "the maximum age.");
+        ConfiguredRolloverPolicy policy = new ConfiguredRolloverPolicy(createConf(
+                new RolloverConfiguration(0, 10, 60, 0), new HashMap<String, RolloverConfiguration>()));
+        long now = System.currentTimeMillis();
+        Assert.assertFalse(policy.isRolloverRequired(collectionId, createPacker(0, 9, now)));
+        Assert.assertTrue(policy.isRolloverRequired(collectionId, createPacker(0, 10, now)));
+        Assert.assertTrue(policy.isRolloverRequired(collectionId, createPacker(0, 1, now - 61000L)));
+    }
+
+    @Test
+    public void testCollectionSpecificLimits() {
+        addDescription("Test that the limits for a specific collection override the default limits.");
+        Map<String, RolloverConfiguration> collectionConfs = new HashMap<String, RolloverConfiguration>();
+        collectionConfs.put(otherCollectionId, new RolloverConfiguration(100, 2, 0, 3));
+        ConfiguredRolloverPolicy policy = new ConfiguredRolloverPolicy(createConf(
+                new RolloverConfiguration(0, 0, 0, 0), collectionConfs));
+
+        WarcPacker wp = createPacker(101, 2, System.currentTimeMillis());
+        Assert.assertFalse(policy.isRolloverRequired(collectionId, wp));
+        Assert.assertTrue(policy.isRolloverRequired(otherCollectionId, wp));
+        Assert.assertEquals(policy.getMaxOpenFiles(collectionId), RolloverConfiguration.NO_LIMIT);
+        Assert.assertEquals(policy.getMaxOpenFiles(otherCollectionId), 3);
+    }
+
+    @Test
+    public void testCheckInterval() {
+        addDescription("Test that the WARC files are checked at the shortest maximum age, though at least every "
+                + "minute, and not at all without a maximum age.");
+        Map<String, RolloverConfiguration> collectionConfs = new HashMap<String, RolloverConfiguration>();
+        ConfiguredRolloverPolicy policy = new ConfiguredRolloverPolicy(createConf(
+                new RolloverConfiguration(0, 0, 0, 0), collectionConfs));
+        Assert.assertEquals(policy.getCheckInterval(), 0L);
+
+        policy = new ConfiguredRolloverPolicy(createConf(new RolloverConfiguration(0, 0, 3600, 0), collectionConfs));
+        Assert.assertEquals(policy.getCheckInterval(), 60000L);
+
+        collectionConfs.put(otherCollectionId, new RolloverConfiguration(0, 0, 5, 0));
+        policy = new ConfiguredRolloverPolicy(createConf(new RolloverConfiguration(0, 0, 3600, 0), collectionConfs));
+        Assert.assertEquals(policy.getCheckInterval(), 5000L);
+    }
+
+    protected BitmagConfiguration createConf(RolloverConfiguration rolloverConf, 
+            Map<String, RolloverConfiguration> collectionConfs) {
+        return new BitmagConfiguration(TestFileUtils.getTempDir(), null, 1, warcSizeLimit, TestFileUtils.getTempDir(),
+                "SHA-1", 1, 1, rolloverConf, collectionConfs, false, 0L);
+    }
+
+    protected WarcPacker createPacker(long size, int records, long creationTime) {
+        WarcPacker wp = mock(WarcPacker.class);
+        when(wp.getSize()).thenReturn(size);
+        when(wp.getRecordCount()).thenReturn(records);
+        when(wp.getCreationTime()).thenReturn(creationTime);
+        when(wp.hasContent()).thenReturn(true);
+        return wp;
+    }
+}
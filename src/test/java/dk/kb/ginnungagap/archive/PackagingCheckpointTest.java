@@ -0,0 +1,224 @@
+package dk.kb.ginnungagap.archive;
+
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+import org.jaccept.structure.ExtendedTestCase;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import dk.kb.cumulus.Constants;
+import dk.kb.cumulus.CumulusRecord;
+import dk.kb.ginnungagap.testutils.TestFileUtils;
+import dk.kb.ginnungagap.utils.WarcRecordIndex;
+
+public class PackagingCheckpointTest extends ExtendedTestCase {
+
+    String collectionId = "Test-collection-id";
+    String catalogName = "Test-catalog";
+    File indexDir;
+
+    @BeforeClass
+    public void setup() {
+        TestFileUtils.setup();
+        indexDir = new File(TestFileUtils.getTempDir(), UUID.randomUUID().toString());
+    }
+
+    @AfterClass
+    public void tearDown() {
+        TestFileUtils.tearDown();
+    }
+
+    @Test
+    public void testRecoverTruncatesToLastCheckpointedRecord() throws Exception {
+        addDescription("Test that a recovered WARC file is truncated to its last checkpointed record, and added to "
+                + "the upload journal with the checkpointed records.");
+        PackagingCheckpoint checkpoint = createCheckpoint();
+        UploadJournal journal = new UploadJournal(new File(TestFileUtils.getTempDir(), UUID.randomUUID().toString()));
+        File warcFile = createWarcFile(100);
+        String warcFileId = UUID.randomUUID().toString();
+        CumulusRecord completeRecord = createRecord(UUID.randomUUID().toString());
+        CumulusRecord metadataRecord = createRecord(UUID.randomUUID().toString());
+        CumulusRecord unwrittenRecord = createRecord(UUID.randomUUID().toString());
+
+        WarcPacker wp = mock(WarcPacker.class);
+        when(wp.getWarcFile()).thenReturn(warcFile);
+        when(wp.getWarcFileId()).thenReturn(warcFileId);
+        when(wp.getPackagedCompleteRecords()).thenReturn(Arrays.asList(completeRecord, unwrittenRecord));
+        when(wp.getPackagedMetadataRecords()).thenReturn(Arrays.asList(metadataRecord));
+
+        addStep("Checkpoint the records, the last one beyond the end of the WARC file",
+                "The WARC file has a checkpoint");
+        when(wp.getPackagedBytes()).thenReturn(40L);
+        checkpoint.addRecord(wp, collectionId, completeRecord);
+        when(wp.getPackagedBytes()).thenReturn(70L);
+        checkpoint.addRecord(wp, collectionId, metadataRecord);
+        when(wp.getPackagedBytes()).thenReturn(150L);
+        checkpoint.addRecord(wp, collectionId, unwrittenRecord);
+        Assert.assertEquals(checkpoint.getCheckpointedWarcFiles(), Arrays.asList(warcFile.getName()));
+
+        addStep("Recover the checkpoint", "The WARC file is truncated and journaled with the written records");
+        Assert.assertEquals(checkpoint.recover(journal), 1);
+        Assert.assertEquals(warcFile.length(), 70L);
+        Assert.assertTrue(checkpoint.getCheckpointedWarcFiles().isEmpty());
+
+        List<UploadJournal.Entry> entries = journal.getPendingEntries();
+        Assert.assertEquals(entries.size(), 1);
+        UploadJournal.Entry entry = entries.get(0);
+        Assert.assertEquals(entry.getWarcFile().getAbsolutePath(), warcFile.getAbsolutePath());
+        Assert.assertEquals(entry.getWarcFileId(), warcFileId);
+        Assert.assertEquals(entry.getCollectionId(), collectionId);
+        Assert.assertEquals(entry.getCompleteRecords().size(), 1);
+        Assert.assertEquals(entry.getCompleteRecords().get(0).getUUID(), completeRecord.getUUID());
+        Assert.assertEquals(entry.getCompleteRecords().get(0).getCatalogName(), catalogName);
+        Assert.assertEquals(entry.getMetadataRecords().size(), 1);
+        Assert.assertEquals(entry.getMetadataRecords().get(0).getUUID(), metadataRecord.getUUID());
+    }
+
+    @Test
+    public void testRecoverWritesRecordIndex() throws Exception {
+        addDescription("Test that the index of a recovered WARC file is written from the checkpointed index entries, "
+                + "which are within the truncated WARC file.");
+        PackagingCheckpoint checkpoint = createCheckpoint();
+        UploadJournal journal = new UploadJournal(new File(TestFileUtils.getTempDir(), UUID.randomUUID().toString()));
+        File warcFile = createWarcFile(100);
+        String warcFileId = UUID.randomUUID().toString();
+        CumulusRecord firstRecord = createRecord(UUID.randomUUID().toString());
+        CumulusRecord secondRecord = createRecord(UUID.randomUUID().toString());
+        CumulusRecord unwrittenRecord = createRecord(UUID.randomUUID().toString());
+        WarcRecordIndex recordIndex = new WarcRecordIndex();
+
+        WarcPacker wp = mock(WarcPacker.class);
+        when(wp.getWarcFile()).thenReturn(warcFile);
+        when(wp.getWarcFileId()).thenReturn(warcFileId);
+        when(wp.getRecordIndex()).thenReturn(recordIndex);
+        when(wp.getPackagedCompleteRecords()).thenReturn(Arrays.asList(firstRecord, secondRecord, unwrittenRecord));
+        when(wp.getPackagedMetadataRecords()).thenReturn(new ArrayList<CumulusRecord>());
+
+        addStep("Checkpoint the records with their index entries, the last one beyond the end of the WARC file",
+                "Each checkpoint has the index entries written since the previous checkpoint");
+        recordIndex.addEntry(firstRecord.getUUID(), 10L, 30L, "SHA-1:first");
+        when(wp.getPackagedBytes()).thenReturn(40L);
+        checkpoint.addRecord(wp, collectionId, firstRecord);
+        recordIndex.addEntry(secondRecord.getUUID(), 40L, 30L, null);
+        when(wp.getPackagedBytes()).thenReturn(70L);
+        checkpoint.addRecord(wp, collectionId, secondRecord);
+        recordIndex.addEntry(unwrittenRecord.getUUID(), 70L, 80L, "SHA-1:unwritten");
+        when(wp.getPackagedBytes()).thenReturn(150L);
+        checkpoint.addRecord(wp, collectionId, unwrittenRecord);
+
+        addStep("Recover the checkpoint", "The index has the entries of the records within the truncated WARC file");
+        Assert.assertEquals(checkpoint.recover(journal), 1);
+        Assert.assertEquals(warcFile.length(), 70L);
+
+        WarcRecordIndex recovered = WarcRecordIndex.read(WarcRecordIndex.getIndexFile(indexDir, warcFileId));
+        Assert.assertEquals(recovered.size(), 2);
+        Assert.assertEquals(recovered.getEntry(firstRecord.getUUID()).getOffset(), 10L);
+        Assert.assertEquals(recovered.getEntry(firstRecord.getUUID()).getLength(), 30L);
+        Assert.assertEquals(recovered.getEntry(firstRecord.getUUID()).getDigest(), "SHA-1:first");
+        Assert.assertEquals(recovered.getEntry(secondRecord.getUUID()).getOffset(), 40L);
+        Assert.assertNull(recovered.getEntry(unwrittenRecord.getUUID()));
+    }
+
+    @Test
+    public void testRemoveCheckpoint() throws Exception {
+        addDescription("Test that the checkpoint is removed, when the WARC file is finished.");
+        PackagingCheckpoint checkpoint = createCheckpoint();
+        File warcFile = createWarcFile(100);
+        CumulusRecord record = createRecord(UUID.randomUUID().toString());
+        WarcPacker wp = mock(WarcPacker.class);
+        when(wp.getWarcFile()).thenReturn(warcFile);
+        when(wp.getPackagedCompleteRecords()).thenReturn(Arrays.asList(record));
+        when(wp.getPackagedMetadataRecords()).thenReturn(new ArrayList<CumulusRecord>());
+        when(wp.getPackagedBytes()).thenReturn(100L);
+
+        checkpoint.addRecord(wp, collectionId, record);
+        Assert.assertEquals(checkpoint.getCheckpointedWarcFiles().size(), 1);
+        checkpoint.removeCheckpoint(warcFile);
+        Assert.assertTrue(checkpoint.getCheckpointedWarcFiles().isEmpty());
+    }
+
+    @Test
+    public void testRecordWithoutPartsIsNotCheckpointed() throws Exception {
+        addDescription("Test that a record, which has not been packaged in the WARC file, is not checkpointed.");
+        PackagingCheckpoint checkpoint = createCheckpoint();
+        WarcPacker wp = mock(WarcPacker.class);
+        when(wp.getWarcFile()).thenReturn(createWarcFile(100));
+        when(wp.getPackagedCompleteRecords()).thenReturn(new ArrayList<CumulusRecord>());
+        when(wp.getPackagedMetadataRecords()).thenReturn(new ArrayList<CumulusRecord>());
+
+        checkpoint.addRecord(wp, collectionId, createRecord(UUID.randomUUID().toString()));
+        Assert.assertTrue(checkpoint.getCheckpointedWarcFiles().isEmpty());
+    }
+
+    @Test
+    public void testRecoverWithoutWrittenRecords() throws Exception {
+        addDescription("Test that a WARC file without any completely written records is removed at the recovery.");
+        PackagingCheckpoint checkpoint = createCheckpoint();
+        UploadJournal journal = new UploadJournal(new File(TestFileUtils.getTempDir(), UUID.randomUUID().toString()));
+        File warcFile = createWarcFile(100);
+        CumulusRecord record = createRecord(UUID.randomUUID().toString());
+        WarcPacker wp = mock(WarcPacker.class);
+        when(wp.getWarcFile()).thenReturn(warcFile);
+        when(wp.getPackagedCompleteRecords()).thenReturn(Arrays.asList(record));
+        when(wp.getPackagedMetadataRecords()).thenReturn(new ArrayList<CumulusRecord>());
+        when(wp.getPackagedBytes()).thenReturn(200L);
+        checkpoint.addRecord(wp, collectionId, record);
+
+        Assert.assertEquals(checkpoint.recover(journal), 0);
+        Assert.assertFalse(warcFile.exists());
+        Assert.assertTrue(journal.getPendingEntries().isEmpty());
+        Assert.assertTrue(checkpoint.getCheckpointedWarcFiles().isEmpty());
+    }
+
+    @Test
+    public void testRecoverAlreadyJournaledWarcFile() throws Exception {
+        addDescription("Test that a WARC file, which is already in the upload journal, is not recovered again.");
+        PackagingCheckpoint checkpoint = createCheckpoint();
+        UploadJournal journal = new UploadJournal(new File(TestFileUtils.getTempDir(), UUID.randomUUID().toString()));
+        File warcFile = createWarcFile(100);
+        CumulusRecord record = createRecord(UUID.randomUUID().toString());
+        WarcPacker wp = mock(WarcPacker.class);
+        when(wp.getWarcFile()).thenReturn(warcFile);
+        when(wp.getPackagedCompleteRecords()).thenReturn(Arrays.asList(record));
+        when(wp.getPackagedMetadataRecords()).thenReturn(new ArrayList<CumulusRecord>());
+        when(wp.getPackagedBytes()).thenReturn(50L);
+        checkpoint.addRecord(wp, collectionId, record);
+        journal.addEntry(wp, collectionId);
+
+        Assert.assertEquals(checkpoint.recover(journal), 0);
+        Assert.assertEquals(warcFile.length(), 100L);
+        Assert.assertEquals(journal.getPendingEntries().size(), 1);
+        Assert.assertTrue(checkpoint.getCheckpointedWarcFiles().isEmpty());
+    }
+
+    protected PackagingCheckpoint createCheckpoint() {
+        return new PackagingCheckpoint(new File(TestFileUtils.getTempDir(), UUID.randomUUID().toString()), indexDir);
+    }
+
+    protected File createWarcFile(int size) throws Exception {
+        File res = new File(TestFileUtils.getTempDir(), UUID.randomUUID().toString() + ".warc");
+        try (OutputStream out = new FileOutputStream(res)) {
+            out.write(new byte[size]);
+        }
+        return res;
+    }
+
+    protected CumulusRecord createRecord(String uuid) {
+        CumulusRecord record = mock(CumulusRecord.class);
+        when(record.getUUID()).thenReturn(uuid);
+        when(record.getFieldValue(eq(Constants.FieldNames.CATALOG_NAME))).thenReturn(catalogName);
+        return record;
+    }
+}
@@ -0,0 +1,107 @@
+package dk.kb.ginnungagap.archive;
+
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+import org.jaccept.structure.ExtendedTestCase;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import dk.kb.cumulus.Constants;
+import dk.kb.cumulus.CumulusRecord;
+import dk.kb.ginnungagap.testutils.TestFileUtils;
+
+public class UploadJournalTest extends ExtendedTestCase {
+
+    String collectionId = "Test-collection-id";
+    String catalogName = "Test-catalog";
+
+    @BeforeClass
+    public void setup() {
+        TestFileUtils.setup();
+    }
+
+    @AfterClass
+    public void tearDown() {
+        TestFileUtils.tearDown();
+    }
+
+    @Test
+    public void testEntryLifecycle() {
+        addDescription("Test adding, reading, updating and removing an entry in the upload journal.");
+        UploadJournal journal = new UploadJournal(new File(TestFileUtils.getTempDir(), UUID.randomUUID().toString()));
+        File warcFile = new File(TestFileUtils.getTempDir(), UUID.randomUUID().toString() + ".warc");
+        String warcFileId = UUID.randomUUID().toString();
+        String completeUuid = UUID.randomUUID().toString();
+        String metadataUuid = UUID.randomUUID().toString();
+
+        WarcPacker wp = mock(WarcPacker.class);
+        when(wp.getWarcFile()).thenReturn(warcFile);
+        when(wp.getWarcFileId()).thenReturn(warcFileId);
+        when(wp.getPackagedCompleteRecords()).thenReturn(Arrays.asList(createRecord(completeUuid)));
+        when(wp.getPackagedMetadataRecords()).thenReturn(Arrays.asList(createRecord(metadataUuid)));
+
+        addStep("Add the entry", "It can be read back from the journal");
+        UploadJournal.Entry entry = journal.addEntry(wp, collectionId);
+        List<UploadJournal.Entry> entries = journal.getPendingEntries();
+        Assert.assertEquals(entries.size(), 1);
+        UploadJournal.Entry readEntry = entries.get(0);
+        Assert.assertEquals(readEntry.getWarcFile().getAbsolutePath(), warcFile.getAbsolutePath());
+        Assert.assertEquals(readEntry.getWarcFileId(), warcFileId);
+        Assert.assertEquals(readEntry.getCollectionId(), collectionId);
+        Assert.assertNull(readEntry.getMd5());
+        Assert.assertEquals(readEntry.getCompleteRecords().size(), 1);
+        Assert.assertEquals(readEntry.getCompleteRecords().get(0).getUUID(), completeUuid);
+        Assert.assertEquals(readEntry.getCompleteRecords().get(0).getCatalogName(), catalogName);
+        Assert.assertEquals(readEntry.getMetadataRecords().size(), 1);
+        Assert.assertEquals(readEntry.getMetadataRecords().get(0).getUUID(), metadataUuid);
+
+        addStep("Set the checksum", "The checksum is journaled");
+        journal.setChecksum(entry, "1234567890abcdef");
+        Assert.assertEquals(journal.getPendingEntries().get(0).getMd5(), "1234567890abcdef");
+
+        addStep("Remove the entry", "The journal is empty");
+        journal.removeEntry(entry);
+        Assert.assertTrue(journal.getPendingEntries().isEmpty());
+    }
+
+    @Test
+    public void testInvalidEntryIsSkipped() throws Exception {
+        addDescription("Test that an entry without a WARC file or collection is skipped.");
+        File journalDir = new File(TestFileUtils.getTempDir(), UUID.randomUUID().toString());
+        UploadJournal journal = new UploadJournal(journalDir);
+        try (OutputStream out = new FileOutputStream(new File(journalDir, "invalid"
+                + UploadJournal.JOURNAL_SUFFIX))) {
+            out.write("md5=1234567890abcdef\n".getBytes());
+        }
+
+        WarcPacker wp = mock(WarcPacker.class);
+        when(wp.getWarcFile()).thenReturn(new File(TestFileUtils.getTempDir(), "valid.warc"));
+        when(wp.getPackagedCompleteRecords()).thenReturn(new ArrayList<CumulusRecord>());
+        when(wp.getPackagedMetadataRecords()).thenReturn(new ArrayList<CumulusRecord>());
+        journal.addEntry(wp, collectionId);
+
+        List<UploadJournal.Entry> entries = journal.getPendingEntries();
+        Assert.assertEquals(entries.size(), 1);
+        Assert.assertEquals(entries.get(0).getWarcFile().getName(), "valid.warc");
+        Assert.assertNull(entries.get(0).getWarcFileId());
+    }
+
+    protected CumulusRecord createRecord(String uuid) {
+        CumulusRecord record = mock(CumulusRecord.class);
+        when(record.getUUID()).thenReturn(uuid);
+        when(record.getFieldValue(eq(Constants.FieldNames.CATALOG_NAME))).thenReturn(catalogName);
+        return record;
+    }
+}
@@ -0,0 +1,120 @@
+package dk.kb.ginnungagap.archive;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.UUID;
+
+import org.jaccept.structure.ExtendedTestCase;
+import org.jwat.common.ContentType;
+import org.jwat.common.Uri;
+import org.jwat.warc.WarcDigest;
+import org.jwat.warc.WarcReader;
+import org.jwat.warc.WarcReaderFactory;
+import org.jwat.warc.WarcRecord;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import dk.kb.ginnungagap.testutils.TestFileUtils;
+import dk.kb.ginnungagap.utils.ChecksumUtils;
+import dk.kb.ginnungagap.utils.StreamUtils;
+
+public class WarcFileWriterTest extends ExtendedTestCase {
+
+    File testFile;
+    String algorithm = "SHA-1";
+
+    @BeforeClass
+    public void setup() throws IOException {
+        TestFileUtils.setup();
+        testFile = TestFileUtils.createFileWithContent("The content of the resource " + UUID.randomUUID());
+    }
+
+    @AfterClass
+    public void tearDown() {
+        TestFileUtils.tearDown();
+    }
+
+    @Test
+    public void testWritingRecords() throws Exception {
+        addDescription("Test that the written records can be read as a valid WARC file.");
+        String warcFileId = UUID.randomUUID().toString();
+        String resourceUuid = UUID.randomUUID().toString();
+        String metadataUuid = UUID.randomUUID().toString();
+        byte[] metadata = "<metadata/>".getBytes(StandardCharsets.UTF_8);
+        byte[] warcinfo = "software: ginnungagap\r\n".getBytes(StandardCharsets.UTF_8);
+
+        try (WarcFileWriter writer = new WarcFileWriter(TestFileUtils.getTempDir(), warcFileId)) {
+            Assert.assertEquals(writer.getWarcFile().getName(), warcFileId);
+            writer.writeWarcinfoRecord(warcinfo, getDigest(warcinfo));
+            writer.writeResourceRecord(testFile, ContentType.parseContentType("text/plain"),
+                    ChecksumUtils.calculateChecksum(testFile, algorithm), resourceUuid);
+            writer.writeMetadataRecord(new ByteArrayInputStream(metadata), metadata.length,
+                    ContentType.parseContentType("text/xml"), new Uri("urn:uuid:" + resourceUuid),
+                    getDigest(metadata), metadataUuid, metadataUuid);
+        }
+
+        addStep("Read the WARC file", "Contains the three records with their content");
+        File warcFile = new File(TestFileUtils.getTempDir(), warcFileId);
+        try (InputStream in = new FileInputStream(warcFile)) {
+            WarcReader reader = WarcReaderFactory.getReader(in);
+            WarcRecord record = reader.getNextRecord();
+            Assert.assertTrue(record.isCompliant());
+            Assert.assertEquals(record.header.warcTypeStr, "warcinfo");
+
+            record = reader.getNextRecord();
+            Assert.assertTrue(record.isCompliant());
+            Assert.assertEquals(record.header.warcTypeStr, "resource");
+            Assert.assertEquals(record.header.warcRecordIdStr, "<urn:uuid:" + resourceUuid + ">");
+            Assert.assertEquals(StreamUtils.extractInputStreamAsString(record.getPayloadContent()),
+                    new String(Files.readAllBytes(testFile.toPath()), StandardCharsets.UTF_8) + "\n");
+
+            record = reader.getNextRecord();
+            Assert.assertTrue(record.isCompliant());
+            Assert.assertEquals(record.header.warcTypeStr, "metadata");
+            Assert.assertEquals(record.header.warcRecordIdStr, "<urn:uuid:" + metadataUuid + ">");
+            Assert.assertEquals(record.header.warcRefersToStr, "<urn:uuid:" + resourceUuid + ">");
+
+            Assert.assertNull(reader.getNextRecord());
+            reader.close();
+        }
+    }
+
+    @Test
+    public void testWarcFileChecksum() throws Exception {
+        addDescription("Test that the MD5 checksum of the WARC file is calculated from the written bytes.");
+        byte[] metadata = "<metadata/>".getBytes(StandardCharsets.UTF_8);
+        WarcFileWriter writer = new WarcFileWriter(TestFileUtils.getTempDir(), UUID.randomUUID().toString());
+        writer.writeResourceRecord(testFile, ContentType.parseContentType("text/plain"),
+                ChecksumUtils.calculateChecksum(testFile, algorithm), UUID.randomUUID().toString());
+        writer.writeMetadataRecord(new ByteArrayInputStream(metadata), metadata.length,
+                ContentType.parseContentType("text/xml"), null, getDigest(metadata), "id", "id");
+        Assert.assertNull(writer.getWarcFileChecksum());
+        Assert.assertEquals(writer.getWrittenBytes(), writer.getWarcFile().length());
+
+        addStep("Close the WARC file", "The checksum must be the same as for the whole WARC file");
+        writer.close();
+        Assert.assertEquals(writer.getWarcFileChecksum().digestString,
+                ChecksumUtils.calculateChecksum(writer.getWarcFile(), ChecksumUtils.MD5_ALGORITHM).digestString);
+    }
+
+    @Test(expectedExceptions = IOException.class)
+    public void testMetadataWithWrongLength() throws Exception {
+        addDescription("Test that a metadata record fails, when the stream does not have the given length.");
+        byte[] metadata = "<metadata/>".getBytes(StandardCharsets.UTF_8);
+        try (WarcFileWriter writer = new WarcFileWriter(TestFileUtils.getTempDir(), UUID.randomUUID().toString())) {
+            writer.writeMetadataRecord(new ByteArrayInputStream(metadata), metadata.length + 1,
+                    ContentType.parseContentType("text/xml"), null, getDigest(metadata), "id", "id");
+        }
+    }
+
+    protected WarcDigest getDigest(byte[] content) throws IOException {
+        return ChecksumUtils.calculateChecksum(new ByteArrayInputStream(content), algorithm);
+    }
+}
@@ -0,0 +1,91 @@
+package dk.kb.ginnungagap.archive;
+
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.util.UUID;
+
+import org.jaccept.structure.ExtendedTestCase;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import dk.kb.ginnungagap.config.BitmagConfiguration;
+import dk.kb.ginnungagap.testutils.TestFileUtils;
+import dk.kb.ginnungagap.utils.FileUtils;
+import dk.kb.ginnungagap.utils.WarcRecordIndex;
+
+public class WarcIndexRetrieverTest extends ExtendedTestCase {
+
+    String collectionId = "Test-collection-id";
+
+    @BeforeClass
+    public void setup() {
+        TestFileUtils.setup();
+    }
+
+    @AfterClass
+    public void tearDown() {
+        TestFileUtils.tearDown();
+    }
+
+    @Test
+    public void testMissingIndexIsOnlyRetrievedOnce() {
+        addDescription("Test that the archive is only asked once for an index, which it does not have.");
+        Archive archive = mock(Archive.class);
+        String warcId = UUID.randomUUID().toString();
+        String indexId = warcId + WarcRecordIndex.INDEX_SUFFIX;
+        when(archive.getFile(anyString(), anyString())).thenThrow(new IllegalStateException("No such file"));
+        WarcIndexRetriever retriever = new WarcIndexRetriever(archive, createConf());
+
+        Assert.assertNull(retriever.getIndex(warcId, collectionId));
+        Assert.assertNull(retriever.getIndex(warcId, collectionId));
+
+        verify(archive, times(1)).getFile(eq(indexId), eq(collectionId));
+    }
+
+    @Test
+    public void testPruneRetrievedIndexes() throws Exception {
+        addDescription("Test that the indexes retrieved from the archive are pruned from the local index directory.");
+        Archive archive = mock(Archive.class);
+        BitmagConfiguration conf = createConf();
+        String warcId = UUID.randomUUID().toString();
+        String recordId = UUID.randomUUID().toString();
+        String indexId = warcId + WarcRecordIndex.INDEX_SUFFIX;
+
+        addStep("Retrieve an archived index", "The index is read from a local copy");
+        WarcRecordIndex archivedIndex = new WarcRecordIndex();
+        archivedIndex.addEntry(recordId, 0L, 100L, "digest");
+        File archivedFile = new File(TestFileUtils.getTempDir(), indexId);
+        archivedIndex.write(archivedFile);
+        when(archive.getFile(eq(indexId), eq(collectionId))).thenReturn(archivedFile);
+        WarcIndexRetriever retriever = new WarcIndexRetriever(archive, conf);
+
+        WarcRecordIndex index = retriever.getIndex(warcId, collectionId);
+        Assert.assertNotNull(index);
+        Assert.assertNotNull(index.getEntry(recordId));
+        File localFile = WarcRecordIndex.getIndexFile(conf.getWarcIndexDir(), warcId);
+        Assert.assertTrue(localFile.isFile());
+
+        addStep("Prune the retrieved indexes", "The local copy is deleted, but not the archived file");
+        retriever.pruneRetrievedIndexes();
+        Assert.assertFalse(localFile.exists());
+        Assert.assertTrue(archivedFile.isFile());
+        verify(archive).releaseFile(eq(indexId), eq(collectionId));
+    }
+
+    protected BitmagConfiguration createConf() {
+        File indexDir = FileUtils.getDirectory(TestFileUtils.getTempDir(), 
+                "warc-index-" + UUID.randomUUID().toString());
+        BitmagConfiguration conf = mock(BitmagConfiguration.class);
+        when(conf.getWarcIndexDir()).thenReturn(indexDir);
+        when(conf.isArchiveWarcIndex()).thenReturn(true);
+        return conf;
+    }
+}
@@ -4,12 +4,14 @@ import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.spy;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
 import static org.mockito.Mockito.when;
 import static org.testng.Assert.assertTrue;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.util.Date;
 import java.util.UUID;
@@ -27,7 +29,13 @@ import org.testng.annotations.Test;
 import dk.kb.cumulus.Constants;
 import dk.kb.cumulus.CumulusRecord;
 import dk.kb.ginnungagap.config.BitmagConfiguration;
+import dk.kb.ginnungagap.exception.ArgumentCheck;
 import dk.kb.ginnungagap.testutils.TestFileUtils;
+import dk.kb.ginnungagap.transformation.MetadataBuffer;
+import dk.kb.ginnungagap.utils.ChecksumUtils;
+import dk.kb.ginnungagap.utils.StreamUtils;
+import dk.kb.ginnungagap.utils.WarcRecordIndex;
+import dk.kb.ginnungagap.utils.WarcUtils;
 import dk.kb.yggdrasil.warc.Digest;
 
 public class WarcPackerTest extends ExtendedTestCase {
@@ -65,6 +73,71 @@ public class WarcPackerTest extends ExtendedTestCase {
         assertTrue(wp.getSize() > 2 * testFile.length()); 
     }
     
+    @Test
+    public void testWarcFileChecksum() throws Exception {
+        addDescription("Test that the checksum of the WARC file is calculated while it is being written");
+        WarcPacker wp = new WarcPacker(conf);
+        Digest digestor = new Digest(conf.getAlgorithm());
+        wp.packResource(testFile, digestor.getDigestOfFile(testFile), 
+                ContentType.parseContentType("application/octetstream"), UUID.randomUUID().toString());
+        Assert.assertNull(wp.getWarcFileChecksum());
+        
+        addStep("Close the WARC file", "The checksum is the same as for the whole WARC file");
+        wp.close();
+        WarcDigest checksum = wp.getWarcFileChecksum();
+        Assert.assertNotNull(checksum);
+        Assert.assertEquals(checksum.digestString, 
+                ChecksumUtils.calculateChecksum(wp.getWarcFile(), ChecksumUtils.MD5_ALGORITHM).digestString);
+    }
+    
+    @Test
+    public void testRecordIndex() throws Exception {
+        addDescription("Test that the index of the records is written, when the WARC file is closed");
+        WarcPacker wp = new WarcPacker(conf);
+        String uuid = UUID.randomUUID().toString();
+        Digest digestor = new Digest(conf.getAlgorithm());
+        wp.packResource(testFile, digestor.getDigestOfFile(testFile), 
+                ContentType.parseContentType("application/octetstream"), uuid);
+        wp.close();
+        
+        addStep("Read the index of the WARC file", "Contains the record");
+        File indexFile = WarcRecordIndex.getIndexFile(conf.getWarcIndexDir(), wp.getWarcFileId());
+        Assert.assertTrue(indexFile.isFile());
+        WarcRecordIndex index = WarcRecordIndex.read(indexFile);
+        Assert.assertEquals(index.size(), 1);
+        Assert.assertNotNull(index.getEntry(uuid));
+        
+        addStep("Extract the record with the index", "The content of the record is the packaged file");
+        File outputFile = new File(TestFileUtils.getTempDir(), UUID.randomUUID().toString());
+        WarcUtils.extractRecord(wp.getWarcFile(), uuid, outputFile, index);
+        Assert.assertEquals(ChecksumUtils.calculateChecksum(outputFile, ChecksumUtils.MD5_ALGORITHM).digestString, 
+                ChecksumUtils.calculateChecksum(testFile, ChecksumUtils.MD5_ALGORITHM).digestString);
+    }
+    
+    @Test
+    public void testPackagingMetadataBuffer() throws Exception {
+        addDescription("Test packaging metadata from a buffer, both when it is kept in memory and in a file");
+        WarcPacker wp = new WarcPacker(conf);
+        
+        addStep("Package metadata kept in memory", "The WARC file must grow");
+        MetadataBuffer memoryMetadata = new MetadataBuffer(new File(TestFileUtils.getTempDir(), 
+                UUID.randomUUID().toString()), (int) testFile.length());
+        StreamUtils.copyInputStreamToOutputStream(new FileInputStream(testFile), memoryMetadata);
+        assertTrue(memoryMetadata.isInMemory());
+        long sizeBefore = wp.getSize();
+        wp.packMetadata(memoryMetadata, new Uri("urn:uuid:" + UUID.randomUUID().toString()), UUID.randomUUID().toString());
+        assertTrue(wp.getSize() > sizeBefore + testFile.length());
+        
+        addStep("Package metadata in a file", "The WARC file must grow");
+        MetadataBuffer fileMetadata = new MetadataBuffer(new File(TestFileUtils.getTempDir(), 
+                UUID.randomUUID().toString()), 0);
+        StreamUtils.copyInputStreamToOutputStream(new FileInputStream(testFile), fileMetadata);
+        Assert.assertFalse(fileMetadata.isInMemory());
+        sizeBefore = wp.getSize();
+        wp.packMetadata(fileMetadata, null, UUID.randomUUID().toString());
+        assertTrue(wp.getSize() > sizeBefore + testFile.length());
+    }
+    
     @Test(expectedExceptions = IllegalStateException.class)
     public void testFailedInstantiationDueToNoWriteAccess() throws Exception {
         addDescription("Test failure to instantiate the warc packer, due to missing write access to the folder.");
@@ -112,11 +185,51 @@ public class WarcPackerTest extends ExtendedTestCase {
         CumulusRecord record = mock(CumulusRecord.class);
         when(record.getUUID()).thenReturn(UUID.randomUUID().toString());
         
-        wp.packRecordAssetFile(record, testFile);
+        wp.packRecordAssetFile(record, testFile, ChecksumUtils.calculateChecksum(testFile, conf.getAlgorithm()));
         
         Assert.assertTrue(wp.getWarcFile().length() > origSize + testFile.length());
     }
     
+    @Test(expectedExceptions = ArgumentCheck.class)
+    public void testPackRecordAssetFileWithoutDigest() {
+        addDescription("Test that the packRecordAssetFile method rejects a missing block digest, instead of reading "
+                + "the file while the WARC file is locked.");
+        WarcPacker wp = new WarcPacker(conf);
+        CumulusRecord record = mock(CumulusRecord.class);
+        when(record.getUUID()).thenReturn(UUID.randomUUID().toString());
+        
+        wp.packRecordAssetFile(record, testFile, null);
+    }
+    
+    @Test(expectedExceptions = ArgumentCheck.class)
+    public void testPackRecordAssetFileWithOtherDigestAlgorithm() {
+        addDescription("Test that the packRecordAssetFile method rejects a block digest with another algorithm.");
+        WarcPacker wp = new WarcPacker(conf);
+        CumulusRecord record = mock(CumulusRecord.class);
+        when(record.getUUID()).thenReturn(UUID.randomUUID().toString());
+        
+        wp.packRecordAssetFile(record, testFile, ChecksumUtils.calculateChecksum(testFile, "SHA-512"));
+    }
+    
+    @Test
+    public void testPackRecordAssetFileWithDigest() throws Exception {
+        addDescription("Test that the already calculated block digest is used, when it has the WARC algorithm.");
+        WarcPacker wp = spy(new WarcPacker(conf));
+        
+        CumulusRecord record = mock(CumulusRecord.class);
+        String uuid = UUID.randomUUID().toString();
+        when(record.getUUID()).thenReturn(uuid);
+        WarcDigest blockDigest = ChecksumUtils.calculateChecksum(testFile, conf.getAlgorithm());
+        
+        wp.packRecordAssetFile(record, testFile, blockDigest);
+        verify(wp).packResource(eq(testFile), eq(blockDigest), any(ContentType.class), eq(uuid));
+        
+        addStep("Check digests with other algorithms", "Must not be accepted");
+        Assert.assertTrue(wp.isBlockDigest(blockDigest));
+        Assert.assertFalse(wp.isBlockDigest(ChecksumUtils.calculateChecksum(testFile, ChecksumUtils.MD5_ALGORITHM)));
+        Assert.assertFalse(wp.isBlockDigest(null));
+    }
+    
     @Test
     public void testReportSucces() throws Exception {
         addDescription("Test the reportSucces method");
@@ -7,6 +7,7 @@ import static org.testng.Assert.assertNull;
 import static org.testng.Assert.assertTrue;
 
 import java.io.File;
+import java.time.LocalTime;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.Map;
@@ -95,6 +96,16 @@ public class ConfigurationTest extends ExtendedTestCase {
         assertNotNull(conf.getBitmagConf().getSettingsDir());
         assertNotNull(conf.getBitmagConf().getTempDir());
         assertNotNull(conf.getBitmagConf().getWarcFileSizeLimit());
+        assertEquals(conf.getBitmagConf().getWarcShardsPerCollection(), 
+                BitmagConfiguration.DEFAULT_WARC_SHARDS_PER_COLLECTION);
+        assertEquals(conf.getBitmagConf().getMaxConcurrentUploads(), 
+                BitmagConfiguration.DEFAULT_MAX_CONCURRENT_UPLOADS);
+        assertEquals(conf.getBitmagConf().getRolloverConf("any-collection").getMaxRecords(), 
+                RolloverConfiguration.NO_LIMIT);
+        assertEquals(conf.getBitmagConf().getRolloverConf("any-collection").getWarcSizeLimit(), 
+                (long) RolloverConfiguration.NO_LIMIT);
+        assertFalse(conf.getBitmagConf().isArchiveWarcIndex());
+        assertEquals(conf.getBitmagConf().getWarcCacheSize(), BitmagConfiguration.DEFAULT_WARC_CACHE_SIZE);
 
         assertNotNull(conf.getCumulusConf());
         assertNotNull(conf.getCumulusConf().getServerUrl());
@@ -103,9 +114,16 @@ public class ConfigurationTest extends ExtendedTestCase {
         assertNotNull(conf.getCumulusConf().getWriteAccess());
         assertNotNull(conf.getCumulusConf().getCatalogs());
         assertFalse(conf.getCumulusConf().getCatalogs().isEmpty());
+        assertEquals(conf.getCumulusPagingConf().getPageSize(), CumulusPagingConfiguration.NO_PAGING);
+        assertEquals(conf.getCumulusPagingConf().isPrefetch(), CumulusPagingConfiguration.DEFAULT_PREFETCH);
 
         assertNotNull(conf.getWorkflowConf());
         assertNotNull(conf.getWorkflowConf().getInterval());
+        assertTrue(conf.getWorkflowConf().getPreservationThreads() > 0);
+        assertEquals(conf.getWorkflowConf().getValidationThreads(), WorkflowConfiguration.DEFAULT_VALIDATION_THREADS);
+        assertEquals(conf.getWorkflowConf().getMaxArchiveOperations(), 
+                WorkflowConfiguration.DEFAULT_MAX_ARCHIVE_OPERATIONS);
+        assertEquals(conf.getWorkflowConf().getCatalogThreads(), WorkflowConfiguration.DEFAULT_CATALOG_THREADS);
         
         assertNotNull(conf.getTransformationConf());
         assertNotNull(conf.getTransformationConf().getXsdDir());
@@ -115,6 +133,8 @@ public class ConfigurationTest extends ExtendedTestCase {
         assertNotNull(conf.getTransformationConf().getRequiredFields().getWritableFields());
         assertNotNull(conf.getTransformationConf().getMetadataTempDir());
         assertTrue(conf.getTransformationConf().getMetadataTempDir().isDirectory());
+        assertEquals(conf.getTransformationConf().getMetadataMemoryThreshold(), 
+                TransformationConfiguration.DEFAULT_METADATA_MEMORY_THRESHOLD);
         
         assertNotNull(conf.getLocalConfiguration());
         assertNotNull(conf.getLocalConfiguration().getLocalOutputDir());
@@ -144,6 +164,7 @@ public class ConfigurationTest extends ExtendedTestCase {
 
         assertNotNull(conf.getWorkflowConf());
         assertNotNull(conf.getWorkflowConf().getInterval());
+        assertTrue(conf.getWorkflowConf().getPreservationThreads() > 0);
         
         assertNotNull(conf.getTransformationConf());
         assertNotNull(conf.getTransformationConf().getXsdDir());
@@ -158,6 +179,65 @@ public class ConfigurationTest extends ExtendedTestCase {
         assertTrue(conf.getLocalConfiguration().getIsTest());
     }
     
+    @Test
+    public void testLoadCumulusPagingConfiguration() throws Exception {
+        addDescription("Test loading the configuration for paging the Cumulus queries.");
+        Configuration conf = new Configuration(confFileWithoutImport.getAbsolutePath());
+        
+        Map<String, Object> map = new HashMap<String, Object>();
+        map.put(Configuration.CONF_CUMULUS_PAGE_SIZE, 500);
+        map.put(Configuration.CONF_CUMULUS_PREFETCH_PAGES, false);
+        CumulusPagingConfiguration pagingConf = conf.loadCumulusPagingConfiguration(map);
+        assertEquals(pagingConf.getPageSize(), 500);
+        assertFalse(pagingConf.isPrefetch());
+    }
+    
+    @Test
+    public void testLoadQuotedBoolean() throws Exception {
+        addDescription("Test loading a boolean, which is quoted in the YAML file.");
+        Configuration conf = new Configuration(confFileWithoutImport.getAbsolutePath());
+        
+        Map<String, Object> map = new HashMap<String, Object>();
+        map.put(Configuration.CONF_CUMULUS_PAGE_SIZE, 500);
+        map.put(Configuration.CONF_CUMULUS_PREFETCH_PAGES, "False");
+        assertFalse(conf.loadCumulusPagingConfiguration(map).isPrefetch());
+        map.put(Configuration.CONF_CUMULUS_PREFETCH_PAGES, "yes");
+        assertTrue(conf.loadCumulusPagingConfiguration(map).isPrefetch());
+    }
+    
+    @Test(expectedExceptions = ArgumentCheck.class)
+    public void testLoadInvalidBoolean() throws Exception {
+        addDescription("Test that a value, which is not a boolean, is rejected.");
+        Configuration conf = new Configuration(confFileWithoutImport.getAbsolutePath());
+        
+        Map<String, Object> map = new HashMap<String, Object>();
+        map.put(Configuration.CONF_CUMULUS_PAGE_SIZE, 500);
+        map.put(Configuration.CONF_CUMULUS_PREFETCH_PAGES, "maybe");
+        conf.loadCumulusPagingConfiguration(map);
+    }
+    
+    @Test
+    public void testLoadRolloverConfigurationWithLargeSizeLimit() throws Exception {
+        addDescription("Test loading a rollover size limit, which does not fit in an integer.");
+        Configuration conf = new Configuration(confFileWithoutImport.getAbsolutePath());
+        
+        Map<String, Object> map = new HashMap<String, Object>();
+        map.put(Configuration.CONF_ROLLOVER_WARC_SIZE_LIMIT, 3000000000L);
+        map.put(Configuration.CONF_ROLLOVER_MAX_AGE, 3600);
+        RolloverConfiguration rolloverConf = conf.loadRolloverConfiguration(map, 
+                conf.getBitmagConf().getRolloverConf("any-collection"));
+        assertEquals(rolloverConf.getWarcSizeLimit(), 3000000000L);
+        assertEquals(rolloverConf.getMaxAge(), 3600L);
+    }
+    
+    @Test(expectedExceptions = ArgumentCheck.class)
+    public void testPipelineWithPreservationThreads() throws Exception {
+        addDescription("Test that the pipeline cannot be combined with more than one preservation thread.");
+        Configuration conf = new Configuration(confFileWithoutImport.getAbsolutePath());
+        new WorkflowConfiguration(-1, conf.getWorkflowConf().getRetainDir(), 4, 
+                new PipelineConfiguration(10, 1, 1, 1));
+    }
+    
     @Test(expectedExceptions = ArgumentCheck.class)
     public void testConfigurationFailure() throws Exception {
         addDescription("Load a missing file as configuration.");
@@ -214,6 +294,81 @@ public class ConfigurationTest extends ExtendedTestCase {
         Assert.assertFalse(localConf.getIsTest());
     }
     
+    @Test
+    public void testLoadPipelineConfiguration() throws Exception {
+        addDescription("Test the loadPipelineConfiguration method");
+        Configuration conf = new Configuration(confFileWithoutImport.getAbsolutePath());
+        
+        addStep("Load without any elements", "All values should be the defaults");
+        Map<String, Object> pipelineMap = new HashMap<String, Object>();
+        PipelineConfiguration pipelineConf = conf.loadPipelineConfiguration(pipelineMap);
+        assertEquals(pipelineConf.getQueueSize(), PipelineConfiguration.DEFAULT_QUEUE_SIZE);
+        assertEquals(pipelineConf.getChecksumThreads(), PipelineConfiguration.DEFAULT_THREADS);
+        assertEquals(pipelineConf.getTransformationThreads(), PipelineConfiguration.DEFAULT_THREADS);
+        assertEquals(pipelineConf.getPackagingThreads(), PipelineConfiguration.DEFAULT_THREADS);
+        
+        addStep("Load with all the elements", "All values should be loaded");
+        pipelineMap.put(Configuration.CONF_PIPELINE_QUEUE_SIZE, 5);
+        pipelineMap.put(Configuration.CONF_PIPELINE_CHECKSUM_THREADS, 2);
+        pipelineMap.put(Configuration.CONF_PIPELINE_TRANSFORMATION_THREADS, 3);
+        pipelineMap.put(Configuration.CONF_PIPELINE_PACKAGING_THREADS, 4);
+        pipelineConf = conf.loadPipelineConfiguration(pipelineMap);
+        assertEquals(pipelineConf.getQueueSize(), 5);
+        assertEquals(pipelineConf.getChecksumThreads(), 2);
+        assertEquals(pipelineConf.getTransformationThreads(), 3);
+        assertEquals(pipelineConf.getPackagingThreads(), 4);
+        
+        addStep("Load with a non-positive number of threads", "Must fail");
+        pipelineMap.put(Configuration.CONF_PIPELINE_PACKAGING_THREADS, 0);
+        try {
+            conf.loadPipelineConfiguration(pipelineMap);
+            Assert.fail("Should throw an exception");
+        } catch (ArgumentCheck e) {
+            // expected
+        }
+    }
+    
+    @Test
+    public void testLoadScheduleConfiguration() throws Exception {
+        addDescription("Test the loadScheduleConfiguration method");
+        Configuration conf = new Configuration(confFileWithoutImport.getAbsolutePath());
+        
+        addStep("Load without any elements", "All values should be the defaults");
+        Map<String, Object> scheduleMap = new HashMap<String, Object>();
+        ScheduleConfiguration scheduleConf = conf.loadScheduleConfiguration(scheduleMap);
+        Assert.assertNull(scheduleConf.getCron());
+        Assert.assertTrue(scheduleConf.getCatalogCrons().isEmpty());
+        Assert.assertNull(scheduleConf.getWindowStart());
+        Assert.assertNull(scheduleConf.getWindowEnd());
+        assertEquals(scheduleConf.getReadyThreshold(), ScheduleConfiguration.NO_THRESHOLD);
+        assertEquals(scheduleConf.getThresholdCheckInterval(), ScheduleConfiguration.DEFAULT_THRESHOLD_CHECK_INTERVAL);
+        
+        addStep("Load with all the elements", "All values should be loaded");
+        Map<String, Object> catalogCrons = new HashMap<String, Object>();
+        catalogCrons.put("Audio", "0 0 2 * * SAT");
+        scheduleMap.put(Configuration.CONF_SCHEDULE_CRON, "0 0 20 * * *");
+        scheduleMap.put(Configuration.CONF_SCHEDULE_CATALOG_CRON, catalogCrons);
+        scheduleMap.put(Configuration.CONF_SCHEDULE_TIME_WINDOW, "20:00-06:00");
+        scheduleMap.put(Configuration.CONF_SCHEDULE_READY_THRESHOLD, 1000);
+        scheduleMap.put(Configuration.CONF_SCHEDULE_THRESHOLD_CHECK_INTERVAL, 300);
+        scheduleConf = conf.loadScheduleConfiguration(scheduleMap);
+        assertEquals(scheduleConf.getCron(), "0 0 20 * * *");
+        assertEquals(scheduleConf.getCatalogCrons().get("Audio"), "0 0 2 * * SAT");
+        assertEquals(scheduleConf.getWindowStart(), LocalTime.of(20, 0));
+        assertEquals(scheduleConf.getWindowEnd(), LocalTime.of(6, 0));
+        assertEquals(scheduleConf.getReadyThreshold(), 1000);
+        assertEquals(scheduleConf.getThresholdCheckInterval(), 300L);
+        
+        addStep("Load with an invalid time window", "Must fail");
+        scheduleMap.put(Configuration.CONF_SCHEDULE_TIME_WINDOW, "evening");
+        try {
+            conf.loadScheduleConfiguration(scheduleMap);
+            Assert.fail("Should throw an exception");
+        } catch (ArgumentCheck e) {
+            // expected
+        }
+    }
+    
     @Test
     public void testViewableCumulusConfiguration() {
         addDescription("Test the ViewableCumulusConfiguration. Should not be able to retrieve the password");
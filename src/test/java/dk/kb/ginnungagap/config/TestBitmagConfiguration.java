@@ -5,6 +5,7 @@ import java.io.File;
 public class TestBitmagConfiguration extends BitmagConfiguration {
 
     public Integer testWarcFileSizeLimit;
+    public Integer testWarcShardsPerCollection;
     
     public TestBitmagConfiguration(File settingsDir, File privateKeyFile, int maxFailingPillars, int warcFileSizeLimit,
             File tempDir, String algorithm) {
@@ -22,4 +23,15 @@ public class TestBitmagConfiguration extends BitmagConfiguration {
         return testWarcFileSizeLimit;
     }
     
+    public void setWarcShardsPerCollection(int shards) {
+        this.testWarcShardsPerCollection = shards;
+    }
+    @Override
+    public int getWarcShardsPerCollection() {
+        if(testWarcShardsPerCollection == null) {
+            return super.getWarcShardsPerCollection();
+        }
+        return testWarcShardsPerCollection;
+    }
+    
 }
@@ -3,9 +3,11 @@ package dk.kb.ginnungagap.cumulus;
 import static org.mockito.Mockito.*;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.UUID;
 
 import org.jaccept.structure.ExtendedTestCase;
+import org.jwat.warc.WarcDigest;
 import org.testng.Assert;
 import org.testng.annotations.AfterClass;
 import org.testng.annotations.BeforeClass;
@@ -14,6 +16,7 @@ import org.testng.annotations.Test;
 import dk.kb.cumulus.Constants;
 import dk.kb.cumulus.CumulusRecord;
 import dk.kb.ginnungagap.testutils.TestFileUtils;
+import dk.kb.ginnungagap.utils.ChecksumUtils;
 
 public class CumulusPreservationUtilsTest extends ExtendedTestCase {
     
@@ -33,6 +36,56 @@ public class CumulusPreservationUtilsTest extends ExtendedTestCase {
         Assert.assertNotNull(cpu);
     }
     
+    @Test
+    public void testInitRecordChecksumWithBlockDigest() throws IOException {
+        addDescription("Test that the MD5 checksum and the block digest are calculated together, "
+                + "when the record has no MD5 checksum");
+        File contentFile = TestFileUtils.createFileWithContent("This is the content");
+        CumulusRecord record = mock(CumulusRecord.class);
+        when(record.getFieldValueOrNull(eq(Constants.FieldNames.CHECKSUM_ORIGINAL_MASTER))).thenReturn(null);
+        when(record.getFile()).thenReturn(contentFile);
+        
+        WarcDigest blockDigest = CumulusPreservationUtils.initRecordChecksum(record, "SHA-1");
+        
+        Assert.assertEquals(blockDigest.digestString, 
+                ChecksumUtils.calculateChecksum(contentFile, "SHA-1").digestString);
+        verify(record).getFieldValueOrNull(eq(Constants.FieldNames.CHECKSUM_ORIGINAL_MASTER));
+        verify(record).getFile();
+        verify(record).setStringValueInField(eq(Constants.FieldNames.CHECKSUM_ORIGINAL_MASTER), 
+                eq(ChecksumUtils.calculateChecksum(contentFile, ChecksumUtils.MD5_ALGORITHM).digestString));
+        verifyNoMoreInteractions(record);
+    }
+    
+    @Test
+    public void testInitRecordChecksumWhenAlreadyDefined() {
+        addDescription("Test that the asset file is not read, when the record already has a MD5 checksum, "
+                + "and no block digest is needed");
+        CumulusRecord record = mock(CumulusRecord.class);
+        when(record.getFieldValueOrNull(eq(Constants.FieldNames.CHECKSUM_ORIGINAL_MASTER))).thenReturn("checksum");
+        
+        Assert.assertNull(CumulusPreservationUtils.initRecordChecksum(record, null));
+        
+        verify(record).getFieldValueOrNull(eq(Constants.FieldNames.CHECKSUM_ORIGINAL_MASTER));
+        verifyNoMoreInteractions(record);
+    }
+    
+    @Test
+    public void testInitRecordChecksumWhenAlreadyDefinedWithBlockDigest() throws IOException {
+        addDescription("Test that only the block digest is calculated, when the record already has a MD5 checksum");
+        File contentFile = TestFileUtils.createFileWithContent("This is the content");
+        CumulusRecord record = mock(CumulusRecord.class);
+        when(record.getFieldValueOrNull(eq(Constants.FieldNames.CHECKSUM_ORIGINAL_MASTER))).thenReturn("checksum");
+        when(record.getFile()).thenReturn(contentFile);
+        
+        WarcDigest blockDigest = CumulusPreservationUtils.initRecordChecksum(record, "SHA-1");
+        
+        Assert.assertEquals(blockDigest.digestString, 
+                ChecksumUtils.calculateChecksum(contentFile, "SHA-1").digestString);
+        verify(record).getFieldValueOrNull(eq(Constants.FieldNames.CHECKSUM_ORIGINAL_MASTER));
+        verify(record).getFile();
+        verifyNoMoreInteractions(record);
+    }
+    
     @Test
     public void testInitRepresentationIntellectualEntityUUIDWhenNull() {
         addDescription("Test the initRepresentationIntellectualEntityUUID mehtod, when the representation IE-UUID is null");
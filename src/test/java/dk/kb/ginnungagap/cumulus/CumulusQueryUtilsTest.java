@@ -77,4 +77,26 @@ public class CumulusQueryUtilsTest extends ExtendedTestCase {
         
         Assert.assertTrue(cq.getQuery().contains(catalogName));
     }
+    
+    @Test
+    public void testGetQueryFromRecordId() {
+        String catalogName = UUID.randomUUID().toString();  
+        CumulusQuery query = CumulusQueryUtils.getPreservationAllQuery(catalogName);
+        CumulusQuery cq = CumulusQueryUtils.getQueryFromRecordId(query, 1000L);
+        
+        Assert.assertTrue(cq.getQuery().startsWith(query.getQuery()));
+        Assert.assertTrue(cq.getQuery().contains(CumulusQueryUtils.RECORD_ID_FIELD));
+        Assert.assertTrue(cq.getQuery().contains("999"));
+    }
+    
+    @Test
+    public void testGetQueryForRecordIdRange() {
+        String catalogName = UUID.randomUUID().toString();  
+        CumulusQuery query = CumulusQueryUtils.getPreservationAllQuery(catalogName);
+        CumulusQuery cq = CumulusQueryUtils.getQueryForRecordIdRange(query, 1000L, 2000L);
+        
+        Assert.assertTrue(cq.getQuery().startsWith(query.getQuery()));
+        Assert.assertTrue(cq.getQuery().contains("999"));
+        Assert.assertTrue(cq.getQuery().contains("2000"));
+    }
 }
@@ -0,0 +1,228 @@
+package dk.kb.ginnungagap.cumulus;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.jaccept.structure.ExtendedTestCase;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import dk.kb.cumulus.CumulusQuery;
+import dk.kb.cumulus.CumulusRecord;
+import dk.kb.cumulus.CumulusRecordCollection;
+import dk.kb.cumulus.CumulusServer;
+import dk.kb.ginnungagap.config.CumulusPagingConfiguration;
+
+public class CumulusRecordCursorTest extends ExtendedTestCase {
+
+    String catalogName = "Test-catalog";
+    CumulusQuery query = CumulusQuery.getQueryForAllInCatalog(catalogName);
+
+    @Test
+    public void testWithoutPaging() throws Exception {
+        addDescription("Test that the whole result is read as a single page, when there is no paging.");
+        CumulusServer server = mock(CumulusServer.class);
+        CumulusRecordCollection items = mock(CumulusRecordCollection.class);
+        CumulusRecord record = mock(CumulusRecord.class);
+        when(server.getItems(anyString(), any(CumulusQuery.class))).thenReturn(items);
+        when(items.getCount()).thenReturn(1);
+        when(items.iterator()).thenReturn(Arrays.asList(record).iterator());
+
+        List<CumulusRecord> records = new ArrayList<CumulusRecord>();
+        try (CumulusRecordCursor cursor = new CumulusRecordCursor(server, catalogName, query, null)) {
+            Assert.assertEquals(cursor.getCount(), 1);
+            for(CumulusRecord r : cursor) {
+                records.add(r);
+            }
+        }
+        Assert.assertEquals(records, Arrays.asList(record));
+
+        verify(server).getItems(catalogName, query);
+        verifyNoMoreInteractions(server);
+        verify(items).getCount();
+        verify(items).iterator();
+        verifyNoMoreInteractions(items);
+    }
+
+    @Test
+    public void testPagingByRecordIds() throws Exception {
+        addDescription("Test that the result is read in pages by the ranges of record ids.");
+        testPaging(false);
+    }
+
+    @Test
+    public void testPagingWithPrefetch() throws Exception {
+        addDescription("Test that the result is read in pages, when the next page is fetched in the background.");
+        testPaging(true);
+    }
+
+    @Test
+    public void testEmptyResultWithPaging() throws Exception {
+        addDescription("Test that no pages are read, when the query has no records.");
+        CatalogServer catalog = new CatalogServer();
+        try (CumulusRecordCursor cursor = new CumulusRecordCursor(catalog.server, catalogName, query,
+                new CumulusPagingConfiguration(2, true))) {
+            Assert.assertEquals(cursor.getCount(), 0);
+            Assert.assertFalse(cursor.iterator().hasNext());
+            Assert.assertNull(cursor.nextPage());
+        }
+        verify(catalog.server).getItems(anyString(), any(CumulusQuery.class));
+    }
+
+    @Test
+    public void testEmptyResultWithPagingWithoutCount() throws Exception {
+        addDescription("Test that an empty result is found by the ranges of record ids, when it is not counted, "
+                + "without querying the whole result.");
+        CatalogServer catalog = new CatalogServer();
+        try (CumulusRecordCursor cursor = new CumulusRecordCursor(catalog.server, catalogName, query,
+                new CumulusPagingConfiguration(2, true))) {
+            Assert.assertFalse(cursor.hasRecords());
+            Assert.assertNull(cursor.nextPage());
+            Assert.assertEquals(cursor.getCount(), 0);
+        }
+        Assert.assertEquals(catalog.fullQueries, 0, "Should not have queried the whole result");
+    }
+
+    @Test
+    public void testCountBeforePaging() throws Exception {
+        addDescription("Test that counting the result before the pages are read queries the whole result once, "
+                + "and does not change the pages.");
+        CatalogServer catalog = new CatalogServer(1, 2, 3, 10, 11, 40, 41, 42);
+
+        int records = 0;
+        try (CumulusRecordCursor cursor = new CumulusRecordCursor(catalog.server, catalogName, query,
+                new CumulusPagingConfiguration(2, false))) {
+            Assert.assertEquals(cursor.getCount(), 8);
+            Assert.assertEquals(catalog.fullQueries, 1);
+            for(CumulusRecord record : cursor) {
+                Assert.assertNotNull(record);
+                records++;
+            }
+            Assert.assertEquals(cursor.getCount(), 8);
+        }
+        Assert.assertEquals(records, 8);
+        Assert.assertEquals(catalog.fullQueries, 1, "Should only have queried the whole result once");
+    }
+
+    protected void testPaging(boolean prefetch) throws Exception {
+        CatalogServer catalog = new CatalogServer(1, 2, 3, 10, 11, 40, 41, 42);
+
+        List<Long> recordIds = new ArrayList<Long>();
+        try (CumulusRecordCursor cursor = new CumulusRecordCursor(catalog.server, catalogName, query,
+                new CumulusPagingConfiguration(2, prefetch))) {
+            addStep("Check for records", "The first page is found without querying the whole result");
+            Assert.assertTrue(cursor.hasRecords());
+            Assert.assertEquals(catalog.fullQueries, 0);
+
+            addStep("Iterate the records", "All the records are found in the order of their record ids");
+            for(CumulusRecord record : cursor) {
+                recordIds.add(record.getFieldLongValue(CumulusQueryUtils.RECORD_ID_FIELD));
+            }
+
+            addStep("Count the records", "All the records of the pages are counted");
+            Assert.assertEquals(cursor.getCount(), 8);
+        }
+        Assert.assertEquals(recordIds, Arrays.asList(1L, 2L, 3L, 10L, 11L, 40L, 41L, 42L));
+        verify(catalog.server, times(catalog.queries)).getItems(anyString(), any(CumulusQuery.class));
+        Assert.assertTrue(catalog.rangeQueries > 1, "Should have queried the records in more than one page");
+        Assert.assertEquals(catalog.fullQueries, 0, "Should not have queried the whole result");
+    }
+
+    @Test
+    public void testRestOfResultIsNotQueriedForEachPage() throws Exception {
+        addDescription("Test that the queries for the rest of the result do not grow with the number of pages.");
+        long[] recordIds = new long[500];
+        for(int i = 0; i < recordIds.length; i++) {
+            recordIds[i] = i + 1;
+        }
+        CatalogServer catalog = new CatalogServer(recordIds);
+
+        int records = 0;
+        try (CumulusRecordCursor cursor = new CumulusRecordCursor(catalog.server, catalogName, query,
+                new CumulusPagingConfiguration(5, false))) {
+            for(CumulusRecord record : cursor) {
+                Assert.assertNotNull(record);
+                records++;
+            }
+        }
+        Assert.assertEquals(records, recordIds.length);
+        Assert.assertEquals(catalog.fullQueries, 0);
+        Assert.assertTrue(catalog.rangeQueries >= recordIds.length / 10, "Should have read many pages");
+        Assert.assertTrue(catalog.restQueries <= 32, "The bound of the record ids should only be found once, but "
+                + catalog.restQueries + " queries for the rest of the result were made");
+    }
+
+    /**
+     * Mock Cumulus server for a catalog with records with the given record ids, which handles the restrictions
+     * of the queries to ranges of record ids.
+     */
+    protected class CatalogServer {
+        /** The pattern for the first record id of a range.*/
+        final Pattern fromPattern = Pattern.compile("ID\\s+is\\s+greater\\s+than\\s+(-?\\d+)");
+        /** The pattern for the record id after the end of a range.*/
+        final Pattern toPattern = Pattern.compile("ID\\s+is\\s+less\\s+than\\s+(-?\\d+)");
+        /** The mocked server.*/
+        final CumulusServer server = mock(CumulusServer.class);
+        /** The records of the catalog.*/
+        final List<CumulusRecord> records = new ArrayList<CumulusRecord>();
+        /** The number of queries.*/
+        int queries = 0;
+        /** The number of queries for the whole result.*/
+        int fullQueries = 0;
+        /** The number of queries for the records from a record id.*/
+        int restQueries = 0;
+        /** The number of queries for a range of record ids.*/
+        int rangeQueries = 0;
+
+        CatalogServer(long ... recordIds) {
+            for(long recordId : recordIds) {
+                CumulusRecord record = mock(CumulusRecord.class);
+                when(record.getFieldLongValue(CumulusQueryUtils.RECORD_ID_FIELD)).thenReturn(recordId);
+                records.add(record);
+            }
+            when(server.getItems(anyString(), any(CumulusQuery.class))).thenAnswer(invocation -> {
+                queries++;
+                String q = ((CumulusQuery) invocation.getArguments()[1]).getQuery();
+                long from = getRecordId(fromPattern, q, Long.MIN_VALUE);
+                long to = getRecordId(toPattern, q, Long.MAX_VALUE);
+                if(from == Long.MIN_VALUE) {
+                    fullQueries++;
+                } else if(to == Long.MAX_VALUE) {
+                    restQueries++;
+                } else {
+                    rangeQueries++;
+                }
+                List<CumulusRecord> res = new ArrayList<CumulusRecord>();
+                for(CumulusRecord record : records) {
+                    long recordId = record.getFieldLongValue(CumulusQueryUtils.RECORD_ID_FIELD);
+                    if(recordId > from && recordId < to) {
+                        res.add(record);
+                    }
+                }
+                CumulusRecordCollection items = mock(CumulusRecordCollection.class);
+                when(items.getCount()).thenReturn(res.size());
+                when(items.iterator()).thenReturn(res.iterator());
+                return items;
+            });
+        }
+
+        long getRecordId(Pattern pattern, String query, long defaultValue) {
+            Matcher matcher = pattern.matcher(query);
+            if(matcher.find()) {
+                return Long.parseLong(matcher.group(1));
+            }
+            return defaultValue;
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package dk.kb.ginnungagap.transformation;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+
+import org.jaccept.structure.ExtendedTestCase;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import dk.kb.ginnungagap.exception.ArgumentCheck;
+import dk.kb.ginnungagap.testutils.TestFileUtils;
+import dk.kb.ginnungagap.utils.StreamUtils;
+
+public class MetadataBufferTest extends ExtendedTestCase {
+
+    String content = "<metadata>THIS IS THE METADATA</metadata>";
+
+    @BeforeClass
+    public void setup() {
+        TestFileUtils.setup();
+    }
+
+    @AfterClass
+    public void tearDown() {
+        TestFileUtils.tearDown();
+    }
+
+    @Test
+    public void testInMemory() throws IOException {
+        addDescription("Test that the metadata is kept in memory, when it is below the threshold.");
+        File file = new File(TestFileUtils.getTempDir(), UUID.randomUUID().toString());
+        MetadataBuffer buffer = new MetadataBuffer(file, 1024);
+        buffer.write(content.getBytes(StandardCharsets.UTF_8));
+        buffer.close();
+
+        Assert.assertTrue(buffer.isInMemory());
+        Assert.assertFalse(file.exists());
+        Assert.assertEquals(buffer.length(), content.length());
+        Assert.assertEquals(buffer.getName(), file.getName());
+        Assert.assertEquals(new String(buffer.getBytes(), StandardCharsets.UTF_8), content);
+
+        addStep("Read the metadata twice", "Same content both times");
+        for(int i = 0; i < 2; i++) {
+            try (InputStream in = buffer.getInputStream()) {
+                Assert.assertEquals(StreamUtils.extractInputStreamAsString(in), content);
+            }
+        }
+
+        buffer.delete();
+        Assert.assertFalse(buffer.isInMemory());
+    }
+
+    @Test
+    public void testSpillToFile() throws IOException {
+        addDescription("Test that the metadata is written to the file, when it exceeds the threshold.");
+        File file = new File(TestFileUtils.getTempDir(), UUID.randomUUID().toString());
+        MetadataBuffer buffer = new MetadataBuffer(file, 10);
+        byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
+        buffer.write(bytes, 0, 5);
+        Assert.assertTrue(buffer.isInMemory());
+        buffer.write(bytes, 5, bytes.length - 5);
+        buffer.close();
+
+        Assert.assertFalse(buffer.isInMemory());
+        Assert.assertNull(buffer.getBytes());
+        Assert.assertTrue(file.isFile());
+        Assert.assertEquals(file.length(), bytes.length);
+        Assert.assertEquals(buffer.length(), bytes.length);
+        try (InputStream in = buffer.getInputStream()) {
+            Assert.assertEquals(StreamUtils.extractInputStreamAsString(in), content);
+        }
+
+        buffer.delete();
+        Assert.assertFalse(file.exists());
+    }
+
+    @Test
+    public void testNoThreshold() throws IOException {
+        addDescription("Test that the metadata is written directly to the file, when there is no threshold.");
+        File file = new File(TestFileUtils.getTempDir(), UUID.randomUUID().toString());
+        MetadataBuffer buffer = new MetadataBuffer(file, 0);
+        Assert.assertFalse(buffer.isInMemory());
+        Assert.assertTrue(file.isFile());
+        buffer.close();
+        Assert.assertEquals(buffer.length(), 0L);
+    }
+
+    @Test(expectedExceptions = ArgumentCheck.class)
+    public void testReadBeforeClose() throws IOException {
+        addDescription("Test that the metadata cannot be read, before the buffer has been closed.");
+        MetadataBuffer buffer = new MetadataBuffer(new File(TestFileUtils.getTempDir(),
+                UUID.randomUUID().toString()), 1024);
+        buffer.write(content.getBytes(StandardCharsets.UTF_8));
+        buffer.getInputStream();
+    }
+
+    @Test(expectedExceptions = IOException.class)
+    public void testWriteAfterClose() throws IOException {
+        addDescription("Test that the metadata cannot be written, after the buffer has been closed.");
+        MetadataBuffer buffer = new MetadataBuffer(new File(TestFileUtils.getTempDir(),
+                UUID.randomUUID().toString()), 1024);
+        buffer.close();
+        buffer.write(1);
+    }
+}
@@ -1,17 +1,23 @@
 package dk.kb.ginnungagap.transformation;
 
+import static org.testng.Assert.assertEquals;
 import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.jaccept.structure.ExtendedTestCase;
 import org.testng.annotations.AfterClass;
@@ -20,6 +26,7 @@ import org.testng.annotations.Test;
 
 import dk.kb.ginnungagap.config.Configuration;
 import dk.kb.ginnungagap.testutils.TestFileUtils;
+import dk.kb.ginnungagap.utils.ChecksumUtils;
 import dk.kb.ginnungagap.utils.StreamUtils;
 
 public class MetadataTransformationHandlerTest extends ExtendedTestCase {
@@ -33,7 +40,7 @@ public class MetadataTransformationHandlerTest extends ExtendedTestCase {
     Configuration conf;
 
     @BeforeClass
-    public void setup() {
+    public void setup() throws IOException {
         TestFileUtils.setup();
         conf = TestFileUtils.createTempConf();
         xsltFile = new File("src/main/resources/scripts/xslt/transformToMets.xsl");
@@ -218,21 +225,62 @@ public class MetadataTransformationHandlerTest extends ExtendedTestCase {
         }
     }
 
+    @Test
+    public void testValidation() throws Exception {
+        File modsFile = new File("src/test/resources/metadata/dsfl-mods.xml");
+        try (InputStream in = new FileInputStream(modsFile)) {
+            transformationHandler.validate(in);
+        }
+        
+        if(writeOutput) {
+            try (InputStream is = new FileInputStream(modsFile)) {
+                String text = StreamUtils.extractInputStreamAsString(new FileInputStream(modsFile));
+                System.out.println(text);
+            }
+        }
+    }
+    
+    @Test
+    public void testValidationResult() throws Exception {
+        addDescription("Test that the validation also extracts the schema locations and calculates the digest.");
+        File modsFile = new File("src/test/resources/metadata/dsfl-mods.xml");
+        MetadataValidationResult result;
+        try (InputStream in = new FileInputStream(modsFile)) {
+            result = transformationHandler.validate(in);
+        }
+        
+        addStep("Check the schema locations", "Must contain the MODS schema");
+        boolean found = false;
+        for(String s : result.getSchemaLocations()) {
+            if(s.contains("http://www.loc.gov/mods/")) {
+                found = true;
+            }
+        }
+        assertTrue(found, result.getSchemaLocations().toString());
+        
+        addStep("Check the digest", "Must be the same as the checksum of the whole file");
+        String algorithm = conf.getBitmagConf().getAlgorithm();
+        assertEquals(result.getDigest().digestString, 
+                ChecksumUtils.calculateChecksum(modsFile, algorithm).digestString);
+    }
+    
     @Test
     public void testExtractingSchemaVersions() throws Exception {
-        addDescription("Tests the extraction of schema versions from an XML document.");
+        addDescription("Tests the extraction of schema versions from an XML document with embedded namespaces.");
         List<String> expectedNamespaces = Arrays.asList("http://www.loc.gov/premis/", 
                 "http://www.loc.gov/mods/", 
                 "http://www.loc.gov/mix/", 
                 "http://www.loc.gov/METS/");
         File testMetsFile = new File("src/test/resources/test-mets.xml");
-
-        Collection<String> schemaLocations =  transformationHandler.getMetadataStandards(new FileInputStream(testMetsFile));
+        MetadataValidationResult result;
+        try (InputStream in = new FileInputStream(testMetsFile)) {
+            result = transformationHandler.validate(in);
+        }
 
         addStep("Find expected namespaces", "Must be present");
         for(String namespace : expectedNamespaces) {
             boolean found = false;
-            for(String s : schemaLocations) {
+            for(String s : result.getSchemaLocations()) {
                 if(s.contains(namespace)) {
                     found = true;
                 }
@@ -242,17 +290,22 @@ public class MetadataTransformationHandlerTest extends ExtendedTestCase {
     }
     
     @Test
-    public void testValidation() throws Exception {
-        File modsFile = new File("src/test/resources/metadata/dsfl-mods.xml");
-        try (InputStream in = new FileInputStream(modsFile)) {
-            transformationHandler.validate(in);
+    public void testValidationFailureInEmbeddedNamespace() throws Exception {
+        addDescription("Test validating a METS document with an invalid element inside the embedded MODS metadata.");
+        String mets;
+        try (InputStream in = new FileInputStream(new File("src/test/resources/test-mets.xml"))) {
+            mets = StreamUtils.extractInputStreamAsString(in);
         }
+        String firstModsElement = "<mods:genre type=\"KB Samling\">";
+        assertTrue(mets.contains(firstModsElement));
+        String invalidMets = mets.replaceFirst(firstModsElement, "<mods:invalidModsElement/>" + firstModsElement);
         
-        if(writeOutput) {
-            try (InputStream is = new FileInputStream(modsFile)) {
-                String text = StreamUtils.extractInputStreamAsString(new FileInputStream(modsFile));
-                System.out.println(text);
-            }
+        addStep("Validate the METS document", "Must fail on the invalid MODS element");
+        try (InputStream in = new ByteArrayInputStream(invalidMets.getBytes(StandardCharsets.UTF_8))) {
+            transformationHandler.validate(in);
+            fail("The validation must fail on the invalid MODS element.");
+        } catch (IllegalStateException e) {
+            assertTrue(e.getMessage().contains("invalidModsElement"), e.getMessage());
         }
     }
     
@@ -348,4 +401,32 @@ public class MetadataTransformationHandlerTest extends ExtendedTestCase {
             }
         }
     }
+
+    @Test
+    public void testConcurrentTransformations() throws Exception {
+        addDescription("Test that the same transformer can be used by several threads at the same time.");
+        File xmlFile = new File("src/test/resources/Car_S-9090.tif.raw.xml");
+        assertTrue(xmlFile.isFile());
+        MetadataTransformer transformer = transformationHandler.getTransformer(MetadataTransformationHandler.TRANSFORMATION_SCRIPT_FOR_METS);
+
+        addStep("Transform the Cumulus XML in several threads", "Every METS must be valid");
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<byte[]>> results = new ArrayList<>();
+            for(int i = 0; i < 12; i++) {
+                results.add(executor.submit(() -> {
+                    ByteArrayOutputStream out = new ByteArrayOutputStream();
+                    try (InputStream in = new FileInputStream(xmlFile)) {
+                        transformer.transformXmlMetadata(in, out);
+                    }
+                    return out.toByteArray();
+                }));
+            }
+            for(Future<byte[]> result : results) {
+                transformationHandler.validate(new ByteArrayInputStream(result.get()));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
 }
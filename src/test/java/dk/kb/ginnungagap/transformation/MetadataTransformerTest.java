@@ -4,6 +4,7 @@ import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 
 import org.jaccept.structure.ExtendedTestCase;
 import org.testng.annotations.AfterClass;
@@ -44,5 +45,21 @@ public class MetadataTransformerTest extends ExtendedTestCase {
         transformer.transformXmlMetadata(new FileInputStream(nonXmlFile), out);
     }
     
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void testTransformationFailureWhenStreamingOutput() throws IOException {
+        addDescription("Test that it fails, when the transformed metadata cannot be written to the output stream");
+        File xmlFile = new File("src/test/resources/Car_S-9090.tif.raw.xml");
+        File xsltFile = new File("src/main/resources/scripts/xslt/transformToMets.xsl");
+        
+        MetadataTransformer transformer = new MetadataTransformer(xsltFile);
+        OutputStream out = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                throw new IOException("THIS MUST FAIL");
+            }
+        };
+        transformer.transformXmlMetadata(new FileInputStream(xmlFile), out);
+    }
+    
     // REMAINING TESTS PLACED IN MetadataTransformationHandlerTest
 }
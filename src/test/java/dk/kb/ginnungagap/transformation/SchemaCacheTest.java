@@ -0,0 +1,164 @@
+package dk.kb.ginnungagap.transformation;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import javax.xml.transform.stream.StreamSource;
+import javax.xml.validation.Schema;
+
+import org.jaccept.structure.ExtendedTestCase;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import org.xml.sax.SAXException;
+
+import dk.kb.ginnungagap.exception.ArgumentCheck;
+import dk.kb.ginnungagap.testutils.TestFileUtils;
+
+public class SchemaCacheTest extends ExtendedTestCase {
+
+    File xsdDir = new File("src/main/resources/scripts/xsd");
+    String mixNamespace = "http://www.loc.gov/mix/v20";
+    String metsNamespace = "http://www.loc.gov/METS/";
+    String testNamespace = "urn:test";
+
+    @BeforeMethod
+    public void setupTestMethod() {
+        TestFileUtils.setup();
+    }
+
+    @AfterMethod
+    public void tearDownTestMethod() {
+        TestFileUtils.tearDown();
+    }
+
+    @Test
+    public void testPreload() throws IOException {
+        addDescription("Test that the local schemas are preloaded by their file name and target namespace.");
+        SchemaCache cache = new SchemaCache();
+        cache.preload(xsdDir);
+
+        Assert.assertEquals(cache.localSchemas.get("mix.xsd").systemId, new File(xsdDir, "Mix.xsd").toURI().toString());
+        Assert.assertEquals(cache.localSchemas.get("mix.xsd").targetNamespace, mixNamespace);
+        Assert.assertEquals(cache.localSchemas.get("mets.xsd").targetNamespace, metsNamespace);
+        Assert.assertEquals(cache.localNamespaces.get(mixNamespace).size(), 1);
+        Assert.assertFalse(cache.localNamespaces.containsKey(""));
+        Assert.assertTrue(cache.documents.size() >= cache.localSchemas.size());
+
+        addStep("Check the compiled schemas", "The local schemas must have been compiled by the preload");
+        Assert.assertTrue(cache.schemas.containsKey(cache.getKey(mixNamespace, 
+                cache.localSchemas.get("mix.xsd").systemId)));
+    }
+
+    @Test(expectedExceptions = ArgumentCheck.class)
+    public void testPreloadMissingDirectory() throws IOException {
+        addDescription("Test that the preload fails, when the XSD directory does not exist.");
+        new SchemaCache().preload(new File(xsdDir, "THIS_DIRECTORY_DOES_NOT_EXIST"));
+    }
+
+    @Test
+    public void testSchemaIsOnlyCompiledOnce() throws Exception {
+        addDescription("Test that the schema for a namespace and location is only compiled once, and that the local "
+                + "schema is used, when the location cannot be reached.");
+        SchemaCache cache = new SchemaCache();
+        cache.preload(xsdDir);
+        String location = "http://localhost:1/mix20.xsd";
+        Schema localSchema = cache.schemas.get(cache.getKey(mixNamespace, cache.localSchemas.get("mix.xsd").systemId));
+        int numberOfSchemas = cache.schemas.size();
+
+        Schema schema = cache.getSchema(mixNamespace, location);
+        Assert.assertNotNull(schema);
+        Assert.assertSame(schema, localSchema);
+        Assert.assertSame(cache.getSchema(mixNamespace, location), schema);
+        Assert.assertEquals(cache.schemas.size(), numberOfSchemas + 1);
+
+        addStep("Validate a MIX document with a validator from the cached schema", "Valid");
+        String mix = "<mix:mix xmlns:mix=\"" + mixNamespace + "\"/>";
+        schema.newValidator().validate(new StreamSource(new StringReader(mix)));
+    }
+
+    @Test(timeOut = 20000)
+    public void testUnresponsiveLocationUsesLocalSchema() throws Exception {
+        addDescription("Test that the local schema is used, when the location of the schema does not respond.");
+        SchemaCache cache = new SchemaCache();
+        cache.preload(xsdDir);
+        cache.connectTimeout = 1000;
+        cache.readTimeout = 1000;
+        Schema localSchema = cache.schemas.get(cache.getKey(mixNamespace, cache.localSchemas.get("mix.xsd").systemId));
+
+        addStep("Request the schema from a server, which accepts the connection but never answers", 
+                "The read must time out, and the local schema must be used");
+        try (ServerSocket server = new ServerSocket(0)) {
+            String location = "http://localhost:" + server.getLocalPort() + "/mix20.xsd";
+            Assert.assertSame(cache.getSchema(mixNamespace, location), localSchema);
+        }
+    }
+
+    @Test(expectedExceptions = SAXException.class)
+    public void testUnreachableSchemaWithoutLocalSchema() throws Exception {
+        addDescription("Test that the schema cannot be compiled, when it can neither be retrieved nor found locally.");
+        SchemaCache cache = new SchemaCache();
+        cache.getSchema("http://unknown.namespace/", "http://localhost:1/unknown.xsd");
+    }
+
+    @Test
+    public void testIncludedSchemaWithLocalCopy() throws Exception {
+        addDescription("Test that an unreachable included schema is replaced by the local schema with the same name.");
+        File dir = createSchemaDir(true);
+        SchemaCache cache = new SchemaCache();
+        cache.preload(dir);
+
+        Schema schema = cache.getSchema(testNamespace, "http://localhost:1/main.xsd");
+        String document = "<t:part xmlns:t=\"" + testNamespace + "\"/>";
+        schema.newValidator().validate(new StreamSource(new StringReader(document)));
+    }
+
+    @Test(expectedExceptions = SAXException.class)
+    public void testIncludedSchemaWithoutLocalCopy() throws Exception {
+        addDescription("Test that the compilation fails, when an unreachable included schema has no local schema with "
+                + "the same name, instead of including the local main schema for the namespace.");
+        File dir = createSchemaDir(false);
+        SchemaCache cache = new SchemaCache();
+        cache.preload(dir);
+
+        cache.getSchema(testNamespace, "http://localhost:1/main.xsd");
+    }
+
+    @Test
+    public void testPreloadSkipsUnparsableSchema() throws Exception {
+        addDescription("Test that a local schema, which cannot be parsed, is skipped by the preload.");
+        File dir = createSchemaDir(true);
+        Files.write(new File(dir, "broken.xsd").toPath(), "This is not XML".getBytes(StandardCharsets.UTF_8));
+        SchemaCache cache = new SchemaCache();
+        cache.preload(dir);
+
+        Assert.assertFalse(cache.localSchemas.containsKey("broken.xsd"));
+        Assert.assertTrue(cache.localSchemas.containsKey("main.xsd"));
+        Assert.assertTrue(cache.localSchemas.containsKey("part.xsd"));
+    }
+
+    /**
+     * Creates a directory with a main schema, which includes a part schema from an unreachable location.
+     * @param withPart Whether the directory also contains the part schema.
+     * @return The directory.
+     */
+    protected File createSchemaDir(boolean withPart) throws IOException {
+        File dir = new File(TestFileUtils.getTempDir(), "xsd");
+        dir.mkdirs();
+        String schemaStart = "<xs:schema xmlns:xs=\"http://www.w3.org/2001/XMLSchema\" targetNamespace=\""
+                + testNamespace + "\" elementFormDefault=\"qualified\">";
+        String main = schemaStart + "<xs:include schemaLocation=\"http://localhost:1/part.xsd\"/>"
+                + "<xs:element name=\"main\"/></xs:schema>";
+        Files.write(new File(dir, "main.xsd").toPath(), main.getBytes(StandardCharsets.UTF_8));
+        if(withPart) {
+            String part = schemaStart + "<xs:element name=\"part\"/></xs:schema>";
+            Files.write(new File(dir, "part.xsd").toPath(), part.getBytes(StandardCharsets.UTF_8));
+        }
+        return dir;
+    }
+}
@@ -1,8 +1,13 @@
 package dk.kb.ginnungagap.utils;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 
 import org.bitrepository.access.getchecksums.conversation.ChecksumsCompletePillarEvent;
@@ -41,6 +46,47 @@ public class ChecksumUtilsTest extends ExtendedTestCase {
         Assert.assertEquals(expectedChecksum, digest.digestString);
     }
     
+    @Test
+    public void testCalculateChecksums() {
+        addDescription("Test calculating the checksums with several algorithms in one read of the file.");
+        File f = new File(testFilePath);
+        Map<String, WarcDigest> digests = ChecksumUtils.calculateChecksums(f, "md5", "SHA-1");
+        
+        Assert.assertEquals(digests.size(), 2);
+        Assert.assertEquals(digests.get("md5").digestString, expectedChecksum);
+        Assert.assertEquals(digests.get("SHA-1").digestString, 
+                ChecksumUtils.calculateChecksum(f, "SHA-1").digestString);
+    }
+    
+    @Test
+    public void testCalculateChecksumOfStream() throws Exception {
+        addDescription("Test calculating the checksum of a stream, while it is read.");
+        File f = new File(testFilePath);
+        try (InputStream in = new FileInputStream(f)) {
+            WarcDigest digest = ChecksumUtils.calculateChecksum(in, "md5");
+            Assert.assertEquals(expectedChecksum, digest.digestString);
+            Assert.assertEquals(-1, in.read());
+        }
+    }
+    
+    @Test
+    public void testCreateWarcDigest() throws Exception {
+        addDescription("Test that a calculated message digest is wrapped like the checksum of a file.");
+        File f = new File(testFilePath);
+        MessageDigest md = ChecksumUtils.getMessageDigest("md5");
+        md.update(Files.readAllBytes(f.toPath()));
+        WarcDigest digest = ChecksumUtils.createWarcDigest("md5", md.digest());
+        
+        Assert.assertEquals(digest.digestString, expectedChecksum);
+        Assert.assertEquals(digest.algorithm, "md5");
+    }
+    
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void testGetMessageDigestFailure() {
+        addDescription("Test that an unknown algorithm is rejected.");
+        ChecksumUtils.getMessageDigest("NOT-AN-ALGORITHM");
+    }
+    
     @Test(expectedExceptions = IllegalStateException.class)
     public void testCalculateChecksumFailureChecksumAlgorith() {
         addDescription("Test calculating the checksum with an unknown algorithm.");
@@ -1,11 +1,26 @@
 package dk.kb.ginnungagap.utils;
 
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.UUID;
 
 import org.jaccept.structure.ExtendedTestCase;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.testng.annotations.Test;
 
 import junit.framework.Assert;
@@ -29,6 +44,53 @@ public class StreamUtilsTest extends ExtendedTestCase {
         Assert.assertEquals(TEST_MSG, res);
     }
 
+    @Test
+    public void testCopyFileStreamToFileStream() throws IOException {
+        addDescription("Test copying between file streams, which transfers directly between the file channels.");
+        File from = File.createTempFile("copy-from", ".tmp");
+        File to = File.createTempFile("copy-to", ".tmp");
+        from.deleteOnExit();
+        to.deleteOnExit();
+        Files.write(from.toPath(), TEST_MSG.getBytes(StandardCharsets.UTF_8));
+        
+        addStep("Copy the rest of a partially read file", "Only the unread part is copied");
+        FileInputStream in = new FileInputStream(from);
+        Assert.assertEquals(5, in.skip(5));
+        StreamUtils.copyInputStreamToOutputStream(in, new FileOutputStream(to));
+        
+        String res = new String(Files.readAllBytes(to.toPath()), StandardCharsets.UTF_8);
+        Assert.assertEquals(TEST_MSG.substring(5), res);
+    }
+    
+    @Test
+    public void testTransferFileChannelWithoutProgress() throws IOException {
+        addDescription("Test that the rest is copied through a buffer, when the direct transfer makes no progress.");
+        byte[] content = TEST_MSG.getBytes(StandardCharsets.UTF_8);
+        FileChannel source = mock(FileChannel.class);
+        when(source.position()).thenReturn(0L);
+        when(source.size()).thenReturn((long) content.length);
+        when(source.transferTo(anyLong(), anyLong(), any(WritableByteChannel.class))).thenReturn(0L);
+        when(source.read(any(ByteBuffer.class))).thenAnswer(new Answer<Integer>() {
+            boolean read = false;
+            @Override
+            public Integer answer(InvocationOnMock invocation) {
+                if(read) {
+                    return -1;
+                }
+                read = true;
+                ((ByteBuffer) invocation.getArguments()[0]).put(content);
+                return content.length;
+            }
+        });
+        File to = File.createTempFile("transfer-to", ".tmp");
+        to.deleteOnExit();
+        
+        try (FileOutputStream out = new FileOutputStream(to)) {
+            StreamUtils.transferFileChannel(source, out.getChannel());
+        }
+        Assert.assertEquals(TEST_MSG, new String(Files.readAllBytes(to.toPath()), StandardCharsets.UTF_8));
+    }
+    
     @Test(expectedExceptions = IllegalArgumentException.class)
     public void testCopyInputStreamToOutputStreamFailureInputStreamNull() throws IOException {
         ByteArrayInputStream in = null;
@@ -43,4 +105,15 @@ public class StreamUtilsTest extends ExtendedTestCase {
         StreamUtils.copyInputStreamToOutputStream(in, out);
     }
 
+    @Test
+    public void testReadToEnd() throws IOException {
+        ByteArrayInputStream in = new ByteArrayInputStream(TEST_MSG.getBytes());
+        Assert.assertEquals(TEST_MSG.getBytes().length, StreamUtils.readToEnd(in));
+        Assert.assertEquals(-1, in.read());
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testReadToEndFailureInputStreamNull() throws IOException {
+        StreamUtils.readToEnd(null);
+    }
 }
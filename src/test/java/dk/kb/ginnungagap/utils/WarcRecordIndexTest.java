@@ -0,0 +1,65 @@
+package dk.kb.ginnungagap.utils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.UUID;
+
+import org.jaccept.structure.ExtendedTestCase;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import dk.kb.ginnungagap.testutils.TestFileUtils;
+
+public class WarcRecordIndexTest extends ExtendedTestCase {
+
+    @BeforeClass
+    public void setup() {
+        TestFileUtils.setup();
+    }
+
+    @AfterClass
+    public void tearDown() {
+        TestFileUtils.tearDown();
+    }
+
+    @Test
+    public void testWriteAndRead() throws IOException {
+        addDescription("Test that the index can be written and read back.");
+        WarcRecordIndex index = new WarcRecordIndex();
+        index.addEntry("<urn:uuid:first>", 0L, 100L, "sha1:abcdef");
+        index.addEntry("second", 100L, 200L, null);
+        File indexFile = WarcRecordIndex.getIndexFile(TestFileUtils.getTempDir(), UUID.randomUUID().toString());
+        index.write(indexFile);
+
+        WarcRecordIndex readIndex = WarcRecordIndex.read(indexFile);
+        Assert.assertEquals(readIndex.size(), 2);
+        WarcRecordIndex.Entry entry = readIndex.getEntry("second");
+        Assert.assertEquals(entry.getOffset(), 100L);
+        Assert.assertEquals(entry.getLength(), 200L);
+        Assert.assertEquals(entry.getDigest(), WarcRecordIndex.NO_DIGEST);
+        Assert.assertEquals(readIndex.getEntry("<urn:uuid:first>").getDigest(), "sha1:abcdef");
+    }
+
+    @Test
+    public void testGetEntryByPartOfId() {
+        addDescription("Test that an entry can be found by a part of the id of the WARC record, like the UUID.");
+        WarcRecordIndex index = new WarcRecordIndex();
+        index.addEntry("<urn:uuid:first>", 0L, 100L, null);
+        Assert.assertEquals(index.getEntry("first").getRecordId(), "<urn:uuid:first>");
+        Assert.assertNull(index.getEntry("second"));
+    }
+
+    @Test(expectedExceptions = IOException.class)
+    public void testReadInvalidIndex() throws IOException {
+        addDescription("Test that a file, which is not an index file, cannot be read as an index.");
+        File file = new File(TestFileUtils.getTempDir(), UUID.randomUUID().toString());
+        try (OutputStream out = new FileOutputStream(file)) {
+            out.write("not an index\n".getBytes());
+        }
+        WarcRecordIndex.read(file);
+    }
+}
@@ -0,0 +1,78 @@
+package dk.kb.ginnungagap.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.UUID;
+
+import org.jaccept.structure.ExtendedTestCase;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import dk.kb.ginnungagap.testutils.TestFileUtils;
+
+public class WarcUtilsTest extends ExtendedTestCase {
+
+    File warcFile = new File("src/test/resources/warc/warcexample.warc");
+    String recordId = "random-file-uuid";
+    long recordOffset = 481L;
+
+    @BeforeClass
+    public void setup() {
+        TestFileUtils.setup();
+    }
+
+    @AfterClass
+    public void tearDown() {
+        TestFileUtils.tearDown();
+    }
+
+    @Test
+    public void testReadIndexedRecord() throws IOException {
+        addDescription("Test that the record is read directly at its offset from the index.");
+        WarcRecordIndex index = new WarcRecordIndex();
+        index.addEntry(recordId, recordOffset, warcFile.length() - recordOffset, null);
+
+        try (IndexedWarcRecord indexedRecord = WarcUtils.readIndexedRecord(warcFile, recordId, index)) {
+            Assert.assertNotNull(indexedRecord);
+            Assert.assertTrue(indexedRecord.getRecord().header.warcRecordIdStr.contains(recordId));
+        }
+    }
+
+    @Test
+    public void testReadIndexedRecordWithWrongOffset() throws IOException {
+        addDescription("Test that no record is delivered, when the index does not lead to the record.");
+        WarcRecordIndex index = new WarcRecordIndex();
+        index.addEntry(recordId, 0L, recordOffset, null);
+        Assert.assertNull(WarcUtils.readIndexedRecord(warcFile, recordId, index));
+
+        index.addEntry(recordId, warcFile.length() + 1L, 1L, null);
+        Assert.assertNull(WarcUtils.readIndexedRecord(warcFile, recordId, index));
+        Assert.assertNull(WarcUtils.readIndexedRecord(warcFile, recordId, null));
+    }
+
+    @Test
+    public void testExtractRecordWithAndWithoutIndex() throws IOException {
+        addDescription("Test that the same record is extracted with a valid index, a wrong index and no index.");
+        File withoutIndex = new File(TestFileUtils.getTempDir(), UUID.randomUUID().toString());
+        WarcUtils.extractRecord(warcFile, recordId, withoutIndex);
+
+        WarcRecordIndex index = new WarcRecordIndex();
+        index.addEntry(recordId, recordOffset, warcFile.length() - recordOffset, null);
+        File withIndex = new File(TestFileUtils.getTempDir(), UUID.randomUUID().toString());
+        WarcUtils.extractRecord(warcFile, recordId, withIndex, index);
+
+        WarcRecordIndex wrongIndex = new WarcRecordIndex();
+        wrongIndex.addEntry(recordId, 0L, recordOffset, null);
+        File withWrongIndex = new File(TestFileUtils.getTempDir(), UUID.randomUUID().toString());
+        WarcUtils.extractRecord(warcFile, recordId, withWrongIndex, wrongIndex);
+
+        String expected = ChecksumUtils.calculateChecksum(withoutIndex, ChecksumUtils.MD5_ALGORITHM).digestString;
+        Assert.assertTrue(withoutIndex.length() > 0);
+        Assert.assertEquals(ChecksumUtils.calculateChecksum(withIndex, ChecksumUtils.MD5_ALGORITHM).digestString, 
+                expected);
+        Assert.assertEquals(ChecksumUtils.calculateChecksum(withWrongIndex, 
+                ChecksumUtils.MD5_ALGORITHM).digestString, expected);
+    }
+}
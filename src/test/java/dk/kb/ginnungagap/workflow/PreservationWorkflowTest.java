@@ -22,6 +22,7 @@ import java.util.UUID;
 
 import dk.kb.ginnungagap.MailDispatcher;
 import org.jaccept.structure.ExtendedTestCase;
+import org.jwat.warc.WarcDigest;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
 import org.testng.Assert;
@@ -39,8 +40,10 @@ import dk.kb.ginnungagap.archive.BitmagPreserver;
 import dk.kb.ginnungagap.config.TestConfiguration;
 import dk.kb.ginnungagap.cumulus.CumulusWrapper;
 import dk.kb.ginnungagap.testutils.TestFileUtils;
+import dk.kb.ginnungagap.transformation.MetadataBuffer;
 import dk.kb.ginnungagap.transformation.MetadataTransformationHandler;
 import dk.kb.ginnungagap.transformation.MetadataTransformer;
+import dk.kb.ginnungagap.transformation.MetadataValidationResult;
 
 public class PreservationWorkflowTest extends ExtendedTestCase {
 
@@ -104,7 +107,7 @@ public class PreservationWorkflowTest extends ExtendedTestCase {
         verify(server).getItems(anyString(), any(CumulusQuery.class));
         verifyNoMoreInteractions(server);
         
-        verify(items, times(2)).getCount();
+        verify(items).getCount();
         verifyNoMoreInteractions(items);
     }
     
@@ -150,6 +153,8 @@ public class PreservationWorkflowTest extends ExtendedTestCase {
         }).when(record).writeFieldMetadata(any(OutputStream.class));
 
         when(transformationHandler.getTransformer(eq(MetadataTransformationHandler.TRANSFORMATION_SCRIPT_FOR_METS))).thenReturn(metsTransformer);
+        when(transformationHandler.validate(any(InputStream.class))).thenReturn(
+                new MetadataValidationResult(Arrays.asList(UUID.randomUUID().toString()), null));
         when(transformationHandler.getTransformer(eq(MetadataTransformationHandler.TRANSFORMATION_SCRIPT_FOR_INTELLECTUEL_ENTITY))).thenReturn(ieTransformer);
 
         PreservationWorkflow workflow = new PreservationWorkflow();
@@ -175,20 +180,23 @@ public class PreservationWorkflowTest extends ExtendedTestCase {
         verify(ieTransformer).transformXmlMetadata(any(InputStream.class), any(OutputStream.class));
         verifyNoMoreInteractions(ieTransformer);
         
-        verify(transformationHandler).getMetadataStandards(any(InputStream.class));
         verify(transformationHandler).getTransformer(eq(MetadataTransformationHandler.TRANSFORMATION_SCRIPT_FOR_METS));
         verify(transformationHandler).getTransformer(eq(MetadataTransformationHandler.TRANSFORMATION_SCRIPT_FOR_INTELLECTUEL_ENTITY));
         verify(transformationHandler, times(2)).validate(any(InputStream.class));
         verifyNoMoreInteractions(transformationHandler);
 
-        verify(preserver).packRecordResource(any(CumulusRecord.class));
-        verify(preserver).packRecordMetadata(any(CumulusRecord.class), any(File.class));
-        verify(preserver).packRepresentationMetadata(any(File.class), anyString(), anyString());
+        verify(preserver).getBlockDigestAlgorithm();
+        verify(preserver).packRecordResource(any(CumulusRecord.class), any(WarcDigest.class));
+        verify(preserver).packRecordMetadata(any(CumulusRecord.class), any(MetadataBuffer.class));
+        verify(preserver).packRepresentationMetadata(any(MetadataBuffer.class), anyString(), anyString());
+        verify(preserver).startRecordPackaging();
+        verify(preserver).finishRecordPackaging();
+        verify(preserver).checkpointRecordPackaging(any(CumulusRecord.class));
         verify(preserver).checkConditions();
         verify(preserver).uploadAll();
         verifyNoMoreInteractions(preserver);
         
-        verify(items, times(2)).getCount();
+        verify(items).getCount();
         verify(items).iterator();
         verifyNoMoreInteractions(items);
         
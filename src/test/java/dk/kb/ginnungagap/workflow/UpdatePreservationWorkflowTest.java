@@ -10,7 +10,6 @@ import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
 import static org.mockito.Mockito.when;
 
-import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -20,6 +19,7 @@ import java.util.UUID;
 
 import dk.kb.ginnungagap.workflow.reporting.WorkflowReport;
 import org.jaccept.structure.ExtendedTestCase;
+import org.jwat.warc.WarcDigest;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
 import org.testng.Assert;
@@ -36,8 +36,10 @@ import dk.kb.ginnungagap.archive.BitmagPreserver;
 import dk.kb.ginnungagap.config.TestConfiguration;
 import dk.kb.ginnungagap.cumulus.CumulusWrapper;
 import dk.kb.ginnungagap.testutils.TestFileUtils;
+import dk.kb.ginnungagap.transformation.MetadataBuffer;
 import dk.kb.ginnungagap.transformation.MetadataTransformationHandler;
 import dk.kb.ginnungagap.transformation.MetadataTransformer;
+import dk.kb.ginnungagap.transformation.MetadataValidationResult;
 import dk.kb.ginnungagap.workflow.steps.UpdatePreservationStep;
 
 public class UpdatePreservationWorkflowTest extends ExtendedTestCase {
@@ -98,6 +100,8 @@ public class UpdatePreservationWorkflowTest extends ExtendedTestCase {
         }).when(record).writeFieldMetadata(any(OutputStream.class));
 
         when(transformationHandler.getTransformer(eq(MetadataTransformationHandler.TRANSFORMATION_SCRIPT_FOR_METS))).thenReturn(metsTransformer);
+        when(transformationHandler.validate(any(InputStream.class))).thenReturn(
+                new MetadataValidationResult(Arrays.asList(UUID.randomUUID().toString()), null));
         when(transformationHandler.getTransformer(eq(MetadataTransformationHandler.TRANSFORMATION_SCRIPT_FOR_INTELLECTUEL_ENTITY))).thenReturn(ieTransformer);
         
         UpdatePreservationWorkflow workflow = new UpdatePreservationWorkflow();
@@ -124,15 +128,17 @@ public class UpdatePreservationWorkflowTest extends ExtendedTestCase {
         verify(ieTransformer).transformXmlMetadata(any(InputStream.class), any(OutputStream.class));
         verifyNoMoreInteractions(ieTransformer);
         
-        verify(transformationHandler).getMetadataStandards(any(InputStream.class));
         verify(transformationHandler).getTransformer(eq(MetadataTransformationHandler.TRANSFORMATION_SCRIPT_FOR_METS));
         verify(transformationHandler).getTransformer(eq(MetadataTransformationHandler.TRANSFORMATION_SCRIPT_FOR_INTELLECTUEL_ENTITY));
         verify(transformationHandler, times(2)).validate(any(InputStream.class));
         verifyNoMoreInteractions(transformationHandler);
 
-        verify(preserver, times(0)).packRecordResource(any(CumulusRecord.class));
-        verify(preserver).packRecordMetadata(any(CumulusRecord.class), any(File.class));
-        verify(preserver).packRepresentationMetadata(any(File.class), anyString(), anyString());
+        verify(preserver, times(0)).packRecordResource(any(CumulusRecord.class), any(WarcDigest.class));
+        verify(preserver).packRecordMetadata(any(CumulusRecord.class), any(MetadataBuffer.class));
+        verify(preserver).packRepresentationMetadata(any(MetadataBuffer.class), anyString(), anyString());
+        verify(preserver).startRecordPackaging();
+        verify(preserver).finishRecordPackaging();
+        verify(preserver).checkpointRecordPackaging(any(CumulusRecord.class));
         verify(preserver).checkConditions();
         verify(preserver).uploadAll();
         verifyNoMoreInteractions(preserver);
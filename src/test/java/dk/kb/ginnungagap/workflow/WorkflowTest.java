@@ -1,9 +1,14 @@
 package dk.kb.ginnungagap.workflow;
 
 import dk.kb.ginnungagap.MailDispatcher;
+import dk.kb.ginnungagap.config.Configuration;
+import dk.kb.ginnungagap.config.ScheduleConfiguration;
 import dk.kb.ginnungagap.config.TestConfiguration;
+import dk.kb.ginnungagap.config.WorkflowConfiguration;
 import dk.kb.ginnungagap.testutils.TestFileUtils;
 import dk.kb.ginnungagap.workflow.reporting.WorkflowReport;
+import dk.kb.ginnungagap.workflow.schedule.CatalogLocks;
+import dk.kb.ginnungagap.workflow.schedule.WorkflowSchedule;
 import dk.kb.ginnungagap.workflow.schedule.WorkflowState;
 import dk.kb.ginnungagap.workflow.schedule.WorkflowStep;
 import org.jaccept.structure.ExtendedTestCase;
@@ -16,10 +21,20 @@ import org.testng.annotations.BeforeClass;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
+import java.time.LocalTime;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
 import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.mockito.Matchers.any;
 import static org.mockito.Mockito.mock;
@@ -190,6 +205,7 @@ public class WorkflowTest extends ExtendedTestCase {
         Mockito.verify(step).run(Mockito.any(WorkflowReport.class));
         Mockito.verify(step, Mockito.times(3)).getName();
         Mockito.verify(step).runForCatalog(Mockito.eq(null));
+        Mockito.verify(step).getCatalogName();
         Mockito.verifyNoMoreInteractions(step);
     }
 
@@ -301,6 +317,414 @@ public class WorkflowTest extends ExtendedTestCase {
         Mockito.verifyZeroInteractions(report);
     }
     
+    @Test
+    public void testPerformStepWithCatalogLock() throws Exception {
+        addDescription("Test that a step for a catalog waits while another workflow holds the lock of the catalog.");
+        Workflow workflow = new Workflow() {
+            @Override
+            Collection<WorkflowStep> createSteps() {
+                throw new RuntimeException("FAIL");
+            }
+            
+            @Override
+            public String getName() {
+                return "name";
+            }
+            
+            @Override
+            Long getInterval() {
+                return -1L;
+            }
+            
+            @Override
+            String getDescription() {
+                throw new RuntimeException("FAIL");
+            }
+        };
+        String catalogName = UUID.randomUUID().toString();
+        CatalogLocks catalogLocks = new CatalogLocks();
+        workflow.catalogLocks = catalogLocks;
+        WorkflowReport report = mock(WorkflowReport.class);
+        WorkflowStep step = Mockito.mock(WorkflowStep.class);
+        Mockito.when(step.getCatalogName()).thenReturn(catalogName);
+        Mockito.doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                Assert.assertTrue(catalogLocks.isLocked(catalogName));
+                return null;
+            }
+        }).when(step).run(any(WorkflowReport.class));
+
+        catalogLocks.lock(catalogName);
+        Thread thread = new Thread(() -> workflow.performStep(step, report));
+        thread.start();
+        Thread.sleep(200);
+        Mockito.verify(step, Mockito.never()).run(any(WorkflowReport.class));
+
+        catalogLocks.unlock(catalogName);
+        thread.join(5000);
+        Assert.assertFalse(thread.isAlive());
+        Mockito.verify(step).run(any(WorkflowReport.class));
+        Assert.assertFalse(catalogLocks.isLocked(catalogName));
+    }
+
+    @Test
+    public void testPerformStepWithoutCatalogLock() {
+        addDescription("Test that a workflow, which does not lock the catalogs, runs while the catalog is locked.");
+        Workflow workflow = new Workflow() {
+            @Override
+            Collection<WorkflowStep> createSteps() {
+                throw new RuntimeException("FAIL");
+            }
+            
+            @Override
+            public String getName() {
+                return "name";
+            }
+            
+            @Override
+            Long getInterval() {
+                return -1L;
+            }
+            
+            @Override
+            String getDescription() {
+                throw new RuntimeException("FAIL");
+            }
+            
+            @Override
+            protected boolean locksCatalogs() {
+                return false;
+            }
+        };
+        String catalogName = UUID.randomUUID().toString();
+        CatalogLocks catalogLocks = new CatalogLocks();
+        workflow.catalogLocks = catalogLocks;
+        WorkflowReport report = mock(WorkflowReport.class);
+        WorkflowStep step = Mockito.mock(WorkflowStep.class);
+        Mockito.when(step.getCatalogName()).thenReturn(catalogName);
+
+        Assert.assertTrue(catalogLocks.tryLock(catalogName));
+        try {
+            workflow.performStep(step, report);
+        } finally {
+            catalogLocks.unlock(catalogName);
+        }
+        Mockito.verify(step).run(any(WorkflowReport.class));
+    }
+
+    @Test
+    public void testRunWorkflowStepsConcurrently() throws Exception {
+        addDescription("Test that the steps for different catalogs run concurrently, while the steps for the same "
+                + "catalog and the steps for all catalogs keep their order.");
+        Workflow workflow = new Workflow() {
+            @Override
+            Collection<WorkflowStep> createSteps() {
+                throw new RuntimeException("FAIL");
+            }
+            
+            @Override
+            public String getName() {
+                return "name";
+            }
+            
+            @Override
+            Long getInterval() {
+                return -1L;
+            }
+            
+            @Override
+            String getDescription() {
+                throw new RuntimeException("FAIL");
+            }
+        };
+        Configuration workflowConf = mock(Configuration.class);
+        Mockito.when(workflowConf.getWorkflowConf()).thenReturn(new WorkflowConfiguration(-1, 
+                conf.getWorkflowConf().getRetainDir(), 1, null, 1, 0, 2));
+        workflow.conf = workflowConf;
+        List<String> performedSteps = Collections.synchronizedList(new ArrayList<String>());
+        CountDownLatch bothCatalogsStarted = new CountDownLatch(2);
+
+        workflow.steps.add(createStep("A", "A1", performedSteps, bothCatalogsStarted));
+        workflow.steps.add(createStep("A", "A2", performedSteps, null));
+        workflow.steps.add(createStep("B", "B1", performedSteps, bothCatalogsStarted));
+        workflow.steps.add(createStep("B", "B2", performedSteps, null));
+        workflow.steps.add(createStep(null, "Final", performedSteps, null));
+
+        WorkflowReport report = mock(WorkflowReport.class);
+        workflow.lastRunTime = 0L;
+        workflow.state = WorkflowState.RUNNING;
+        workflow.runWorkflowSteps(report);
+
+        Mockito.verifyZeroInteractions(report);
+        Assert.assertEquals(performedSteps.size(), 5);
+        Assert.assertTrue(performedSteps.indexOf("A1") < performedSteps.indexOf("A2"));
+        Assert.assertTrue(performedSteps.indexOf("B1") < performedSteps.indexOf("B2"));
+        Assert.assertEquals(performedSteps.get(4), "Final");
+        Assert.assertTrue(workflow.getLastRunTime() >= 0L);
+        for(WorkflowStep step : workflow.getSteps()) {
+            Assert.assertEquals(step.getStatus(), "Finished");
+        }
+    }
+
+    /**
+     * Creates a step, which records when it is performed.
+     * @param catalogName The catalog for the step.
+     * @param name The name of the step.
+     * @param performedSteps The list of the names of the performed steps.
+     * @param started The latch, which the step counts down and waits for, or null.
+     * @return The step.
+     */
+    protected WorkflowStep createStep(String catalogName, String name, List<String> performedSteps, 
+            CountDownLatch started) {
+        return new WorkflowStep(catalogName) {
+            @Override
+            public String getName() {
+                return name;
+            }
+
+            @Override
+            protected void performStep(WorkflowReport report) throws Exception {
+                if(started != null) {
+                    started.countDown();
+                    if(!started.await(5, TimeUnit.SECONDS)) {
+                        throw new IllegalStateException("The catalogs were not run concurrently.");
+                    }
+                }
+                performedSteps.add(name);
+            }
+        };
+    }
+
+    @Test
+    public void testRunOutsideTimeWindow() {
+        addDescription("Test that a scheduled run outside the time window is postponed, but a manual run is not.");
+        Workflow workflow = createScheduledWorkflow();
+        MailDispatcher mailer = mock(MailDispatcher.class);
+        workflow.mailer = mailer;
+        Date now = new Date();
+        LocalTime windowStart = LocalTime.now().plusHours(2);
+        workflow.schedule = new WorkflowSchedule(new ScheduleConfiguration(null, null, windowStart, 
+                windowStart.plusHours(1), ScheduleConfiguration.NO_THRESHOLD, 
+                ScheduleConfiguration.DEFAULT_THRESHOLD_CHECK_INTERVAL), TimeZone.getDefault());
+        
+        addStep("Run the workflow, when it is scheduled outside the time window", "Postponed to the time window");
+        workflow.state = WorkflowState.WAITING;
+        workflow.nextRun = new Date(now.getTime() - 1000L);
+        workflow.run();
+        Assert.assertEquals(workflow.getState(), WorkflowState.WAITING);
+        Assert.assertTrue(workflow.nextRun.after(now));
+        Assert.assertTrue(workflow.schedule.isWithinTimeWindow(workflow.nextRun));
+        Mockito.verifyZeroInteractions(mailer);
+        
+        addStep("Start the workflow manually", "Runs at once");
+        workflow.startManually(null);
+        workflow.run();
+        Assert.assertEquals(workflow.getState(), WorkflowState.SUCCEEDED);
+        Assert.assertFalse(workflow.startedManually);
+        Mockito.verify(mailer).sendReport(any(WorkflowReport.class));
+        Mockito.verifyNoMoreInteractions(mailer);
+    }
+    
+    @Test
+    public void testRunAtReadyThreshold() {
+        addDescription("Test that the workflow is run, when the threshold of ready records is reached.");
+        AtomicInteger readyRecords = new AtomicInteger(5);
+        Workflow workflow = new Workflow() {
+            @Override
+            Collection<WorkflowStep> createSteps() {
+                return new ArrayList<>();
+            }
+            
+            @Override
+            public String getName() {
+                return "name";
+            }
+            
+            @Override
+            Long getInterval() {
+                return -1L;
+            }
+            
+            @Override
+            String getDescription() {
+                throw new RuntimeException("FAIL");
+            }
+            
+            @Override
+            protected boolean isReadyThresholdReached(int threshold) {
+                return readyRecords.get() >= threshold;
+            }
+        };
+        MailDispatcher mailer = mock(MailDispatcher.class);
+        workflow.mailer = mailer;
+        workflow.schedule = new WorkflowSchedule(new ScheduleConfiguration(null, null, null, null, 10, 60L), 
+                TimeZone.getDefault());
+        
+        addStep("Check the threshold, when it is not reached", "Not run, and next check in a minute");
+        workflow.run();
+        Assert.assertEquals(workflow.getState(), WorkflowState.NOT_RUNNING);
+        Assert.assertTrue(workflow.nextThresholdCheck > System.currentTimeMillis() + 50000L);
+        Assert.assertTrue(workflow.getMillisUntilNextCheck() <= 60000L);
+        
+        addStep("Run again before the next check", "Nothing happens");
+        readyRecords.set(10);
+        workflow.run();
+        Assert.assertEquals(workflow.getState(), WorkflowState.NOT_RUNNING);
+        
+        addStep("Run when the check is due and the threshold is reached", "The workflow runs");
+        workflow.nextThresholdCheck = 0L;
+        workflow.run();
+        Assert.assertEquals(workflow.getState(), WorkflowState.SUCCEEDED);
+        Mockito.verify(mailer).sendReport(any(WorkflowReport.class));
+        Mockito.verifyNoMoreInteractions(mailer);
+    }
+    
+    @Test
+    public void testReadyForNextRunWithCron() {
+        addDescription("Test that the next run is given by the cron expression of the schedule.");
+        Workflow workflow = createScheduledWorkflow();
+        Map<String, String> catalogCrons = new HashMap<String, String>();
+        catalogCrons.put("Audio", "0 0 0 1 1 *");
+        workflow.schedule = new WorkflowSchedule(new ScheduleConfiguration(null, catalogCrons, null, null, 
+                ScheduleConfiguration.NO_THRESHOLD, ScheduleConfiguration.DEFAULT_THRESHOLD_CHECK_INTERVAL), 
+                TimeZone.getDefault());
+        
+        workflow.readyForNextRun();
+        Assert.assertEquals(workflow.getState(), WorkflowState.WAITING);
+        Assert.assertTrue(workflow.nextRun.after(new Date()));
+        Assert.assertEquals(workflow.catalogForNextRun, "Audio");
+    }
+    
+    @Test
+    public void testWaitForNextCheckWakesUpWhenStartedManually() throws Exception {
+        addDescription("Test that the scheduler waiting on the workflow is woken up, when it is started manually.");
+        Workflow workflow = createScheduledWorkflow();
+        Assert.assertEquals(workflow.getMillisUntilNextCheck(), Workflow.MAX_WAIT_FOR_NEXT_CHECK);
+        
+        Thread thread = new Thread(() -> {
+            try {
+                workflow.waitForNextCheck();
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        thread.start();
+        Thread.sleep(100);
+        Assert.assertTrue(thread.isAlive());
+        
+        workflow.startManually(null);
+        thread.join(5000);
+        Assert.assertFalse(thread.isAlive());
+        Assert.assertTrue(workflow.getMillisUntilNextCheck() <= 0L);
+    }
+    
+    @Test
+    public void testWaitForNextCheckWhenStopped() throws Exception {
+        addDescription("Test that the scheduler waiting on the workflow is released, when the workflow is stopped.");
+        Workflow workflow = createScheduledWorkflow();
+        AtomicBoolean released = new AtomicBoolean(false);
+        
+        Thread thread = new Thread(() -> {
+            try {
+                workflow.waitForNextCheck();
+            } catch (InterruptedException e) {
+                released.set(true);
+            }
+        });
+        thread.start();
+        Thread.sleep(100);
+        Assert.assertTrue(thread.isAlive());
+        
+        workflow.stop();
+        thread.join(5000);
+        Assert.assertFalse(thread.isAlive());
+        Assert.assertTrue(released.get());
+        
+        addStep("Wait for the next check of the stopped workflow", "Fails at once");
+        try {
+            workflow.waitForNextCheck();
+            Assert.fail("Must not wait for a stopped workflow");
+        } catch (InterruptedException e) {
+            // expected
+        }
+    }
+    
+    @Test
+    public void testStopRequestedWhenTimeWindowCloses() {
+        addDescription("Test that an automatic run must stop, when it is outside the time window of the workflow, "
+                + "whereas a manual run must only stop, when the workflow is stopped.");
+        Workflow workflow = createScheduledWorkflow();
+        Assert.assertFalse(workflow.isStopRequested());
+        
+        LocalTime now = LocalTime.now();
+        workflow.schedule = new WorkflowSchedule(new ScheduleConfiguration(null, null, now.plusHours(1), 
+                now.plusHours(2), ScheduleConfiguration.NO_THRESHOLD, 
+                ScheduleConfiguration.DEFAULT_THRESHOLD_CHECK_INTERVAL), TimeZone.getDefault());
+        Assert.assertTrue(workflow.isStopRequested());
+        
+        addStep("Start the workflow manually", "The manual run is not stopped by the time window");
+        workflow.startManually(null);
+        Assert.assertFalse(workflow.isStopRequested());
+        
+        addStep("Stop the workflow", "The manual run must also stop");
+        workflow.stop();
+        Assert.assertTrue(workflow.isStopRequested());
+    }
+    
+    @Test
+    public void testPerformStepSetsStopCondition() {
+        addDescription("Test that the step performed by the workflow is stopped, when the workflow is stopped.");
+        Workflow workflow = createScheduledWorkflow();
+        AtomicInteger stopRequested = new AtomicInteger();
+        WorkflowStep step = new WorkflowStep(null) {
+            @Override
+            public String getName() {
+                return "step";
+            }
+            
+            @Override
+            protected void performStep(WorkflowReport report) throws Exception {
+                if(isStopRequested()) {
+                    stopRequested.incrementAndGet();
+                }
+            }
+        };
+        workflow.performStep(step, mock(WorkflowReport.class));
+        Assert.assertEquals(stopRequested.get(), 0);
+        
+        workflow.stop();
+        workflow.performStep(step, mock(WorkflowReport.class));
+        Assert.assertEquals(stopRequested.get(), 1);
+    }
+    
+    /**
+     * @return A workflow without steps, which only runs manually or by its schedule.
+     */
+    protected Workflow createScheduledWorkflow() {
+        return new Workflow() {
+            @Override
+            Collection<WorkflowStep> createSteps() {
+                return new ArrayList<>();
+            }
+            
+            @Override
+            public String getName() {
+                return "name";
+            }
+            
+            @Override
+            Long getInterval() {
+                return -1L;
+            }
+            
+            @Override
+            String getDescription() {
+                throw new RuntimeException("FAIL");
+            }
+        };
+    }
+
     @Test
     public void testGetNextRunDate() {
         addDescription("Test the getNextRunDate method");
@@ -0,0 +1,136 @@
+package dk.kb.ginnungagap.workflow.pipeline;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jaccept.structure.ExtendedTestCase;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import dk.kb.ginnungagap.exception.ArgumentCheck;
+
+public class PipelineStageTest extends ExtendedTestCase {
+
+    @Test(expectedExceptions = ArgumentCheck.class)
+    public void testNoThreads() {
+        addDescription("Test that a stage cannot be created without any threads.");
+        new PipelineStage<String>("test", 0, 1, item -> {}, (item, e) -> {});
+    }
+
+    @Test
+    public void testHandlingItems() throws Exception {
+        addDescription("Test that all items are handled, and that the failures are delivered to the failure handler.");
+        Set<Integer> handled = Collections.synchronizedSet(new HashSet<Integer>());
+        Set<Integer> failed = Collections.synchronizedSet(new HashSet<Integer>());
+        PipelineStage<Integer> stage = new PipelineStage<>("test", 3, 2, item -> {
+            if(item % 3 == 0) {
+                throw new IllegalStateException("Failure for " + item);
+            }
+            handled.add(item);
+        }, (item, e) -> failed.add(item));
+
+        stage.start();
+        for(int i = 1; i <= 30; i++) {
+            stage.submit(i);
+        }
+        stage.finish();
+
+        Assert.assertEquals(handled.size(), 20);
+        Assert.assertEquals(failed.size(), 10);
+        Assert.assertEquals(stage.getHandled(), 20L);
+        Assert.assertEquals(stage.getFailed(), 10L);
+        Assert.assertEquals(stage.getQueueDepth(), 0);
+        Assert.assertTrue(stage.getMaxQueueDepth() <= 2);
+        Assert.assertTrue(stage.toString().contains("test"));
+    }
+
+    @Test
+    public void testBackpressure() throws Exception {
+        addDescription("Test that submitting items blocks, when the workers cannot keep up.");
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger submitted = new AtomicInteger();
+        PipelineStage<Integer> stage = new PipelineStage<>("test", 1, 2, item -> release.await(), (item, e) -> {});
+        stage.start();
+
+        Thread producer = new Thread(() -> {
+            try {
+                for(int i = 0; i < 10; i++) {
+                    stage.submit(i);
+                    submitted.incrementAndGet();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        producer.start();
+        producer.join(500);
+
+        addStep("Block the worker", "At most one item in the worker and two in the queue");
+        Assert.assertTrue(producer.isAlive());
+        Assert.assertTrue(submitted.get() <= 3, "Submitted: " + submitted.get());
+        Assert.assertEquals(stage.getMaxQueueDepth(), 2);
+
+        addStep("Release the worker", "All items are handled");
+        release.countDown();
+        producer.join(TimeUnit.SECONDS.toMillis(10));
+        Assert.assertFalse(producer.isAlive());
+        stage.finish();
+        Assert.assertEquals(stage.getHandled(), 10L);
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void testSubmitAfterFinish() throws Exception {
+        addDescription("Test that items cannot be submitted after the stage has been finished.");
+        PipelineStage<Integer> stage = new PipelineStage<>("test", 1, 1, item -> {}, (item, e) -> {});
+        stage.start();
+        stage.finish();
+        stage.submit(1);
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class, timeOut = 10000)
+    public void testSubmitWhenWorkersHaveStopped() throws Exception {
+        addDescription("Test that submitting items fails instead of blocking, when all the workers have stopped.");
+        PipelineStage<Integer> stage = new PipelineStage<>("test", 1, 1, item -> {
+            throw new IllegalStateException("Failure for " + item);
+        }, (item, e) -> {
+            throw new IllegalStateException("Failure handler failed for " + item);
+        });
+        stage.start();
+        for(int i = 0; i < 10; i++) {
+            stage.submit(i);
+        }
+    }
+
+    @Test(timeOut = 10000)
+    public void testAbortReleasesBlockedSubmit() throws Exception {
+        addDescription("Test that a submit, which is blocked by a full queue, fails when the stage is aborted.");
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger rejected = new AtomicInteger();
+        PipelineStage<Integer> stage = new PipelineStage<>("test", 1, 1, item -> release.await(), (item, e) -> {});
+        stage.start();
+
+        Thread producer = new Thread(() -> {
+            try {
+                for(int i = 0; i < 10; i++) {
+                    stage.submit(i);
+                }
+            } catch (IllegalStateException e) {
+                rejected.incrementAndGet();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        producer.start();
+        producer.join(500);
+        Assert.assertTrue(producer.isAlive());
+
+        stage.abort();
+        producer.join(TimeUnit.SECONDS.toMillis(5));
+        Assert.assertFalse(producer.isAlive());
+        Assert.assertEquals(rejected.get(), 1);
+    }
+}
@@ -0,0 +1,59 @@
+package dk.kb.ginnungagap.workflow.schedule;
+
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.jaccept.structure.ExtendedTestCase;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import dk.kb.ginnungagap.exception.ArgumentCheck;
+
+public class CatalogLocksTest extends ExtendedTestCase {
+
+    @Test
+    public void testLockAndUnlock() {
+        addDescription("Test locking and unlocking a catalog, where the catalog names are case insensitive.");
+        CatalogLocks catalogLocks = new CatalogLocks();
+        String catalogName = "Catalog-" + UUID.randomUUID().toString();
+
+        Assert.assertFalse(catalogLocks.isLocked(catalogName));
+        catalogLocks.lock(catalogName);
+        Assert.assertTrue(catalogLocks.isLocked(catalogName));
+        Assert.assertTrue(catalogLocks.isLocked(catalogName.toUpperCase()));
+        Assert.assertFalse(catalogLocks.isLocked(UUID.randomUUID().toString()));
+
+        catalogLocks.unlock(catalogName.toLowerCase());
+        Assert.assertFalse(catalogLocks.isLocked(catalogName));
+    }
+
+    @Test
+    public void testTryLockFromOtherThread() throws Exception {
+        addDescription("Test that another thread cannot acquire the lock of a locked catalog.");
+        CatalogLocks catalogLocks = new CatalogLocks();
+        String catalogName = UUID.randomUUID().toString();
+        AtomicBoolean acquired = new AtomicBoolean(true);
+
+        catalogLocks.lock(catalogName);
+        Thread thread = new Thread(() -> acquired.set(catalogLocks.tryLock(catalogName)));
+        thread.start();
+        thread.join(5000);
+        Assert.assertFalse(acquired.get());
+
+        catalogLocks.unlock(catalogName);
+        thread = new Thread(() -> {
+            acquired.set(catalogLocks.tryLock(catalogName));
+            catalogLocks.unlock(catalogName);
+        });
+        thread.start();
+        thread.join(5000);
+        Assert.assertTrue(acquired.get());
+        Assert.assertFalse(catalogLocks.isLocked(catalogName));
+    }
+
+    @Test(expectedExceptions = ArgumentCheck.class)
+    public void testLockWithoutCatalogName() {
+        addDescription("Test that the catalog name is required.");
+        new CatalogLocks().lock(null);
+    }
+}
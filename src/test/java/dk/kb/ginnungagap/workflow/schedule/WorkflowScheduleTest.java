@@ -0,0 +1,117 @@
+package dk.kb.ginnungagap.workflow.schedule;
+
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TimeZone;
+
+import org.jaccept.structure.ExtendedTestCase;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import dk.kb.ginnungagap.config.ScheduleConfiguration;
+import dk.kb.ginnungagap.exception.ArgumentCheck;
+import dk.kb.ginnungagap.workflow.schedule.WorkflowSchedule.ScheduledRun;
+
+public class WorkflowScheduleTest extends ExtendedTestCase {
+
+    TimeZone timeZone = TimeZone.getTimeZone("Europe/Copenhagen");
+
+    @Test
+    public void testNextRunFromCron() {
+        addDescription("Test the next run from the cron expression for all catalogs.");
+        WorkflowSchedule schedule = new WorkflowSchedule(new ScheduleConfiguration("0 0 20 * * *", null, null, null, 
+                ScheduleConfiguration.NO_THRESHOLD, ScheduleConfiguration.DEFAULT_THRESHOLD_CHECK_INTERVAL), 
+                timeZone);
+
+        ScheduledRun run = schedule.getNextRun(toDate(2018, 10, 1, 12, 0));
+        Assert.assertEquals(run.getDate(), toDate(2018, 10, 1, 20, 0));
+        Assert.assertNull(run.getCatalogName());
+
+        run = schedule.getNextRun(toDate(2018, 10, 1, 21, 0));
+        Assert.assertEquals(run.getDate(), toDate(2018, 10, 2, 20, 0));
+    }
+
+    @Test
+    public void testNextRunForCatalog() {
+        addDescription("Test that the earliest of the cron expressions gives the next run and its catalog.");
+        Map<String, String> catalogCrons = new HashMap<String, String>();
+        catalogCrons.put("Audio", "0 30 18 * * *");
+        WorkflowSchedule schedule = new WorkflowSchedule(new ScheduleConfiguration("0 0 20 * * *", catalogCrons, 
+                null, null, ScheduleConfiguration.NO_THRESHOLD, 
+                ScheduleConfiguration.DEFAULT_THRESHOLD_CHECK_INTERVAL), timeZone);
+
+        ScheduledRun run = schedule.getNextRun(toDate(2018, 10, 1, 12, 0));
+        Assert.assertEquals(run.getDate(), toDate(2018, 10, 1, 18, 30));
+        Assert.assertEquals(run.getCatalogName(), "Audio");
+
+        run = schedule.getNextRun(toDate(2018, 10, 1, 19, 0));
+        Assert.assertEquals(run.getDate(), toDate(2018, 10, 1, 20, 0));
+        Assert.assertNull(run.getCatalogName());
+    }
+
+    @Test
+    public void testNoCron() {
+        addDescription("Test that a schedule without cron expressions has no next run, and no time window.");
+        WorkflowSchedule schedule = new WorkflowSchedule(new ScheduleConfiguration(null, null, null, null, 100, 60L), 
+                timeZone);
+        Assert.assertNull(schedule.getNextRun(new Date()));
+        Assert.assertTrue(schedule.isWithinTimeWindow(new Date()));
+        Assert.assertEquals(schedule.getReadyThreshold(), 100);
+        Assert.assertEquals(schedule.getThresholdCheckInterval(), 60000L);
+    }
+
+    @Test
+    public void testTimeWindowAroundMidnight() {
+        addDescription("Test a time window, which wraps around midnight.");
+        WorkflowSchedule schedule = new WorkflowSchedule(new ScheduleConfiguration(null, null, LocalTime.of(20, 0), 
+                LocalTime.of(6, 0), ScheduleConfiguration.NO_THRESHOLD, 
+                ScheduleConfiguration.DEFAULT_THRESHOLD_CHECK_INTERVAL), timeZone);
+
+        Assert.assertTrue(schedule.isWithinTimeWindow(toDate(2018, 10, 1, 20, 0)));
+        Assert.assertTrue(schedule.isWithinTimeWindow(toDate(2018, 10, 1, 23, 59)));
+        Assert.assertTrue(schedule.isWithinTimeWindow(toDate(2018, 10, 2, 5, 59)));
+        Assert.assertFalse(schedule.isWithinTimeWindow(toDate(2018, 10, 2, 6, 0)));
+        Assert.assertFalse(schedule.isWithinTimeWindow(toDate(2018, 10, 2, 12, 0)));
+
+        Assert.assertEquals(schedule.getNextTimeWindowStart(toDate(2018, 10, 2, 12, 0)), 
+                toDate(2018, 10, 2, 20, 0));
+        Assert.assertEquals(schedule.getNextTimeWindowStart(toDate(2018, 10, 2, 1, 0)), 
+                toDate(2018, 10, 2, 1, 0));
+    }
+
+    @Test
+    public void testTimeWindowWithinDay() {
+        addDescription("Test a time window within a single day.");
+        WorkflowSchedule schedule = new WorkflowSchedule(new ScheduleConfiguration(null, null, LocalTime.of(1, 0), 
+                LocalTime.of(5, 0), ScheduleConfiguration.NO_THRESHOLD, 
+                ScheduleConfiguration.DEFAULT_THRESHOLD_CHECK_INTERVAL), timeZone);
+
+        Assert.assertFalse(schedule.isWithinTimeWindow(toDate(2018, 10, 1, 0, 30)));
+        Assert.assertTrue(schedule.isWithinTimeWindow(toDate(2018, 10, 1, 3, 0)));
+        Assert.assertFalse(schedule.isWithinTimeWindow(toDate(2018, 10, 1, 5, 0)));
+
+        Assert.assertEquals(schedule.getNextTimeWindowStart(toDate(2018, 10, 1, 0, 30)), 
+                toDate(2018, 10, 1, 1, 0));
+        Assert.assertEquals(schedule.getNextTimeWindowStart(toDate(2018, 10, 1, 6, 0)), 
+                toDate(2018, 10, 2, 1, 0));
+    }
+
+    @Test(expectedExceptions = ArgumentCheck.class)
+    public void testInvalidCron() {
+        addDescription("Test that an invalid cron expression is rejected.");
+        new ScheduleConfiguration("every night", null, null, null, ScheduleConfiguration.NO_THRESHOLD, 
+                ScheduleConfiguration.DEFAULT_THRESHOLD_CHECK_INTERVAL);
+    }
+
+    /**
+     * @return The date for the local time in the time zone of the test.
+     */
+    protected Date toDate(int year, int month, int day, int hour, int minute) {
+        return Date.from(LocalDateTime.of(year, month, day, hour, minute).atZone(ZoneId.of(timeZone.getID()))
+                .toInstant());
+    }
+}
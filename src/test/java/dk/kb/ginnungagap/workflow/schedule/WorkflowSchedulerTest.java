@@ -3,20 +3,34 @@ package dk.kb.ginnungagap.workflow.schedule;
 import dk.kb.ginnungagap.workflow.*;
 import org.jaccept.structure.ExtendedTestCase;
 import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.testng.Assert;
 import org.testng.annotations.Test;
 
 import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class WorkflowSchedulerTest extends ExtendedTestCase {
 
     @Test
-    public void testScheduler() {
+    public void testScheduler() throws Exception {
         WorkflowScheduler scheduler = new WorkflowScheduler();
         
         PreservationWorkflow preservationWorkflow = Mockito.mock(PreservationWorkflow.class);
         UpdatePreservationWorkflow updateWorkflow = Mockito.mock(UpdatePreservationWorkflow.class);
         ValidationWorkflow validationWorkflow = Mockito.mock(ValidationWorkflow.class);
         ImportWorkflow importWorkflow = Mockito.mock(ImportWorkflow.class);
+        for(Workflow workflow : Arrays.asList(preservationWorkflow, updateWorkflow, validationWorkflow, 
+                importWorkflow)) {
+            WaitForNextCheck waitForNextCheck = new WaitForNextCheck(0);
+            Mockito.doAnswer(waitForNextCheck).when(workflow).waitForNextCheck();
+            Mockito.doAnswer(waitForNextCheck.stopAnswer()).when(workflow).stop();
+        }
 
         scheduler.importWorkflow = importWorkflow;
         scheduler.preservationWorkflow = preservationWorkflow;
@@ -24,21 +38,134 @@ public class WorkflowSchedulerTest extends ExtendedTestCase {
         scheduler.validationWorkflow = validationWorkflow;
 
         scheduler.scheduleWorkflows();
+        Assert.assertEquals(((ThreadPoolExecutor) scheduler.executorService).getCorePoolSize(), 
+                WorkflowScheduler.NUMBER_OF_WORKFLOWS, "Each workflow must be able to run in its own thread");
         
-        Mockito.verifyZeroInteractions(preservationWorkflow);
-        Mockito.verifyZeroInteractions(updateWorkflow);
-        Mockito.verifyZeroInteractions(validationWorkflow);
-        Mockito.verifyZeroInteractions(importWorkflow);
+        Mockito.verify(preservationWorkflow, Mockito.timeout(5000)).waitForNextCheck();
+        Mockito.verify(updateWorkflow, Mockito.timeout(5000)).waitForNextCheck();
+        Mockito.verify(validationWorkflow, Mockito.timeout(5000)).waitForNextCheck();
+        Mockito.verify(importWorkflow, Mockito.timeout(5000)).waitForNextCheck();
         
         scheduler.shutDown();
+        Assert.assertTrue(scheduler.executorService.isTerminated());
         
-        Mockito.verify(preservationWorkflow).cancel();
+        Mockito.verify(preservationWorkflow).stop();
+        Mockito.verify(updateWorkflow).stop();
+        Mockito.verify(validationWorkflow).stop();
+        Mockito.verify(importWorkflow).stop();
         Mockito.verifyNoMoreInteractions(preservationWorkflow);
-        Mockito.verify(updateWorkflow).cancel();
         Mockito.verifyNoMoreInteractions(updateWorkflow);
-        Mockito.verify(validationWorkflow).cancel();
         Mockito.verifyNoMoreInteractions(validationWorkflow);
-        Mockito.verify(importWorkflow).cancel();
         Mockito.verifyNoMoreInteractions(importWorkflow);        
     }
+    
+    @Test
+    public void testRunWorkflowWhenChecked() throws Exception {
+        addDescription("Test that the scheduler runs the workflow, when it is done waiting for the next check.");
+        WorkflowScheduler scheduler = new WorkflowScheduler();
+        PreservationWorkflow workflow = Mockito.mock(PreservationWorkflow.class);
+        Mockito.doAnswer(new WaitForNextCheck(2)).when(workflow).waitForNextCheck();
+        
+        Thread thread = new Thread(() -> scheduler.runWorkflow(workflow));
+        thread.start();
+        Mockito.verify(workflow, Mockito.timeout(5000).times(3)).waitForNextCheck();
+        thread.interrupt();
+        thread.join(5000);
+        Assert.assertFalse(thread.isAlive());
+        
+        Mockito.verify(workflow, Mockito.times(2)).run();
+        Mockito.verifyNoMoreInteractions(workflow);
+    }
+    
+    @Test(timeOut = 20000)
+    public void testShutDownWaitsForRunningWorkflow() throws Exception {
+        addDescription("Test that shutting down the scheduler lets a running workflow finish without interrupting "
+                + "it, and then stops scheduling the workflow.");
+        WorkflowScheduler scheduler = new WorkflowScheduler();
+        PreservationWorkflow preservationWorkflow = Mockito.mock(PreservationWorkflow.class);
+        UpdatePreservationWorkflow updateWorkflow = Mockito.mock(UpdatePreservationWorkflow.class);
+        ValidationWorkflow validationWorkflow = Mockito.mock(ValidationWorkflow.class);
+        ImportWorkflow importWorkflow = Mockito.mock(ImportWorkflow.class);
+        for(Workflow workflow : Arrays.asList(preservationWorkflow, updateWorkflow, validationWorkflow, 
+                importWorkflow)) {
+            WaitForNextCheck waitForNextCheck = new WaitForNextCheck(workflow == preservationWorkflow ? 1 : 0);
+            Mockito.doAnswer(waitForNextCheck).when(workflow).waitForNextCheck();
+            Mockito.doAnswer(waitForNextCheck.stopAnswer()).when(workflow).stop();
+        }
+        CountDownLatch running = new CountDownLatch(1);
+        CountDownLatch finish = new CountDownLatch(1);
+        AtomicBoolean interrupted = new AtomicBoolean(false);
+        Mockito.doAnswer(invocation -> {
+            running.countDown();
+            try {
+                finish.await();
+            } catch (InterruptedException e) {
+                interrupted.set(true);
+            }
+            return null;
+        }).when(preservationWorkflow).run();
+        
+        scheduler.importWorkflow = importWorkflow;
+        scheduler.preservationWorkflow = preservationWorkflow;
+        scheduler.updateWorkflow = updateWorkflow;
+        scheduler.validationWorkflow = validationWorkflow;
+        scheduler.scheduleWorkflows();
+        Assert.assertTrue(running.await(5000, TimeUnit.MILLISECONDS));
+        
+        addStep("Shut down the scheduler while the preservation workflow is running", 
+                "Waits for the workflow to finish");
+        Thread shutdown = new Thread(() -> scheduler.shutDown());
+        shutdown.start();
+        Mockito.verify(importWorkflow, Mockito.timeout(5000)).stop();
+        Thread.sleep(100);
+        Assert.assertTrue(shutdown.isAlive());
+        Assert.assertFalse(scheduler.executorService.isTerminated());
+        
+        addStep("Let the workflow finish", "The scheduler terminates without having interrupted the workflow");
+        finish.countDown();
+        shutdown.join(5000);
+        Assert.assertFalse(shutdown.isAlive());
+        Assert.assertTrue(scheduler.executorService.isTerminated());
+        Assert.assertFalse(interrupted.get());
+        Mockito.verify(preservationWorkflow).run();
+        Mockito.verify(preservationWorkflow, Mockito.times(2)).waitForNextCheck();
+    }
+    
+    /**
+     * Answer for waiting for the next check of a workflow, which returns at once for a given number of checks, 
+     * and then waits until the workflow is stopped or the thread is interrupted.
+     */
+    protected static class WaitForNextCheck implements Answer<Void> {
+        /** The number of checks, which return at once.*/
+        protected final AtomicInteger checks;
+        /** Released when the workflow is stopped.*/
+        protected final CountDownLatch stopped = new CountDownLatch(1);
+        
+        /**
+         * Constructor.
+         * @param checks The number of checks, which return at once.
+         */
+        protected WaitForNextCheck(int checks) {
+            this.checks = new AtomicInteger(checks);
+        }
+        
+        @Override
+        public Void answer(InvocationOnMock invocation) throws Throwable {
+            if(checks.getAndDecrement() <= 0) {
+                stopped.await();
+                throw new InterruptedException("Stopped");
+            }
+            return null;
+        }
+        
+        /**
+         * @return The answer for stopping the workflow, which releases the waiting check.
+         */
+        protected Answer<Void> stopAnswer() {
+            return invocation -> {
+                stopped.countDown();
+                return null;
+            };
+        }
+    }
 }
@@ -1,9 +1,9 @@
 package dk.kb.ginnungagap.workflow.steps;
 
+import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.mock;
-import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
 import static org.mockito.Mockito.verifyZeroInteractions;
@@ -12,6 +12,7 @@ import static org.mockito.Mockito.when;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.UUID;
 
 import dk.kb.ginnungagap.workflow.reporting.WorkflowReport;
@@ -25,7 +26,9 @@ import org.testng.annotations.BeforeClass;
 import org.testng.annotations.Test;
 
 import dk.kb.cumulus.Constants;
+import dk.kb.cumulus.CumulusQuery;
 import dk.kb.cumulus.CumulusRecord;
+import dk.kb.cumulus.CumulusRecordCollection;
 import dk.kb.cumulus.CumulusServer;
 import dk.kb.ginnungagap.archive.Archive;
 import dk.kb.ginnungagap.config.Configuration;
@@ -249,6 +252,7 @@ public class FullValidationStepTest extends ExtendedTestCase {
         verifyNoMoreInteractions(report);
 
         verify(archive).getFile(eq(warcId), eq(collectionId));
+        verify(archive).releaseFile(eq(warcId), eq(collectionId));
         verifyNoMoreInteractions(archive);
         
         verify(record).getFieldValue(eq(Constants.FieldNames.CHECKSUM_ORIGINAL_MASTER));
@@ -257,7 +261,7 @@ public class FullValidationStepTest extends ExtendedTestCase {
         verify(record).getFieldValue(eq(Constants.FieldNames.RESOURCE_PACKAGE_ID));
         verify(record).getFieldValue(eq(Constants.FieldNames.RECORD_NAME));
         verify(record).getFieldValue(eq(Constants.FieldNames.COLLECTION_ID));
-        verify(record, times(2)).getUUID();
+        verify(record).getUUID();
         verify(record).setStringEnumValueForField(eq(Constants.FieldNames.BEVARING_CHECK),
                 eq(Constants.FieldValues.PRESERVATION_VALIDATION_OK));
         verify(record).setStringValueInField(eq(Constants.FieldNames.BEVARING_CHECK_STATUS), anyString());
@@ -294,6 +298,7 @@ public class FullValidationStepTest extends ExtendedTestCase {
         verifyNoMoreInteractions(report);
 
         verify(archive).getFile(eq(warcId), eq(collectionId));
+        verify(archive).releaseFile(eq(warcId), eq(collectionId));
         verifyNoMoreInteractions(archive);
         
         verify(record).getFieldValue(eq(Constants.FieldNames.ARCHIVE_MD5));
@@ -334,6 +339,7 @@ public class FullValidationStepTest extends ExtendedTestCase {
         verifyNoMoreInteractions(report);
 
         verify(archive).getFile(eq(warcId), eq(collectionId));
+        verify(archive).releaseFile(eq(warcId), eq(collectionId));
         verifyNoMoreInteractions(archive);
         
         verify(record).getFieldValue(eq(Constants.FieldNames.RESOURCE_PACKAGE_ID));
@@ -347,6 +353,53 @@ public class FullValidationStepTest extends ExtendedTestCase {
         
         verifyZeroInteractions(server);
     }
+    
+    @Test
+    public void testPerformStepWithRecordsInSameWarcFile() throws Exception {
+        addDescription("Test that the records of the same WARC file are validated from a single retrieval of the "
+                + "WARC file.");
+        CumulusServer server = mock(CumulusServer.class);
+        Archive archive = mock(Archive.class);
+        CumulusRecordCollection items = mock(CumulusRecordCollection.class);
+        CumulusRecord record = mock(CumulusRecord.class);
+        CumulusRecord missingRecord = mock(CumulusRecord.class);
+        File exampleWarc = new File(warcPath);
+        WorkflowReport report = mock(WorkflowReport.class);
+
+        String warcId = "TEST-WARC-ID-" + UUID.randomUUID().toString();
+        String collectionId = "TEST-COLLECTION-ID-" + UUID.randomUUID().toString();
+
+        when(server.getItems(eq(catalogName), any(CumulusQuery.class))).thenReturn(items);
+        when(items.iterator()).thenReturn(Arrays.asList(record, missingRecord).iterator());
+        when(items.getCount()).thenReturn(2);
+        when(record.getFieldValue(eq(Constants.FieldNames.CHECKSUM_ORIGINAL_MASTER))).thenReturn(warcRecordChecksum);
+        when(record.getFieldLongValue(eq(Constants.FieldNames.FILE_DATA_SIZE))).thenReturn(warcRecordSize);
+        when(record.getFieldValue(eq(Constants.FieldNames.ARCHIVE_MD5))).thenReturn(warcFileChecksum);
+        when(record.getFieldValue(eq(Constants.FieldNames.RESOURCE_PACKAGE_ID))).thenReturn(warcId);
+        when(record.getFieldValue(eq(Constants.FieldNames.COLLECTION_ID))).thenReturn(collectionId);
+        when(record.getUUID()).thenReturn(warcRecordId);
+        when(missingRecord.getFieldValue(eq(Constants.FieldNames.RESOURCE_PACKAGE_ID))).thenReturn(warcId);
+        when(missingRecord.getFieldValue(eq(Constants.FieldNames.COLLECTION_ID))).thenReturn(collectionId);
+        when(missingRecord.getUUID()).thenReturn(UUID.randomUUID().toString());
+        
+        when(archive.getFile(eq(warcId), eq(collectionId))).thenReturn(exampleWarc);
+
+        FullValidationStep step = new FullValidationStep(server, catalogName, archive, conf);
+        step.performStep(report);
+
+        verify(report).addSuccessRecord(anyString(), anyString());
+        verify(report).addFailedRecord(anyString(), anyString(), anyString());
+        verifyNoMoreInteractions(report);
+
+        verify(archive).getFile(eq(warcId), eq(collectionId));
+        verify(archive).releaseFile(eq(warcId), eq(collectionId));
+        verifyNoMoreInteractions(archive);
+        
+        verify(record).setStringEnumValueForField(eq(Constants.FieldNames.BEVARING_CHECK),
+                eq(Constants.FieldValues.PRESERVATION_VALIDATION_OK));
+        verify(missingRecord).setStringEnumValueForField(eq(Constants.FieldNames.BEVARING_CHECK),
+                eq(Constants.FieldValues.PRESERVATION_VALIDATION_FAILURE));
+    }
 //    
 //    @Test
 //    public void testPerformStep() throws Exception {
@@ -4,6 +4,7 @@ import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
 import static org.mockito.Mockito.verifyZeroInteractions;
@@ -119,6 +120,7 @@ public class ImportationStepTest extends ExtendedTestCase {
         verifyNoMoreInteractions(record);
 
         verify(archive).getFile(eq(warcFileId), eq(collectionId));
+        verify(archive).releaseFile(eq(warcFileId), eq(collectionId));
         verifyNoMoreInteractions(archive);
 
         verifyZeroInteractions(server);
@@ -158,6 +160,7 @@ public class ImportationStepTest extends ExtendedTestCase {
         verifyNoMoreInteractions(record);
 
         verify(archive).getFile(eq(warcFileId), eq(collectionId));
+        verify(archive).releaseFile(eq(warcFileId), eq(collectionId));
         verifyNoMoreInteractions(archive);
 
         verifyZeroInteractions(server);
@@ -225,6 +228,7 @@ public class ImportationStepTest extends ExtendedTestCase {
         verify(server).getItems(eq(catalogName), any(CumulusQuery.class));
         verifyNoMoreInteractions(server);
         
+        verify(items).getCount();
         verify(items).iterator();
         verifyNoMoreInteractions(items);
     }
@@ -255,11 +259,12 @@ public class ImportationStepTest extends ExtendedTestCase {
         verify(server).getItems(eq(catalogName), any(CumulusQuery.class));
         verifyNoMoreInteractions(server);
         
+        verify(items).getCount();
         verify(items).iterator();
         verifyNoMoreInteractions(items);
 
         verify(record).getFieldValue(eq(Constants.FieldNames.RECORD_NAME));
-        verify(record).getFieldValue(eq(Constants.FieldNames.RESOURCE_PACKAGE_ID));
+        verify(record, times(2)).getFieldValue(eq(Constants.FieldNames.RESOURCE_PACKAGE_ID));
         verify(record).setStringEnumValueForField(eq(Constants.FieldNames.BEVARING_IMPORTATION),
                 eq(Constants.FieldValues.PRESERVATION_IMPORT_FAILURE));
         verify(record).setStringValueInField(eq(Constants.FieldNames.BEVARING_IMPORTATION_STATUS), anyString());
@@ -267,6 +272,52 @@ public class ImportationStepTest extends ExtendedTestCase {
         verifyNoMoreInteractions(record);
     }
     
+    @Test
+    public void testPerformStepWithRecordsInSameWarcFile() throws Exception {
+        addDescription("Test that the records of the same WARC file are imported from a single retrieval of the "
+                + "WARC file.");
+        CumulusServer server = mock(CumulusServer.class);
+        Archive archive = mock(Archive.class);
+        WorkflowReport report = mock(WorkflowReport.class);
+
+        ImportationStep step = new ImportationStep(server, archive, catalogName, retainDir);
+        
+        CumulusRecordCollection items = mock(CumulusRecordCollection.class);
+        CumulusRecord record = mock(CumulusRecord.class);
+        CumulusRecord missingRecord = mock(CumulusRecord.class);
+        File outFile = new File(TestFileUtils.getTempDir(), UUID.randomUUID().toString());
+        
+        when(server.getItems(eq(catalogName), any(CumulusQuery.class))).thenReturn(items);
+        when(items.iterator()).thenReturn(Arrays.asList(missingRecord, record).iterator());
+        when(record.getFieldValue(eq(Constants.FieldNames.RESOURCE_PACKAGE_ID))).thenReturn(warcFileId);
+        when(record.getFieldValue(eq(Constants.FieldNames.COLLECTION_ID))).thenReturn(collectionId);
+        when(record.getUUID()).thenReturn(recordGuid);
+        when(record.getFieldValueForNonStringField(eq(Constants.FieldNames.ASSET_REFERENCE))).thenReturn(outFile.getAbsolutePath());
+        when(missingRecord.getFieldValue(eq(Constants.FieldNames.RESOURCE_PACKAGE_ID))).thenReturn(warcFileId);
+        when(missingRecord.getFieldValue(eq(Constants.FieldNames.COLLECTION_ID))).thenReturn(collectionId);
+        when(missingRecord.getUUID()).thenReturn(UUID.randomUUID().toString());
+        
+        when(archive.getFile(eq(warcFileId), eq(collectionId))).thenReturn(new File(warcResourcePath));
+        
+        step.performStep(report);
+
+        verify(report).addSuccessRecord(anyString(), anyString());
+        verify(report).addFailedRecord(anyString(), anyString(), anyString());
+        verifyNoMoreInteractions(report);
+
+        verify(archive).getFile(eq(warcFileId), eq(collectionId));
+        verify(archive).releaseFile(eq(warcFileId), eq(collectionId));
+        verifyNoMoreInteractions(archive);
+        
+        Assert.assertTrue(outFile.isFile());
+        Assert.assertEquals(outFile.length(), warcRecordSize.longValue());
+        verify(record).setStringEnumValueForField(eq(Constants.FieldNames.BEVARING_IMPORTATION),
+                eq(Constants.FieldValues.PRESERVATION_IMPORT_NONE));
+        verify(record).setNewAssetReference(any(File.class));
+        verify(missingRecord).setStringEnumValueForField(eq(Constants.FieldNames.BEVARING_IMPORTATION),
+                eq(Constants.FieldValues.PRESERVATION_IMPORT_FAILURE));
+    }
+    
     @Test
     public void testDeprecateFileWhenFileExists() throws Exception {
         addDescription("Test the deprecateFile method, when the file exists. It should be moved to the retain folder.");
@@ -0,0 +1,203 @@
+package dk.kb.ginnungagap.workflow.steps;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.jaccept.structure.ExtendedTestCase;
+import org.jwat.warc.WarcDigest;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import dk.kb.cumulus.Constants;
+import dk.kb.cumulus.CumulusRecord;
+import dk.kb.cumulus.CumulusRecordCollection;
+import dk.kb.cumulus.CumulusServer;
+import dk.kb.ginnungagap.archive.BitmagPreserver;
+import dk.kb.ginnungagap.config.Configuration;
+import dk.kb.ginnungagap.config.PipelineConfiguration;
+import dk.kb.ginnungagap.testutils.TestFileUtils;
+import dk.kb.ginnungagap.transformation.MetadataBuffer;
+import dk.kb.ginnungagap.transformation.MetadataTransformationHandler;
+import dk.kb.ginnungagap.workflow.reporting.WorkflowReport;
+
+public class PipelinePreservationStepTest extends ExtendedTestCase {
+
+    Configuration conf;
+    String catalogName = "test-catalog-name";
+    PipelineConfiguration pipelineConf = new PipelineConfiguration(2, 2, 3, 2);
+
+    @BeforeClass
+    public void setupClass() throws IOException {
+        TestFileUtils.setup();
+        conf = TestFileUtils.createTempConf();
+    }
+
+    @AfterClass
+    public void tearDownClass() {
+        TestFileUtils.tearDown();
+    }
+
+    @Test
+    public void testNoRecords() {
+        addDescription("Test the preserve record items method, when no records are found.");
+        CumulusServer server = mock(CumulusServer.class);
+        BitmagPreserver preserver = mock(BitmagPreserver.class);
+        MetadataTransformationHandler transformationHandler = mock(MetadataTransformationHandler.class);
+        CumulusRecordCollection items = mock(CumulusRecordCollection.class);
+        WorkflowReport report = mock(WorkflowReport.class);
+        when(items.getCount()).thenReturn(0);
+
+        PipelinePreservationStep step = new PipelinePreservationStep(conf.getTransformationConf(), server,
+                transformationHandler, preserver, catalogName, pipelineConf);
+        step.preserveRecordItems(items, catalogName, report);
+
+        Assert.assertTrue(step.getResultOfLastRun().contains("No preservable records"));
+        verify(items).getCount();
+        verifyNoMoreInteractions(items);
+        verifyZeroInteractions(report);
+        verifyZeroInteractions(preserver);
+    }
+
+    @Test
+    public void testPreserveRecordItems() throws Exception {
+        addDescription("Test the preserve record items method through the pipeline, where one record fails in the "
+                + "transformation stage.");
+        CumulusServer server = mock(CumulusServer.class);
+        BitmagPreserver preserver = mock(BitmagPreserver.class);
+        MetadataTransformationHandler transformationHandler = mock(MetadataTransformationHandler.class);
+        CumulusRecordCollection items = mock(CumulusRecordCollection.class);
+        WorkflowReport report = mock(WorkflowReport.class);
+
+        int numberOfRecords = 12;
+        String failingRecordName = "record-5";
+        List<CumulusRecord> records = new ArrayList<>();
+        for(int i = 0; i < numberOfRecords; i++) {
+            CumulusRecord record = mock(CumulusRecord.class);
+            when(record.getFieldValue(eq(Constants.FieldNames.RECORD_NAME))).thenReturn("record-" + i);
+            when(record.getUUID()).thenReturn("uuid-" + i);
+            records.add(record);
+        }
+        when(items.iterator()).thenReturn(records.iterator());
+        when(items.getCount()).thenReturn(numberOfRecords);
+
+        List<File> metadataFiles = new ArrayList<>();
+        PipelinePreservationStep step = new PipelinePreservationStep(conf.getTransformationConf(), server,
+                transformationHandler, preserver, catalogName, pipelineConf) {
+            @Override
+            protected WarcDigest initialiseRecord(CumulusRecord record) {
+                return null;
+            }
+            @Override
+            protected PreparedRecord transformRecordMetadata(CumulusRecord record) throws Exception {
+                String name = record.getFieldValue(Constants.FieldNames.RECORD_NAME);
+                if(name.equals(failingRecordName)) {
+                    throw new IllegalStateException("THIS MUST FAIL");
+                }
+                MetadataBuffer metadata = createMetadataBuffer(record.getUUID());
+                metadata.close();
+                File rawFile = new File(conf.getMetadataTempDir(), record.getUUID() + RAW_FILE_SUFFIX);
+                Assert.assertTrue(rawFile.createNewFile());
+                synchronized(metadataFiles) {
+                    metadataFiles.add(metadata.getFile());
+                    metadataFiles.add(rawFile);
+                }
+                return new PreparedRecord(record, metadata);
+            }
+        };
+
+        step.preserveRecordItems(items, catalogName, report);
+
+        Assert.assertTrue(step.getResultOfLastRun().startsWith("Preservation of " + numberOfRecords + " records"),
+                step.getResultOfLastRun());
+        Assert.assertTrue(step.getResultOfLastRun().contains("1 failures"), step.getResultOfLastRun());
+        Assert.assertTrue(step.getResultOfLastRun().contains("THIS MUST FAIL"), step.getResultOfLastRun());
+
+        for(int i = 0; i < numberOfRecords; i++) {
+            String name = "record-" + i;
+            if(name.equals(failingRecordName)) {
+                verify(report).addFailedRecord(eq(name), eq("THIS MUST FAIL"), eq(catalogName));
+            } else {
+                verify(report).addSuccessRecord(eq(name), eq(catalogName));
+            }
+        }
+        verifyNoMoreInteractions(report);
+
+        addStep("Check the temporary metadata files", "They must have been deleted after packaging");
+        Assert.assertEquals(metadataFiles.size(), (numberOfRecords - 1) * 2);
+        for(File f : metadataFiles) {
+            Assert.assertFalse(f.exists(), "The file " + f.getName() + " should have been deleted");
+        }
+
+        verify(preserver, times(numberOfRecords - 1)).startRecordPackaging();
+        verify(preserver, times(numberOfRecords - 1)).packRecordResource(any(CumulusRecord.class), 
+                any(WarcDigest.class));
+        verify(preserver, times(numberOfRecords - 1)).packRecordMetadata(any(CumulusRecord.class), any(MetadataBuffer.class));
+        verify(preserver, times(numberOfRecords - 1)).finishRecordPackaging();
+        verify(preserver, times(numberOfRecords - 1)).checkpointRecordPackaging(any(CumulusRecord.class));
+        verify(preserver, times(numberOfRecords - 1)).checkConditions();
+        verifyNoMoreInteractions(preserver);
+
+        verify(records.get(5)).setStringEnumValueForField(eq(Constants.FieldNames.PRESERVATION_STATUS),
+                eq(Constants.FieldValues.PRESERVATIONSTATE_ARCHIVAL_FAILED));
+        verify(records.get(5)).setStringValueInField(eq(Constants.FieldNames.QA_ERROR), anyString());
+        verifyZeroInteractions(server);
+        verifyZeroInteractions(transformationHandler);
+    }
+
+    @Test
+    public void testFailureAfterPackaging() throws Exception {
+        addDescription("Test that a record, which fails after it has been packaged, is not marked as failed in "
+                + "Cumulus, since it is in the WARC file.");
+        CumulusServer server = mock(CumulusServer.class);
+        BitmagPreserver preserver = mock(BitmagPreserver.class);
+        MetadataTransformationHandler transformationHandler = mock(MetadataTransformationHandler.class);
+        CumulusRecordCollection items = mock(CumulusRecordCollection.class);
+        WorkflowReport report = mock(WorkflowReport.class);
+        CumulusRecord record = mock(CumulusRecord.class);
+        when(record.getFieldValue(eq(Constants.FieldNames.RECORD_NAME))).thenReturn("record");
+        when(record.getUUID()).thenReturn("uuid");
+        when(items.iterator()).thenReturn(Arrays.asList(record).iterator());
+        when(items.getCount()).thenReturn(1);
+        doThrow(new IllegalStateException("UPLOAD FAILURE")).when(preserver).checkConditions();
+
+        PipelinePreservationStep step = new PipelinePreservationStep(conf.getTransformationConf(), server,
+                transformationHandler, preserver, catalogName, pipelineConf) {
+            @Override
+            protected WarcDigest initialiseRecord(CumulusRecord record) {
+                return null;
+            }
+            @Override
+            protected PreparedRecord transformRecordMetadata(CumulusRecord record) throws Exception {
+                MetadataBuffer metadata = createMetadataBuffer(record.getUUID());
+                metadata.close();
+                return new PreparedRecord(record, metadata);
+            }
+        };
+
+        step.preserveRecordItems(items, catalogName, report);
+
+        Assert.assertTrue(step.getResultOfLastRun().contains("1 failures"), step.getResultOfLastRun());
+        verify(report).addFailedRecord(eq("record"), eq("UPLOAD FAILURE"), eq(catalogName));
+        verifyNoMoreInteractions(report);
+        verify(preserver).checkpointRecordPackaging(record);
+        verify(record, never()).setStringEnumValueForField(eq(Constants.FieldNames.PRESERVATION_STATUS),
+                eq(Constants.FieldValues.PRESERVATIONSTATE_ARCHIVAL_FAILED));
+    }
+}
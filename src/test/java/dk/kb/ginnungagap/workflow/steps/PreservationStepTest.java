@@ -16,12 +16,17 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import dk.kb.ginnungagap.workflow.reporting.WorkflowReport;
 import org.jaccept.structure.ExtendedTestCase;
+import org.jwat.warc.WarcDigest;
+import org.mockito.ArgumentCaptor;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
 import org.testng.Assert;
@@ -37,8 +42,11 @@ import dk.kb.cumulus.CumulusServer;
 import dk.kb.ginnungagap.archive.BitmagPreserver;
 import dk.kb.ginnungagap.config.Configuration;
 import dk.kb.ginnungagap.testutils.TestFileUtils;
+import dk.kb.ginnungagap.transformation.MetadataBuffer;
 import dk.kb.ginnungagap.transformation.MetadataTransformationHandler;
 import dk.kb.ginnungagap.transformation.MetadataTransformer;
+import dk.kb.ginnungagap.transformation.MetadataValidationResult;
+import dk.kb.ginnungagap.utils.ChecksumUtils;
 import dk.kb.ginnungagap.utils.StreamUtils;
 
 public class PreservationStepTest extends ExtendedTestCase {
@@ -103,7 +111,7 @@ public class PreservationStepTest extends ExtendedTestCase {
         
         verifyZeroInteractions(transformationHandler);
         
-        verify(records, times(2)).getCount();
+        verify(records).getCount();
         verifyNoMoreInteractions(records);
     }
     
@@ -220,6 +228,110 @@ public class PreservationStepTest extends ExtendedTestCase {
         verifyNoMoreInteractions(record2);
     }
 
+    @Test
+    public void testPreserveRecordItemsConcurrently() {
+        addDescription("Test the preserve record items method with several preservation threads, "
+                + "where every second record fails.");
+        CumulusServer server = mock(CumulusServer.class);
+        BitmagPreserver preserver = mock(BitmagPreserver.class);
+        MetadataTransformationHandler transformationHandler = mock(MetadataTransformationHandler.class);
+        CumulusRecordCollection items = mock(CumulusRecordCollection.class);
+        WorkflowReport report = mock(WorkflowReport.class);
+
+        int numberOfRecords = 10;
+        List<CumulusRecord> records = new ArrayList<>();
+        for(int i = 0; i < numberOfRecords; i++) {
+            CumulusRecord record = mock(CumulusRecord.class);
+            when(record.getFieldValue(eq(Constants.FieldNames.RECORD_NAME))).thenReturn("record-" + i);
+            when(record.getUUID()).thenReturn("uuid-" + i);
+            records.add(record);
+        }
+        when(items.iterator()).thenReturn(records.iterator());
+        when(items.getCount()).thenReturn(numberOfRecords);
+
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        PreservationStep step = new PreservationStep(conf.getTransformationConf(), server, transformationHandler, 
+                preserver, catalogName, 3) {
+            @Override
+            protected void sendRecordToPreservation(CumulusRecord record) throws Exception {
+                maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                try {
+                    Thread.sleep(50);
+                    if(Integer.parseInt(record.getUUID().substring(5)) % 2 == 1) {
+                        throw new IllegalStateException("THIS MUST FAIL");
+                    }
+                } finally {
+                    running.decrementAndGet();
+                }
+            }
+        };
+
+        step.preserveRecordItems(items, catalogName, report);
+
+        Assert.assertTrue(step.getResultOfLastRun().startsWith("Preservation of " + numberOfRecords + " records"), 
+                step.getResultOfLastRun());
+        Assert.assertTrue(step.getResultOfLastRun().contains((numberOfRecords / 2) + " failures"), 
+                step.getResultOfLastRun());
+        Assert.assertTrue(step.getResultOfLastRun().contains("THIS MUST FAIL"), step.getResultOfLastRun());
+        Assert.assertTrue(maxRunning.get() > 1, "Expected concurrent preservation, but had " + maxRunning.get());
+        Assert.assertTrue(maxRunning.get() <= 3, "Expected at most 3 concurrent, but had " + maxRunning.get());
+
+        for(int i = 0; i < numberOfRecords; i++) {
+            if(i % 2 == 1) {
+                verify(report).addFailedRecord(eq("record-" + i), eq("THIS MUST FAIL"), eq(catalogName));
+            } else {
+                verify(report).addSuccessRecord(eq("record-" + i), eq(catalogName));
+            }
+        }
+        verifyNoMoreInteractions(report);
+
+        verifyZeroInteractions(server);
+        verifyZeroInteractions(preserver);
+        verifyZeroInteractions(transformationHandler);
+    }
+
+    @Test
+    public void testPreserveRecordItemsStopsWhenRequested() {
+        addDescription("Test that the preservation stops before the next record, when the workflow must stop, "
+                + "e.g. since its time window has closed.");
+        CumulusServer server = mock(CumulusServer.class);
+        BitmagPreserver preserver = mock(BitmagPreserver.class);
+        MetadataTransformationHandler transformationHandler = mock(MetadataTransformationHandler.class);
+        CumulusRecordCollection items = mock(CumulusRecordCollection.class);
+        WorkflowReport report = mock(WorkflowReport.class);
+
+        int numberOfRecords = 5;
+        List<CumulusRecord> records = new ArrayList<>();
+        for(int i = 0; i < numberOfRecords; i++) {
+            CumulusRecord record = mock(CumulusRecord.class);
+            when(record.getFieldValue(eq(Constants.FieldNames.RECORD_NAME))).thenReturn("record-" + i);
+            records.add(record);
+        }
+        when(items.iterator()).thenReturn(records.iterator());
+        when(items.getCount()).thenReturn(numberOfRecords);
+
+        AtomicInteger preserved = new AtomicInteger();
+        PreservationStep step = new PreservationStep(conf.getTransformationConf(), server, transformationHandler, 
+                preserver, catalogName) {
+            @Override
+            protected void sendRecordToPreservation(CumulusRecord record) throws Exception {
+                preserved.incrementAndGet();
+            }
+        };
+        step.setStopCondition(() -> preserved.get() >= 2);
+
+        step.preserveRecordItems(items, catalogName, report);
+
+        Assert.assertEquals(preserved.get(), 2);
+        Assert.assertTrue(step.getResultOfLastRun().startsWith("Preservation of 2 records"), 
+                step.getResultOfLastRun());
+        verify(report).addSuccessRecord(eq("record-0"), eq(catalogName));
+        verify(report).addSuccessRecord(eq("record-1"), eq(catalogName));
+        verifyNoMoreInteractions(report);
+        verifyZeroInteractions(records.get(2));
+    }
+
     @Test
     public void testSendRecordToPreservationSuccessMaster() throws Exception {
         addDescription("Test the sendRecordToPreservation method for the success scenario for a master record.");
@@ -245,6 +357,7 @@ public class PreservationStepTest extends ExtendedTestCase {
         when(record.getFieldValueOrNull(eq(Constants.FieldNames.REPRESENTATION_INTELLECTUAL_ENTITY_UUID))).thenReturn(ieUUID);
         when(record.isMasterAsset()).thenReturn(true);
         when(record.getFile()).thenReturn(contentFile);
+        when(preserver.getBlockDigestAlgorithm()).thenReturn("SHA-1");
         doAnswer(new Answer<Void>() {
             @Override
             public Void answer(InvocationOnMock invocation) throws Throwable {
@@ -256,6 +369,8 @@ public class PreservationStepTest extends ExtendedTestCase {
         }).when(record).writeFieldMetadata(any(OutputStream.class));
         
         when(transformationHandler.getTransformer(eq(MetadataTransformationHandler.TRANSFORMATION_SCRIPT_FOR_METS))).thenReturn(metsTransformer);
+        when(transformationHandler.validate(any(InputStream.class))).thenReturn(
+                new MetadataValidationResult(Arrays.asList(UUID.randomUUID().toString()), null));
         when(transformationHandler.getTransformer(eq(MetadataTransformationHandler.TRANSFORMATION_SCRIPT_FOR_INTELLECTUEL_ENTITY))).thenReturn(ieTransformer);
         when(transformationHandler.getTransformer(eq(MetadataTransformationHandler.TRANSFORMATION_SCRIPT_FOR_REPRESENTATION))).thenReturn(representationTransformer);
 
@@ -263,9 +378,20 @@ public class PreservationStepTest extends ExtendedTestCase {
 
         verifyZeroInteractions(server);
 
-        verify(preserver).packRecordResource(eq(record));
-        verify(preserver).packRecordMetadata(eq(record), any(File.class));
-        verify(preserver, times(3)).packRepresentationMetadata(any(File.class), anyString(), anyString());
+        addStep("Check the packaging of the content file", 
+                "The block digest calculated along with the MD5 checksum must be given to the packaging");
+        ArgumentCaptor<WarcDigest> assetDigest = ArgumentCaptor.forClass(WarcDigest.class);
+        verify(preserver).getBlockDigestAlgorithm();
+        verify(preserver).packRecordResource(eq(record), assetDigest.capture());
+        Assert.assertEquals(assetDigest.getValue().digestString, 
+                ChecksumUtils.calculateChecksum(contentFile, "SHA-1").digestString);
+        verify(record).setStringValueInField(eq(Constants.FieldNames.CHECKSUM_ORIGINAL_MASTER), 
+                eq(ChecksumUtils.calculateChecksum(contentFile, ChecksumUtils.MD5_ALGORITHM).digestString));
+        verify(preserver).packRecordMetadata(eq(record), any(MetadataBuffer.class));
+        verify(preserver, times(3)).packRepresentationMetadata(any(MetadataBuffer.class), anyString(), anyString());
+        verify(preserver).startRecordPackaging();
+        verify(preserver).finishRecordPackaging();
+        verify(preserver).checkpointRecordPackaging(any(CumulusRecord.class));
         verify(preserver).checkConditions();
         verifyNoMoreInteractions(preserver);
 
@@ -278,7 +404,6 @@ public class PreservationStepTest extends ExtendedTestCase {
         verify(representationTransformer).transformXmlMetadata(any(InputStream.class), any(OutputStream.class));
         verifyNoMoreInteractions(representationTransformer);
         
-        verify(transformationHandler).getMetadataStandards(any(InputStream.class));
         verify(transformationHandler).getTransformer(eq(MetadataTransformationHandler.TRANSFORMATION_SCRIPT_FOR_METS));
         verify(transformationHandler, times(2)).getTransformer(eq(MetadataTransformationHandler.TRANSFORMATION_SCRIPT_FOR_INTELLECTUEL_ENTITY));
         verify(transformationHandler).getTransformer(eq(MetadataTransformationHandler.TRANSFORMATION_SCRIPT_FOR_REPRESENTATION));
@@ -327,6 +452,8 @@ public class PreservationStepTest extends ExtendedTestCase {
         when(record.getFieldValueOrNull(eq(Constants.FieldNames.RELATED_OBJECT_IDENTIFIER_VALUE_INTELLECTUEL_ENTITY))).thenReturn(UUID.randomUUID().toString());
         when(record.isMasterAsset()).thenReturn(false);
         when(record.getFieldValueOrNull(eq(Constants.FieldNames.CHECKSUM_ORIGINAL_MASTER))).thenReturn(warcRecordChecksum);
+        when(record.getFile()).thenReturn(contentFile);
+        when(preserver.getBlockDigestAlgorithm()).thenReturn("SHA-1");
         doAnswer(new Answer<Void>() {
             @Override
             public Void answer(InvocationOnMock invocation) throws Throwable {
@@ -338,15 +465,26 @@ public class PreservationStepTest extends ExtendedTestCase {
         }).when(record).writeFieldMetadata(any(OutputStream.class));
         
         when(transformationHandler.getTransformer(eq(MetadataTransformationHandler.TRANSFORMATION_SCRIPT_FOR_METS))).thenReturn(metsTransformer);
+        when(transformationHandler.validate(any(InputStream.class))).thenReturn(
+                new MetadataValidationResult(Arrays.asList(UUID.randomUUID().toString()), null));
         when(transformationHandler.getTransformer(eq(MetadataTransformationHandler.TRANSFORMATION_SCRIPT_FOR_INTELLECTUEL_ENTITY))).thenReturn(ieTransformer);
 
         step.sendRecordToPreservation(record);
 
         verifyZeroInteractions(server);
 
-        verify(preserver).packRecordResource(eq(record));
-        verify(preserver).packRecordMetadata(eq(record), any(File.class));
-        verify(preserver).packRepresentationMetadata(any(File.class), anyString(), anyString());
+        addStep("Check the packaging of the content file", 
+                "The block digest must be calculated, even though the record already has a MD5 checksum");
+        ArgumentCaptor<WarcDigest> assetDigest = ArgumentCaptor.forClass(WarcDigest.class);
+        verify(preserver).getBlockDigestAlgorithm();
+        verify(preserver).packRecordResource(eq(record), assetDigest.capture());
+        Assert.assertEquals(assetDigest.getValue().digestString, 
+                ChecksumUtils.calculateChecksum(contentFile, "SHA-1").digestString);
+        verify(preserver).packRecordMetadata(eq(record), any(MetadataBuffer.class));
+        verify(preserver).packRepresentationMetadata(any(MetadataBuffer.class), anyString(), anyString());
+        verify(preserver).startRecordPackaging();
+        verify(preserver).finishRecordPackaging();
+        verify(preserver).checkpointRecordPackaging(any(CumulusRecord.class));
         verify(preserver).checkConditions();
         verifyNoMoreInteractions(preserver);
 
@@ -356,7 +494,6 @@ public class PreservationStepTest extends ExtendedTestCase {
         verify(ieTransformer).transformXmlMetadata(any(InputStream.class), any(OutputStream.class));
         verifyNoMoreInteractions(ieTransformer);
         
-        verify(transformationHandler).getMetadataStandards(any(InputStream.class));
         verify(transformationHandler).getTransformer(eq(MetadataTransformationHandler.TRANSFORMATION_SCRIPT_FOR_METS));
         verify(transformationHandler).getTransformer(eq(MetadataTransformationHandler.TRANSFORMATION_SCRIPT_FOR_INTELLECTUEL_ENTITY));
         verify(transformationHandler, times(2)).validate(any(InputStream.class));
@@ -376,6 +513,7 @@ public class PreservationStepTest extends ExtendedTestCase {
         verify(record).validateFieldsExists(any(Collection.class));
         verify(record).validateFieldsHasValue(any(Collection.class));
         verify(record).getFieldValueOrNull(eq(Constants.FieldNames.CHECKSUM_ORIGINAL_MASTER));
+        verify(record).getFile();
         verifyNoMoreInteractions(record);
     }
     
@@ -387,32 +525,69 @@ public class PreservationStepTest extends ExtendedTestCase {
         MetadataTransformationHandler transformationHandler = mock(MetadataTransformationHandler.class);
         CumulusRecord record = mock(CumulusRecord.class);
         
-        File testMetadataFile = new File("src/test/resources/test-mets.xml");
         String metadataStandards = UUID.randomUUID().toString();
         
-        when(transformationHandler.getMetadataStandards(any(InputStream.class))).thenReturn(Arrays.asList(metadataStandards));
-        
         PreservationStep step = new PreservationStep(conf.getTransformationConf(), server, transformationHandler, preserver, catalogName);
         
-        step.setMetadataStandardsForRecord(record, testMetadataFile);
+        step.setMetadataStandardsForRecord(record, Arrays.asList(metadataStandards));
         
         verifyZeroInteractions(server);
         verifyZeroInteractions(preserver);
         
-        verify(transformationHandler).getMetadataStandards(any(InputStream.class));
-        verifyNoMoreInteractions(transformationHandler);
+        verifyZeroInteractions(transformationHandler);
         
-        verify(record).setStringValueInField(eq(Constants.FieldNames.BEVARINGS_METADATA), anyString());
+        verify(record).setStringValueInField(eq(Constants.FieldNames.BEVARINGS_METADATA), eq(metadataStandards + "\n"));
         verifyNoMoreInteractions(record);
     }
     
-    @Test(expectedExceptions = IOException.class)
-    public void testTransformAndPreserveIntellectualEntityFailureIERawFile() throws IOException {
-        addDescription("Test the transformAndPreserveIntellectualEntity method when the IE raw file cannot be read");
+    @Test
+    public void testSendRecordToPreservationDeletesMetadataFiles() throws Exception {
+        addDescription("Test that the sendRecordToPreservation method deletes the temporary metadata files");
         CumulusServer server = mock(CumulusServer.class);
         BitmagPreserver preserver = mock(BitmagPreserver.class);
         MetadataTransformationHandler transformationHandler = mock(MetadataTransformationHandler.class);
         CumulusRecord record = mock(CumulusRecord.class);
+        when(record.getUUID()).thenReturn(UUID.randomUUID().toString());
+
+        List<File> metadataFiles = new ArrayList<>();
+        PreservationStep step = new PreservationStep(conf.getTransformationConf(), server, transformationHandler,
+                preserver, catalogName) {
+            @Override
+            protected WarcDigest initialiseRecord(CumulusRecord record) {
+                return null;
+            }
+            @Override
+            protected PreparedRecord transformRecordMetadata(CumulusRecord record) throws Exception {
+                MetadataBuffer metadata = createMetadataBuffer(record.getUUID());
+                metadata.write(new byte[conf.getMetadataMemoryThreshold() + 1]);
+                metadata.close();
+                File rawFile = new File(conf.getMetadataTempDir(), record.getUUID() + RAW_FILE_SUFFIX);
+                Assert.assertTrue(rawFile.createNewFile());
+                metadataFiles.add(metadata.getFile());
+                metadataFiles.add(rawFile);
+                return new PreparedRecord(record, metadata);
+            }
+        };
+
+        step.sendRecordToPreservation(record);
+
+        addStep("Check the temporary metadata files", "They must have been deleted after packaging");
+        Assert.assertEquals(metadataFiles.size(), 2);
+        for(File f : metadataFiles) {
+            Assert.assertFalse(f.exists(), "The file " + f.getName() + " should have been deleted");
+        }
+        verify(preserver).startRecordPackaging();
+        verify(preserver).packRecordMetadata(eq(record), any(MetadataBuffer.class));
+        verify(preserver).finishRecordPackaging();
+        verify(preserver).checkConditions();
+    }
+    
+    @Test(expectedExceptions = IOException.class)
+    public void testTransformAndValidateIntellectualEntityFailureIERawFile() throws IOException {
+        addDescription("Test the transformAndValidateIntellectualEntity method when the IE raw file cannot be read");
+        CumulusServer server = mock(CumulusServer.class);
+        BitmagPreserver preserver = mock(BitmagPreserver.class);
+        MetadataTransformationHandler transformationHandler = mock(MetadataTransformationHandler.class);
 
         String ieUUID = UUID.randomUUID().toString();
         
@@ -423,19 +598,18 @@ public class PreservationStepTest extends ExtendedTestCase {
         
         try {
             ieRawFile.setReadable(false);
-            step.transformAndPreserveIntellectualEntity(ieUUID, UUID.randomUUID().toString(), UUID.randomUUID().toString(), record);
+            step.transformAndValidateIntellectualEntity(ieUUID, UUID.randomUUID().toString(), UUID.randomUUID().toString());
         } finally {
             ieRawFile.setReadable(true);            
         }
     }
     
     @Test(expectedExceptions = IOException.class)
-    public void testTransformAndPreserveIntellectualEntityFailureWriteIEMetadataFile() throws IOException {
-        addDescription("Test the TransformAndPreserveIntellectualEntity method when the IE metadata file cannot be written");
+    public void testTransformAndValidateIntellectualEntityFailureWriteIEMetadataFile() throws IOException {
+        addDescription("Test the transformAndValidateIntellectualEntity method when the IE metadata file cannot be written");
         CumulusServer server = mock(CumulusServer.class);
         BitmagPreserver preserver = mock(BitmagPreserver.class);
         MetadataTransformationHandler transformationHandler = mock(MetadataTransformationHandler.class);
-        CumulusRecord record = mock(CumulusRecord.class);
 
         String ieUUID = UUID.randomUUID().toString();
         
@@ -446,20 +620,19 @@ public class PreservationStepTest extends ExtendedTestCase {
         
         try {
             ieMetadataFile.setWritable(false);
-            step.transformAndPreserveIntellectualEntity(ieUUID, UUID.randomUUID().toString(), UUID.randomUUID().toString(), record);
+            step.transformAndValidateIntellectualEntity(ieUUID, UUID.randomUUID().toString(), UUID.randomUUID().toString());
         } finally {
             ieMetadataFile.setWritable(true);            
         }
     }
     
     @Test(expectedExceptions = IOException.class)
-    public void testTransformAndPreserveIntellectualEntityFailureReadIEMetadataFile() throws IOException {
-        addDescription("Test the TransformAndPreserveIntellectualEntity method when the IE metadata file cannot be written");
+    public void testTransformAndValidateIntellectualEntityFailureReadIEMetadataFile() throws IOException {
+        addDescription("Test the transformAndValidateIntellectualEntity method when the IE metadata file cannot be written");
         CumulusServer server = mock(CumulusServer.class);
         BitmagPreserver preserver = mock(BitmagPreserver.class);
         MetadataTransformationHandler transformationHandler = mock(MetadataTransformationHandler.class);
         MetadataTransformer transformer = mock(MetadataTransformer.class);
-        CumulusRecord record = mock(CumulusRecord.class);
 
         String ieUUID = UUID.randomUUID().toString();
         
@@ -472,9 +645,23 @@ public class PreservationStepTest extends ExtendedTestCase {
         
         try {
             ieMetadataFile.setReadable(false);
-            step.transformAndPreserveIntellectualEntity(ieUUID, UUID.randomUUID().toString(), UUID.randomUUID().toString(), record);
+            step.transformAndValidateIntellectualEntity(ieUUID, UUID.randomUUID().toString(), UUID.randomUUID().toString());
         } finally {
             ieMetadataFile.setReadable(true);            
         }
     }
+    
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void testValidateWithoutResult() throws IOException {
+        addDescription("Test the validate method, when the validation does not give any result");
+        CumulusServer server = mock(CumulusServer.class);
+        BitmagPreserver preserver = mock(BitmagPreserver.class);
+        MetadataTransformationHandler transformationHandler = mock(MetadataTransformationHandler.class);
+        when(transformationHandler.validate(any(InputStream.class))).thenReturn(null);
+        
+        PreservationStep step = new PreservationStep(conf.getTransformationConf(), server, transformationHandler, preserver, catalogName);
+        MetadataBuffer metadata = step.createMetadataBuffer(UUID.randomUUID().toString());
+        metadata.close();
+        step.validate(metadata);
+    }
 }
@@ -4,12 +4,15 @@ import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
 import static org.mockito.Mockito.verifyZeroInteractions;
 import static org.mockito.Mockito.when;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.UUID;
 
 import dk.kb.ginnungagap.workflow.reporting.WorkflowReport;
@@ -23,6 +26,7 @@ import dk.kb.cumulus.CumulusRecord;
 import dk.kb.cumulus.CumulusRecordCollection;
 import dk.kb.cumulus.CumulusServer;
 import dk.kb.ginnungagap.archive.Archive;
+import dk.kb.ginnungagap.workflow.Workflow;
 
 public class SimpleValidationStepTest extends ExtendedTestCase {
 
@@ -193,6 +197,84 @@ public class SimpleValidationStepTest extends ExtendedTestCase {
         verifyZeroInteractions(server);
     }
     
+    @Test
+    public void testPerformStepWithChecksumsForWarcFiles() throws Exception {
+        addDescription("Test that the checksum of each WARC file is retrieved once for all its records.");
+        CumulusServer server = mock(CumulusServer.class);
+        Archive archive = mock(Archive.class);
+        CumulusRecordCollection items = mock(CumulusRecordCollection.class);
+        WorkflowReport report = mock(WorkflowReport.class);
+
+        String warcId = "TEST-WARC-ID-" + UUID.randomUUID().toString();
+        String otherWarcId = "TEST-WARC-ID-" + UUID.randomUUID().toString();
+        String collectionId = "TEST-COLLECTION-ID-" + UUID.randomUUID().toString();
+        CumulusRecord record1 = createRecord(warcId, collectionId);
+        CumulusRecord record2 = createRecord(warcId, collectionId);
+        CumulusRecord record3 = createRecord(otherWarcId, collectionId);
+
+        when(items.iterator()).thenReturn(Arrays.asList(record1, record2, record3).iterator());
+        when(server.getItems(anyString(), any(CumulusQuery.class))).thenReturn(items);
+        when(archive.getChecksum(eq(warcId), eq(collectionId))).thenReturn(warcFileChecksum);
+        when(archive.getChecksum(eq(otherWarcId), eq(collectionId))).thenReturn(warcFileChecksum);
+        
+        SimpleValidationStep step = new SimpleValidationStep(server, catalogName, archive);
+
+        step.performStep(report);
+
+        verify(report, times(3)).addSuccessRecord(anyString(), anyString());
+        verifyNoMoreInteractions(report);
+
+        verify(archive).getChecksum(eq(warcId), eq(collectionId));
+        verify(archive).getChecksum(eq(otherWarcId), eq(collectionId));
+        verifyNoMoreInteractions(archive);
+    }
+    
+    @Test
+    public void testPerformStepConcurrently() throws Exception {
+        addDescription("Test that the WARC files can be validated concurrently, with all results in the report.");
+        CumulusServer server = mock(CumulusServer.class);
+        Archive archive = mock(Archive.class);
+        CumulusRecordCollection items = mock(CumulusRecordCollection.class);
+        Workflow workflow = mock(Workflow.class);
+        when(workflow.getName()).thenReturn("Validation test workflow");
+        WorkflowReport report = new WorkflowReport(workflow);
+
+        String collectionId = "TEST-COLLECTION-ID-" + UUID.randomUUID().toString();
+        List<CumulusRecord> records = new ArrayList<CumulusRecord>();
+        for(int i = 0; i < 10; i++) {
+            String warcId = "TEST-WARC-ID-" + UUID.randomUUID().toString();
+            when(archive.getChecksum(eq(warcId), eq(collectionId))).thenReturn(warcFileChecksum);
+            records.add(createRecord(warcId, collectionId));
+            records.add(createRecord(warcId, collectionId));
+        }
+        String badWarcId = "TEST-WARC-ID-" + UUID.randomUUID().toString();
+        CumulusRecord badRecord = createRecord(badWarcId, collectionId);
+        records.add(badRecord);
+
+        when(items.iterator()).thenReturn(records.iterator());
+        when(server.getItems(anyString(), any(CumulusQuery.class))).thenReturn(items);
+        when(archive.getChecksum(eq(badWarcId), eq(collectionId))).thenThrow(new IllegalStateException("No file"));
+        
+        SimpleValidationStep step = new SimpleValidationStep(server, catalogName, archive, 3);
+
+        step.performStep(report);
+
+        Assert.assertEquals(report.getNumberOfSuccesses(), 20L);
+        Assert.assertEquals(report.getNumberOfFailures(), 1L);
+        verify(badRecord).setStringEnumValueForField(eq(Constants.FieldNames.BEVARING_CHECK),
+                eq(Constants.FieldValues.PRESERVATION_VALIDATION_FAILURE));
+    }
+    
+    protected CumulusRecord createRecord(String warcId, String collectionId) {
+        CumulusRecord record = mock(CumulusRecord.class);
+        when(record.getFieldValue(eq(Constants.FieldNames.ARCHIVE_MD5))).thenReturn(warcFileChecksum);
+        when(record.getFieldValue(eq(Constants.FieldNames.RESOURCE_PACKAGE_ID))).thenReturn(warcId);
+        when(record.getFieldValue(eq(Constants.FieldNames.COLLECTION_ID))).thenReturn(collectionId);
+        when(record.getFieldValue(eq(Constants.FieldNames.RECORD_NAME))).thenReturn(UUID.randomUUID().toString());
+        when(record.getUUID()).thenReturn(UUID.randomUUID().toString());
+        return record;
+    }
+    
     @Test
     public void testPerformStepWithNoItems() throws Exception {
         addDescription("Test the perform step method");
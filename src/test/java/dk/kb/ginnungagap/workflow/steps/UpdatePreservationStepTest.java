@@ -37,8 +37,10 @@ import dk.kb.cumulus.CumulusServer;
 import dk.kb.ginnungagap.archive.BitmagPreserver;
 import dk.kb.ginnungagap.config.Configuration;
 import dk.kb.ginnungagap.testutils.TestFileUtils;
+import dk.kb.ginnungagap.transformation.MetadataBuffer;
 import dk.kb.ginnungagap.transformation.MetadataTransformationHandler;
 import dk.kb.ginnungagap.transformation.MetadataTransformer;
+import dk.kb.ginnungagap.transformation.MetadataValidationResult;
 import dk.kb.ginnungagap.utils.StreamUtils;
 
 public class UpdatePreservationStepTest extends ExtendedTestCase {
@@ -181,6 +183,8 @@ public class UpdatePreservationStepTest extends ExtendedTestCase {
         }).when(record).writeFieldMetadata(any(OutputStream.class));
         
         when(transformationHandler.getTransformer(eq(MetadataTransformationHandler.TRANSFORMATION_SCRIPT_FOR_METS))).thenReturn(metsTransformer);
+        when(transformationHandler.validate(any(InputStream.class))).thenReturn(
+                new MetadataValidationResult(Arrays.asList(UUID.randomUUID().toString()), null));
         when(transformationHandler.getTransformer(eq(MetadataTransformationHandler.TRANSFORMATION_SCRIPT_FOR_INTELLECTUEL_ENTITY))).thenReturn(ieTransformer);
         when(transformationHandler.getTransformer(eq(MetadataTransformationHandler.TRANSFORMATION_SCRIPT_FOR_REPRESENTATION))).thenReturn(representationTransformer);
 
@@ -188,8 +192,11 @@ public class UpdatePreservationStepTest extends ExtendedTestCase {
 
         verifyZeroInteractions(server);
 
-        verify(preserver).packRecordMetadata(eq(record), any(File.class));
-        verify(preserver, times(3)).packRepresentationMetadata(any(File.class), anyString(), anyString());
+        verify(preserver).packRecordMetadata(eq(record), any(MetadataBuffer.class));
+        verify(preserver, times(3)).packRepresentationMetadata(any(MetadataBuffer.class), anyString(), anyString());
+        verify(preserver).startRecordPackaging();
+        verify(preserver).finishRecordPackaging();
+        verify(preserver).checkpointRecordPackaging(any(CumulusRecord.class));
         verify(preserver).checkConditions();
         verifyNoMoreInteractions(preserver);
 
@@ -202,7 +209,6 @@ public class UpdatePreservationStepTest extends ExtendedTestCase {
         verify(representationTransformer).transformXmlMetadata(any(InputStream.class), any(OutputStream.class));
         verifyNoMoreInteractions(representationTransformer);
         
-        verify(transformationHandler).getMetadataStandards(any(InputStream.class));
         verify(transformationHandler).getTransformer(eq(MetadataTransformationHandler.TRANSFORMATION_SCRIPT_FOR_METS));
         verify(transformationHandler, times(2)).getTransformer(eq(MetadataTransformationHandler.TRANSFORMATION_SCRIPT_FOR_INTELLECTUEL_ENTITY));
         verify(transformationHandler).getTransformer(eq(MetadataTransformationHandler.TRANSFORMATION_SCRIPT_FOR_REPRESENTATION));
@@ -241,22 +247,18 @@ public class UpdatePreservationStepTest extends ExtendedTestCase {
         MetadataTransformationHandler transformationHandler = mock(MetadataTransformationHandler.class);
         CumulusRecord record = mock(CumulusRecord.class);
         
-        File testMetadataFile = new File("src/test/resources/test-mets.xml");
         String metadataStandards = UUID.randomUUID().toString();
         
-        when(transformationHandler.getMetadataStandards(any(InputStream.class))).thenReturn(Arrays.asList(metadataStandards));
-        
         UpdatePreservationStep step = new UpdatePreservationStep(conf.getTransformationConf(), server, transformationHandler, preserver, catalogName);
         
-        step.setMetadataStandardsForRecord(record, testMetadataFile);
+        step.setMetadataStandardsForRecord(record, Arrays.asList(metadataStandards));
         
         verifyZeroInteractions(server);
         verifyZeroInteractions(preserver);
         
-        verify(transformationHandler).getMetadataStandards(any(InputStream.class));
-        verifyNoMoreInteractions(transformationHandler);
+        verifyZeroInteractions(transformationHandler);
         
-        verify(record).setStringValueInField(eq(Constants.FieldNames.BEVARINGS_METADATA), anyString());
+        verify(record).setStringValueInField(eq(Constants.FieldNames.BEVARINGS_METADATA), eq(metadataStandards + "\n"));
         verifyNoMoreInteractions(record);
     }
     
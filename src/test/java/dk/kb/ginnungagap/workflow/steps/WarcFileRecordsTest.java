@@ -0,0 +1,86 @@
+package dk.kb.ginnungagap.workflow.steps;
+
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.UUID;
+
+import org.jaccept.structure.ExtendedTestCase;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import dk.kb.cumulus.Constants;
+import dk.kb.cumulus.CumulusRecord;
+
+public class WarcFileRecordsTest extends ExtendedTestCase {
+
+    String collectionId = "test-collection-id-" + UUID.randomUUID().toString();
+
+    @Test
+    public void testGroupRecords() {
+        addDescription("Test that the records are grouped by their WARC file.");
+        String warcId1 = UUID.randomUUID().toString();
+        String warcId2 = UUID.randomUUID().toString();
+        CumulusRecord record1 = createRecord(warcId1, UUID.randomUUID().toString());
+        CumulusRecord record2 = createRecord(warcId2, UUID.randomUUID().toString());
+        CumulusRecord record3 = createRecord(warcId1, UUID.randomUUID().toString());
+        CumulusRecord badRecord = mock(CumulusRecord.class);
+        when(badRecord.getFieldValue(eq(Constants.FieldNames.RESOURCE_PACKAGE_ID)))
+                .thenThrow(new RuntimeException("MUST FAIL"));
+        CumulusRecord recordWithoutWarcFile = createRecord(null, UUID.randomUUID().toString());
+
+        List<CumulusRecord> ungroupedRecords = new ArrayList<CumulusRecord>();
+        Collection<WarcFileRecords> warcFiles = WarcFileRecords.groupRecords(
+                Arrays.asList(record1, badRecord, record2, recordWithoutWarcFile, record3), ungroupedRecords);
+
+        Assert.assertEquals(warcFiles.size(), 2);
+        Iterator<WarcFileRecords> iterator = warcFiles.iterator();
+        WarcFileRecords first = iterator.next();
+        Assert.assertEquals(first.getWarcId(), warcId1);
+        Assert.assertEquals(first.getCollectionId(), collectionId);
+        Assert.assertEquals(first.getNumberOfRecords(), 2);
+        Assert.assertEquals(new ArrayList<CumulusRecord>(first.getRecords()), Arrays.asList(record1, record3));
+        WarcFileRecords second = iterator.next();
+        Assert.assertEquals(second.getWarcId(), warcId2);
+        Assert.assertEquals(second.getNumberOfRecords(), 1);
+
+        Assert.assertEquals(ungroupedRecords, Arrays.asList(badRecord, recordWithoutWarcFile));
+    }
+
+    @Test
+    public void testTakeRecord() {
+        addDescription("Test that the records are found from the ids of their WARC records.");
+        String uuid1 = UUID.randomUUID().toString();
+        String uuid2 = "random-file-uuid";
+        CumulusRecord record1 = mock(CumulusRecord.class);
+        CumulusRecord record2 = mock(CumulusRecord.class);
+        WarcFileRecords warcFileRecords = new WarcFileRecords(UUID.randomUUID().toString(), collectionId);
+        Assert.assertTrue(warcFileRecords.addRecord(uuid1, record1));
+        Assert.assertTrue(warcFileRecords.addRecord(uuid2, record2));
+        Assert.assertFalse(warcFileRecords.addRecord(uuid1, record2));
+
+        Assert.assertNull(warcFileRecords.takeRecord("<urn:uuid:" + UUID.randomUUID().toString() + ">"));
+        Assert.assertNull(warcFileRecords.takeRecord(null));
+        Assert.assertEquals(warcFileRecords.takeRecord("<urn:uuid:" + uuid1 + ">"), record1);
+        Assert.assertNull(warcFileRecords.takeRecord("<urn:uuid:" + uuid1 + ">"));
+        Assert.assertFalse(warcFileRecords.isEmpty());
+        Assert.assertNull(warcFileRecords.takeRecord("<urn:other:" + uuid2 + ">"));
+        Assert.assertEquals(warcFileRecords.takeRecord("urn:uuid:" + uuid2), record2);
+        Assert.assertTrue(warcFileRecords.isEmpty());
+        Assert.assertEquals(warcFileRecords.getNumberOfRecords(), 2);
+    }
+
+    protected CumulusRecord createRecord(String warcId, String uuid) {
+        CumulusRecord record = mock(CumulusRecord.class);
+        when(record.getFieldValue(eq(Constants.FieldNames.RESOURCE_PACKAGE_ID))).thenReturn(warcId);
+        when(record.getFieldValue(eq(Constants.FieldNames.COLLECTION_ID))).thenReturn(collectionId);
+        when(record.getUUID()).thenReturn(uuid);
+        return record;
+    }
+}
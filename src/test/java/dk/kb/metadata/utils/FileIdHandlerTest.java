@@ -33,4 +33,26 @@ public class FileIdHandlerTest extends ExtendedTestCase {
         FileIdHandler.clean();
         Assert.assertEquals(0, FileIdHandler.getMap().size());
     }
+
+    @Test
+    public void testHandlerIsThreadConfined() throws Exception {
+        addDescription("Test that the file ids of one thread are not visible to another thread.");
+        FileIdHandler.clean();
+        String res = FileIdHandler.getFileID(defaultGUID);
+        Assert.assertEquals(1, FileIdHandler.getMap().size());
+
+        String[] otherRes = new String[2];
+        Thread other = new Thread(() -> {
+            otherRes[0] = String.valueOf(FileIdHandler.getMap().size());
+            otherRes[1] = FileIdHandler.getFileID(defaultGUID);
+            FileIdHandler.clean();
+        });
+        other.start();
+        other.join();
+
+        Assert.assertEquals("0", otherRes[0]);
+        Assert.assertEquals(res, otherRes[1]);
+        Assert.assertEquals(1, FileIdHandler.getMap().size());
+        FileIdHandler.clean();
+    }
 }